@@ -61,6 +61,7 @@ import ca.sqlpower.util.UserPrompter.UserPromptOptions;
 import ca.sqlpower.util.UserPrompter.UserPromptResponse;
 import ca.sqlpower.wabit.enterprise.client.WabitClientSession;
 import ca.sqlpower.wabit.enterprise.client.WorkspaceLocation;
+import ca.sqlpower.wabit.rs.PreparedStatementCache;
 import ca.sqlpower.wabit.rs.olap.OlapConnectionPool;
 
 /**
@@ -105,6 +106,12 @@ public class WabitSessionContextImpl implements WabitSessionContext {
     private final Map<Olap4jDataSource, OlapConnectionPool> olapConnectionPools = 
     		new HashMap<Olap4jDataSource, OlapConnectionPool>();
     
+    /**
+     * The connections queries are executed on, one per data source. Each
+     * keeps its prepared statements in a {@link PreparedStatementCache} so
+     * re-running a query with different parameter values does not prepare
+     * it again.
+     */
     private final Map<JDBCDataSource, Connection> sqlConnections = 
         	new HashMap<JDBCDataSource, Connection>();
     
@@ -491,13 +498,13 @@ public class WabitSessionContextImpl implements WabitSessionContext {
 	{
     	Connection conn = this.sqlConnections.get(dataSource);
     	if (conn == null) {
-    		conn = getDatabase(dataSource).getConnection();
+    		conn = new PreparedStatementCache(getDatabase(dataSource).getConnection()).getConnection();
     		this.sqlConnections.put(dataSource, conn);
     	} else
 			try {
 				if (conn.isClosed()) {
 					this.sqlConnections.remove(dataSource);
-					conn = getDatabase(dataSource).getConnection();
+					conn = new PreparedStatementCache(getDatabase(dataSource).getConnection()).getConnection();
 					this.sqlConnections.put(dataSource, conn);
 				}
 			} catch (SQLException e1) {
@@ -86,6 +86,33 @@ public class WabitUtils {
                 o.getClass());
     }
 
+	/**
+	 * Returns the position of the given child in the children of the given
+	 * parent, or -1 if it is not one of them. This uses the constant time
+	 * lookup of the {@link WabitWorkspace} when the parent is a workspace.
+	 */
+	public static int indexOfChild(SPObject parent, SPObject child) {
+		if (parent instanceof WabitWorkspace) {
+			return ((WabitWorkspace) parent).indexOfChild(child);
+		}
+		return parent.getChildren().indexOf(child);
+	}
+
+	/**
+	 * Returns the position of the given child among the children of the given
+	 * parent that are of the same class, or -1 if it is not one of them. This
+	 * uses the constant time lookup of the {@link WabitWorkspace} when the
+	 * parent is a workspace, which places subclasses of
+	 * {@link WabitDataSource} among all of the data sources, see
+	 * {@link WabitWorkspace#indexOfChildOfType(SPObject)}.
+	 */
+	public static int indexOfChildOfType(SPObject parent, SPObject child) {
+		if (parent instanceof WabitWorkspace) {
+			return ((WabitWorkspace) parent).indexOfChildOfType(child);
+		}
+		return parent.getChildren(child.getClass()).indexOf(child);
+	}
+
 	/**
 	 * Generates a new UUID in the format suitable for use with any
 	 * WabitObject's UUID property.
@@ -28,11 +28,17 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
+import javax.annotation.Nonnull;
 import javax.swing.event.UndoableEditListener;
 
 import org.apache.log4j.Logger;
@@ -56,6 +62,8 @@ import ca.sqlpower.wabit.image.WabitImage;
 import ca.sqlpower.wabit.report.Report;
 import ca.sqlpower.wabit.report.Template;
 import ca.sqlpower.wabit.report.chart.Chart;
+import ca.sqlpower.wabit.rs.ResultSetVariableResolver;
+import ca.sqlpower.wabit.rs.ResultSetVariableResolver.LoadListener;
 import ca.sqlpower.wabit.rs.olap.OlapQuery;
 import ca.sqlpower.wabit.rs.query.QueryCache;
 
@@ -143,6 +151,11 @@ public class WabitWorkspace extends AbstractWabitObject implements DataSourceCol
      */
     private final List<UndoableEditListener> dsCollectionUndoListeners = new ArrayList<UndoableEditListener>();
     
+    /**
+     * Told when the variables of an object in this workspace were loaded.
+     */
+    private final List<LoadListener> variableLoadListeners = new CopyOnWriteArrayList<LoadListener>();
+    
     /**
      * This is the current editor panel's model that is being being edited.
      * This allows the workspace to know what panel to load when it is loaded. 
@@ -264,27 +277,153 @@ public class WabitWorkspace extends AbstractWabitObject implements DataSourceCol
 		setName(DEFAULT_NAME);
     }
     
-    public List<SPObject> getChildren() {
-    	List<SPObject> allChildren = new ArrayList<SPObject>();
-    	if (isSystemWorkspace()) {
-    		allChildren.addAll(users);
-    		allChildren.addAll(groups);
-    	} else {
-    		allChildren.addAll(dataSources);
-    		allChildren.addAll(queries);
-    		allChildren.addAll(olapQueries);
-    		allChildren.addAll(charts);
-    		allChildren.addAll(images);
-    		allChildren.addAll(templates);
-    		allChildren.addAll(reports);
-    		allChildren.addAll(reportTasks);
+    /**
+     * The children of this workspace as they were when they were last asked
+     * for, along with the position of each child. Each add and remove of a
+     * child discards the snapshot, so looking up children and their positions
+     * does not go through every child again while the children are not
+     * changing, which matters when many events need the position of their
+     * source.
+     */
+    private static class ChildrenSnapshot {
+    	
+    	/**
+    	 * True if this snapshot was taken while the workspace was the system
+    	 * workspace, which has different children.
+    	 */
+    	private final boolean systemWorkspace;
+    	
+    	private final List<SPObject> children;
+    	
+    	/**
+    	 * The position of each child in {@link #children}.
+    	 */
+    	private final Map<SPObject, Integer> indexes = new IdentityHashMap<SPObject, Integer>();
+    	
+    	/**
+    	 * The position of each child among the children of its own type.
+    	 */
+    	private final Map<SPObject, Integer> typeIndexes = new IdentityHashMap<SPObject, Integer>();
+    	
+    	/**
+    	 * The lists returned by {@link WabitWorkspace#getChildren(Class)}, by the
+    	 * type they were asked for.
+    	 */
+    	private final ConcurrentMap<Class<?>, List<?>> childrenByType = new ConcurrentHashMap<Class<?>, List<?>>();
+    	
+    	ChildrenSnapshot(boolean systemWorkspace, List<? extends List<? extends SPObject>> childLists) {
+    		this.systemWorkspace = systemWorkspace;
+    		List<SPObject> allChildren = new ArrayList<SPObject>();
+    		for (List<? extends SPObject> childList : childLists) {
+    			for (int i = 0; i < childList.size(); i++) {
+    				SPObject child = childList.get(i);
+    				indexes.put(child, allChildren.size());
+    				typeIndexes.put(child, i);
+    				allChildren.add(child);
+    			}
+    		}
+    		children = Collections.unmodifiableList(allChildren);
     	}
-    	return allChildren;
     }
     
+    /**
+     * @see ChildrenSnapshot
+     */
+    private volatile ChildrenSnapshot childrenSnapshot;
+    
+    /**
+     * The dependencies between the objects of this workspace. This is created
+     * the first time it is asked for.
+     */
+    private WorkspaceDependencyGraph dependencyGraph;
+    
+    /**
+     * Discards the cached children. This must be called every time one of the
+     * child lists is modified.
+     */
+    private void childrenChanged() {
+    	childrenSnapshot = null;
+    }
+    
+    private ChildrenSnapshot getChildrenSnapshot() {
+    	ChildrenSnapshot snapshot = childrenSnapshot;
+    	boolean systemWorkspace = isSystemWorkspace();
+    	if (snapshot == null || snapshot.systemWorkspace != systemWorkspace) {
+    		List<List<? extends SPObject>> childLists = new ArrayList<List<? extends SPObject>>();
+    		if (systemWorkspace) {
+    			childLists.add(users);
+    			childLists.add(groups);
+    		} else {
+    			childLists.add(dataSources);
+    			childLists.add(queries);
+    			childLists.add(olapQueries);
+    			childLists.add(charts);
+    			childLists.add(images);
+    			childLists.add(templates);
+    			childLists.add(reports);
+    			childLists.add(reportTasks);
+    		}
+    		snapshot = new ChildrenSnapshot(systemWorkspace, childLists);
+    		childrenSnapshot = snapshot;
+    	}
+    	return snapshot;
+    }
+    
+    /**
+     * Returns an unmodifiable list of the children of this workspace. The same
+     * list is returned until a child is added or removed.
+     */
+    public List<SPObject> getChildren() {
+    	return getChildrenSnapshot().children;
+    }
+
+    /**
+     * Returns the position of the given child in {@link #getChildren()}, or -1
+     * if it is not a child of this workspace. Unlike searching the list of
+     * children, this takes constant time.
+     */
+    public int indexOfChild(SPObject child) {
+    	Integer index = getChildrenSnapshot().indexes.get(child);
+    	return index == null ? -1 : index;
+    }
+
+    /**
+     * Returns the position of the given child in the list of children of its
+     * kind this workspace keeps, for example its position in
+     * {@link #getQueries()} for a query, or -1 if it is not a child of this
+     * workspace. This takes constant time.
+     * <p>
+     * For most children this is the position in
+     * <code>getChildren(child.getClass())</code>. A subclass of
+     * {@link WabitDataSource} is the exception: its position is among all of
+     * the {@link #getDataSources()}, whereas <code>getChildren</code> of the
+     * subclass returns no data sources as it only looks for the types of the
+     * lists themselves.
+     */
+    public int indexOfChildOfType(SPObject child) {
+    	Integer index = getChildrenSnapshot().typeIndexes.get(child);
+    	return index == null ? -1 : index;
+    }
+    
+    /**
+     * Returns an unmodifiable list of the children of this workspace that are
+     * of the given type. The same list is returned for a type until a child is
+     * added or removed.
+     */
     @SuppressWarnings("unchecked")
 	@Override
     public <T extends SPObject> List<T> getChildren(Class<T> type) {
+    	ChildrenSnapshot snapshot = getChildrenSnapshot();
+    	List<T> children = (List<T>) snapshot.childrenByType.get(type);
+    	if (children == null) {
+    		children = Collections.unmodifiableList(buildChildren(type));
+    		snapshot.childrenByType.putIfAbsent(type, children);
+    	}
+    	return children;
+    }
+    
+    @SuppressWarnings("unchecked")
+    private <T extends SPObject> List<T> buildChildren(Class<T> type) {
     	List<T> children = new ArrayList<T>();
     	if (type.isAssignableFrom(WabitDataSource.class)) children.addAll((List<T>) getDataSources());
     	if (type.isAssignableFrom(QueryCache.class)) children.addAll((List<T>) getQueries());
@@ -329,6 +468,7 @@ public class WabitWorkspace extends AbstractWabitObject implements DataSourceCol
     public void addDataSource(WabitDataSource ds, int index) {
     	logger.debug("adding WabitDataSource");
         dataSources.add(index, ds);
+        childrenChanged();
         ds.setParent(this);
         fireChildAdded(WabitDataSource.class, ds, index);
         if(ds instanceof WabitDataSource) {
@@ -341,6 +481,7 @@ public class WabitWorkspace extends AbstractWabitObject implements DataSourceCol
     	int index = dataSources.indexOf(ds);
     	if (index != -1) {
     		dataSources.remove(ds);
+    		childrenChanged();
     		fireChildRemoved(WabitDataSource.class, ds, index);
     		if(ds instanceof WabitDataSource) {
     			fireRemoveEvent(index, ((WabitDataSource)ds).getSPDataSource());
@@ -366,6 +507,7 @@ public class WabitWorkspace extends AbstractWabitObject implements DataSourceCol
     
     public void addQuery(QueryCache query, WabitSession session, int index) {
         queries.add(index, query);
+        childrenChanged();
         query.setParent(this);
         query.setDBMapping(session.getContext());
         fireChildAdded(QueryCache.class, query, index);
@@ -379,6 +521,7 @@ public class WabitWorkspace extends AbstractWabitObject implements DataSourceCol
     	if (index != -1) {
     		query.cleanup();
     		queries.remove(query);
+    		childrenChanged();
     		fireChildRemoved(QueryCache.class, query, index);
     		if (editorPanelModel == query) {
                 setEditorPanelModel(this);
@@ -395,6 +538,7 @@ public class WabitWorkspace extends AbstractWabitObject implements DataSourceCol
     
     public void addTemplate(Template template, int index) {
         templates.add(index, template);
+        childrenChanged();
         template.setParent(this);
         fireChildAdded(Template.class, template, index);
         if (isMagicEnabled()) {
@@ -406,6 +550,7 @@ public class WabitWorkspace extends AbstractWabitObject implements DataSourceCol
     	int index = templates.indexOf(template);
     	if (index != -1) {
     		templates.remove(template);
+    		childrenChanged();
     		fireChildRemoved(Template.class, template, index);
     		if (editorPanelModel == template) {
     		    setEditorPanelModel(this);
@@ -422,6 +567,7 @@ public class WabitWorkspace extends AbstractWabitObject implements DataSourceCol
     
     public void addReport(Report report, int index) {
         reports.add(index, report);
+        childrenChanged();
         report.setParent(this);
         fireChildAdded(Report.class, report, index);
         if (isMagicEnabled()) {
@@ -433,6 +579,7 @@ public class WabitWorkspace extends AbstractWabitObject implements DataSourceCol
     	int index = reports.indexOf(report);
     	if (index != -1) {
     		reports.remove(report);
+    		childrenChanged();
     		fireChildRemoved(Report.class, report, index);
     		if (editorPanelModel == report) {
     		    setEditorPanelModel(this);
@@ -449,6 +596,7 @@ public class WabitWorkspace extends AbstractWabitObject implements DataSourceCol
     
     public void addImage(WabitImage image, int index) {
         images.add(index, image);
+        childrenChanged();
         image.setParent(this);
         fireChildAdded(WabitImage.class, image, index);
         if (isMagicEnabled()) {
@@ -460,6 +608,7 @@ public class WabitWorkspace extends AbstractWabitObject implements DataSourceCol
         int index = images.indexOf(image);
         if (index != -1) {
             images.remove(image);
+            childrenChanged();
             fireChildRemoved(WabitImage.class, image, index);
             if (editorPanelModel == image) {
                 setEditorPanelModel(this);
@@ -480,6 +629,7 @@ public class WabitWorkspace extends AbstractWabitObject implements DataSourceCol
     
     public void addChart(Chart chart, int index) {
         charts.add(index, chart);
+        childrenChanged();
         chart.setParent(this);
         fireChildAdded(Chart.class, chart, index);
         if (isMagicEnabled()) {
@@ -491,6 +641,7 @@ public class WabitWorkspace extends AbstractWabitObject implements DataSourceCol
         int index = charts.indexOf(chart);
         if (index != -1) {
             charts.remove(chart);
+            childrenChanged();
             fireChildRemoved(Chart.class, chart, index);
             if (editorPanelModel == chart) {
                 setEditorPanelModel(this);
@@ -579,6 +730,7 @@ public class WabitWorkspace extends AbstractWabitObject implements DataSourceCol
     
     public void addUser(User u, int index) {
     	users.add(index, u);
+    	childrenChanged();
     	u.setParent(this);
     	fireChildAdded(User.class, u, index);
     	if (isMagicEnabled()) {
@@ -589,6 +741,7 @@ public class WabitWorkspace extends AbstractWabitObject implements DataSourceCol
     public boolean removeUser(User u) {
     	int index = users.indexOf(u);
     	boolean success = users.remove(u);
+    	childrenChanged();
     	if (success) {
     		fireChildRemoved(User.class, u, index);
     	}
@@ -605,6 +758,7 @@ public class WabitWorkspace extends AbstractWabitObject implements DataSourceCol
     
     public void addGroup(Group g, int index) {
     	groups.add(index, g);
+    	childrenChanged();
     	g.setParent(this);
     	fireChildAdded(Group.class, g, index);
     	if (isMagicEnabled()) {
@@ -615,6 +769,7 @@ public class WabitWorkspace extends AbstractWabitObject implements DataSourceCol
     public boolean removeGroup(Group g) {
     	int index = groups.indexOf(g);
     	boolean success = groups.remove(g);
+    	childrenChanged();
     	if (success) {
     		fireChildRemoved(Group.class, g, index);
     	}
@@ -635,6 +790,7 @@ public class WabitWorkspace extends AbstractWabitObject implements DataSourceCol
     	} catch (IndexOutOfBoundsException e) {
     		reportTasks.add(task);
     	}
+    	childrenChanged();
     	task.setParent(this);
         fireChildAdded(ReportTask.class, task, reportTasks.indexOf(task));
         if (isMagicEnabled()) {
@@ -646,6 +802,7 @@ public class WabitWorkspace extends AbstractWabitObject implements DataSourceCol
     	int index = reportTasks.indexOf(task);
     	if (index != -1) {
     		reportTasks.remove(task);
+    		childrenChanged();
     		fireChildRemoved(ReportTask.class, task, index);
     		if (editorPanelModel == task) {
     		    setEditorPanelModel(this);
@@ -860,6 +1017,34 @@ public class WabitWorkspace extends AbstractWabitObject implements DataSourceCol
 		dsCollectionUndoListeners.remove(l);
 	}
 
+	/**
+	 * Adds a listener that is told every time the variables of an object in
+	 * this workspace were loaded in the background.
+	 */
+	public void addVariableLoadListener(@Nonnull LoadListener l) {
+		variableLoadListeners.add(l);
+	}
+
+	public void removeVariableLoadListener(LoadListener l) {
+		variableLoadListeners.remove(l);
+	}
+
+	/**
+	 * Tells the variable load listeners of this workspace, on the foreground
+	 * thread of its session, that the given resolver loaded new values. This
+	 * is called by the resolvers of the objects in this workspace.
+	 */
+	public void fireVariablesLoaded(@Nonnull final ResultSetVariableResolver source) {
+		if (variableLoadListeners.isEmpty()) return;
+		runInForeground(new Runnable() {
+			public void run() {
+				for (LoadListener listener : variableLoadListeners) {
+					listener.variablesLoaded(source);
+				}
+			}
+		});
+	}
+
 	public void setEditorPanelModel(SPObject editorPanelModel) {
 		SPObject oldEditorPanelModel = this.editorPanelModel;
 		this.editorPanelModel = editorPanelModel;
@@ -876,6 +1061,7 @@ public class WabitWorkspace extends AbstractWabitObject implements DataSourceCol
     
     public void addOlapQuery(OlapQuery newQuery, int index) {
         olapQueries.add(index, newQuery);
+        childrenChanged();
         newQuery.setParent(this);
         fireChildAdded(OlapQuery.class, newQuery, index);
         if (isMagicEnabled()) {
@@ -887,6 +1073,7 @@ public class WabitWorkspace extends AbstractWabitObject implements DataSourceCol
     	int index = olapQueries.indexOf(query);
     	if (index != -1) {
     		olapQueries.remove(query);
+    		childrenChanged();
     		fireChildRemoved(OlapQuery.class, query, index);
     		if (editorPanelModel == query) {
                 setEditorPanelModel(this);
@@ -1086,6 +1273,17 @@ public class WabitWorkspace extends AbstractWabitObject implements DataSourceCol
     	}
     }
     
+    /**
+     * Returns the dependencies between the objects of this workspace, which
+     * are kept up to date as the workspace changes.
+     */
+    public synchronized WorkspaceDependencyGraph getDependencyGraph() {
+    	if (dependencyGraph == null) {
+    		dependencyGraph = new WorkspaceDependencyGraph(this);
+    	}
+    	return dependencyGraph;
+    }
+    
     public List<Class<? extends SPObject>> getAllowedChildTypes() {
     	List<Class<? extends SPObject>> types = new ArrayList<Class<? extends SPObject>>();
     	
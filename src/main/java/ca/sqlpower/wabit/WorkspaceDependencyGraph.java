@@ -0,0 +1,244 @@
+/*
+ * Copyright (c) 2009, SQL Power Group Inc.
+ *
+ * This file is part of Wabit.
+ *
+ * Wabit is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wabit is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. 
+ */
+
+package ca.sqlpower.wabit;
+
+import java.beans.PropertyChangeEvent;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nonnull;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import ca.sqlpower.object.AbstractSPListener;
+import ca.sqlpower.object.SPChildEvent;
+import ca.sqlpower.object.SPListener;
+import ca.sqlpower.object.SPObject;
+import ca.sqlpower.util.SQLPowerUtils;
+
+/**
+ * The dependencies between the objects of one workspace, kept up to date as
+ * objects are added, removed and changed. This replaces walking the whole
+ * workspace every time the objects that depend on an object are needed, as
+ * was done for every read permission check, every delete and every save.
+ * <p>
+ * The dependencies of an object are read from
+ * {@link SPObject#getDependencies()} when it is added to the workspace and
+ * every time it fires a property change or gains or loses a child. An object
+ * whose dependencies change without firing an event must call
+ * {@link #update(SPObject)} itself.
+ * <p>
+ * Queries can be made from any thread. They return copies which are not
+ * affected by later changes to the workspace.
+ */
+@ThreadSafe
+public class WorkspaceDependencyGraph {
+
+	private final WabitWorkspace workspace;
+
+	/**
+	 * The dependencies of every object in the workspace as they were last read.
+	 */
+	@GuardedBy("this")
+	private final Map<SPObject, Set<SPObject>> dependencies = 
+		new IdentityHashMap<SPObject, Set<SPObject>>();
+
+	/**
+	 * The objects that depend on each object. This is the reverse of
+	 * {@link #dependencies}. Objects that are no longer in the workspace are
+	 * kept here for as long as something depends on them.
+	 */
+	@GuardedBy("this")
+	private final Map<SPObject, Set<SPObject>> dependants = 
+		new IdentityHashMap<SPObject, Set<SPObject>>();
+
+	private final SPListener workspaceListener = new AbstractSPListener() {
+		@Override
+		protected void childAddedImpl(SPChildEvent e) {
+			SQLPowerUtils.listenToHierarchy(e.getChild(), this);
+			addHierarchy(e.getChild());
+			update(e.getSource());
+		}
+
+		@Override
+		protected void childRemovedImpl(SPChildEvent e) {
+			SQLPowerUtils.unlistenToHierarchy(e.getChild(), this);
+			removeHierarchy(e.getChild());
+			update(e.getSource());
+		}
+
+		@Override
+		protected void propertyChangeImpl(PropertyChangeEvent evt) {
+			update((SPObject) evt.getSource());
+		}
+	};
+
+	/**
+	 * Creates the graph of the given workspace. Call {@link #cleanup()} when
+	 * it is no longer needed to stop listening to the workspace.
+	 */
+	WorkspaceDependencyGraph(@Nonnull WabitWorkspace workspace) {
+		this.workspace = workspace;
+		SQLPowerUtils.listenToHierarchy(workspace, workspaceListener);
+		addHierarchy(workspace);
+	}
+
+	public WabitWorkspace getWorkspace() {
+		return workspace;
+	}
+
+	private synchronized void addHierarchy(SPObject object) {
+		update(object);
+		for (SPObject child : object.getChildren()) {
+			addHierarchy(child);
+		}
+	}
+
+	private synchronized void removeHierarchy(SPObject object) {
+		setDependencies(object, Collections.<SPObject>emptySet());
+		dependencies.remove(object);
+		for (SPObject child : object.getChildren()) {
+			removeHierarchy(child);
+		}
+	}
+
+	/**
+	 * Reads the dependencies of the given object again.
+	 */
+	public synchronized void update(@Nonnull SPObject object) {
+		setDependencies(object, new LinkedHashSet<SPObject>(object.getDependencies()));
+	}
+
+	@GuardedBy("this")
+	private void setDependencies(SPObject object, Set<SPObject> newDependencies) {
+		Set<SPObject> oldDependencies = dependencies.put(object, newDependencies);
+		if (oldDependencies != null) {
+			for (SPObject dependency : oldDependencies) {
+				if (newDependencies.contains(dependency)) continue;
+				Set<SPObject> objects = dependants.get(dependency);
+				objects.remove(object);
+				if (objects.isEmpty()) {
+					dependants.remove(dependency);
+				}
+			}
+		}
+		for (SPObject dependency : newDependencies) {
+			if (oldDependencies != null && oldDependencies.contains(dependency)) continue;
+			Set<SPObject> objects = dependants.get(dependency);
+			if (objects == null) {
+				objects = new LinkedHashSet<SPObject>();
+				dependants.put(dependency, objects);
+			}
+			objects.add(object);
+		}
+	}
+
+	/**
+	 * Returns the objects that depend directly on the given object.
+	 */
+	public synchronized List<SPObject> getDirectDependants(@Nonnull SPObject object) {
+		Set<SPObject> objects = dependants.get(object);
+		if (objects == null) return new ArrayList<SPObject>();
+		return new ArrayList<SPObject>(objects);
+	}
+
+	/**
+	 * Returns the objects the given object depends on directly.
+	 */
+	public synchronized List<SPObject> getDirectDependencies(@Nonnull SPObject object) {
+		Set<SPObject> objects = dependencies.get(object);
+		if (objects == null) return new ArrayList<SPObject>(object.getDependencies());
+		return new ArrayList<SPObject>(objects);
+	}
+
+	/**
+	 * Returns the given object followed by every object that depends on it or
+	 * on one of its descendants, directly or through other objects. An object
+	 * that depends on another object depends on all of its descendants as
+	 * well.
+	 */
+	public synchronized List<SPObject> getDependants(@Nonnull SPObject object) {
+		Set<SPObject> found = new LinkedHashSet<SPObject>();
+		found.add(object);
+		List<SPObject> toVisit = new ArrayList<SPObject>();
+		toVisit.add(object);
+		for (int i = 0; i < toVisit.size(); i++) {
+			addDependants(toVisit.get(i), found, toVisit);
+		}
+		return new ArrayList<SPObject>(found);
+	}
+
+	@GuardedBy("this")
+	private void addDependants(SPObject object, Set<SPObject> found, List<SPObject> toVisit) {
+		Set<SPObject> objects = dependants.get(object);
+		if (objects != null) {
+			for (SPObject dependant : objects) {
+				if (found.add(dependant)) {
+					toVisit.add(dependant);
+				}
+			}
+		}
+		for (SPObject child : object.getChildren()) {
+			addDependants(child, found, toVisit);
+		}
+	}
+
+	/**
+	 * Returns the given object, its descendants, and every object they depend
+	 * on directly or through other objects along with their descendants. Each
+	 * object comes after its descendants and after the objects it depends on,
+	 * which is the order they have to be loaded in.
+	 */
+	public synchronized List<SPObject> getSaveOrder(@Nonnull SPObject object) {
+		List<SPObject> order = new ArrayList<SPObject>();
+		addInSaveOrder(object, Collections.newSetFromMap(new IdentityHashMap<SPObject, Boolean>()), order);
+		return order;
+	}
+
+	@GuardedBy("this")
+	private void addInSaveOrder(SPObject object, Set<SPObject> visited, List<SPObject> order) {
+		if (!visited.add(object)) return;
+		for (SPObject child : object.getChildren()) {
+			addInSaveOrder(child, visited, order);
+		}
+		Collection<? extends SPObject> objectDependencies = dependencies.get(object);
+		if (objectDependencies == null) {
+			objectDependencies = object.getDependencies();
+		}
+		for (SPObject dependency : objectDependencies) {
+			addInSaveOrder(dependency, visited, order);
+		}
+		order.add(object);
+	}
+
+	/**
+	 * Stops listening to the workspace.
+	 */
+	public void cleanup() {
+		SQLPowerUtils.unlistenToHierarchy(workspace, workspaceListener);
+	}
+}
@@ -80,6 +80,7 @@ import ca.sqlpower.util.SQLPowerUtils;
 import ca.sqlpower.wabit.WabitDataSource;
 import ca.sqlpower.wabit.WabitObject;
 import ca.sqlpower.wabit.WabitSession;
+import ca.sqlpower.wabit.WabitUtils;
 import ca.sqlpower.wabit.WabitWorkspace;
 import ca.sqlpower.wabit.dao.session.WabitSessionPersisterSuperConverter;
 import ca.sqlpower.wabit.dao.session.WorkspacePersisterListener;
@@ -474,7 +475,7 @@ public class WabitSessionPersister implements SPPersister {
 		
 		if (spo.getParent() != null) {
 			parentUUID = spo.getParent().getUUID();
-			index = spo.getParent().getChildren(spo.getClass()).indexOf(spo);
+			index = WabitUtils.indexOfChildOfType(spo.getParent(), spo);
 		}
 		
 		return new PersistedSPObject(parentUUID, spo.getClass().getSimpleName(), 
@@ -1221,7 +1222,7 @@ public class WabitSessionPersister implements SPPersister {
 			SPObject parent = SQLPowerUtils.findByUuid(root, objectsToRemove
 					.get(uuid), SPObject.class);
 			try {
-				int index = parent.getChildren().indexOf(spo);
+				int index = WabitUtils.indexOfChild(parent, spo);
 				index -= parent.childPositionOffset(spo.getClass());
 				parent.removeChild(spo);
 				this.objectsToRemoveRollbackList.add(
@@ -1502,11 +1502,8 @@ public class WorkspaceSAXHandler extends DefaultHandler {
 			
     	} else if (name.equals("wabit-image")) {
             byte[] byteArray = new Base64().decode(stream.toByteArray());
-            try {
-                BufferedImage img = ImageIO.read(new ByteArrayInputStream(byteArray));
-                currentWabitImage.setImage(img);
-            } catch (IOException e) {
-                throw new RuntimeException(e);
+            if (byteArray.length > 0) {
+                currentWabitImage.setEncodedImage(byteArray);
             }
             currentWabitImage = null;
             
@@ -22,7 +22,6 @@ package ca.sqlpower.wabit.dao;
 import java.awt.Font;
 import java.awt.Image;
 import java.io.BufferedWriter;
-import java.io.ByteArrayOutputStream;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
@@ -45,10 +44,7 @@ import org.olap4j.Axis;
 
 import ca.sqlpower.dao.PersisterUtils;
 import ca.sqlpower.dao.session.DateConverter;
-import ca.sqlpower.graph.DepthFirstSearch;
 import ca.sqlpower.object.SPObject;
-import ca.sqlpower.object.WorkspaceGraphModel;
-import ca.sqlpower.object.WorkspaceGraphModelEdge;
 import ca.sqlpower.query.Container;
 import ca.sqlpower.query.Item;
 import ca.sqlpower.query.Query;
@@ -228,9 +224,8 @@ public class WorkspaceXMLDAO {
 		        workspaceToDependencies.put((WabitWorkspace) parentWorkspace, workspaceDependencies);
 		    }
 		    
-		    DepthFirstSearch<SPObject, WorkspaceGraphModelEdge> dfs = new DepthFirstSearch<SPObject, WorkspaceGraphModelEdge>();
-		    dfs.performSearch(new WorkspaceGraphModel(parentWorkspace, savingObject, false, false));
-		    List<SPObject> dependenciesToSave = dfs.getFinishOrder();
+		    List<SPObject> dependenciesToSave = 
+		        ((WabitWorkspace) parentWorkspace).getDependencyGraph().getSaveOrder(savingObject);
 		    for (SPObject object : dependenciesToSave) {
 		        if (!workspaceDependencies.contains(object)) {
 		            workspaceDependencies.add((WabitObject) object);
@@ -583,13 +578,20 @@ public class WorkspaceXMLDAO {
         xml.niprint(out, ">");
         xml.indent++;
 	    
-	    final Image wabitInnerImage = wabitImage.getImage();
-	    if (wabitInnerImage != null) {
-	    	ByteArrayOutputStream byteStream = PersisterUtils.convertImageToStreamAsPNG(wabitInnerImage);
+	    // The bytes the image was loaded from are saved as they are rather
+	    // than encoding the decoded image again.
+	    byte[] imageBytes = wabitImage.getEncodedImage();
+	    if (imageBytes == null) {
+	    	final Image wabitInnerImage = wabitImage.getImage();
+	    	if (wabitInnerImage != null) {
+	    		imageBytes = PersisterUtils.convertImageToStreamAsPNG(wabitInnerImage).toByteArray();
+	    	}
+	    }
+	    if (imageBytes != null) {
 	    	out.flush();
-	    	byte[] byteArray = new Base64().encode(byteStream.toByteArray());
+	    	byte[] byteArray = new Base64().encode(imageBytes);
 	    	logger.debug("Encoded length is " + byteArray.length);
-	    	logger.debug("Stream has byte array " + Arrays.toString(byteStream.toByteArray()));
+	    	logger.debug("Stream has byte array " + Arrays.toString(imageBytes));
 	    	for (int i = 0; i < byteArray.length; i++) {
 	    		out.write((char)byteArray[i]);
 	    		if (i % 60 == 59) {
@@ -56,6 +56,7 @@ import ca.sqlpower.util.TransactionEvent;
 import ca.sqlpower.wabit.WabitDataSource;
 import ca.sqlpower.wabit.WabitObject;
 import ca.sqlpower.wabit.WabitSession;
+import ca.sqlpower.wabit.WabitUtils;
 import ca.sqlpower.wabit.WabitWorkspace;
 import ca.sqlpower.wabit.dao.WabitSessionPersister;
 import ca.sqlpower.wabit.enterprise.client.ReportTask;
@@ -330,7 +331,7 @@ public class WorkspacePersisterListener implements SPListener {
 		int index = 0;
 		SPObject parent = wo.getParent();
 		if (parent != null) {
-			index = parent.getChildren().indexOf(wo) - parent.childPositionOffset(wo.getClass());
+			index = WabitUtils.indexOfChild(parent, wo) - parent.childPositionOffset(wo.getClass());
 			if (index < 0) {
 				index = 0;
 			}
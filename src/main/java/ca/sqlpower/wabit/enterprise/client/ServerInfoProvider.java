@@ -26,13 +26,18 @@ import java.net.URL;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import javax.swing.JOptionPane;
 import javax.swing.SwingUtilities;
 
+import net.jcip.annotations.Immutable;
+
 import org.apache.http.auth.AuthScope;
 import org.apache.http.auth.UsernamePasswordCredentials;
 import org.apache.http.client.methods.HttpGet;
@@ -43,6 +48,7 @@ import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.params.BasicHttpParams;
 import org.apache.http.params.HttpConnectionParams;
 import org.apache.http.params.HttpParams;
+import org.apache.log4j.Logger;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -51,18 +57,104 @@ import ca.sqlpower.enterprise.client.SPServerInfo;
 import ca.sqlpower.enterprise.client.ServerProperties;
 import ca.sqlpower.util.Version;
 
+/**
+ * Looks up the version, license, watermark message and fonts of Wabit
+ * servers. The information of each server is cached for
+ * {@link #CACHE_TTL_PROPERTY} milliseconds, ten minutes by default, so it
+ * can be asked for on every page that is painted. Once it expires the cached
+ * information is still returned while it is fetched again in the background,
+ * and it is kept if the server cannot be reached.
+ */
 public abstract class ServerInfoProvider {
 	
-	public static final String defaultWatermarkMessage = "This version of Wabit is for EVALUATION PURPOSES ONLY. To obtain a full Production License, please visit www.sqlpower.ca/wabit-ep";
-	
-	private static Map<String,Version> version = new HashMap<String, Version>();
+	private static final Logger logger = Logger.getLogger(ServerInfoProvider.class);
 	
-	private static Map<String,Boolean> licenses = new HashMap<String, Boolean>();
-	
-	private static Map<String,List<String>> fonts = new HashMap<String, List<String>>();
-	
-	private static Map<String,String> watermarkMessages = new HashMap<String, String>();
+	public static final String defaultWatermarkMessage = "This version of Wabit is for EVALUATION PURPOSES ONLY. To obtain a full Production License, please visit www.sqlpower.ca/wabit-ep";
+
+	/**
+	 * The system property that sets how long the information of a server is
+	 * kept before it is fetched again, in milliseconds.
+	 */
+	public static final String CACHE_TTL_PROPERTY = 
+		"ca.sqlpower.wabit.enterprise.client.ServerInfoProvider.ttl";
 	
+	private static final long DEFAULT_CACHE_TTL = 10 * 60 * 1000;
+
+	/**
+	 * The information fetched from one server.
+	 */
+	@Immutable
+	private static class ServerInfo {
+		private final Version version;
+		private final boolean licensed;
+		private final String watermarkMessage;
+		private final List<String> fonts;
+		
+		/**
+		 * The {@link System#currentTimeMillis()} after which the information
+		 * is fetched again.
+		 */
+		private final long expiry;
+		
+		ServerInfo(Version version, boolean licensed, String watermarkMessage, 
+				List<String> fonts) {
+			this.version = version;
+			this.licensed = licensed;
+			this.watermarkMessage = watermarkMessage;
+			this.fonts = Collections.unmodifiableList(fonts);
+			this.expiry = System.currentTimeMillis() + 
+				Long.getLong(CACHE_TTL_PROPERTY, DEFAULT_CACHE_TTL);
+		}
+		
+		boolean isExpired() {
+			return System.currentTimeMillis() > expiry;
+		}
+		
+		/**
+		 * Returns the same information with a new expiry.
+		 */
+		ServerInfo renew() {
+			return new ServerInfo(version, licensed, watermarkMessage, fonts);
+		}
+	}
+
+	/**
+	 * The information of every server asked about, by the key made by
+	 * {@link #generateServerKey(String, String, String, String, String)}.
+	 */
+	private static final ConcurrentMap<String, ServerInfo> serverInfos = 
+		new ConcurrentHashMap<String, ServerInfo>();
+
+	/**
+	 * The keys of the servers whose expired information is being fetched
+	 * again in the background.
+	 */
+	private static final ConcurrentMap<String, Boolean> refreshing = 
+		new ConcurrentHashMap<String, Boolean>();
+
+	/**
+	 * The lock of each server key. The information of a server is fetched
+	 * while holding its lock so it is only fetched once at a time, without
+	 * making the threads asking about other servers wait.
+	 */
+	private static final ConcurrentMap<String, Object> fetchLocks = 
+		new ConcurrentHashMap<String, Object>();
+
+	/**
+	 * Fetches the expired information of the servers again, so the threads
+	 * asking for it, which are often painting, do not wait for the server.
+	 * A server that does not answer does not hold up the refresh of the
+	 * others.
+	 */
+	private static final ExecutorService refresher = 
+		Executors.newCachedThreadPool(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Server info refresher");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+
 	public static Version getServerVersion(
 			String host,
 			String port,
@@ -70,8 +162,7 @@ public abstract class ServerInfoProvider {
 			String username, 
 			String password) throws MalformedURLException,IOException 
 	{
-		init(host, port, path, username, password);
-		return version.get(generateServerKey(host, port, path, username, password));
+		return init(host, port, path, username, password).version;
 	}
 	
 	public static List<String> getServerFonts(
@@ -93,8 +184,7 @@ public abstract class ServerInfoProvider {
 			String username, 
 			String password) throws MalformedURLException, IOException 
 	{
-		init(host, port, path, username, password);
-		return fonts.get(generateServerKey(host, port, path, username, password));
+		return init(host, port, path, username, password).fonts;
 	}
 	
 	public static boolean isServerLicensed(SPServerInfo infos) 
@@ -115,8 +205,7 @@ public abstract class ServerInfoProvider {
 			String username, 
 			String password) throws MalformedURLException,IOException 
 	{
-		init(host, port, path, username, password);
-		return licenses.get(generateServerKey(host, port, path, username, password));
+		return init(host, port, path, username, password).licensed;
 	}
 	
 	private static URL toServerInfoURL(
@@ -155,23 +244,124 @@ public abstract class ServerInfoProvider {
 		return new URL(sb.toString());
 	}
 	
-	private static void init(
+	/**
+	 * Forgets the information of every server, so it is fetched again the
+	 * next time it is asked for.
+	 */
+	public static void clearCache() {
+		serverInfos.clear();
+	}
+
+	/**
+	 * Returns the information of the given server, fetching it if it is not
+	 * cached. Expired information is returned as it is and fetched again in
+	 * the background.
+	 */
+	private static ServerInfo init(
+			final String host,
+			final String port,
+			final String path, 
+			final String username, 
+			final String password) 
+		throws IOException 
+	{
+		final String key = generateServerKey(host, port, path, username, password);
+		ServerInfo cached = serverInfos.get(key);
+		if (cached != null) {
+			if (cached.isExpired() && refreshing.putIfAbsent(key, Boolean.TRUE) == null) {
+				refresher.execute(new Runnable() {
+					public void run() {
+						try {
+							refresh(key, host, port, path, username, password);
+						} finally {
+							refreshing.remove(key);
+						}
+					}
+				});
+			}
+			return cached;
+		}
+		
+		synchronized (fetchLock(key)) {
+			cached = serverInfos.get(key);
+			if (cached != null) return cached;
+			ServerInfo fetched = fetch(host, port, path, username, password, true);
+			serverInfos.put(key, fetched);
+			return fetched;
+		}
+	}
+
+	/**
+	 * Returns the lock held while fetching the information of the server with
+	 * the given key.
+	 */
+	private static Object fetchLock(String key) {
+		Object lock = fetchLocks.get(key);
+		if (lock == null) {
+			Object newLock = new Object();
+			lock = fetchLocks.putIfAbsent(key, newLock);
+			if (lock == null) {
+				lock = newLock;
+			}
+		}
+		return lock;
+	}
+
+	/**
+	 * Fetches the expired information of the given server again. If the
+	 * server cannot be reached the expired information is kept until the
+	 * next time it expires.
+	 */
+	private static void refresh(
+			String key,
 			String host,
 			String port,
 			String path, 
 			String username, 
 			String password) 
+	{
+		synchronized (fetchLock(key)) {
+			ServerInfo cached = serverInfos.get(key);
+			if (cached == null || !cached.isExpired()) return;
+			try {
+				serverInfos.put(key, fetch(host, port, path, username, password, cached.licensed));
+			} catch (IOException e) {
+				logger.warn("Could not refresh the information of server " + host + ":" + port + 
+						path + ", keeping the previous information", e);
+				serverInfos.put(key, cached.renew());
+			} catch (RuntimeException e) {
+				logger.warn("Could not refresh the information of server " + host + ":" + port + 
+						path + ", keeping the previous information", e);
+				serverInfos.put(key, cached.renew());
+			}
+		}
+	}
+
+	/**
+	 * Fetches the information of the given server. Each fetch uses its own
+	 * client as the credentials are set on the client and servers are
+	 * fetched from concurrently.
+	 * 
+	 * @param notifyUnlicensed
+	 *            If true the user is told when the server is not licensed.
+	 */
+	private static ServerInfo fetch(
+			String host,
+			String port,
+			String path, 
+			String username, 
+			String password,
+			boolean notifyUnlicensed) 
 		throws IOException 
 	{
 		
 		URL serverInfoUrl = toServerInfoURL(host, port, path);
-		if (version.containsKey(generateServerKey(host, port, path, username, password))) return;
 		
+		HttpParams params = new BasicHttpParams();
+		HttpConnectionParams.setConnectionTimeout(params, 2000);
+		DefaultHttpClient httpClient = new DefaultHttpClient(params);
+		httpClient.setCookieStore(WabitClientSession.getCookieStore());
 		try {
-			HttpParams params = new BasicHttpParams();
-	        HttpConnectionParams.setConnectionTimeout(params, 2000);
-	        DefaultHttpClient httpClient = new DefaultHttpClient(params);
-	        httpClient.setCookieStore(WabitClientSession.getCookieStore());
 	        httpClient.getCredentialsProvider().setCredentials(
 	            new AuthScope(serverInfoUrl.getHost(), AuthScope.ANY_PORT), 
 	            new UsernamePasswordCredentials(username, password));
@@ -192,13 +382,8 @@ public abstract class ServerInfoProvider {
 				throw new IOException(e.getMessage());
 			}
 			
-			// Save found values
-			version.put(generateServerKey(host, port, path, username, password), new Version(serverVersion));
-			licenses.put(generateServerKey(host, port, path, username, password), licensedServer);
-			watermarkMessages.put(generateServerKey(host, port, path, username, password), watermarkMessage);
-			
 			// Notify the user if the server is not licensed.
-			if (!licensedServer) {
+			if (!licensedServer && notifyUnlicensed) {
 				SwingUtilities.invokeLater(new Runnable() {
 					public void run() {
 						JOptionPane.showMessageDialog(
@@ -222,14 +407,16 @@ public abstract class ServerInfoProvider {
 				}
 				// Sort the list.
 				Collections.sort(fontNames);
-				fonts.put(generateServerKey(host, port, path, username, password), fontNames);
+				return new ServerInfo(new Version(serverVersion), licensedServer, 
+						watermarkMessage, fontNames);
 			} catch (JSONException e) {
 				throw new IOException(e.getMessage());
 			}
     		
-    		
 		} catch (URISyntaxException e) {
 			throw new IOException(e.getLocalizedMessage());
+		} finally {
+			httpClient.getConnectionManager().shutdown();
 		}
 	}
 	
@@ -253,8 +440,9 @@ public abstract class ServerInfoProvider {
 	{
 		String message = defaultWatermarkMessage;
 		try {
-			if (!isServerLicensed(host,port,path,username,password)) {
-				message = watermarkMessages.get(generateServerKey(host, port, path, username, password));
+			ServerInfo info = init(host, port, path, username, password);
+			if (!info.licensed) {
+				message = info.watermarkMessage;
 			} else {
 				message = "";
 			}
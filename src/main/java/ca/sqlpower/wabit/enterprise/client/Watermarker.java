@@ -20,27 +20,114 @@
 package ca.sqlpower.wabit.enterprise.client;
 
 import java.awt.Color;
-import java.awt.Dimension;
 import java.awt.Font;
 import java.awt.FontMetrics;
 import java.awt.Graphics;
+import java.awt.Graphics2D;
 import java.awt.Rectangle;
-import java.net.URI;
-import java.net.URISyntaxException;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.net.URL;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
-import javax.swing.JLabel;
-import javax.swing.SwingConstants;
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.Immutable;
 
 import org.apache.log4j.Logger;
 
 import ca.sqlpower.wabit.WabitSession;
 import ca.sqlpower.wabit.swingui.WabitSwingSessionImpl;
 
-import com.kitfox.svg.app.beans.SVGIcon;
+import com.kitfox.svg.SVGCache;
+import com.kitfox.svg.SVGDiagram;
+import com.kitfox.svg.SVGException;
 
+/**
+ * Paints the evaluation notice and the "not for production" logo over the
+ * pages of reports made with an unlicensed server.
+ * <p>
+ * The logo is parsed once per JVM. On the screen the watermark is painted
+ * from an image cached for the last few page sizes and zoom levels, so
+ * repainting a page does not lay out the watermark again. Documents should
+ * paint the watermark once into a reusable template with
+ * {@link #watermark(Graphics, Rectangle)} and stamp every page with it, as
+ * {@link ca.sqlpower.wabit.report.LayoutToPDF} does.
+ */
 public class Watermarker {
 
 	private final static Logger logger = Logger.getLogger(Watermarker.class);
+	
+	private static final Color WATERMARK_COLOR = Color.decode("0xFF6600");
+	
+	private static final String LOGO_RESOURCE = "ca/sqlpower/wabit/enterprise/client/notforproduction.svg";
+
+	/**
+	 * The number of watermark images kept for the screen.
+	 */
+	private static final int MAX_CACHED_IMAGES = 4;
+
+	/**
+	 * Watermarks larger than this many pixels are painted directly instead
+	 * of being cached.
+	 */
+	private static final long MAX_IMAGE_PIXELS = 4000000;
+
+	/**
+	 * The parsed logo. It is loaded the first time a watermark is painted.
+	 */
+	@GuardedBy("Watermarker.class")
+	private static SVGDiagram logo;
+
+	@GuardedBy("imageCache")
+	private static final Map<ImageKey, BufferedImage> imageCache = 
+		new LinkedHashMap<ImageKey, BufferedImage>(MAX_CACHED_IMAGES, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<ImageKey, BufferedImage> eldest) {
+				return size() > MAX_CACHED_IMAGES;
+			}
+		};
+
+	/**
+	 * Identifies a watermark image painted for the screen.
+	 */
+	@Immutable
+	private static final class ImageKey {
+		private final String message;
+		private final int width;
+		private final int height;
+		private final double scaleX;
+		private final double scaleY;
+		
+		ImageKey(String message, int width, int height, double scaleX, double scaleY) {
+			this.message = message;
+			this.width = width;
+			this.height = height;
+			this.scaleX = scaleX;
+			this.scaleY = scaleY;
+		}
+		
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof ImageKey)) return false;
+			ImageKey other = (ImageKey) obj;
+			return message.equals(other.message) && width == other.width && 
+				height == other.height && scaleX == other.scaleX && scaleY == other.scaleY;
+		}
+		
+		@Override
+		public int hashCode() {
+			int result = message.hashCode();
+			result = 31 * result + width;
+			result = 31 * result + height;
+			long bits = Double.doubleToLongBits(scaleX);
+			result = 31 * result + (int) (bits ^ (bits >>> 32));
+			bits = Double.doubleToLongBits(scaleY);
+			result = 31 * result + (int) (bits ^ (bits >>> 32));
+			return result;
+		}
+	}
+	
 	private WabitSession session = null;
 	private String watermarkMessage = ServerInfoProvider.defaultWatermarkMessage;
 
@@ -61,7 +148,8 @@ public class Watermarker {
 	}
 	
 	/**
-	 * Will verify if the server is licensed before watermarking.
+	 * Will verify if the server is licensed before watermarking. This is meant
+	 * for painting on the screen and paints the watermark from a cached image.
 	 * @param g Graphics object to insert the watermark into
 	 * @param size The actual size of the watermarked area
 	 * @throws IllegalStateException if no session was provided at construction time
@@ -76,7 +164,8 @@ public class Watermarker {
 					ServerInfoProvider.isServerLicensed(
 						((WabitSwingSessionImpl)session).getEnterpriseServerInfos());
 				if (!licensed) {
-					this.watermark(g, size);
+					updateMessage();
+					paintCachedWatermark(g, size);
 				}
 			} catch (Exception e) {
 				logger.warn(e);
@@ -90,7 +179,15 @@ public class Watermarker {
 	 * @param size The actual size of the watermarked area
 	 */
 	public void watermark(Graphics g, Rectangle size) {
-        
+		updateMessage();
+		paintWatermark(g, size, watermarkMessage);
+	}
+
+	/**
+	 * Sets the message to the one of the server of the session, if there is
+	 * one. The server information is cached by the {@link ServerInfoProvider}.
+	 */
+	private void updateMessage() {
 		if (session != null &&
 				session.isEnterpriseServerSession()) {
 			try {
@@ -101,40 +198,114 @@ public class Watermarker {
 				logger.warn(e);
 			}
 		}
-	
+	}
+
+	/**
+	 * Paints the watermark from an image made for the size and scale of the
+	 * given graphics. The image is made the first time a watermark of this
+	 * size, scale and message is painted.
+	 */
+	private void paintCachedWatermark(Graphics g, Rectangle size) {
+		if (!(g instanceof Graphics2D) || size.width <= 0 || size.height <= 0) {
+			paintWatermark(g, size, watermarkMessage);
+			return;
+		}
+		Graphics2D g2 = (Graphics2D) g;
+		AffineTransform transform = g2.getTransform();
+		double scaleX = Math.sqrt(transform.getScaleX() * transform.getScaleX() + 
+				transform.getShearY() * transform.getShearY());
+		double scaleY = Math.sqrt(transform.getScaleY() * transform.getScaleY() + 
+				transform.getShearX() * transform.getShearX());
+		int imageWidth = (int) Math.ceil(size.width * scaleX);
+		int imageHeight = (int) Math.ceil(size.height * scaleY);
+		if (imageWidth <= 0 || imageHeight <= 0 || 
+				(long) imageWidth * imageHeight > MAX_IMAGE_PIXELS) {
+			paintWatermark(g, size, watermarkMessage);
+			return;
+		}
+		
+		ImageKey key = new ImageKey(watermarkMessage, size.width, size.height, scaleX, scaleY);
+		BufferedImage image;
+		synchronized (imageCache) {
+			image = imageCache.get(key);
+		}
+		if (image == null) {
+			image = new BufferedImage(imageWidth, imageHeight, BufferedImage.TYPE_INT_ARGB);
+			Graphics2D imageGraphics = image.createGraphics();
+			try {
+				imageGraphics.setFont(g.getFont());
+				imageGraphics.scale(scaleX, scaleY);
+				paintWatermark(imageGraphics, size, watermarkMessage);
+			} finally {
+				imageGraphics.dispose();
+			}
+			synchronized (imageCache) {
+				imageCache.put(key, image);
+			}
+		}
+		g2.drawImage(image, size.x, size.y, size.width, size.height, null);
+	}
+
+	/**
+	 * Paints the message across the top of the given area, scaled to its
+	 * width, and the logo in the middle.
+	 */
+	private static void paintWatermark(Graphics g, Rectangle size, String message) {
 		FontMetrics fm = g.getFontMetrics();
-        
-        JLabel label = new JLabel();
-        
-        int textWidth = fm.stringWidth(watermarkMessage);
-        int scaleWidth = (int) size.getWidth() - 50;
-        Font font = fm.getFont();
-        
-        font = font.deriveFont((float) (font.getSize()*((double)scaleWidth)/textWidth));
-        label.setFont(font);
-        label.setForeground(Color.decode("0xFF6600"));
-        label.setText(watermarkMessage);
-        label.setBounds(new java.awt.Rectangle(0, 20, (int) size.getWidth(), fm.getHeight() + 20));
-        label.setHorizontalAlignment(SwingConstants.HORIZONTAL);
-        
-        label.paint(g);
-        
-        URI resource = null;
-        try {
-        	resource = this.getClass().getClassLoader().getResource("ca/sqlpower/wabit/enterprise/client/notforproduction.svg").toURI();
-        } catch (URISyntaxException e) {
-        	throw new RuntimeException(e);
-        }
-        
-        SVGIcon logo = new SVGIcon();
-        logo.setSvgURI(resource);
-        
-        int scaleSize = (int) Math.min(size.getWidth(), size.getHeight());
-        int x = (int) (size.getWidth() - scaleSize)/2;
-        int y = (int) (size.getHeight() - scaleSize)/2;
-        logo.setPreferredSize(new Dimension(scaleSize, scaleSize));
-        logo.setScaleToFit(true);
-        logo.paintIcon(null, g, x, y);
+		int textWidth = fm.stringWidth(message);
+		if (textWidth > 0) {
+			int scaleWidth = (int) size.getWidth() - 50;
+			Font font = fm.getFont();
+			font = font.deriveFont((float) (font.getSize()*((double)scaleWidth)/textWidth));
+			FontMetrics scaledMetrics = g.getFontMetrics(font);
+			
+			// centred in the band the message has always been painted in
+			int bandHeight = fm.getHeight() + 20;
+			int x = (int) (size.getWidth() - scaledMetrics.stringWidth(message)) / 2;
+			int y = 20 + (bandHeight - scaledMetrics.getHeight()) / 2 + scaledMetrics.getAscent();
+			
+			Color oldColor = g.getColor();
+			Font oldFont = g.getFont();
+			g.setColor(WATERMARK_COLOR);
+			g.setFont(font);
+			g.drawString(message, x, y);
+			g.setColor(oldColor);
+			g.setFont(oldFont);
+		}
+		
+		SVGDiagram diagram = getLogo();
+		if (diagram == null || !(g instanceof Graphics2D)) return;
+		int scaleSize = (int) Math.min(size.getWidth(), size.getHeight());
+		int x = (int) (size.getWidth() - scaleSize)/2;
+		int y = (int) (size.getHeight() - scaleSize)/2;
+		Graphics2D logoGraphics = (Graphics2D) g.create();
+		try {
+			logoGraphics.translate(x, y);
+			logoGraphics.scale(scaleSize / diagram.getWidth(), scaleSize / diagram.getHeight());
+			synchronized (diagram) {
+				diagram.render(logoGraphics);
+			}
+		} catch (SVGException e) {
+			logger.warn("Could not paint the watermark logo", e);
+		} finally {
+			logoGraphics.dispose();
+		}
+	}
+
+	/**
+	 * Returns the parsed "not for production" logo, loading it the first time
+	 * this is called. Returns null if the logo cannot be loaded.
+	 */
+	private static synchronized SVGDiagram getLogo() {
+		if (logo == null) {
+			URL resource = Watermarker.class.getClassLoader().getResource(LOGO_RESOURCE);
+			if (resource == null) {
+				logger.warn("Could not find the watermark logo " + LOGO_RESOURCE);
+				return null;
+			}
+			logo = SVGCache.getSVGUniverse().getDiagram(SVGCache.getSVGUniverse().loadSVG(resource));
+		}
+		return logo;
 	}
 
 }
@@ -39,7 +39,6 @@ import ca.sqlpower.enterprise.client.GroupMember;
 import ca.sqlpower.enterprise.client.User;
 import ca.sqlpower.enterprise.client.security.SPAccessManager;
 import ca.sqlpower.object.SPObject;
-import ca.sqlpower.object.WorkspaceGraphModel;
 import ca.sqlpower.util.SQLPowerUtils;
 import ca.sqlpower.wabit.WabitSession;
 import ca.sqlpower.wabit.WabitWorkspace;
@@ -162,13 +161,14 @@ public class WabitAccessManager implements SPAccessManager{
 		if (getCurrentSession() == null) {
 			return Collections.emptyList();
 		}
-		final SPObject workspace = getCurrentSession().getWorkspace();
+		final WabitWorkspace workspace = getCurrentSession().getWorkspace();
 		SPObject root = SQLPowerUtils.findByUuid(workspace, rootUuid, SPObject.class);
+		if (root == null) {
+			return Collections.emptyList();
+		}
 		// Must find all dependent objects, but not ancestors
-		WorkspaceGraphModel graph = new WorkspaceGraphModel(workspace,
-				root, true, true);
 		List<SPObject> parents = new LinkedList<SPObject>();
-		for (SPObject wo : graph.getNodes()) {
+		for (SPObject wo : workspace.getDependencyGraph().getDependants(root)) {
 			if (wo instanceof WabitWorkspace) {
 				parents.add(wo);
 				continue;
@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2009, SQL Power Group Inc.
+ *
+ * This file is part of Wabit.
+ *
+ * Wabit is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wabit is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. 
+ */
+
+package ca.sqlpower.wabit.image;
+
+import java.awt.Graphics2D;
+import java.awt.Image;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * Keeps scaled copies of one image so it can be painted at the size it is
+ * shown at without being rescaled on every paint. Downscaled copies are made
+ * from a chain of mip levels, each half the size of the one before, which
+ * gives a much better result than scaling a large image down in one step.
+ * <p>
+ * All copies are softly referenced so the garbage collector can reclaim them
+ * when memory runs low; they are rebuilt the next time they are asked for.
+ */
+@ThreadSafe
+public class ScaledImageCache {
+
+	/**
+	 * The number of scaled copies kept. The copies used least recently are
+	 * dropped first.
+	 */
+	private static final int MAX_ENTRIES = 6;
+
+	/**
+	 * Scaled copies larger than this many pixels are not made. They would take
+	 * too much memory for what they save.
+	 */
+	static final long MAX_PIXELS = 4 * 1024 * 1024;
+
+	private final Image source;
+
+	@GuardedBy("this")
+	private final Map<Key, SoftReference<BufferedImage>> scaledImages =
+		new LinkedHashMap<Key, SoftReference<BufferedImage>>(MAX_ENTRIES, 0.75f, true);
+
+	/**
+	 * The mip chain of the source image. The first level is the source image
+	 * itself, each following level is half the size of the one before it.
+	 */
+	@GuardedBy("this")
+	private final List<SoftReference<BufferedImage>> mipLevels =
+		new ArrayList<SoftReference<BufferedImage>>();
+
+	public ScaledImageCache(@Nonnull Image source) {
+		this.source = source;
+	}
+
+	/**
+	 * Returns the image this cache keeps scaled copies of.
+	 */
+	public Image getSource() {
+		return source;
+	}
+
+	/**
+	 * Returns a copy of the source image scaled to the given size with the
+	 * given interpolation, or null if the size is not one worth caching. The
+	 * returned image must not be modified as it is shared by everyone painting
+	 * the same image at the same size.
+	 * 
+	 * @param interpolation
+	 *            One of the {@link RenderingHints#KEY_INTERPOLATION} values. If
+	 *            null bilinear interpolation is used.
+	 */
+	@Nullable
+	public synchronized BufferedImage getScaledImage(int width, int height, @Nullable Object interpolation) {
+		if (width <= 0 || height <= 0 || (long) width * height > MAX_PIXELS) return null;
+		if (interpolation == null) {
+			interpolation = RenderingHints.VALUE_INTERPOLATION_BILINEAR;
+		}
+		Key key = new Key(width, height, interpolation);
+		SoftReference<BufferedImage> ref = scaledImages.get(key);
+		BufferedImage scaled = ref == null ? null : ref.get();
+		if (scaled == null) {
+			scaled = scale(getMipLevel(width, height), width, height, interpolation);
+			scaledImages.put(key, new SoftReference<BufferedImage>(scaled));
+			if (scaledImages.size() > MAX_ENTRIES) {
+				Iterator<Key> eldest = scaledImages.keySet().iterator();
+				eldest.next();
+				eldest.remove();
+			}
+		}
+		return scaled;
+	}
+
+	/**
+	 * Returns the smallest mip level that is still at least as large as the
+	 * given size, building the levels it needs. For sizes larger than the
+	 * source the source itself is returned.
+	 */
+	@GuardedBy("this")
+	private BufferedImage getMipLevel(int width, int height) {
+		BufferedImage level = getLevel(0);
+		int index = 0;
+		while (level.getWidth() / 2 >= width && level.getHeight() / 2 >= height) {
+			index++;
+			BufferedImage next = index < mipLevels.size() ? mipLevels.get(index).get() : null;
+			if (next == null) {
+				next = scale(level, level.getWidth() / 2, level.getHeight() / 2,
+						RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+				setLevel(index, next);
+			}
+			level = next;
+		}
+		return level;
+	}
+
+	@GuardedBy("this")
+	private BufferedImage getLevel(int index) {
+		BufferedImage level = index < mipLevels.size() ? mipLevels.get(index).get() : null;
+		if (level == null) {
+			if (source instanceof BufferedImage) {
+				level = (BufferedImage) source;
+			} else {
+				level = new BufferedImage(Math.max(1, source.getWidth(null)), 
+						Math.max(1, source.getHeight(null)), BufferedImage.TYPE_INT_ARGB);
+				Graphics2D g = level.createGraphics();
+				g.drawImage(source, 0, 0, null);
+				g.dispose();
+			}
+			setLevel(index, level);
+		}
+		return level;
+	}
+
+	@GuardedBy("this")
+	private void setLevel(int index, BufferedImage level) {
+		while (mipLevels.size() <= index) {
+			mipLevels.add(new SoftReference<BufferedImage>(null));
+		}
+		mipLevels.set(index, new SoftReference<BufferedImage>(level));
+	}
+
+	private static BufferedImage scale(BufferedImage image, int width, int height, Object interpolation) {
+		BufferedImage scaled = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+		Graphics2D g = scaled.createGraphics();
+		g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, interpolation);
+		g.drawImage(image, 0, 0, width, height, null);
+		g.dispose();
+		return scaled;
+	}
+
+	/**
+	 * Drops every scaled copy and mip level.
+	 */
+	public synchronized void clear() {
+		scaledImages.clear();
+		mipLevels.clear();
+	}
+
+	private static class Key {
+
+		private final int width;
+
+		private final int height;
+
+		private final Object interpolation;
+
+		Key(int width, int height, Object interpolation) {
+			this.width = width;
+			this.height = height;
+			this.interpolation = interpolation;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) return false;
+			Key other = (Key) obj;
+			return width == other.width && height == other.height 
+				&& interpolation.equals(other.interpolation);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * (31 * width + height) + interpolation.hashCode();
+		}
+	}
+}
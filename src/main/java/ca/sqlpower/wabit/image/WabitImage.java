@@ -24,34 +24,73 @@ import java.awt.Graphics2D;
 import java.awt.Image;
 import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.ref.SoftReference;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
+import javax.annotation.Nullable;
+import javax.imageio.ImageIO;
 import javax.swing.Icon;
 import javax.swing.ImageIcon;
 
+import net.jcip.annotations.GuardedBy;
+
+import org.apache.log4j.Logger;
+
 import ca.sqlpower.object.SPObject;
 import ca.sqlpower.wabit.AbstractWabitObject;
 import ca.sqlpower.wabit.WabitObject;
 
 /**
  * The image saved in this object can be used in different reports in Wabit.
+ * <p>
+ * If the image was given as its encoded bytes, such as the contents of a PNG
+ * or JPEG file, those bytes are kept and the decoded image is only softly
+ * referenced: it is decoded again if it was reclaimed while memory was low.
  */
 public class WabitImage extends AbstractWabitObject {
     
+    private static final Logger logger = Logger.getLogger(WabitImage.class);
+    
+    /**
+     * The image given to {@link #setImage(Image)}. This is null if the image
+     * was given as encoded bytes, as it can be decoded again from them.
+     */
+    @GuardedBy("this")
     private Image image;
     
+    /**
+     * The encoded bytes of the image, or null if the image was not given as
+     * encoded bytes.
+     */
+    @GuardedBy("this")
+    private byte[] encodedImage;
+    
+    /**
+     * The scaled copies of the image, which also hold the decoded image if it
+     * was given as encoded bytes. This is shared by every renderer painting
+     * this image.
+     */
+    @GuardedBy("this")
+    private SoftReference<ScaledImageCache> scaledImages;
+    
     /**
      * This will cache the image as a 16x16 icon for use in trees, lists, and other
-     * places.
+     * places. It is made the first time it is asked for.
      */
+    @GuardedBy("this")
     private Icon imageAsIcon;
     
     public WabitImage(WabitImage wabitImage) {
     	super();
-    	image = wabitImage.getImage();
-    	setImageAsIcon();
+    	synchronized (wabitImage) {
+    		image = wabitImage.image;
+    		encodedImage = wabitImage.encodedImage;
+    		scaledImages = wabitImage.scaledImages;
+    	}
     }
     
     public WabitImage() {
@@ -63,39 +102,115 @@ public class WabitImage extends AbstractWabitObject {
     }
 
     public void setImage(Image image) {
-        Image oldImage = this.image;
-        this.image = image;
-        setImageAsIcon();
+        Image oldImage = getImage();
+        synchronized (this) {
+        	this.image = image;
+        	encodedImage = null;
+        	scaledImages = null;
+        	imageAsIcon = null;
+        }
         firePropertyChange("image", oldImage, image);
     }
 
     /**
-     * This will cache the current image in this object as an icon.
+     * Sets the image from its encoded bytes, in any format {@link ImageIO} can
+     * read. The bytes are kept so the image can be decoded again after the
+     * decoded copy has been reclaimed, and so it can be saved and exported
+     * without being encoded again.
+     */
+    public void setEncodedImage(@Nullable byte[] encodedImage) {
+    	Image oldImage = getImage();
+    	synchronized (this) {
+    		image = null;
+    		this.encodedImage = encodedImage;
+    		scaledImages = null;
+    		imageAsIcon = null;
+    	}
+    	firePropertyChange("image", oldImage, getImage());
+    }
+
+    /**
+     * Returns the encoded bytes of the image, or null if the image was not
+     * given as encoded bytes. The returned array must not be modified.
      */
-    private void setImageAsIcon() {
-        if (image != null) {
-            final int width = 16;
-            final int height = 16;
-            final BufferedImage bufferedImage = 
-                new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
-
-            Graphics2D g = bufferedImage.createGraphics();
-            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, 
-                    RenderingHints.VALUE_INTERPOLATION_BILINEAR);
-            g.drawImage(image, 0, 0, width, height, new Color(0xffffffff, true), null);
-            g.dispose();
+    @Nullable
+    public synchronized byte[] getEncodedImage() {
+    	return encodedImage;
+    }
+
+    /**
+     * Returns the cache of scaled copies of this image, decoding the image if
+     * it was reclaimed. Returns null if there is no image.
+     */
+    @Nullable
+    public synchronized ScaledImageCache getScaledImageCache() {
+    	ScaledImageCache cache = scaledImages == null ? null : scaledImages.get();
+    	if (cache == null) {
+    		Image source = image != null ? image : decode(encodedImage);
+    		if (source == null) return null;
+    		cache = new ScaledImageCache(source);
+    		scaledImages = new SoftReference<ScaledImageCache>(cache);
+    	}
+    	return cache;
+    }
+
+    @Nullable
+    private static Image decode(@Nullable byte[] encodedImage) {
+    	if (encodedImage == null) return null;
+    	try {
+    		Image decoded = ImageIO.read(new ByteArrayInputStream(encodedImage));
+    		if (decoded == null) {
+    			logger.error("The image is not in a format that can be read");
+    		}
+    		return decoded;
+    	} catch (IOException e) {
+    		logger.error("The image could not be decoded", e);
+    		return null;
+    	}
+    }
+
+    /**
+     * Returns a copy of the image scaled to the given size, or null if the size
+     * is too large to keep a copy of or there is no image. See
+     * {@link ScaledImageCache#getScaledImage(int, int, Object)}.
+     */
+    @Nullable
+    public BufferedImage getScaledImage(int width, int height, @Nullable Object interpolation) {
+    	ScaledImageCache cache = getScaledImageCache();
+    	if (cache == null) return null;
+    	return cache.getScaledImage(width, height, interpolation);
+    }
+
+    /**
+     * Creates the 16x16 icon of the given image.
+     */
+    private static Icon createIcon(Image image) {
+        final int width = 16;
+        final int height = 16;
+        final BufferedImage bufferedImage = 
+            new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+
+        Graphics2D g = bufferedImage.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, 
+                RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.drawImage(image, 0, 0, width, height, new Color(0xffffffff, true), null);
+        g.dispose();
         
-            imageAsIcon = new ImageIcon(bufferedImage);
-        } else {
-            imageAsIcon = null;
-        }
+        return new ImageIcon(bufferedImage);
     }
     
     public Image getImage() {
-        return image;
+    	ScaledImageCache cache = getScaledImageCache();
+    	return cache == null ? null : cache.getSource();
     }
     
-    public Icon getImageAsIcon() {
+    public synchronized Icon getImageAsIcon() {
+    	if (imageAsIcon == null) {
+    		Image current = getImage();
+    		if (current != null) {
+    			imageAsIcon = createIcon(current);
+    		}
+    	}
         return imageAsIcon;
     }
     
@@ -21,9 +21,9 @@ package ca.sqlpower.wabit.report;
 
 import java.awt.Color;
 import java.awt.Font;
-import java.awt.FontMetrics;
 import java.awt.Graphics2D;
 import java.awt.Rectangle;
+import java.awt.font.FontRenderContext;
 import java.awt.geom.Point2D;
 import java.beans.PropertyChangeEvent;
 import java.text.DecimalFormat;
@@ -35,6 +35,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import javax.annotation.Nonnull;
 import javax.swing.JTable;
 
 import org.apache.log4j.Logger;
@@ -65,6 +66,9 @@ import ca.sqlpower.wabit.rs.ResultSetHandle;
 import ca.sqlpower.wabit.rs.ResultSetListener;
 import ca.sqlpower.wabit.rs.ResultSetProducerEvent;
 import ca.sqlpower.wabit.rs.ResultSetProducerListener;
+import ca.sqlpower.wabit.rs.WabitResultSetProducer;
+import ca.sqlpower.wabit.rs.ResultSetHandle.ResultSetStatus;
+import ca.sqlpower.wabit.rs.olap.CellSetCache;
 import ca.sqlpower.wabit.rs.olap.OlapQuery;
 import ca.sqlpower.wabit.swingui.olap.CellSetTableHeaderComponent;
 import ca.sqlpower.wabit.swingui.olap.CellSetTableModel;
@@ -75,7 +79,7 @@ import ca.sqlpower.wabit.swingui.olap.CellSetTableHeaderComponent.LayoutItem;
  * Renders a CellSet from a MDX query on a report layout.
  */
 public class CellSetRenderer extends AbstractWabitObject implements
-        WabitObjectReportRenderer, ContextAware {
+        WabitObjectReportRenderer, ContextAware, PrewarmableRenderer, PaginatedRenderer {
     
     private final static Logger logger = Logger.getLogger(CellSetRenderer.class);
     
@@ -107,6 +111,13 @@ public class CellSetRenderer extends AbstractWabitObject implements
      */
     private CellSet cellSet;
     
+    /**
+     * The handle the displayed cell set came from. It is kept while the cell
+     * set is displayed as the cell set cache only closes the statement of a
+     * cell set once the handles it was given to are gone.
+     */
+    private ResultSetHandle cellSetHandle;
+    
     /**
      * The font of the column and row headers.
      */
@@ -165,8 +176,7 @@ public class CellSetRenderer extends AbstractWabitObject implements
 		public void executionComplete(final ResultSetEvent evt) {
 			SPSUtils.runOnSwingThread(new Runnable() {
                 public void run() {
-                	CellSetRenderer.this.errorMessage = null;
-                	setCellSet(evt.getSourceHandle().getCellSet());
+                	showResults(evt.getSourceHandle());
                 }
 			});
 		}
@@ -214,6 +224,7 @@ public class CellSetRenderer extends AbstractWabitObject implements
     	this.bodyAlignment = cellSetRenderer.bodyAlignment;
     	this.bodyFormat = cellSetRenderer.bodyFormat;
     	this.cellSet = cellSetRenderer.cellSet;
+    	this.cellSetHandle = cellSetRenderer.cellSetHandle;
     	this.errorMessage = cellSetRenderer.errorMessage;
     	this.initDone = false;
     }
@@ -258,6 +269,72 @@ public class CellSetRenderer extends AbstractWabitObject implements
     public OlapQuery getContent(){
     	return olapQuery;
     }
+    
+    /**
+     * Returns the copy of the query this renderer executes, which is created
+     * if it does not exist yet. Each cell set renderer executes its own copy
+     * so they are never grouped with other renderers, but identical queries
+     * still share their results through the {@link CellSetCache}.
+     */
+    public WabitResultSetProducer getResultSetProducer() {
+    	if (modifiedOlapQuery == null) {
+    		try {
+    			setModifiedOlapQuery(OlapQuery.copyOlapQuery(olapQuery));
+    		} catch (Exception e) {
+    			logger.warn("Could not copy the query " + olapQuery.getName() + " to prewarm it", e);
+    			return null;
+    		}
+    	}
+    	return modifiedOlapQuery;
+    }
+    
+    public void setPrewarmedResults(@Nonnull ResultSetHandle handle) {
+    	if (this.resultSetHandle != null) {
+    		this.resultSetHandle.removeResultSetListener(resultSetListener);
+    		this.resultSetHandle.cancel();
+    	}
+    	this.resultSetHandle = handle;
+    	handle.addResultSetListener(resultSetListener);
+    	this.initDone = true;
+    	if (handle.getStatus() == ResultSetStatus.SUCCESS) {
+    		this.errorMessage = null;
+    		this.cellSet = handle.getCellSet();
+    		this.cellSetHandle = handle;
+    	} else if (handle.getStatus() == ResultSetStatus.ERROR) {
+    		this.errorMessage = "Error when executing query:\n" + handle.getException();
+    	} else if (handle.getStatus() == ResultSetStatus.CANCELLED) {
+    		showCancelled();
+    	} else {
+    		this.errorMessage = "Loading...";
+    	}
+    }
+
+	/**
+	 * Displays the results of the given handle once its execution completed.
+	 * A cancelled execution keeps the previous results displayed, or tells
+	 * the query was cancelled if there are none.
+	 */
+    private void showResults(ResultSetHandle handle) {
+    	if (handle.getStatus() == ResultSetStatus.CANCELLED) {
+    		showCancelled();
+    		getParent().repaint();
+    	} else if (handle.getStatus() == ResultSetStatus.ERROR) {
+    		errorMessage = "Error when executing query:\n" + handle.getException();
+    		getParent().repaint();
+    	} else {
+    		errorMessage = null;
+    		cellSetHandle = handle;
+    		setCellSet(handle.getCellSet());
+    	}
+    }
+    
+    private void showCancelled() {
+    	if (cellSet != null) {
+    		errorMessage = null;
+    	} else {
+    		errorMessage = "The query '" + olapQuery.getName() + "' was cancelled.";
+    	}
+    }
 
     @Override
     public CleanupExceptions cleanup() {
@@ -273,6 +350,153 @@ public class CellSetRenderer extends AbstractWabitObject implements
         return null;
     }
 
+    /**
+     * The measured layout of a cell set for a given pair of fonts. All of the
+     * measurements that depend on the whole cell set, such as the column
+     * widths and the header layouts, are done once here so each paint only
+     * has to draw the rows and columns that are on the page being rendered.
+     */
+    class PivotLayout {
+        
+        private final CellSet layoutCellSet;
+        private final Font layoutHeaderFont;
+        private final Font layoutBodyFont;
+        private final FontRenderContext fontRenderContext;
+        
+        private final int headerFontHeight;
+        private final int maxRowHeight;
+        private final int totalHeaderHeight;
+        private final int[] parentDepth;
+        private final int[] columnWidthList;
+        private final double rowHeaderWidth;
+        
+        /**
+         * The layout items of each hierarchy on the rows axis. The items are
+         * in row order with one item per row.
+         */
+        private final List<List<LayoutItem>> rowHierarchyItems = new ArrayList<List<LayoutItem>>();
+        
+        /**
+         * The x position and preferred width of each hierarchy component on
+         * the rows axis.
+         */
+        private final List<Rectangle> rowHierarchyBounds = new ArrayList<Rectangle>();
+        
+        /**
+         * The sum of the widths of the row hierarchies before each hierarchy.
+         */
+        private final List<Double> rowHierarchyOffsets = new ArrayList<Double>();
+        
+        /**
+         * The layout items of each hierarchy on the columns axis.
+         */
+        private final List<List<LayoutItem>> columnHierarchyItems = new ArrayList<List<LayoutItem>>();
+        
+        /**
+         * The position of each hierarchy on the columns axis.
+         */
+        private final List<Rectangle> columnHierarchyBounds = new ArrayList<Rectangle>();
+        
+        /**
+         * The deepest member of each hierarchy on the columns axis relative
+         * to that hierarchy's parent depth.
+         */
+        private final int[] columnHierarchyMaxDepth;
+        
+        PivotLayout(Graphics2D g) {
+            layoutCellSet = cellSet;
+            layoutHeaderFont = getHeaderFont();
+            layoutBodyFont = getBodyFont();
+            fontRenderContext = g.getFontRenderContext();
+            
+            g.setFont(getHeaderFont());
+            headerFontHeight = g.getFontMetrics().getHeight();
+            g.setFont(getBodyFont());
+            int bodyFontHeight = g.getFontMetrics().getHeight();
+            
+            // divide by 0 error when going to smallest zoom level if maxRowHeight is 0
+            maxRowHeight = Math.max(1, Math.max(headerFontHeight, bodyFontHeight));
+            
+            CellSetAxis cellSetAxis = layoutCellSet.getAxes().get(Axis.COLUMNS.axisOrdinal());
+            CellSetAxisMetaData axisMetaData = cellSetAxis.getAxisMetaData();
+            int hierarchyCount = axisMetaData.getHierarchies().size();
+            Position firstPosition = cellSetAxis.getPositions().get(0);
+            parentDepth = new int[firstPosition.getMembers().size()];
+            int totalDepthToSubtract = 0; //this variable is for drill member
+            for (int j = 0; j < firstPosition.getMembers().size(); j++) {
+                Member member = firstPosition.getMembers().get(j);
+                parentDepth[j] = member.getDepth();
+                totalDepthToSubtract += parentDepth[j];
+            }
+            totalHeaderHeight = headerFontHeight * (hierarchyCount - totalDepthToSubtract);
+            
+            CellSetTableModel tableModel = new CellSetTableModel(layoutCellSet);
+            final JTable tableAsModel = new JTable(tableModel);
+            tableAsModel.setRowHeight(maxRowHeight);
+            
+            CellSetTableHeaderComponent rowHeaderComponent =
+                new CellSetTableHeaderComponent(
+                        modifiedOlapQuery, layoutCellSet, Axis.ROWS, tableAsModel, g.create(),
+                        getHeaderFont());
+            rowHeaderWidth = rowHeaderComponent.getPreferredSize().getWidth();
+            double rowHeaderSumWidth = 0;
+            for (HierarchyComponent hierarchyComponent : rowHeaderComponent.getHierarchies()) {
+                hierarchyComponent.createLayout();
+                rowHierarchyItems.add(new ArrayList<LayoutItem>(hierarchyComponent.getLayoutItems()));
+                int hierarchyWidth = (int) hierarchyComponent.getPreferredSize().getWidth();
+                rowHierarchyBounds.add(new Rectangle(hierarchyComponent.getX(), 0, hierarchyWidth, 0));
+                rowHierarchyOffsets.add(rowHeaderSumWidth);
+                rowHeaderSumWidth += hierarchyComponent.getPreferredSize().getWidth();
+            }
+            
+            columnWidthList = getDesiredColumnWidths(g, tableAsModel);
+            
+            CellSetTableHeaderComponent columnHeaderComponent =
+                new CellSetTableHeaderComponent(
+                        modifiedOlapQuery, layoutCellSet, Axis.COLUMNS, tableAsModel, g.create(),
+                        getHeaderFont());
+            columnHierarchyMaxDepth = new int[columnHeaderComponent.getHierarchies().size()];
+            int hierarchyComponentIndex = 0;
+            for (HierarchyComponent hierarchyComponent : columnHeaderComponent.getHierarchies()) {
+                hierarchyComponent.createLayout();
+                List<LayoutItem> items = new ArrayList<LayoutItem>(hierarchyComponent.getLayoutItems());
+                columnHierarchyItems.add(items);
+                columnHierarchyBounds.add(hierarchyComponent.getBounds());
+                int maxDepth = 0;
+                for (LayoutItem layoutItem : items) {
+                    maxDepth = Math.max((layoutItem.getMember().getDepth() - parentDepth[hierarchyComponentIndex]) + 1, maxDepth);
+                }
+                columnHierarchyMaxDepth[hierarchyComponentIndex] = maxDepth;
+                hierarchyComponentIndex++;
+            }
+        }
+
+        /**
+         * Returns true if this layout was measured for the current cell set
+         * and fonts of this renderer in the given graphics.
+         */
+        boolean isValidFor(Graphics2D g) {
+            return layoutCellSet == cellSet
+                && layoutHeaderFont.equals(getHeaderFont())
+                && layoutBodyFont.equals(getBodyFont())
+                && fontRenderContext.equals(g.getFontRenderContext());
+        }
+    }
+    
+    /**
+     * The layout of the current cell set. This is only measured again when the
+     * cell set, the fonts or the graphics' font rendering context change.
+     */
+    private PivotLayout pivotLayout;
+    
+    /**
+     * Returns the layout measured for the current cell set, or null if it was
+     * not painted yet. Package private for testing.
+     */
+    PivotLayout getPivotLayout() {
+        return pivotLayout;
+    }
+    
     /**
      * This method renders the report content in the CellSetRenderer
      */
@@ -305,63 +529,57 @@ public class CellSetRenderer extends AbstractWabitObject implements
         	return false;
         }
         
-        int headerFontHeight = g.getFontMetrics().getHeight();
-        
-        g.setFont(getBodyFont());
-        FontMetrics bodyFM = g.getFontMetrics();
-        int bodyFontHeight = bodyFM.getHeight();
-        
-        int maxRowHeight = Math.max(headerFontHeight, bodyFontHeight);
-        
-        CellSetAxis cellSetAxis = getCellSet().getAxes().get(Axis.COLUMNS.axisOrdinal());
-        CellSetAxisMetaData axisMetaData = cellSetAxis.getAxisMetaData();
-        int hierarchyCount = axisMetaData.getHierarchies().size();
-        Position firstPosition = cellSetAxis.getPositions().get(0);
-		int[] parentDepth = new int[firstPosition.getMembers().size()];
-		int totalDepthToSubtract = 0; //this variable is for drill member
-        for (int j = 0; j < firstPosition.getMembers().size(); j++) {
-        	Member member = firstPosition.getMembers().get(j);
-        	parentDepth[j] = member.getDepth();
-        	totalDepthToSubtract += parentDepth[j];
+        if (pivotLayout == null || !pivotLayout.isValidFor(g)) {
+            pivotLayout = new PivotLayout(g);
         }
-        int totalHeaderHeight = headerFontHeight * (hierarchyCount - totalDepthToSubtract);
+        PivotLayout layout = pivotLayout;
+        g.setFont(getBodyFont());
         
-        // divide by 0 error when going to smallest zoom level if maxRowHeight is 0
-        if (maxRowHeight == 0) {
-        	maxRowHeight = 1;
-        }
-        int numRows = (int) ((height - totalHeaderHeight) / maxRowHeight);
+        int numRows = (int) ((height - layout.totalHeaderHeight) / layout.maxRowHeight);
         if (numRows <= 0) return false;
         
         int firstRecord = numRows * pageIndex;
-        CellSetTableModel tableModel = new CellSetTableModel(getCellSet());
-        final JTable tableAsModel = new JTable(tableModel);
-        tableAsModel.setRowHeight(maxRowHeight);
         if (!printing) {
             memberHeaderMap.clear();
         }
         
-        CellSetTableHeaderComponent rowHeaderComponent =
-        	new CellSetTableHeaderComponent(
-        			modifiedOlapQuery, getCellSet(), Axis.ROWS, tableAsModel, g.create(),
-        			getHeaderFont());
-        double rowHeaderWidth = rowHeaderComponent.getPreferredSize().getWidth();
         Color oldForeground = g.getColor();
-        int[] columnWidthList = getDesiredColumnWidths(g, tableAsModel);
         
         // Actually print
-        int colHeaderSumHeight = printColumnHeaders(g, width, printing,
-				headerFontHeight, maxRowHeight, parentDepth,
-				tableAsModel, rowHeaderWidth, oldForeground, columnWidthList);
-        printRowHeaders(g, height, printing, maxRowHeight, numRows,
-				firstRecord, rowHeaderComponent, oldForeground,
-				colHeaderSumHeight, columnWidthList);
-        boolean shouldContinue = printBody(g, maxRowHeight, numRows, firstRecord, rowHeaderWidth,
-				colHeaderSumHeight, columnWidthList, oldForeground);
+        int colHeaderSumHeight = printColumnHeaders(g, width, printing, layout, oldForeground);
+        printRowHeaders(g, height, printing, numRows, firstRecord, layout, 
+        		oldForeground, colHeaderSumHeight);
+        boolean shouldContinue = printBody(g, numRows, firstRecord, layout, 
+        		colHeaderSumHeight, oldForeground);
         
         return shouldContinue;
     }
 
+    /**
+     * Counts the pages from the measured pivot layout, which is kept for the
+     * pages that are printed afterwards. Each page holds as many rows as fit
+     * below the column headers.
+     */
+    public int countPages(Graphics2D g, double width, double height) {
+    	init();
+    	if (this.errorMessage != null || getCellSet() == null) return 1;
+    	if (getBodyFont() == null) {
+    		setBodyFont(g.getFont());
+    	}
+    	if (getHeaderFont() == null) {
+    		setHeaderFont(g.getFont());
+    	}
+    	
+    	if (pivotLayout == null || !pivotLayout.isValidFor(g)) {
+    		pivotLayout = new PivotLayout(g);
+    	}
+    	int numRows = (int) ((height - pivotLayout.totalHeaderHeight) / pivotLayout.maxRowHeight);
+    	if (numRows <= 0) return 1;
+    	
+    	int rowCount = getCellSet().getAxes().get(1).getPositionCount();
+    	return Math.max(1, (rowCount + numRows - 1) / numRows);
+    }
+
 	private int[] getDesiredColumnWidths(Graphics2D g, final JTable tableAsModel) {
 		//get all the headers widths
         g.setFont(getHeaderFont());
@@ -397,23 +615,35 @@ public class CellSetRenderer extends AbstractWabitObject implements
 	}
 	
 	/**
-	 * Prints the body in the CellSetRenderer
+	 * Prints the body in the CellSetRenderer. Only the cells of the rows on
+	 * the given page that intersect the graphics' clip are drawn.
 	 */
-	private boolean printBody(Graphics2D g, int maxRowHeight, int numRows,
-			int firstRecord, double rowHeaderWidth, int colHeaderSumHeight,
-			int[] columnWidthList, Color oldForeground) {
+	private boolean printBody(Graphics2D g, int numRows, int firstRecord, 
+			PivotLayout layout, int colHeaderSumHeight, Color oldForeground) {
 		
 		g.setBackground(oldForeground);
 		
+		final int maxRowHeight = layout.maxRowHeight;
+		final double rowHeaderWidth = layout.rowHeaderWidth;
+		final int[] columnWidthList = layout.columnWidthList;
 		CellSetAxis columnsAxis = getCellSet().getAxes().get(0);
         CellSetAxis rowsAxis = getCellSet().getAxes().get(1);
+        Rectangle clip = g.getClipBounds();
         g.setFont(getBodyFont());
-        for (int row = firstRecord; row < rowsAxis.getPositionCount(); row++) {
-            if (row == numRows + firstRecord) {
-                return true;
-            }
+        int lastRow = Math.min(rowsAxis.getPositionCount(), numRows + firstRecord);
+        for (int row = firstRecord; row < lastRow; row++) {
+        	final int baseline = colHeaderSumHeight + ((row - firstRecord) * maxRowHeight) + maxRowHeight;
+        	if (clip != null && (baseline < clip.y || baseline - maxRowHeight > clip.y + clip.height)) {
+        		continue;
+        	}
             int colPosition = 0;
             for (int col = 0; col < columnsAxis.getPositionCount(); col++) {
+                int columnWidth = columnWidthList[col];
+                final int columnX = (int) (rowHeaderWidth + colPosition);
+                colPosition += columnWidth;
+                if (clip != null && (columnX + columnWidth < clip.x || columnX > clip.x + clip.width)) {
+                	continue;
+                }
                 String formattedValue;
                 Cell cell = getCellSet().getCell(
 				        columnsAxis.getPositions().get(col),
@@ -429,8 +659,6 @@ public class CellSetRenderer extends AbstractWabitObject implements
                 }
                 
                 double alignmentShift = 0;
-                int columnWidth = columnWidthList[col];
-                //final int columnWidth = tableAsModel.getColumnModel().getColumn(col).getWidth();
                 final double textWidthInContext = getBodyFont().getStringBounds(formattedValue, g.getFontRenderContext()).getWidth();
                 switch (bodyAlignment) {
                     case RIGHT:
@@ -456,34 +684,46 @@ public class CellSetRenderer extends AbstractWabitObject implements
                 	logger.debug("Non empty behaviour" + cell.getPropertyValue(Property.StandardCellProperty.NON_EMPTY_BEHAVIOR));
                 }
 //                g.setColor((Color) cell.getPropertyValue(Property.StandardCellProperty.FORE_COLOR));
-                g.drawString(formattedValue, (int) (rowHeaderWidth + colPosition + alignmentShift), (int) (colHeaderSumHeight + ((row - firstRecord) * maxRowHeight) + maxRowHeight));
-                colPosition += columnWidth;
+                g.drawString(formattedValue, (int) (columnX + alignmentShift), baseline);
             }
         }
-        return false;
+        return lastRow < rowsAxis.getPositionCount();
 	}
 	
 	/**
-	 * Prints the Row Headers in the Cell Set Renderer
+	 * Prints the Row Headers in the Cell Set Renderer. Only the layout items
+	 * near the rows of the given page are visited.
 	 */
 	private void printRowHeaders(Graphics2D g, double height,
-			boolean printing, int maxRowHeight, int numRows, int firstRecord,
-			CellSetTableHeaderComponent rowHeaderComponent,
-			Color oldForeground, int colHeaderSumHeight, int[] columnWidthList) {
+			boolean printing, int numRows, int firstRecord, PivotLayout layout,
+			Color oldForeground, int colHeaderSumHeight) {
 		
 		 g.setBackground(oldForeground);
 		int colourSchemeNum;
+		final int maxRowHeight = layout.maxRowHeight;
+		
+		// Each row header item is one row high, so only the items starting a
+		// few rows before the page can possibly be drawn on it.
+		final int headerRowOffset = colHeaderSumHeight / maxRowHeight;
 		
-		//XXX properly size up the rows with the font width, this will take an iteration through all the headers
-        double rowHeaderSumWidth = 0;
         colourSchemeNum = 0;
-        for (HierarchyComponent hierarchyComponent : rowHeaderComponent.getHierarchies()) {
-            hierarchyComponent.createLayout();
+        g.setFont(getHeaderFont());
+        for (int h = 0; h < layout.rowHierarchyItems.size(); h++) {
+            List<LayoutItem> layoutItems = layout.rowHierarchyItems.get(h);
+            Rectangle hierarchyBounds = layout.rowHierarchyBounds.get(h);
+            double rowHeaderSumWidth = layout.rowHierarchyOffsets.get(h);
             g.setColor(ColourScheme.HEADER_COLOURS[colourSchemeNum]);
-            g.fillRect((int) (hierarchyComponent.getX() + rowHeaderSumWidth), (int) (colHeaderSumHeight), (int) hierarchyComponent.getPreferredSize().getWidth(), (int)height);
+            g.fillRect((int) (hierarchyBounds.x + rowHeaderSumWidth), (int) (colHeaderSumHeight), hierarchyBounds.width, (int)height);
             g.setColor(oldForeground);
+            
+            int start = Math.max(0, firstRecord - headerRowOffset - 2);
+            int end = Math.min(layoutItems.size(), firstRecord + numRows + 2);
             Member lastMemberDisplayed = null;
-            for (LayoutItem layoutItem : hierarchyComponent.getLayoutItems()) {
+            if (start > 0 && start <= layoutItems.size()) {
+            	lastMemberDisplayed = layoutItems.get(start - 1).getMember();
+            }
+            for (int i = start; i < end; i++) {
+            	LayoutItem layoutItem = layoutItems.get(i);
                 if (layoutItem.getMember().equals(lastMemberDisplayed)) continue;
                 lastMemberDisplayed = layoutItem.getMember();
                 final double x = layoutItem.getBounds().getX() + rowHeaderSumWidth;
@@ -506,62 +746,61 @@ public class CellSetRenderer extends AbstractWabitObject implements
                 g.drawString(layoutItem.getText(), (float) x, (float) y);
                 g.setColor(oldColour);
             }
-            rowHeaderSumWidth += hierarchyComponent.getPreferredSize().getWidth();
             colourSchemeNum++;
         }
 	}
 	
 	/**
-	 * Prints the column headers in the CellSetRenderer.
+	 * Prints the column headers in the CellSetRenderer. Headers outside of the
+	 * graphics' clip are measured but not drawn.
 	 */
 	private int printColumnHeaders(Graphics2D g, double width,
-			boolean printing, int headerFontHeight, int maxRowHeight,
-			int[] parentDepth, JTable tableAsModel, double rowHeaderWidth, 
-			Color oldForeground, int[] columnWidthList) {
+			boolean printing, PivotLayout layout, Color oldForeground) {
 		
 		int colourSchemeNum = 0;
-		
-        CellSetTableHeaderComponent columnHeaderComponent =
-        	new CellSetTableHeaderComponent(
-        			modifiedOlapQuery, getCellSet(), Axis.COLUMNS, tableAsModel, g.create(),
-        			getHeaderFont());
+		final int headerFontHeight = layout.headerFontHeight;
+		final int maxRowHeight = layout.maxRowHeight;
+		final int[] parentDepth = layout.parentDepth;
+		final int[] columnWidthList = layout.columnWidthList;
+		final double rowHeaderWidth = layout.rowHeaderWidth;
+		Rectangle clip = g.getClipBounds();
         
 		int colHeaderSumHeight = 0;
         g.setFont(getHeaderFont());
-        int hierarchyComponentIndex = 0;
-        for (HierarchyComponent hierarchyComponent : columnHeaderComponent.getHierarchies()) {
-            hierarchyComponent.createLayout();
-            int maxDepth = 0;
-            for (LayoutItem layoutItem : hierarchyComponent.getLayoutItems()) {
-            	maxDepth = Math.max((layoutItem.getMember().getDepth() - parentDepth[hierarchyComponentIndex]) + 1, maxDepth);
-            }
+        for (int hierarchyComponentIndex = 0; hierarchyComponentIndex < layout.columnHierarchyItems.size(); hierarchyComponentIndex++) {
+            Rectangle hierarchyBounds = layout.columnHierarchyBounds.get(hierarchyComponentIndex);
+            int maxDepth = layout.columnHierarchyMaxDepth[hierarchyComponentIndex];
             
             g.setColor(ColourScheme.HEADER_COLOURS[colourSchemeNum]);
             int hierarchyHeight = (int) maxDepth * (headerFontHeight);
-			g.fillRect((int) (hierarchyComponent.getX() + rowHeaderWidth), (int) (hierarchyComponent.getY() + colHeaderSumHeight), (int)width, hierarchyHeight);
+			g.fillRect((int) (hierarchyBounds.getX() + rowHeaderWidth), (int) (hierarchyBounds.getY() + colHeaderSumHeight), (int)width, hierarchyHeight);
 			g.setColor(oldForeground);
             Member lastMemberDisplayed = null;
             
             double columnPosition = rowHeaderWidth;
             int col = 0;
             int hierarchySize = 0;
-            for (LayoutItem layoutItem : hierarchyComponent.getLayoutItems()) {
+            for (LayoutItem layoutItem : layout.columnHierarchyItems.get(hierarchyComponentIndex)) {
             	col++;
             	double x = columnPosition;
             	columnPosition += columnWidthList[col - 1];
                 if (layoutItem.getMember().equals(lastMemberDisplayed)) continue;
                 lastMemberDisplayed = layoutItem.getMember();
                 
-                //final double x = layoutItem.getBounds().getX() + rowHeaderWidth;
                 int relativeMemberDepth = layoutItem.getMember().getDepth() - parentDepth[hierarchyComponentIndex];
 				final double y = (relativeMemberDepth * headerFontHeight) + colHeaderSumHeight + headerFontHeight;
+                hierarchySize = (int) Math.max((relativeMemberDepth * headerFontHeight) + headerFontHeight, hierarchySize);
+                int columnWidth = columnWidthList[col - 1];
                 if (!printing) {
                     Set<Rectangle> memberRanges = memberHeaderMap.get(layoutItem.getMember());
                     if (memberRanges == null) {
                         memberRanges = new HashSet<Rectangle>();
                         memberHeaderMap.put(layoutItem.getMember(), memberRanges);
                     }
-                    memberRanges.add(new Rectangle((int) x, (int) y - maxRowHeight, (int) columnWidthList[col - 1], headerFontHeight));
+                    memberRanges.add(new Rectangle((int) x, (int) y - maxRowHeight, (int) columnWidth, headerFontHeight));
+                }
+                if (clip != null && (x + columnWidth < clip.x || x > clip.x + clip.width)) {
+                	continue;
                 }
                 Color oldColour = g.getColor();
                 if (selectedMember != null && selectedMember.equals(layoutItem.getMember())) {
@@ -570,8 +809,6 @@ public class CellSetRenderer extends AbstractWabitObject implements
                 
                 String headerText = layoutItem.getText();
                 double alignmentShift = 0;
-                int columnWidth = columnWidthList[col - 1];
-                //final int columnWidth = tableAsModel.getColumnModel().getColumn(col).getWidth();
                 final double textWidthInContext = getBodyFont().getStringBounds(headerText, g.getFontRenderContext()).getWidth();
                 switch (bodyAlignment) {
                     case RIGHT:
@@ -587,11 +824,9 @@ public class CellSetRenderer extends AbstractWabitObject implements
                 }
 				g.drawString(headerText, (float)(x + alignmentShift), (float) y);
                 g.setColor(oldColour);
-                hierarchySize = (int) Math.max((relativeMemberDepth * headerFontHeight) + headerFontHeight, hierarchySize);
             }
             colHeaderSumHeight += hierarchySize;
             colourSchemeNum++;
-            hierarchyComponentIndex++;
         }
 		return colHeaderSumHeight;
 	}
@@ -42,6 +42,8 @@ import ca.sqlpower.wabit.report.chart.ChartDataChangedEvent;
 import ca.sqlpower.wabit.report.chart.ChartDataListener;
 import ca.sqlpower.wabit.report.chart.ChartGradientPainter;
 import ca.sqlpower.wabit.report.selectors.ContextAware;
+import ca.sqlpower.wabit.rs.ResultSetHandle;
+import ca.sqlpower.wabit.rs.WabitResultSetProducer;
 import ca.sqlpower.wabit.swingui.chart.ChartSwingUtil;
 
 /**
@@ -49,10 +51,18 @@ import ca.sqlpower.wabit.swingui.chart.ChartSwingUtil;
  * defined by the user.
  */
 public class ChartRenderer extends AbstractWabitObject 
-		implements WabitObjectReportRenderer, ContextAware {
+		implements WabitObjectReportRenderer, ContextAware, PrewarmableRenderer, PaginatedRenderer {
 		
 	private static final Logger logger = Logger.getLogger(ChartRenderer.class);
 	private boolean needsRefresh = false;
+	
+	/**
+	 * True if the chart cache was given results by
+	 * {@link #setPrewarmedResults(ResultSetHandle)}. Printing uses those
+	 * results instead of executing the query again until the chart is
+	 * refreshed.
+	 */
+	private boolean prewarmed = false;
 
 	private final Chart chart;
 	
@@ -116,7 +126,7 @@ public class ChartRenderer extends AbstractWabitObject
 			// If we're printing a streaming query, we have to
 			// print whatever's displayed.
 			if (this.chartCache == null ||
-					(this.chartCache != null && !this.chartCache.getQuery().isStreaming())) {
+					(!prewarmed && !this.chartCache.getQuery().isStreaming())) {
 				refresh(false);
 			}
 		} else if (needsRefresh || this.chartCache == null) {
@@ -158,6 +168,11 @@ public class ChartRenderer extends AbstractWabitObject
 	public void resetToFirstPage() {
 		//do nothing.
 	}
+	
+	public int countPages(Graphics2D g, double width, double height) {
+		// A chart always fits on one page.
+		return 1;
+	}
 
 	public boolean allowsChildren() {
 		return false;
@@ -194,14 +209,34 @@ public class ChartRenderer extends AbstractWabitObject
     }
     
 	public void refresh(boolean async) {
+		replaceChartCache();
+		this.chartCache.refresh(async);
+		needsRefresh = false;
+		prewarmed = false;
+	}
+	
+	public WabitResultSetProducer getResultSetProducer() {
+		return chart.getQuery();
+	}
+	
+	public void setPrewarmedResults(@Nonnull ResultSetHandle handle) {
+		replaceChartCache();
+		this.chartCache.setResultSetHandle(handle);
+		needsRefresh = false;
+		prewarmed = true;
+	}
+	
+	/**
+	 * Replaces the copy of the chart this renderer draws with a new one that
+	 * has not loaded any data yet.
+	 */
+	private void replaceChartCache() {
 		if (this.chartCache != null) {
 			this.chartCache.removeChartDataListener(chartListener);
 			this.chartCache.cleanup();
 		}
 		this.chartCache = new Chart(ChartRenderer.this.chart, this);
 		this.chartCache.addChartDataListener(chartListener);
-		this.chartCache.refresh(async);
-		needsRefresh = false;
 	}
 
     @Override
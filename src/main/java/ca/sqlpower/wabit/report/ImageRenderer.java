@@ -21,13 +21,15 @@ package ca.sqlpower.wabit.report;
 
 import java.awt.Color;
 import java.awt.Graphics2D;
+import java.awt.Image;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
 import java.beans.PropertyChangeEvent;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
-import javax.swing.ImageIcon;
-
 import org.apache.log4j.Logger;
 
 import ca.sqlpower.object.AbstractPoolingSPListener;
@@ -44,7 +46,7 @@ import ca.sqlpower.wabit.image.WabitImage;
  * This class will let users import an image into their layout.
  */
 public class ImageRenderer extends AbstractWabitObject implements
-		WabitObjectReportRenderer {
+		WabitObjectReportRenderer, PaginatedRenderer {
 	
 	private static final Logger logger = Logger.getLogger(ImageRenderer.class);
 	
@@ -144,23 +146,23 @@ public class ImageRenderer extends AbstractWabitObject implements
 			boolean printing, 
 			SPVariableResolver variablesContext) 
 	{
-		if (image.getImage() == null) {
+		Image source = image.getImage();
+		if (source == null) {
 			g.drawString("Empty image", 0, g.getFontMetrics().getHeight());
 			return false;
 		}
 		
-		ImageIcon imageIcon = new ImageIcon(image.getImage());
 		double imageWidth;
 		double imageHeight;
 		if (isPreservingAspectRatio()) {
 		
 			double widthRatio = 
-				width / (double) imageIcon.getIconWidth();
+				width / (double) source.getWidth(null);
 			double heightRatio = 
-				height / (double) imageIcon.getIconHeight();
+				height / (double) source.getHeight(null);
 			double sizeRatio = Math.min(widthRatio, heightRatio);
-			imageWidth = (int) (imageIcon.getIconWidth() * sizeRatio);
-			imageHeight = (int) (imageIcon.getIconHeight() * sizeRatio);
+			imageWidth = (int) (source.getWidth(null) * sizeRatio);
+			imageHeight = (int) (source.getHeight(null) * sizeRatio);
 		} else {
 			imageWidth = width;
 			imageHeight = height;
@@ -196,14 +198,62 @@ public class ImageRenderer extends AbstractWabitObject implements
 		    }
 		}
 		
-		g.drawImage(image.getImage(), x, y, (int)imageWidth, (int)imageHeight, null);
+		byte[] encodedImage = image.getEncodedImage();
+		if (printing && encodedImage != null 
+				&& PDFImageEmbedder.drawImage(g, encodedImage, x, y, imageWidth, imageHeight)) {
+			logger.debug("Image embedded");
+			return false;
+		}
+		
+		if (!printing && drawScaledImage(g, x, y, imageWidth, imageHeight)) {
+			logger.debug("Scaled image rendered");
+			return false;
+		}
+		
+		g.drawImage(source, x, y, (int)imageWidth, (int)imageHeight, null);
 		logger.debug("Image rendered");
 		return false;
 	}
 
+	/**
+	 * Draws the copy of the image scaled to the size it takes on the device the
+	 * graphics draw on. The copy is kept by the {@link WabitImage} so it is
+	 * only scaled again when the zoom or the size of the content box changes.
+	 * 
+	 * @return False if the image could not be drawn this way, which happens if
+	 *         the graphics are rotated or sheared or the image would be too
+	 *         large to keep a copy of.
+	 */
+	private boolean drawScaledImage(Graphics2D g, int x, int y, double imageWidth, double imageHeight) {
+		AffineTransform transform = g.getTransform();
+		if ((transform.getType() & (AffineTransform.TYPE_GENERAL_TRANSFORM 
+				| AffineTransform.TYPE_MASK_ROTATION)) != 0) {
+			return false;
+		}
+		int deviceWidth = (int) Math.round(imageWidth * Math.abs(transform.getScaleX()));
+		int deviceHeight = (int) Math.round(imageHeight * Math.abs(transform.getScaleY()));
+		BufferedImage scaled = image.getScaledImage(deviceWidth, deviceHeight, 
+				g.getRenderingHint(RenderingHints.KEY_INTERPOLATION));
+		if (scaled == null) return false;
+		
+		Graphics2D scaledGraphics = (Graphics2D) g.create();
+		try {
+			scaledGraphics.translate(x, y);
+			scaledGraphics.scale(imageWidth / deviceWidth, imageHeight / deviceHeight);
+			scaledGraphics.drawImage(scaled, 0, 0, null);
+		} finally {
+			scaledGraphics.dispose();
+		}
+		return true;
+	}
+
 	public void resetToFirstPage() {
 		//no-op
 	}
+	
+	public int countPages(Graphics2D g, double width, double height) {
+		return 1;
+	}
 
 	public boolean allowsChildren() {
 		return false;
@@ -131,6 +131,15 @@ public abstract class Layout extends AbstractWabitObject implements Pageable, Pr
      * print the layout at the same time.
      */
     private AtomicBoolean currentlyPrinting = new AtomicBoolean(false);
+    
+    /**
+     * Set when the pages were last counted from the pagination plan of every
+     * renderer instead of by printing them. Printing the first page right
+     * after the count, see {@link #print(Graphics, PageFormat, int, boolean)},
+     * keeps the layouts the renderers measured for the plan instead of
+     * resetting them.
+     */
+    private volatile boolean pagesPlanned = false;
 
     protected void updateBuiltinVariables() {
     	if (this.variables != null) {
@@ -190,13 +199,33 @@ public abstract class Layout extends AbstractWabitObject implements Pageable, Pr
      * @param pageIndex the zero-based page number to print
      */
     public int print(Graphics graphics, PageFormat pageFormat, int pageIndex) throws PrinterException {
+    	return print(graphics, pageFormat, pageIndex, false);
+    }
+
+    /**
+     * Prints a page of this report to the given graphics context like
+     * {@link #print(Graphics, PageFormat, int)}.
+     * 
+     * @param pageIndex
+     *            the zero-based page number to print
+     * @param pagesCounted
+     *            True if the caller counted the pages with
+     *            {@link #getNumberOfPages()} right before printing the first
+     *            page and nothing changed since. If the pages were counted
+     *            from the pagination plan of the renderers the layouts they
+     *            measured are printed instead of being measured again.
+     */
+    public int print(Graphics graphics, PageFormat pageFormat, int pageIndex, 
+    		boolean pagesCounted) throws PrinterException {
                 
         if (pageIndex == 0) {
-            for (ContentBox cb : page.getContentBoxes()) {
-            	if (cb.getContentRenderer() != null) {
-            		cb.getContentRenderer().resetToFirstPage();
-            	}
-            }
+        	if (!pagesCounted || !pagesPlanned) {
+        		for (ContentBox cb : page.getContentBoxes()) {
+        			if (cb.getContentRenderer() != null) {
+        				cb.getContentRenderer().resetToFirstPage();
+        			}
+        		}
+        	}
         }
         logger.debug("Page count is " + pageCount + " looking or page indexed " + pageIndex);
         if (pageIndex >= pageCount) {
@@ -256,6 +285,14 @@ public abstract class Layout extends AbstractWabitObject implements Pageable, Pr
     }
 
     private int countPages() throws PrinterException {
+    	pagesPlanned = false;
+    	int plannedPages = planPages();
+    	if (plannedPages > 0) {
+    		pageCount = plannedPages;
+    		pagesPlanned = true;
+    		return plannedPages;
+    	}
+    	
     	boolean done = false;
     	int pageNum = 0;
     	pageCount = Integer.MAX_VALUE;
@@ -279,6 +316,49 @@ public abstract class Layout extends AbstractWabitObject implements Pageable, Pr
     	return pageNum;
     }
 
+    /**
+     * Counts the pages of this layout from the pagination plan of each content
+     * box's renderer, without printing anything. The number of pages is the
+     * largest number of pages needed by any renderer.
+     * 
+     * @return The number of pages, or -1 if a renderer cannot tell how many
+     *         pages it needs without being printed, in which case the pages
+     *         must be counted by printing them.
+     */
+    private int planPages() {
+    	for (ContentBox cb : page.getContentBoxes()) {
+    		ReportContentRenderer r = cb.getContentRenderer();
+    		if (r != null && !(r instanceof PaginatedRenderer)) {
+    			logger.debug("Counting pages by printing because " + r + " has no pagination plan");
+    			return -1;
+    		}
+    	}
+    	
+    	BufferedImage dummyImage = new BufferedImage(100, 100, BufferedImage.TYPE_INT_RGB);
+    	Graphics2D g = (Graphics2D) dummyImage.getGraphics();
+    	g.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+    			RenderingHints.VALUE_ANTIALIAS_ON);
+    	try {
+    		int pages = 1;
+    		for (ContentBox cb : page.getContentBoxes()) {
+    			PaginatedRenderer r = (PaginatedRenderer) cb.getContentRenderer();
+    			if (r == null) continue;
+    			r.resetToFirstPage();
+    			Graphics2D contentGraphics = (Graphics2D) g.create(
+    					(int) cb.getX(), (int) cb.getY(),
+    					(int) cb.getWidth(), (int) cb.getHeight());
+    			try {
+    				pages = Math.max(pages, r.countPages(contentGraphics, (int) cb.getWidth(), (int) cb.getHeight()));
+    			} finally {
+    				contentGraphics.dispose();
+    			}
+    		}
+    		return pages;
+    	} finally {
+    		g.dispose();
+    	}
+    }
+
 	public void setZoomLevel(int zoomLevel) {
 		firePropertyChange(PROPERTY_ZOOM, this.zoomLevel, zoomLevel);
 		this.zoomLevel = zoomLevel;
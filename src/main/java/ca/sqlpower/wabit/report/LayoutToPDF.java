@@ -39,16 +39,29 @@ import com.itextpdf.text.Document;
 import com.itextpdf.text.DocumentException;
 import com.itextpdf.text.Rectangle;
 import com.itextpdf.text.pdf.PdfContentByte;
+import com.itextpdf.text.pdf.PdfTemplate;
 import com.itextpdf.text.pdf.PdfWriter;
 
 public class LayoutToPDF implements Monitorable {
 
+	/**
+	 * The longest time to wait for the queries of the layout to be executed
+	 * before the pages are printed, in milliseconds. Content boxes whose query
+	 * takes longer execute it again when they are printed.
+	 */
+	private static final long PREWARM_TIMEOUT = 5 * 60 * 1000;
+
 	private final OutputStream fileOS;
 	private final Layout layout;
 	private final Watermarker watermarker;
 
 	private final MonitorableImpl monitorableHelper = new MonitorableImpl();
 	
+	/**
+	 * @see #setSharedResults(SharedQueryResults)
+	 */
+	private volatile SharedQueryResults sharedResults;
+	
 	
 	/**
 	 * Creates a PDF maker which does not watermark its output.
@@ -88,11 +101,44 @@ public class LayoutToPDF implements Monitorable {
 		this.watermarker = watermarker;
 	}
 	
+	/**
+	 * Sets the query results this PDF shares with other layouts. Layouts that
+	 * share results must be written one at a time.
+	 * 
+	 * @see ReportPrewarmer#prewarmAndWait(Layout, long, SharedQueryResults)
+	 */
+	public void setSharedResults(@Nullable SharedQueryResults sharedResults) {
+		this.sharedResults = sharedResults;
+	}
+
+	/**
+	 * Executes the queries of the layout and writes it to the PDF.
+	 */
 	public void writePDF()
     throws DocumentException, FileNotFoundException, PrinterException {
+		prewarm();
+		writePages();
+	}
+
+	/**
+	 * Executes the queries of the layout so they are ready when its pages are
+	 * written. This is the first part of {@link #writePDF()}, for callers that
+	 * do not want to hold a lock while the queries execute.
+	 */
+	public void prewarm() {
+		monitorableHelper.setStarted(true);
+		ReportPrewarmer.prewarmAndWait(layout, PREWARM_TIMEOUT, sharedResults);
+	}
+
+	/**
+	 * Writes the pages of the layout to the PDF. Queries that were not
+	 * executed by {@link #prewarm()} are executed as their pages are written.
+	 */
+	public void writePages()
+	throws DocumentException, FileNotFoundException, PrinterException {
     	monitorableHelper.setStarted(true);
 		int pageNum = 0;
-
+		
     	int numPages = layout.getNumberOfPages();
     	monitorableHelper.setJobSize(numPages);
     	Page page = layout.getPage();
@@ -107,23 +153,36 @@ public class LayoutToPDF implements Monitorable {
     	pdfDoc.addCreator("Wabit " + WabitVersion.VERSION);
     	PdfContentByte pdfContent = pdfOut.getDirectContent();
     	Graphics2D pdfGraphics = null;
+    	
+    	// The watermark is drawn once and stamped on every page.
+    	PdfTemplate watermarkTemplate = null;
+    	if (watermarker != null) {
+    		watermarkTemplate = pdfContent.createTemplate(pageSize.getWidth(), pageSize.getHeight());
+    		Graphics2D watermarkGraphics = watermarkTemplate.createGraphics(
+    				pageSize.getWidth(), pageSize.getHeight());
+    		try {
+    			java.awt.Rectangle watermarkSize = new java.awt.Rectangle();
+    			watermarkSize.setSize(
+    					Math.round(pageSize.getWidth()),
+    					Math.round(pageSize.getHeight()));
+    			watermarker.watermark(watermarkGraphics, watermarkSize);
+    		} finally {
+    			watermarkGraphics.dispose();
+    		}
+    	}
     	try {
     	    while(pageNum < numPages) {
     	    	monitorableHelper.checkCancelled();
     	    	monitorableHelper.setProgress(pageNum);
     	        pdfGraphics = pdfContent.createGraphics(pageSize.getWidth(), pageSize.getHeight());
-    	        int flag = layout.print(pdfGraphics, layout.getPageFormat(pageNum), pageNum);
-
-    	        if (watermarker != null) {
-    	        	java.awt.Rectangle watermarkSize = new java.awt.Rectangle();
-    	        	watermarkSize.setSize(
-    	        			Math.round(pageSize.getWidth()),
-    	        			Math.round(pageSize.getHeight()));
-    	        	watermarker.watermark(pdfGraphics, watermarkSize);
-    	        }
-    	        
+    	        int flag = layout.print(pdfGraphics, layout.getPageFormat(pageNum), pageNum, true);
+
     	        pdfGraphics.dispose();
     	        pdfGraphics = null;
+    	        
+    	        if (watermarkTemplate != null) {
+    	        	pdfContent.addTemplate(watermarkTemplate, 0, 0);
+    	        }
 
     	        if (flag == Printable.NO_SUCH_PAGE) break;
 
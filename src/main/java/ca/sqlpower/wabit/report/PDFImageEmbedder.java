@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2009, SQL Power Group Inc.
+ *
+ * This file is part of Wabit.
+ *
+ * Wabit is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wabit is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. 
+ */
+
+package ca.sqlpower.wabit.report;
+
+import java.awt.Graphics2D;
+import java.awt.geom.AffineTransform;
+import java.io.IOException;
+
+import org.apache.log4j.Logger;
+
+import com.itextpdf.text.DocumentException;
+import com.itextpdf.text.Image;
+import com.itextpdf.text.pdf.PdfContentByte;
+import com.itextpdf.text.pdf.PdfGraphics2D;
+
+/**
+ * Places encoded images, such as the contents of PNG and JPEG files, directly
+ * into a PDF being drawn through {@link LayoutToPDF}. Drawing an image through
+ * the {@link Graphics2D} of the PDF would store its decoded pixels instead,
+ * which is larger and loses the compression of the original.
+ */
+class PDFImageEmbedder {
+
+	private static final Logger logger = Logger.getLogger(PDFImageEmbedder.class);
+
+	private PDFImageEmbedder() {
+		// static access only
+	}
+
+	/**
+	 * Draws the given encoded image into the given rectangle if the graphics
+	 * draw into a PDF page.
+	 * 
+	 * @return True if the image was drawn. False if the graphics do not draw
+	 *         into a PDF or the image could not be embedded, in which case the
+	 *         caller should draw the image itself.
+	 */
+	static boolean drawImage(Graphics2D g, byte[] encodedImage, double x, double y,
+			double width, double height) {
+		if (!(g instanceof PdfGraphics2D)) return false;
+		PdfContentByte content = ((PdfGraphics2D) g).getContent();
+		try {
+			Image image = Image.getInstance(encodedImage);
+
+			// Maps the unit square of the image, whose origin is its bottom
+			// left corner, into the rectangle in the user space of the graphics,
+			// then into the PDF page whose origin is its bottom left corner.
+			float pageHeight = content.getPdfDocument().getPageSize().getHeight();
+			AffineTransform transform = new AffineTransform(1, 0, 0, -1, 0, pageHeight);
+			transform.concatenate(g.getTransform());
+			transform.translate(x, y + height);
+			transform.scale(width, -height);
+			double[] matrix = new double[6];
+			transform.getMatrix(matrix);
+
+			content.addImage(image, (float) matrix[0], (float) matrix[1], (float) matrix[2],
+					(float) matrix[3], (float) matrix[4], (float) matrix[5]);
+			return true;
+		} catch (DocumentException e) {
+			logger.warn("Could not embed the image in the PDF, it will be drawn instead", e);
+			return false;
+		} catch (IOException e) {
+			logger.warn("Could not embed the image in the PDF, it will be drawn instead", e);
+			return false;
+		}
+	}
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright (c) 2010, SQL Power Group Inc.
+ *
+ * This file is part of Wabit.
+ *
+ * Wabit is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wabit is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ca.sqlpower.wabit.report;
+
+import java.awt.Graphics2D;
+
+/**
+ * A {@link ReportContentRenderer} that can tell how many pages it will print
+ * without drawing them. {@link Layout} uses this to count its pages from the
+ * measured layout of each renderer instead of printing every page once to
+ * find out where the content ends.
+ */
+public interface PaginatedRenderer extends ReportContentRenderer {
+
+	/**
+	 * Returns the number of pages this renderer will need when it is printed
+	 * into a content box of the given size. This lays out the content the way
+	 * {@link #renderReportContent(Graphics2D, double, double, double, int, boolean, ca.sqlpower.object.SPVariableResolver)}
+	 * would when printing, executing the query behind the content if needed,
+	 * but does not draw anything. Renderers keep the layout they measured so
+	 * printing the pages afterwards does not measure it again.
+	 * 
+	 * @param g
+	 *            A graphics like the one the content will be printed into,
+	 *            used to measure the content.
+	 * @param width
+	 *            The width of the content box.
+	 * @param height
+	 *            The height of the content box.
+	 * @return The number of pages, which is at least 1.
+	 */
+	int countPages(Graphics2D g, double width, double height);
+}
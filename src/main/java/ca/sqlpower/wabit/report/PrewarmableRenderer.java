@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) 2010, SQL Power Group Inc.
+ *
+ * This file is part of Wabit.
+ *
+ * Wabit is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wabit is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ca.sqlpower.wabit.report;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import ca.sqlpower.wabit.rs.ResultSetHandle;
+import ca.sqlpower.wabit.rs.WabitResultSetProducer;
+
+/**
+ * A {@link ReportContentRenderer} that displays the results of a
+ * {@link WabitResultSetProducer} and can be given those results before it is
+ * first painted. The {@link ReportPrewarmer} uses this to execute the queries
+ * of a whole report at once instead of one content box at a time.
+ */
+public interface PrewarmableRenderer extends ReportContentRenderer {
+
+	/**
+	 * Returns the producer whose results this renderer displays, or null if
+	 * there is nothing to execute. Renderers in the same variable scope that
+	 * return the same producer will be given the same results.
+	 */
+	@Nullable
+	WabitResultSetProducer getResultSetProducer();
+
+	/**
+	 * Makes this renderer display the results of the given handle instead of
+	 * executing its producer again. The handle was created by executing the
+	 * producer returned by {@link #getResultSetProducer()} with this renderer
+	 * or another renderer in the same variable scope as the variable context,
+	 * and it may still be running.
+	 */
+	void setPrewarmedResults(@Nonnull ResultSetHandle handle);
+}
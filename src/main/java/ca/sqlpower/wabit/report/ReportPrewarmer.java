@@ -0,0 +1,285 @@
+/*
+ * Copyright (c) 2010, SQL Power Group Inc.
+ *
+ * This file is part of Wabit.
+ *
+ * Wabit is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wabit is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ca.sqlpower.wabit.report;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.log4j.Logger;
+
+import ca.sqlpower.object.SPVariableHelper;
+import ca.sqlpower.wabit.rs.ResultSetHandle;
+import ca.sqlpower.wabit.rs.ResultSetProducerException;
+import ca.sqlpower.wabit.rs.WabitResultSetProducer;
+
+/**
+ * Executes the queries of every content box in a {@link Layout} together
+ * before the layout is painted or printed. Without this each renderer only
+ * starts its query when it is first painted, so the content boxes of a report
+ * are loaded one after the other. The prewarmer collects the producers of
+ * every {@link PrewarmableRenderer} in the layout, executes each distinct
+ * producer once and gives a view of its results to every renderer that
+ * displays it, so the report only waits for its slowest query. Each view has
+ * its own row cursor, see {@link ResultSetHandle#createView()}.
+ * <p>
+ * Renderers are grouped by their producer and by their variable scope. A
+ * content box with selectors of its own is its own scope, every other content
+ * box resolves its variables through the layout and shares the layout's
+ * scope. Streaming producers are left for their renderers to follow.
+ */
+public class ReportPrewarmer {
+
+	private static final Logger logger = Logger.getLogger(ReportPrewarmer.class);
+
+	/**
+	 * Runs the queries executed by {@link #prewarmAndWait(Layout, long)}. Its
+	 * threads are daemons so a query left running does not keep the
+	 * application from exiting.
+	 */
+	private static final ExecutorService executorService = Executors.newCachedThreadPool(new ThreadFactory() {
+		private final AtomicInteger threadCount = new AtomicInteger();
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "Report prewarmer " + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	/**
+	 * Identifies the producer of a group of renderers and the scope their
+	 * variables are resolved in. Both are compared by identity.
+	 */
+	private static class GroupKey {
+		private final WabitResultSetProducer producer;
+		private final Object scope;
+
+		GroupKey(WabitResultSetProducer producer, Object scope) {
+			this.producer = producer;
+			this.scope = scope;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof GroupKey)) return false;
+			GroupKey other = (GroupKey) obj;
+			return producer == other.producer && scope == other.scope;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * System.identityHashCode(producer) + System.identityHashCode(scope);
+		}
+	}
+
+	/**
+	 * Executes the query of the first renderer of a group and waits for it to
+	 * finish. The handle is cancelled if the wait is interrupted, which is how
+	 * {@link Future#cancel(boolean)} stops it.
+	 */
+	private static class Execution implements Callable<ResultSetHandle> {
+		private final PrewarmableRenderer renderer;
+		private volatile ResultSetHandle handle;
+
+		Execution(PrewarmableRenderer renderer) {
+			this.renderer = renderer;
+		}
+
+		public ResultSetHandle call() throws Exception {
+			ResultSetHandle handle = renderer.getResultSetProducer().execute(
+					new SPVariableHelper(renderer), null, true);
+			if (handle == null) return null;
+			this.handle = handle;
+			try {
+				handle.awaitCompletion();
+			} catch (InterruptedException e) {
+				handle.cancel();
+				throw e;
+			}
+			return handle;
+		}
+
+		/**
+		 * Cancels the handle of the execution if it started.
+		 */
+		void cancel() {
+			ResultSetHandle handle = this.handle;
+			if (handle != null) {
+				handle.cancel();
+			}
+		}
+	}
+
+	private ReportPrewarmer() {
+		// static utility class
+	}
+
+	/**
+	 * Groups the renderers in the given layout that can be prewarmed by the
+	 * producer they display and the scope of their variables. The renderers
+	 * of each group are in the order their content boxes are in the page.
+	 */
+	static List<List<PrewarmableRenderer>> collectGroups(@Nonnull Layout layout) {
+		Map<GroupKey, List<PrewarmableRenderer>> groups =
+			new LinkedHashMap<GroupKey, List<PrewarmableRenderer>>();
+		for (ContentBox cb : layout.getPage().getContentBoxes()) {
+			if (!(cb.getContentRenderer() instanceof PrewarmableRenderer)) continue;
+			PrewarmableRenderer renderer = (PrewarmableRenderer) cb.getContentRenderer();
+			WabitResultSetProducer producer = renderer.getResultSetProducer();
+			if (producer == null || producer.isStreaming()) continue;
+			
+			Object scope = cb.getSelectors().isEmpty() ? layout : cb;
+			GroupKey key = new GroupKey(producer, scope);
+			List<PrewarmableRenderer> group = groups.get(key);
+			if (group == null) {
+				group = new ArrayList<PrewarmableRenderer>();
+				groups.put(key, group);
+			}
+			group.add(renderer);
+		}
+		return new ArrayList<List<PrewarmableRenderer>>(groups.values());
+	}
+
+	/**
+	 * Starts executing every distinct query of the given layout in the
+	 * background and gives the running handles to their renderers, which
+	 * repaint as the results arrive. This does not wait for the queries and
+	 * should be called on the event dispatch thread before the layout is
+	 * first painted.
+	 */
+	public static void prewarm(@Nonnull Layout layout) {
+		for (List<PrewarmableRenderer> group : collectGroups(layout)) {
+			PrewarmableRenderer first = group.get(0);
+			try {
+				ResultSetHandle handle = first.getResultSetProducer().execute(
+						new SPVariableHelper(first), null, true);
+				if (handle == null) continue;
+				for (PrewarmableRenderer renderer : group) {
+					renderer.setPrewarmedResults(handle.createView());
+				}
+			} catch (ResultSetProducerException e) {
+				logger.warn("Could not prewarm the results of " + first.getName() + 
+						", it will execute its query when it is painted.", e);
+			}
+		}
+	}
+
+	/**
+	 * Executes every distinct query of the given layout concurrently and
+	 * gives the results to their renderers once all of them finished. This is
+	 * meant to be called before a layout is printed, for example to a PDF,
+	 * and must not be called on the event dispatch thread. Renderers whose
+	 * query fails or does not finish in time are left alone and execute their
+	 * query themselves when they are printed.
+	 * 
+	 * @param layout
+	 *            The layout to prewarm.
+	 * @param timeoutMillis
+	 *            The longest time to wait for all of the queries, in
+	 *            milliseconds.
+	 */
+	public static void prewarmAndWait(@Nonnull Layout layout, long timeoutMillis) {
+		prewarmAndWait(layout, timeoutMillis, null);
+	}
+
+	/**
+	 * Executes every distinct query of the given layout concurrently like
+	 * {@link #prewarmAndWait(Layout, long)}, taking the results from the given
+	 * shared results when another layout already executed the same query. A
+	 * query is the same if it has the same producer and its variables are
+	 * resolved the same way, which is the case when neither its content box
+	 * nor its report have selectors.
+	 * 
+	 * @param layout
+	 *            The layout to prewarm.
+	 * @param timeoutMillis
+	 *            The longest time to wait for all of the queries, in
+	 *            milliseconds.
+	 * @param sharedResults
+	 *            The results shared with other layouts. If null the queries of
+	 *            this layout are not shared.
+	 */
+	public static void prewarmAndWait(@Nonnull Layout layout, long timeoutMillis, 
+			@Nullable SharedQueryResults sharedResults) {
+		List<List<PrewarmableRenderer>> groups = collectGroups(layout);
+		List<Future<ResultSetHandle>> futures = new ArrayList<Future<ResultSetHandle>>();
+		List<Execution> executions = new ArrayList<Execution>();
+		boolean layoutHasSelectors = layout instanceof Report && !((Report) layout).getSelectors().isEmpty();
+		for (List<PrewarmableRenderer> group : groups) {
+			PrewarmableRenderer first = group.get(0);
+			Execution execution = new Execution(first);
+			executions.add(execution);
+			if (sharedResults != null) {
+				ContentBox cb = (ContentBox) first.getParent();
+				Object scope = null;
+				if (!cb.getSelectors().isEmpty()) {
+					scope = cb;
+				} else if (layoutHasSelectors) {
+					scope = layout;
+				}
+				futures.add(sharedResults.getResults(layout, first.getResultSetProducer(), 
+						scope, execution, executorService));
+			} else {
+				futures.add(executorService.submit(execution));
+			}
+		}
+		
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		for (int i = 0; i < groups.size(); i++) {
+			List<PrewarmableRenderer> group = groups.get(i);
+			Future<ResultSetHandle> future = futures.get(i);
+			try {
+				long remaining = Math.max(0, deadline - System.currentTimeMillis());
+				ResultSetHandle handle = future.get(remaining, TimeUnit.MILLISECONDS);
+				if (handle == null) continue;
+				for (PrewarmableRenderer renderer : group) {
+					renderer.setPrewarmedResults(handle.createView());
+				}
+			} catch (TimeoutException e) {
+				if (sharedResults == null) {
+					future.cancel(true);
+					executions.get(i).cancel();
+				}
+				logger.warn("Timed out prewarming the results of " + group.get(0).getName());
+			} catch (ExecutionException e) {
+				logger.warn("Could not prewarm the results of " + group.get(0).getName(), e.getCause());
+			} catch (CancellationException e) {
+				logger.warn("The shared results of " + group.get(0).getName() + " were cancelled");
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+}
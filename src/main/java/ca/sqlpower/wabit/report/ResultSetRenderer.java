@@ -76,7 +76,7 @@ import ca.sqlpower.wabit.rs.query.QueryException;
  * Renders a JDBC result set using configurable absolute column widths.
  */
 public class ResultSetRenderer extends AbstractWabitObject 
-		implements WabitObjectReportRenderer, ContextAware {
+		implements WabitObjectReportRenderer, ContextAware, PrewarmableRenderer, PaginatedRenderer {
     
     private static final Color DRAGGABLE_COL_LINE_COLOUR = new Color(0xcccccc);
     
@@ -377,6 +377,16 @@ public class ResultSetRenderer extends AbstractWabitObject
     	return query;
     }
     
+    public WabitResultSetProducer getResultSetProducer() {
+    	return query;
+    }
+    
+    public synchronized void setPrewarmedResults(@Nonnull ResultSetHandle handle) {
+    	setResultSetHandle(handle);
+    	handle.addResultSetListener(resultSetListener);
+    	dirty = false;
+    }
+    
     @Override
     public CleanupExceptions cleanup() {
     	query.removeResultSetProducerListener(queryChangeListener);
@@ -564,17 +574,9 @@ public class ResultSetRenderer extends AbstractWabitObject
     {
     	
     	if (resultSetHandle == null || dirty) {
-    		try {
-				this.setResultSetHandle(
-						query.execute(new SPVariableHelper(ResultSetRenderer.this), resultSetListener, !printing));
-				if (!printing) {
-					return false;
-				}
-			} catch (ResultSetProducerException e) {
-				this.internalError = e;
-			} finally {
-				dirty = false;
-			}
+    		if (executeQuery(printing) && !printing) {
+    			return false;
+    		}
     	}
     	
     	if (printing) {
@@ -602,6 +604,15 @@ public class ResultSetRenderer extends AbstractWabitObject
     				scaleFactor, 
     				pageIndex);
     	
+    	}else if (this.resultSetHandle.getStatus().equals(ResultSetStatus.CANCELLED)) {
+    		
+    		renderMessage(
+    				g, 
+    				width, 
+    				height, 
+    				Collections.singletonList("The query '" + query.getName() + "' was cancelled."));
+    		return false;
+    		
     	}else if (this.internalError != null) {
     		
     		return renderFailure(
@@ -684,6 +695,59 @@ public class ResultSetRenderer extends AbstractWabitObject
         }
     }
 
+    /**
+     * Executes the query of this renderer and makes it the source of the
+     * rendered results. When printing the query is executed on the current
+     * thread, otherwise it is executed in the background.
+     * 
+     * @return False if the query could not be executed.
+     */
+    private boolean executeQuery(boolean printing) {
+    	try {
+    		this.setResultSetHandle(
+    				query.execute(new SPVariableHelper(ResultSetRenderer.this), resultSetListener, !printing));
+    		return true;
+    	} catch (ResultSetProducerException e) {
+    		this.internalError = e;
+    		return false;
+    	} finally {
+    		dirty = false;
+    	}
+    }
+    
+    /**
+     * Counts the pages from the same cell layout that
+     * {@link #renderReportContent(Graphics2D, double, double, double, int, boolean, SPVariableResolver)}
+     * prints. The layout is kept for the current thread so printing the
+     * pages right after counting them does not lay the result set out again.
+     * Failures, cancelled queries and empty results are printed as a message
+     * on a single page.
+     */
+    public synchronized int countPages(Graphics2D g, double width, double height) {
+    	if (resultSetHandle == null || dirty) {
+    		executeQuery(true);
+    	}
+    	if (resultSetHandle == null || internalError != null ||
+    			resultSetHandle.getStatus().equals(ResultSetStatus.ERROR) ||
+    			resultSetHandle.getStatus().equals(ResultSetStatus.CANCELLED)) {
+    		return 1;
+    	}
+    	
+    	initColumns(resultSetHandle.getResultSet());
+    	
+    	synchronized (pageCells) {
+    		try {
+    			CachedRowSet rs = (CachedRowSet) resultSetHandle.getResultSet();
+    			if (rs.getData().size() == 0) return 1;
+    			maybeCreateResultSetLayout(g, rs, width, height);
+    		} catch (SQLException e) {
+    			return 1;
+    		}
+    		if (pageCells.get() == null) return 1;
+    		return Math.max(1, pageCells.get().size());
+    	}
+    }
+
     private boolean renderSuccess(
     		Graphics2D g, 
     		double width,
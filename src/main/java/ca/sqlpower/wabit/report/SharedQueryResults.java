@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2009, SQL Power Group Inc.
+ *
+ * This file is part of Wabit.
+ *
+ * Wabit is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wabit is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. 
+ */
+
+package ca.sqlpower.wabit.report;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import ca.sqlpower.wabit.rs.ResultSetHandle;
+import ca.sqlpower.wabit.rs.WabitResultSetProducer;
+
+/**
+ * The results of the queries executed while prewarming a number of layouts,
+ * for example all of the reports of a batch. A query that several layouts
+ * display with the same variables is only executed once and its results are
+ * given to the renderers of every layout. Each renderer reads its own view of
+ * the results, see {@link ResultSetHandle#createView()}.
+ * 
+ * @see ReportPrewarmer#prewarmAndWait(Layout, long, SharedQueryResults)
+ */
+@ThreadSafe
+public class SharedQueryResults {
+
+	/**
+	 * Identifies a query by its producer and the scope its variables are
+	 * resolved in, both compared by identity. The scope is null for queries
+	 * whose variables do not depend on the layout they are in.
+	 */
+	private static class Key {
+		private final WabitResultSetProducer producer;
+		private final Object scope;
+
+		Key(WabitResultSetProducer producer, Object scope) {
+			this.producer = producer;
+			this.scope = scope;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) return false;
+			Key other = (Key) obj;
+			return producer == other.producer && scope == other.scope;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * System.identityHashCode(producer) + System.identityHashCode(scope);
+		}
+	}
+
+	@GuardedBy("this")
+	private final Map<Key, Future<ResultSetHandle>> results = new HashMap<Key, Future<ResultSetHandle>>();
+
+	/**
+	 * The results each layout asked for, so they can be forgotten if the
+	 * layout could not be rendered.
+	 */
+	@GuardedBy("this")
+	private final Map<Layout, Map<Key, Future<ResultSetHandle>>> requests = 
+		new IdentityHashMap<Layout, Map<Key, Future<ResultSetHandle>>>();
+
+	/**
+	 * Returns the results of the given producer in the given scope, submitting
+	 * the given execution to the executor if they were not asked for before.
+	 * 
+	 * @param layout
+	 *            The layout that displays the results.
+	 * @param scope
+	 *            The object the variables of the query are resolved through,
+	 *            or null if they are the same in every layout.
+	 */
+	synchronized Future<ResultSetHandle> getResults(@Nonnull Layout layout, 
+			@Nonnull WabitResultSetProducer producer, @Nullable Object scope, 
+			@Nonnull Callable<ResultSetHandle> execution, @Nonnull ExecutorService executor) {
+		Key key = new Key(producer, scope);
+		Future<ResultSetHandle> future = results.get(key);
+		if (future == null) {
+			future = executor.submit(execution);
+			results.put(key, future);
+		}
+		Map<Key, Future<ResultSetHandle>> requested = requests.get(layout);
+		if (requested == null) {
+			requested = new HashMap<Key, Future<ResultSetHandle>>();
+			requests.put(layout, requested);
+		}
+		requested.put(key, future);
+		return future;
+	}
+
+	/**
+	 * Cancels and forgets the results the given layout asked for, so the
+	 * queries are executed again the next time they are asked for instead of
+	 * giving back the same failed or timed out results. Layouts still waiting
+	 * for the same results stop waiting.
+	 */
+	public synchronized void forget(@Nonnull Layout layout) {
+		Map<Key, Future<ResultSetHandle>> requested = requests.remove(layout);
+		if (requested == null) return;
+		for (Map.Entry<Key, Future<ResultSetHandle>> entry : requested.entrySet()) {
+			entry.getValue().cancel(true);
+			if (results.get(entry.getKey()) == entry.getValue()) {
+				results.remove(entry.getKey());
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of distinct queries executed.
+	 */
+	public synchronized int size() {
+		return results.size();
+	}
+
+	/**
+	 * Cancels the queries still running and forgets every result.
+	 */
+	public synchronized void clear() {
+		for (Future<ResultSetHandle> future : results.values()) {
+			future.cancel(true);
+		}
+		results.clear();
+		requests.clear();
+	}
+}
@@ -41,7 +41,7 @@ import ca.sqlpower.wabit.WabitObject;
  * substitution. Variables are described in the documentation for the
  * {@link Variables} class.
  */
-public class WabitLabel extends SPLabel implements ReportContentRenderer {
+public class WabitLabel extends SPLabel implements PaginatedRenderer {
 
     private static final Logger logger = Logger.getLogger(WabitLabel.class);
 	private Font font;
@@ -158,6 +158,10 @@ public class WabitLabel extends SPLabel implements ReportContentRenderer {
     public void resetToFirstPage() {
         // no op -- labels don't paginate
     }
+    
+    public int countPages(Graphics2D g, double width, double height) {
+    	return 1;
+    }
 
     public List<WabitObject> getDependencies() {
         return Collections.emptyList();
@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2009, SQL Power Group Inc.
+ *
+ * This file is part of Wabit.
+ *
+ * Wabit is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wabit is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. 
+ */
+
+package ca.sqlpower.wabit.report.batch;
+
+import java.io.File;
+
+import javax.annotation.Nonnull;
+
+import net.jcip.annotations.Immutable;
+
+import ca.sqlpower.wabit.enterprise.client.ReportTask;
+import ca.sqlpower.wabit.report.Report;
+
+/**
+ * A report to render to a PDF file as part of a batch. Jobs with a higher
+ * priority are started before jobs with a lower one, jobs with the same
+ * priority are started in the order they were submitted.
+ */
+@Immutable
+public class BatchJob {
+
+	private final Report report;
+
+	private final File output;
+
+	private final int priority;
+
+	public BatchJob(@Nonnull Report report, @Nonnull File output, int priority) {
+		this.report = report;
+		this.output = output;
+		this.priority = priority;
+	}
+
+	/**
+	 * Creates a job rendering the report of the given task to a file named
+	 * after the report and the task's UUID in the given directory, so tasks of
+	 * the same report or of reports with the same name write different files.
+	 */
+	public static BatchJob forTask(@Nonnull ReportTask task, @Nonnull File directory, int priority) {
+		if (task.getReport() == null) {
+			throw new IllegalArgumentException("The report task " + task.getName() + " has no report");
+		}
+		return new BatchJob(task.getReport(), 
+				new File(directory, fileName(task.getReport().getName(), task.getUUID())), priority);
+	}
+
+	/**
+	 * Creates a job rendering the given report to a file named after it and
+	 * its UUID in the given directory, so reports with the same name write
+	 * different files.
+	 */
+	public static BatchJob forReport(@Nonnull Report report, @Nonnull File directory, int priority) {
+		return new BatchJob(report, new File(directory, fileName(report.getName(), report.getUUID())), 
+				priority);
+	}
+
+	/**
+	 * Returns the name of a PDF file for the given name and UUID with the
+	 * characters that are not safe in file names replaced.
+	 */
+	private static String fileName(String name, String uuid) {
+		return (name + " " + uuid).replaceAll("[^\\w\\-. ]", "_") + ".pdf";
+	}
+
+	public Report getReport() {
+		return report;
+	}
+
+	public File getOutput() {
+		return output;
+	}
+
+	public int getPriority() {
+		return priority;
+	}
+
+	@Override
+	public String toString() {
+		return report.getName() + " -> " + output.getPath();
+	}
+}
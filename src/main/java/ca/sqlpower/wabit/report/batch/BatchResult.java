@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2009, SQL Power Group Inc.
+ *
+ * This file is part of Wabit.
+ *
+ * Wabit is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wabit is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. 
+ */
+
+package ca.sqlpower.wabit.report.batch;
+
+import javax.annotation.Nullable;
+
+import net.jcip.annotations.Immutable;
+
+/**
+ * How the rendering of one {@link BatchJob} went and how long each part of it
+ * took.
+ */
+@Immutable
+public class BatchResult {
+
+	private final BatchJob job;
+
+	private final int attempts;
+
+	private final long queueMillis;
+
+	private final long prewarmMillis;
+
+	private final long renderMillis;
+
+	private final Exception exception;
+
+	BatchResult(BatchJob job, int attempts, long queueMillis, long prewarmMillis, 
+			long renderMillis, @Nullable Exception exception) {
+		this.job = job;
+		this.attempts = attempts;
+		this.queueMillis = queueMillis;
+		this.prewarmMillis = prewarmMillis;
+		this.renderMillis = renderMillis;
+		this.exception = exception;
+	}
+
+	public BatchJob getJob() {
+		return job;
+	}
+
+	public boolean isSuccessful() {
+		return exception == null;
+	}
+
+	/**
+	 * Returns the number of times the job was tried, including the last.
+	 */
+	public int getAttempts() {
+		return attempts;
+	}
+
+	/**
+	 * Returns the time the job waited for a thread, in milliseconds.
+	 */
+	public long getQueueMillis() {
+		return queueMillis;
+	}
+
+	/**
+	 * Returns the time spent executing the queries of the report over every
+	 * attempt, in milliseconds. Queries another report of the batch already
+	 * executed take no time.
+	 */
+	public long getPrewarmMillis() {
+		return prewarmMillis;
+	}
+
+	/**
+	 * Returns the time spent waiting for and writing the pages of the report
+	 * over every attempt, in milliseconds.
+	 */
+	public long getRenderMillis() {
+		return renderMillis;
+	}
+
+	/**
+	 * Returns the exception that made the last attempt fail, or null if the
+	 * job succeeded.
+	 */
+	@Nullable
+	public Exception getException() {
+		return exception;
+	}
+
+	@Override
+	public String toString() {
+		return job + ": " + (isSuccessful() ? "done" : "failed (" + exception + ")") + 
+			" after " + attempts + " attempt(s), queued " + queueMillis + " ms, queries " + 
+			prewarmMillis + " ms, rendering " + renderMillis + " ms";
+	}
+}
@@ -0,0 +1,377 @@
+/*
+ * Copyright (c) 2009, SQL Power Group Inc.
+ *
+ * This file is part of Wabit.
+ *
+ * Wabit is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wabit is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. 
+ */
+
+package ca.sqlpower.wabit.report.batch;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.prefs.Preferences;
+
+import javax.annotation.Nonnull;
+
+import net.jcip.annotations.ThreadSafe;
+
+import org.apache.log4j.Logger;
+
+import ca.sqlpower.sql.DataSourceCollection;
+import ca.sqlpower.sql.PlDotIni;
+import ca.sqlpower.sql.SPDataSource;
+import ca.sqlpower.wabit.WabitSession;
+import ca.sqlpower.wabit.WabitSessionContextImpl;
+import ca.sqlpower.wabit.WabitUtils;
+import ca.sqlpower.wabit.WabitWorkspace;
+import ca.sqlpower.wabit.dao.OpenWorkspaceXMLDAO;
+import ca.sqlpower.wabit.enterprise.client.ReportTask;
+import ca.sqlpower.wabit.report.LayoutToPDF;
+import ca.sqlpower.wabit.report.Report;
+import ca.sqlpower.wabit.report.SharedQueryResults;
+
+/**
+ * Renders a batch of reports to PDF files on a bounded number of threads,
+ * without a user interface. Jobs wait in a queue ordered by their priority.
+ * The queries of every report are executed before its pages are written and
+ * a query that several reports display with the same variables is only
+ * executed once for the whole batch. A job that fails is tried again up to a
+ * given number of attempts, executing its queries again.
+ * <p>
+ * The pages of reports in the same workspace are written one at a time as the
+ * objects of a workspace are not safe to use from several threads at once;
+ * their queries still execute concurrently. Reports in different workspaces
+ * are rendered fully in parallel.
+ * <p>
+ * One renderer is meant for one batch: the shared query results are kept
+ * until {@link #shutdown()} is called, so reports rendered later by the same
+ * renderer would display the results of the earlier ones.
+ * <p>
+ * The {@link #main(String[])} method renders the reports of workspace files
+ * from the command line.
+ */
+@ThreadSafe
+public class ReportBatchRenderer {
+
+	private static final Logger logger = Logger.getLogger(ReportBatchRenderer.class);
+
+	/**
+	 * The number of times a job is tried by default before it is reported as
+	 * failed.
+	 */
+	public static final int DEFAULT_MAX_ATTEMPTS = 2;
+
+	private final ThreadPoolExecutor executor;
+
+	private final SharedQueryResults sharedResults = new SharedQueryResults();
+
+	private final int maxAttempts;
+
+	/**
+	 * The files written by the jobs that were submitted and are not done yet.
+	 * A job that failed deletes its file, so two jobs may not write the same
+	 * file at once.
+	 */
+	private final Set<File> pendingOutputs = Collections.synchronizedSet(new HashSet<File>());
+
+	/**
+	 * Orders jobs of the same priority by the time they were submitted.
+	 */
+	private final AtomicLong submitCount = new AtomicLong();
+
+	/**
+	 * A job waiting in the queue of the executor. The queue takes the jobs
+	 * with the highest priority first.
+	 */
+	static class QueuedJob extends FutureTask<BatchResult> implements Comparable<QueuedJob> {
+
+		private final int priority;
+
+		private final long sequence;
+
+		QueuedJob(Callable<BatchResult> render, int priority, long sequence) {
+			super(render);
+			this.priority = priority;
+			this.sequence = sequence;
+		}
+
+		public int compareTo(QueuedJob o) {
+			if (priority != o.priority) return priority > o.priority ? -1 : 1;
+			if (sequence != o.sequence) return sequence < o.sequence ? -1 : 1;
+			return 0;
+		}
+	}
+
+	/**
+	 * Creates a renderer that renders at most the given number of reports at
+	 * once and tries each job at most the given number of times.
+	 */
+	public ReportBatchRenderer(int threads, int maxAttempts) {
+		if (threads < 1) throw new IllegalArgumentException("At least one thread is needed");
+		if (maxAttempts < 1) throw new IllegalArgumentException("At least one attempt is needed");
+		this.maxAttempts = maxAttempts;
+		final AtomicInteger threadCount = new AtomicInteger();
+		executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, 
+				new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "Report batch renderer " + threadCount.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Adds the given job to the queue.
+	 * 
+	 * @return The result of the job once it is done. The future does not
+	 *         throw an {@link ExecutionException}, failures are described by
+	 *         the result.
+	 * @throws IllegalArgumentException
+	 *             If another job of this renderer that is not done yet writes
+	 *             to the same file.
+	 */
+	public Future<BatchResult> submit(@Nonnull final BatchJob job) {
+		final File output = job.getOutput().getAbsoluteFile();
+		if (!pendingOutputs.add(output)) {
+			throw new IllegalArgumentException("Another job of this batch is writing to " + output);
+		}
+		final long submitted = System.currentTimeMillis();
+		QueuedJob queuedJob = new QueuedJob(new Callable<BatchResult>() {
+			public BatchResult call() throws Exception {
+				try {
+					return render(job, System.currentTimeMillis() - submitted);
+				} finally {
+					pendingOutputs.remove(output);
+				}
+			}
+		}, job.getPriority(), submitCount.getAndIncrement());
+		try {
+			executor.execute(queuedJob);
+		} catch (RuntimeException e) {
+			pendingOutputs.remove(output);
+			throw e;
+		}
+		return queuedJob;
+	}
+
+	/**
+	 * Renders all of the given jobs and waits for them to finish.
+	 * 
+	 * @return The results of the jobs in the order the jobs were given.
+	 */
+	public List<BatchResult> renderAll(@Nonnull Collection<BatchJob> jobs) throws InterruptedException {
+		List<Future<BatchResult>> futures = new ArrayList<Future<BatchResult>>();
+		for (BatchJob job : jobs) {
+			futures.add(submit(job));
+		}
+		List<BatchResult> results = new ArrayList<BatchResult>();
+		for (Future<BatchResult> future : futures) {
+			try {
+				results.add(future.get());
+			} catch (ExecutionException e) {
+				throw new RuntimeException(e.getCause());
+			}
+		}
+		return results;
+	}
+
+	private BatchResult render(BatchJob job, long queueMillis) {
+		long prewarmMillis = 0;
+		long renderMillis = 0;
+		Exception failure = null;
+		int attempt = 0;
+		while (attempt < maxAttempts) {
+			attempt++;
+			try {
+				OutputStream out = new BufferedOutputStream(new FileOutputStream(job.getOutput()));
+				try {
+					LayoutToPDF pdf = new LayoutToPDF(out, job.getReport(), null);
+					pdf.setSharedResults(sharedResults);
+					
+					long start = System.currentTimeMillis();
+					pdf.prewarm();
+					prewarmMillis += System.currentTimeMillis() - start;
+					
+					start = System.currentTimeMillis();
+					synchronized (getLock(job.getReport())) {
+						pdf.writePages();
+					}
+					renderMillis += System.currentTimeMillis() - start;
+				} finally {
+					out.close();
+				}
+				failure = null;
+				break;
+			} catch (Exception e) {
+				failure = e;
+				logger.warn("Attempt " + attempt + " of " + maxAttempts + " to render " + 
+						job + " failed", e);
+				sharedResults.forget(job.getReport());
+			}
+		}
+		if (failure != null && !job.getOutput().delete()) {
+			logger.warn("Could not delete the incomplete file " + job.getOutput());
+		}
+		BatchResult result = new BatchResult(job, attempt, queueMillis, prewarmMillis, 
+				renderMillis, failure);
+		logger.info(result);
+		return result;
+	}
+
+	/**
+	 * Returns the object to hold while the pages of the given report are
+	 * written, which is its workspace.
+	 */
+	private static Object getLock(Report report) {
+		WabitWorkspace workspace = WabitUtils.getWorkspace(report);
+		return workspace != null ? workspace : report;
+	}
+
+	/**
+	 * Returns the query results shared by the reports of this batch.
+	 */
+	public SharedQueryResults getSharedResults() {
+		return sharedResults;
+	}
+
+	/**
+	 * Stops the renderer once the jobs in its queue are done and lets go of
+	 * the shared query results.
+	 */
+	public void shutdown() throws InterruptedException {
+		executor.shutdown();
+		executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		sharedResults.clear();
+	}
+
+	private static void printUsage() {
+		System.err.println("Usage: " + ReportBatchRenderer.class.getName() + 
+				" [-threads n] [-attempts n] [-out directory] [-plini file] [-tasks] workspace-file...");
+		System.err.println("Renders every report of the given workspace files to PDF files.");
+		System.err.println("  -threads   The number of reports rendered at once. Default: the number of processors.");
+		System.err.println("  -attempts  The number of times a report is tried. Default: " + DEFAULT_MAX_ATTEMPTS + ".");
+		System.err.println("  -out       The directory the PDF files are written to. Default: the current directory.");
+		System.err.println("  -plini     The pl.ini file of the data sources. Default: the one Wabit last used.");
+		System.err.println("  -tasks     Only render the reports of the scheduled report tasks.");
+	}
+
+	/**
+	 * Renders the reports of workspace files from the command line and prints
+	 * how long each took. The process exits with status 1 if a report could
+	 * not be rendered.
+	 */
+	public static void main(String[] args) throws Exception {
+		int threads = Runtime.getRuntime().availableProcessors();
+		int attempts = DEFAULT_MAX_ATTEMPTS;
+		File outputDirectory = new File(".");
+		String plIniPath = Preferences.userNodeForPackage(WabitSessionContextImpl.class).get(
+				WabitSessionContextImpl.PREFS_PL_INI_PATH, null);
+		boolean tasksOnly = false;
+		List<File> workspaceFiles = new ArrayList<File>();
+		try {
+			for (int i = 0; i < args.length; i++) {
+				if (args[i].equals("-threads")) {
+					threads = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("-attempts")) {
+					attempts = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("-out")) {
+					outputDirectory = new File(args[++i]);
+				} else if (args[i].equals("-plini")) {
+					plIniPath = args[++i];
+				} else if (args[i].equals("-tasks")) {
+					tasksOnly = true;
+				} else if (args[i].startsWith("-")) {
+					throw new IllegalArgumentException(args[i]);
+				} else {
+					workspaceFiles.add(new File(args[i]));
+				}
+			}
+		} catch (RuntimeException e) {
+			printUsage();
+			System.exit(2);
+		}
+		if (workspaceFiles.isEmpty() || plIniPath == null) {
+			printUsage();
+			System.exit(2);
+		}
+		
+		DataSourceCollection<SPDataSource> dataSources = new PlDotIni();
+		dataSources.read(ReportBatchRenderer.class.getClassLoader().getResourceAsStream(
+				"ca/sqlpower/sql/default_database_types.ini"));
+		dataSources.read(new File(plIniPath));
+		WabitSessionContextImpl context = new WabitSessionContextImpl(false, false, 
+				dataSources, plIniPath, false);
+		
+		List<BatchJob> jobs = new ArrayList<BatchJob>();
+		for (File file : workspaceFiles) {
+			InputStream in = new BufferedInputStream(new FileInputStream(file));
+			try {
+				OpenWorkspaceXMLDAO dao = new OpenWorkspaceXMLDAO(context, in, file.length());
+				dao.loadWorkspacesFromStream();
+				WabitSession session = dao.addLoadedWorkspacesToContext();
+				if (tasksOnly) {
+					for (ReportTask task : session.getWorkspace().getReportTasks()) {
+						if (task.getReport() == null) continue;
+						jobs.add(BatchJob.forTask(task, outputDirectory, 0));
+					}
+				} else {
+					for (Report report : session.getWorkspace().getReports()) {
+						jobs.add(BatchJob.forReport(report, outputDirectory, 0));
+					}
+				}
+			} finally {
+				in.close();
+			}
+		}
+		
+		long start = System.currentTimeMillis();
+		ReportBatchRenderer renderer = new ReportBatchRenderer(threads, attempts);
+		List<BatchResult> results = renderer.renderAll(jobs);
+		int distinctQueries = renderer.getSharedResults().size();
+		renderer.shutdown();
+		
+		boolean failed = false;
+		for (BatchResult result : results) {
+			System.out.println(result);
+			failed |= !result.isSuccessful();
+		}
+		System.out.println("Rendered " + results.size() + " report(s) with " + distinctQueries + 
+				" distinct queries in " + (System.currentTimeMillis() - start) + " ms");
+		context.close();
+		System.exit(failed ? 1 : 0);
+	}
+}
@@ -869,6 +869,29 @@ public class Chart extends AbstractWabitObject {
 		}
     }
     
+    /**
+     * Uses the given handle as the source of this chart's data instead of
+     * executing the query again. The handle must come from executing this
+     * chart's query in the same variable context and may still be running.
+     */
+    public void setResultSetHandle(@Nonnull ResultSetHandle handle) {
+    	if (resultSetHandle != null) {
+    		resultSetHandle.removeResultSetListener(resultSetListener);
+    		resultSetHandle.cancel();
+    	}
+    	this.resultSetHandle = handle;
+    	handle.addResultSetListener(resultSetListener);
+    	needsRefresh = false;
+    	try {
+    		ResultSet rs = getResultSet(true);
+    		if (rs != null) {
+    			syncWithRs(rs);
+    		}
+    	} catch (SQLException e) {
+    		throw new RuntimeException(e);
+    	}
+    }
+    
     /**
      * Tells if this chart is a streaming chart or not.
      */
@@ -23,12 +23,23 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.Locale;
 import java.util.StringTokenizer;
 
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
 import org.apache.commons.lang.ObjectUtils;
 import org.apache.log4j.Logger;
 
+import ca.sqlpower.object.SPObject;
 import ca.sqlpower.object.SPVariableHelper;
+import ca.sqlpower.object.SPVariableResolver;
+import ca.sqlpower.object.SPVariableResolverProvider;
+import ca.sqlpower.wabit.WabitUtils;
+import ca.sqlpower.wabit.WabitWorkspace;
+import ca.sqlpower.wabit.rs.DistinctValueIndex;
+import ca.sqlpower.wabit.rs.ResultSetVariableResolver;
 
 /**
  * Class representing a combo box parameter selector for a dashboard.
@@ -100,8 +111,13 @@ public class ComboBoxSelector extends AbstractSelector {
 				values.add(getDefaultValue());
 			}
 			
-			SPVariableHelper helper = new SPVariableHelper(this);
-			values.addAll(helper.resolveCollection(sourceKey));
+			DistinctValueIndex index = findSourceIndex();
+			if (index != null) {
+				values.addAll(index.getValues());
+			} else {
+				SPVariableHelper helper = new SPVariableHelper(this);
+				values.addAll(helper.resolveCollection(sourceKey));
+			}
 			
 			if (values.size() == 0 && getDefaultValue() != null) {
 				values.add(getDefaultValue());
@@ -121,6 +137,55 @@ public class ComboBoxSelector extends AbstractSelector {
 		return values;
 	}
 	
+	/**
+	 * Returns the possible values whose text starts with the given prefix,
+	 * ignoring case. Values from a query are searched through the distinct
+	 * values of its column, so this stays fast for large columns and can be
+	 * used for type-ahead.
+	 * 
+	 * @param prefix
+	 *            The beginning of the values to find.
+	 * @param limit
+	 *            The maximum number of values to return.
+	 */
+	public List<Object> findPossibleValues(@Nonnull String prefix, int limit) {
+		if (sourceKey != null) {
+			DistinctValueIndex index = findSourceIndex();
+			if (index != null) {
+				return index.findByPrefix(prefix, limit);
+			}
+		}
+		String lowerPrefix = prefix.toLowerCase(Locale.getDefault());
+		List<Object> found = new ArrayList<Object>();
+		for (Object value : getPossibleValues()) {
+			if (found.size() >= limit) break;
+			if (value != null && String.valueOf(value).toLowerCase(Locale.getDefault()).startsWith(lowerPrefix)) {
+				found.add(value);
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Returns the distinct values of the source key if it comes from a query
+	 * that indexes the values of its columns, or null if the values have to be
+	 * resolved through the variables system.
+	 */
+	@Nullable
+	private DistinctValueIndex findSourceIndex() {
+		String namespace = SPVariableHelper.getNamespace(sourceKey);
+		if (namespace == null) return null;
+		WabitWorkspace workspace = WabitUtils.getWorkspace(this);
+		if (workspace == null) return null;
+		SPObject provider = workspace.findByUuid(namespace, SPObject.class);
+		if (!(provider instanceof SPVariableResolverProvider)) return null;
+		SPVariableResolver resolver = ((SPVariableResolverProvider) provider).getVariableResolver();
+		if (resolver instanceof ResultSetVariableResolver) {
+			return ((ResultSetVariableResolver) resolver).getIndex(sourceKey);
+		}
+		return null;
+	}
+	
 	public void setSourceKey(String sourceKey) {
 		
 		String oldSourceKey = this.sourceKey;
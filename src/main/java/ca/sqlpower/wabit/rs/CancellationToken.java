@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2009, SQL Power Group Inc.
+ *
+ * This file is part of Wabit.
+ *
+ * Wabit is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wabit is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. 
+ */
+
+package ca.sqlpower.wabit.rs;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * Tells the stages of a query execution that the execution was abandoned or
+ * ran out of time. A {@link ResultSetHandle} owns one token and cancelling the
+ * handle cancels its token. The execution checks the token between its phases
+ * and before copying each row, so an abandoned query stops reading rows as
+ * soon as it is cancelled instead of when the last row was copied.
+ */
+@ThreadSafe
+public class CancellationToken {
+
+	private volatile boolean cancelled = false;
+
+	/**
+	 * The {@link System#nanoTime()} after which the execution times out, or 0
+	 * if it has no time limit.
+	 */
+	private volatile long deadline = 0;
+
+	private volatile int timeoutSeconds = 0;
+
+	public void cancel() {
+		cancelled = true;
+	}
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * Starts the time limit of the execution. Calling this again restarts the
+	 * limit.
+	 * 
+	 * @param seconds
+	 *            The number of seconds the execution may take from now. If 0
+	 *            or less the execution has no time limit.
+	 */
+	public void startTimeout(int seconds) {
+		timeoutSeconds = seconds;
+		if (seconds > 0) {
+			deadline = Math.max(1, System.nanoTime() + seconds * 1000000000L);
+		} else {
+			deadline = 0;
+		}
+	}
+
+	/**
+	 * Returns true if the time limit started by {@link #startTimeout(int)}
+	 * has passed.
+	 */
+	public boolean isTimedOut() {
+		long d = deadline;
+		return d != 0 && System.nanoTime() - d > 0;
+	}
+
+	/**
+	 * Throws an exception if the execution was cancelled or ran out of time.
+	 * 
+	 * @throws QueryCancelledException
+	 *             If the token was cancelled.
+	 * @throws SQLTimeoutException
+	 *             If the time limit has passed.
+	 */
+	public void checkCancelled() throws SQLException {
+		if (cancelled) {
+			throw new QueryCancelledException("The query was cancelled");
+		}
+		if (isTimedOut()) {
+			throw createTimeoutException(null);
+		}
+	}
+
+	/**
+	 * Returns an exception telling that the execution did not complete within
+	 * the time limit started by {@link #startTimeout(int)}.
+	 * 
+	 * @param cause
+	 *            The exception the execution stopped with, if any.
+	 */
+	public SQLTimeoutException createTimeoutException(@Nullable Throwable cause) {
+		return new SQLTimeoutException("The query did not complete in " + 
+				timeoutSeconds + " seconds", cause);
+	}
+
+	/**
+	 * Returns a view of the given result set that checks this token every time
+	 * it is moved to the next row. Everything else is passed through to the
+	 * given result set.
+	 */
+	public ResultSet wrap(@Nonnull final ResultSet rs) {
+		return (ResultSet) Proxy.newProxyInstance(
+				ResultSet.class.getClassLoader(), 
+				new Class<?>[] { ResultSet.class }, 
+				new InvocationHandler() {
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						if (method.getName().equals("next")) {
+							checkCancelled();
+						}
+						try {
+							return method.invoke(rs, args);
+						} catch (InvocationTargetException e) {
+							throw e.getCause();
+						}
+					}
+				});
+	}
+}
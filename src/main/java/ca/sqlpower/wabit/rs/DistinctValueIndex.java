@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2010, SQL Power Group Inc.
+ *
+ * This file is part of Wabit.
+ *
+ * Wabit is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wabit is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ca.sqlpower.wabit.rs;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import javax.annotation.Nonnull;
+
+import net.jcip.annotations.Immutable;
+
+/**
+ * The distinct values of a single result set column. The values are kept in
+ * the order they first appeared in the results and in sorted order, and the
+ * sorted values can be searched by the prefix of their text, which lets
+ * selectors list and filter the values of a large column without going
+ * through every row again.
+ * <p>
+ * Use a {@link Builder} to add the values of a column one row at a time.
+ */
+@Immutable
+public class DistinctValueIndex {
+
+	/**
+	 * Orders values by their natural order when they are comparable to each
+	 * other and by their text otherwise. Null sorts first.
+	 */
+	static final Comparator<Object> VALUE_ORDER = new Comparator<Object>() {
+		@SuppressWarnings("unchecked")
+		public int compare(Object o1, Object o2) {
+			if (o1 == o2) return 0;
+			if (o1 == null) return -1;
+			if (o2 == null) return 1;
+			if (o1 instanceof Number && o2 instanceof Number) {
+				return Double.compare(((Number) o1).doubleValue(), ((Number) o2).doubleValue());
+			}
+			if (o1 instanceof Comparable && o1.getClass().equals(o2.getClass())) {
+				return ((Comparable<Object>) o1).compareTo(o2);
+			}
+			return String.valueOf(o1).compareTo(String.valueOf(o2));
+		}
+	};
+
+	/**
+	 * An index with no values.
+	 */
+	public static final DistinctValueIndex EMPTY = new Builder().build();
+
+	/**
+	 * Collects the distinct values of a column as its rows are read.
+	 */
+	public static class Builder {
+
+		private final Set<Object> values = new LinkedHashSet<Object>();
+
+		/**
+		 * Adds the value of one row. Values that were added before are
+		 * ignored.
+		 */
+		public Builder add(Object value) {
+			values.add(value);
+			return this;
+		}
+
+		public DistinctValueIndex build() {
+			return new DistinctValueIndex(new LinkedHashSet<Object>(values));
+		}
+	}
+
+	/**
+	 * The values in the order they first appeared.
+	 */
+	private final List<Object> values;
+
+	private final Set<Object> valueSet;
+
+	/**
+	 * The values in {@link #VALUE_ORDER}.
+	 */
+	private final List<Object> sortedValues;
+
+	/**
+	 * The lower case text of every value, sorted, for the prefix search.
+	 * {@link #prefixValues} holds the value at the same position.
+	 */
+	private final String[] prefixKeys;
+
+	private final Object[] prefixValues;
+
+	private DistinctValueIndex(Set<Object> valueSet) {
+		this.valueSet = valueSet;
+		this.values = Collections.unmodifiableList(new ArrayList<Object>(valueSet));
+
+		List<Object> sorted = new ArrayList<Object>(values);
+		Collections.sort(sorted, VALUE_ORDER);
+		this.sortedValues = Collections.unmodifiableList(sorted);
+
+		final List<Object> byText = new ArrayList<Object>();
+		for (Object value : values) {
+			if (value != null) {
+				byText.add(value);
+			}
+		}
+		final String[] keys = new String[byText.size()];
+		Integer[] order = new Integer[byText.size()];
+		for (int i = 0; i < keys.length; i++) {
+			keys[i] = toKey(byText.get(i));
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer i1, Integer i2) {
+				int result = keys[i1].compareTo(keys[i2]);
+				if (result != 0) return result;
+				return VALUE_ORDER.compare(byText.get(i1), byText.get(i2));
+			}
+		});
+		prefixKeys = new String[keys.length];
+		prefixValues = new Object[keys.length];
+		for (int i = 0; i < order.length; i++) {
+			prefixKeys[i] = keys[order[i]];
+			prefixValues[i] = byText.get(order[i]);
+		}
+	}
+
+	private static String toKey(Object value) {
+		return String.valueOf(value).toLowerCase(Locale.getDefault());
+	}
+
+	/**
+	 * Returns the distinct values in the order they first appeared.
+	 */
+	public List<Object> getValues() {
+		return values;
+	}
+
+	/**
+	 * Returns the distinct values sorted in their natural order.
+	 */
+	public List<Object> getSortedValues() {
+		return sortedValues;
+	}
+
+	public int size() {
+		return values.size();
+	}
+
+	public boolean contains(Object value) {
+		return valueSet.contains(value);
+	}
+
+	/**
+	 * Returns the values whose text starts with the given prefix, ignoring
+	 * case, in the order of their text. Null values never match.
+	 *
+	 * @param prefix
+	 *            The beginning of the values to find. An empty prefix matches
+	 *            every value.
+	 * @param limit
+	 *            The maximum number of values to return.
+	 */
+	public List<Object> findByPrefix(@Nonnull String prefix, int limit) {
+		String key = prefix.toLowerCase(Locale.getDefault());
+		int low = 0;
+		int high = prefixKeys.length;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (prefixKeys[mid].compareTo(key) < 0) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		List<Object> found = new ArrayList<Object>();
+		for (int i = low; i < prefixKeys.length && found.size() < limit; i++) {
+			if (!prefixKeys[i].startsWith(key)) break;
+			found.add(prefixValues[i]);
+		}
+		return found;
+	}
+}
@@ -0,0 +1,404 @@
+/*
+ * Copyright (c) 2009, SQL Power Group Inc.
+ *
+ * This file is part of Wabit.
+ *
+ * Wabit is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wabit is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. 
+ */
+
+package ca.sqlpower.wabit.rs;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Blob;
+import java.sql.Clob;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.Immutable;
+
+import org.apache.log4j.Logger;
+
+import ca.sqlpower.sql.SPDataSource;
+
+/**
+ * How the relational queries of a data source are executed: how many rows
+ * the driver fetches per round trip, whether the cursor is hinted to only
+ * move forward, whether streaming queries turn auto-commit off (some
+ * drivers, PostgreSQL among them, only use a cursor inside a transaction
+ * and buffer the whole result otherwise), and whether large objects are
+ * read while the rows are copied or left as locators.
+ * <p>
+ * The profile of a data source is read from its properties, see
+ * {@link #forDataSource(SPDataSource)}. Data sources that do not set a
+ * property get the value of the system property of the same name.
+ */
+@Immutable
+public class ExecutionProfile {
+
+	private static final Logger logger = Logger.getLogger(ExecutionProfile.class);
+
+	/**
+	 * How the large objects of a result are read.
+	 */
+	public enum LobStrategy {
+		/**
+		 * The values are left as the driver returns them. Most drivers
+		 * return locators that can only be read while the result set is open.
+		 */
+		LOCATOR,
+
+		/**
+		 * CLOBs are read into strings and BLOBs into byte arrays as the rows
+		 * are copied, so their values outlive the result set.
+		 */
+		MATERIALIZE
+	}
+
+	/**
+	 * The data source property that sets the number of rows fetched per round
+	 * trip. It is either a number, 0 for the default of the driver, or
+	 * <code>auto</code> to pick the fetch size from the declared width of the
+	 * columns, see {@link #estimateRowWidth(ResultSetMetaData)}.
+	 */
+	public static final String FETCH_SIZE_KEY = "ca.sqlpower.wabit.fetchSize";
+
+	/**
+	 * The data source property that tells the driver that the cursor of its
+	 * queries only moves forward, true by default.
+	 */
+	public static final String FORWARD_ONLY_KEY = "ca.sqlpower.wabit.forwardOnly";
+
+	/**
+	 * The data source property that, when false, follows streaming queries on
+	 * a connection of their own with auto-commit off. It is true by default,
+	 * which executes them on the connection shared by the data source.
+	 */
+	public static final String STREAMING_AUTO_COMMIT_KEY = "ca.sqlpower.wabit.streamingAutoCommit";
+
+	/**
+	 * The data source property that sets the {@link LobStrategy}, by name.
+	 */
+	public static final String LOB_STRATEGY_KEY = "ca.sqlpower.wabit.lobStrategy";
+
+	/**
+	 * The fetch size that makes the profile pick the fetch size from the
+	 * declared width of the columns.
+	 */
+	public static final int AUTO_FETCH_SIZE = -1;
+
+	/**
+	 * The number of bytes of rows an automatic fetch size aims to get per
+	 * round trip.
+	 */
+	static final int TARGET_FETCH_BYTES = 256 * 1024;
+
+	static final int MIN_AUTO_FETCH_SIZE = 10;
+
+	static final int MAX_AUTO_FETCH_SIZE = 5000;
+
+	/**
+	 * The number of bytes counted for a column whose width is unknown or
+	 * unbounded.
+	 */
+	static final int MAX_COLUMN_WIDTH = 4000;
+
+	/**
+	 * The fetch size used on the first execution of a query when the fetch
+	 * size is automatic.
+	 */
+	static final int INITIAL_AUTO_FETCH_SIZE = 100;
+
+	/**
+	 * The fetch sizes picked for the queries executed before, by data source
+	 * and query, so that the first round trip of the next execution uses it
+	 * too.
+	 */
+	@GuardedBy("observedFetchSizes")
+	private static final Map<String, Integer> observedFetchSizes = 
+		new LinkedHashMap<String, Integer>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+			return size() > 256;
+		}
+	};
+
+	/**
+	 * The profile of data sources that set none of the properties.
+	 */
+	public static final ExecutionProfile DEFAULT = 
+		new ExecutionProfile(AUTO_FETCH_SIZE, true, true, LobStrategy.LOCATOR);
+
+	private final int fetchSize;
+
+	private final boolean forwardOnly;
+
+	private final boolean streamingAutoCommit;
+
+	private final LobStrategy lobStrategy;
+
+	public ExecutionProfile(int fetchSize, boolean forwardOnly, boolean streamingAutoCommit, 
+			@Nonnull LobStrategy lobStrategy) {
+		this.fetchSize = fetchSize;
+		this.forwardOnly = forwardOnly;
+		this.streamingAutoCommit = streamingAutoCommit;
+		this.lobStrategy = lobStrategy;
+	}
+
+	/**
+	 * Returns the profile the properties of the given data source describe.
+	 * Invalid values are logged and replaced with the default.
+	 */
+	public static ExecutionProfile forDataSource(@Nullable SPDataSource ds) {
+		String fetch = get(ds, FETCH_SIZE_KEY);
+		int fetchSize = DEFAULT.fetchSize;
+		if (fetch != null && fetch.trim().equalsIgnoreCase("auto")) {
+			fetchSize = AUTO_FETCH_SIZE;
+		} else if (fetch != null && fetch.trim().length() > 0) {
+			try {
+				fetchSize = Math.max(0, Integer.parseInt(fetch.trim()));
+			} catch (NumberFormatException e) {
+				logger.warn("Ignoring the invalid fetch size " + fetch + " of data source " + ds);
+			}
+		}
+		
+		String lob = get(ds, LOB_STRATEGY_KEY);
+		LobStrategy lobStrategy = DEFAULT.lobStrategy;
+		if (lob != null && lob.trim().length() > 0) {
+			try {
+				lobStrategy = LobStrategy.valueOf(lob.trim().toUpperCase());
+			} catch (IllegalArgumentException e) {
+				logger.warn("Ignoring the invalid LOB strategy " + lob + " of data source " + ds);
+			}
+		}
+		
+		return new ExecutionProfile(fetchSize, 
+				getBoolean(ds, FORWARD_ONLY_KEY, DEFAULT.forwardOnly), 
+				getBoolean(ds, STREAMING_AUTO_COMMIT_KEY, DEFAULT.streamingAutoCommit), 
+				lobStrategy);
+	}
+
+	private static String get(@Nullable SPDataSource ds, String key) {
+		String value = ds == null ? null : ds.get(key);
+		if (value == null) {
+			value = System.getProperty(key);
+		}
+		return value;
+	}
+
+	private static boolean getBoolean(@Nullable SPDataSource ds, String key, boolean defaultValue) {
+		String value = get(ds, key);
+		if (value == null || value.trim().length() == 0) return defaultValue;
+		return Boolean.parseBoolean(value.trim());
+	}
+
+	/**
+	 * Returns the number of rows fetched per round trip, 0 for the default
+	 * of the driver or {@link #AUTO_FETCH_SIZE}.
+	 */
+	public int getFetchSize() {
+		return fetchSize;
+	}
+
+	public boolean isForwardOnly() {
+		return forwardOnly;
+	}
+
+	/**
+	 * Returns false if streaming queries are followed on a connection of their
+	 * own with auto-commit off.
+	 */
+	public boolean isStreamingAutoCommit() {
+		return streamingAutoCommit;
+	}
+
+	public LobStrategy getLobStrategy() {
+		return lobStrategy;
+	}
+
+	/**
+	 * Sets the fetch size and cursor hints of this profile on the given
+	 * statement before it is executed. Hints the driver does not support are
+	 * ignored.
+	 * 
+	 * @param dataSourceName
+	 *            The name of the data source the statement is executed on.
+	 * @param sql
+	 *            The query of the statement. With the data source name it
+	 *            finds the fetch size picked on the previous execution.
+	 * @param rowLimit
+	 *            The most rows the query may return, or 0 if it is not
+	 *            limited. No more rows than this are fetched at once.
+	 */
+	public void applyTo(@Nonnull PreparedStatement statement, @Nullable String dataSourceName, 
+			@Nonnull String sql, int rowLimit) throws SQLException {
+		if (forwardOnly) {
+			try {
+				statement.setFetchDirection(ResultSet.FETCH_FORWARD);
+			} catch (SQLException e) {
+				logger.debug("The driver does not take the fetch direction hint", e);
+			}
+		}
+		int size = fetchSize;
+		if (size == AUTO_FETCH_SIZE) {
+			Integer observed;
+			synchronized (observedFetchSizes) {
+				observed = observedFetchSizes.get(observedKey(dataSourceName, sql));
+			}
+			size = observed != null ? observed : INITIAL_AUTO_FETCH_SIZE;
+		}
+		if (size > 0) {
+			statement.setFetchSize(limit(size, rowLimit));
+		}
+	}
+
+	/**
+	 * Prepares the result of an executed statement to be read. When the fetch
+	 * size is automatic, it is picked from the width the metadata of the
+	 * result declares for its columns, not from the size of the rows actually
+	 * fetched, and remembered for the next execution of the query on the same
+	 * data source. When large objects are materialized the returned result
+	 * set reads them as they are retrieved.
+	 */
+	public ResultSet prepare(@Nonnull ResultSet rs, @Nullable String dataSourceName, 
+			@Nonnull String sql, int rowLimit) throws SQLException {
+		if (fetchSize == AUTO_FETCH_SIZE) {
+			int size = limit(fetchSizeForRowWidth(estimateRowWidth(rs.getMetaData())), rowLimit);
+			try {
+				rs.setFetchSize(size);
+			} catch (SQLException e) {
+				logger.debug("The driver cannot change the fetch size of a result set", e);
+			}
+			synchronized (observedFetchSizes) {
+				observedFetchSizes.put(observedKey(dataSourceName, sql), size);
+			}
+			logger.debug("Fetching " + size + " rows at a time for " + sql);
+		}
+		if (lobStrategy == LobStrategy.MATERIALIZE) {
+			return materializeLobs(rs);
+		}
+		return rs;
+	}
+
+	private static String observedKey(@Nullable String dataSourceName, String sql) {
+		return dataSourceName + "\n" + sql;
+	}
+
+	private static int limit(int size, int rowLimit) {
+		return rowLimit > 0 ? Math.min(size, rowLimit) : size;
+	}
+
+	/**
+	 * Returns an estimate of the number of bytes a row with the given columns
+	 * takes, from the sizes of their types and their declared display sizes.
+	 * Variable width columns are counted at their declared size even when
+	 * their values are shorter.
+	 */
+	static int estimateRowWidth(@Nonnull ResultSetMetaData metaData) throws SQLException {
+		int width = 0;
+		for (int i = 1; i <= metaData.getColumnCount(); i++) {
+			switch (metaData.getColumnType(i)) {
+			case Types.BIT:
+			case Types.BOOLEAN:
+			case Types.TINYINT:
+			case Types.SMALLINT:
+			case Types.INTEGER:
+			case Types.REAL:
+				width += 4;
+				break;
+			case Types.BIGINT:
+			case Types.FLOAT:
+			case Types.DOUBLE:
+			case Types.DATE:
+			case Types.TIME:
+			case Types.TIMESTAMP:
+				width += 8;
+				break;
+			case Types.NUMERIC:
+			case Types.DECIMAL:
+				width += 16;
+				break;
+			case Types.BLOB:
+			case Types.CLOB:
+			case Types.NCLOB:
+			case Types.LONGVARBINARY:
+			case Types.LONGVARCHAR:
+			case Types.LONGNVARCHAR:
+				width += MAX_COLUMN_WIDTH;
+				break;
+			default:
+				int size = metaData.getColumnDisplaySize(i);
+				width += size <= 0 ? MAX_COLUMN_WIDTH : Math.min(size, MAX_COLUMN_WIDTH);
+			}
+		}
+		return Math.max(1, width);
+	}
+
+	/**
+	 * Returns the fetch size that gets about {@link #TARGET_FETCH_BYTES} of
+	 * rows of the given width per round trip.
+	 */
+	static int fetchSizeForRowWidth(int rowWidth) {
+		int size = TARGET_FETCH_BYTES / Math.max(1, rowWidth);
+		return Math.max(MIN_AUTO_FETCH_SIZE, Math.min(MAX_AUTO_FETCH_SIZE, size));
+	}
+
+	/**
+	 * Returns a view of the given result set whose getObject methods return
+	 * the contents of CLOBs and BLOBs instead of their locators.
+	 */
+	static ResultSet materializeLobs(@Nonnull final ResultSet rs) {
+		return (ResultSet) Proxy.newProxyInstance(
+				ResultSet.class.getClassLoader(), 
+				new Class<?>[] { ResultSet.class }, 
+				new InvocationHandler() {
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						Object value;
+						try {
+							value = method.invoke(rs, args);
+						} catch (InvocationTargetException e) {
+							throw e.getCause();
+						}
+						if (method.getName().equals("getObject")) {
+							if (value instanceof Clob) {
+								Clob clob = (Clob) value;
+								return clob.getSubString(1, (int) clob.length());
+							} else if (value instanceof Blob) {
+								Blob blob = (Blob) value;
+								return blob.getBytes(1, (int) blob.length());
+							}
+						}
+						return value;
+					}
+				});
+	}
+
+	@Override
+	public String toString() {
+		return "ExecutionProfile[fetchSize=" + (fetchSize == AUTO_FETCH_SIZE ? "auto" : fetchSize) + 
+			", forwardOnly=" + forwardOnly + ", streamingAutoCommit=" + streamingAutoCommit + 
+			", lobStrategy=" + lobStrategy + "]";
+	}
+}
@@ -29,6 +29,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import javax.annotation.Nullable;
+
 import org.apache.log4j.Logger;
 import org.olap4j.Axis;
 import org.olap4j.Cell;
@@ -133,6 +135,23 @@ public class OlapResultSet extends CachedRowSet {
      * @throws SQLException
      */
     public void populate(CellSet cellSet) throws SQLException {
+    	populate(cellSet, null);
+    }
+
+    /**
+     * Populates this result set from the given cell set, checking the given
+     * token before each row is converted.
+     * 
+     * @param cellSet
+     *            The cell set to convert. Must not be null.
+     * @param token
+     *            The token of the execution the cell set belongs to. If null
+     *            the whole cell set is always converted.
+     * @throws SQLException
+     *             If the token was cancelled or timed out while converting.
+     * @see #populate(CellSet)
+     */
+    public void populate(CellSet cellSet, @Nullable CancellationToken token) throws SQLException {
     	
     	rsmd = new CachedResultSetMetaData();
         data = new ArrayList<Object[]>();
@@ -183,6 +202,9 @@ public class OlapResultSet extends CachedRowSet {
         // the data: each position along the rows axis is a row in the result set!
         final Map<Level, RepeatedMember> currentMembers = new HashMap<Level, RepeatedMember>();
         for (Position p : rowsAxis.getPositions()) {
+            if (token != null) {
+                token.checkCancelled();
+            }
             moveToInsertRow();
             int col;
             for (Member m : p.getMembers()) {
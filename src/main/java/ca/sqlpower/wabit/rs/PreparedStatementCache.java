@@ -0,0 +1,295 @@
+/*
+ * Copyright (c) 2009, SQL Power Group Inc.
+ *
+ * This file is part of Wabit.
+ *
+ * Wabit is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wabit is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. 
+ */
+
+package ca.sqlpower.wabit.rs;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Keeps the prepared statements of one connection open after they are closed
+ * so a query that is executed again, typically a report whose selector values
+ * changed, is bound and executed instead of being parsed and planned again.
+ * <p>
+ * Statements are prepared through the connection returned by
+ * {@link #getConnection()}. Closing one of its statements clears its
+ * parameters, row limit, fetch size, fetch direction and timeout and puts it
+ * back in the cache under its SQL; preparing the same SQL again takes it out
+ * of the cache. A
+ * statement is only ever in use by one caller, so executions of the same SQL
+ * on different threads each get their own statement. The least recently used
+ * statements are closed when more than the maximum number are idle.
+ */
+@ThreadSafe
+public class PreparedStatementCache {
+
+	private static final Logger logger = Logger.getLogger(PreparedStatementCache.class);
+
+	/**
+	 * The system property that sets the number of idle statements kept for
+	 * each connection. A value of 0 turns the cache off.
+	 */
+	public static final String SIZE_PROPERTY = "ca.sqlpower.wabit.rs.statementCacheSize";
+
+	/**
+	 * The number of idle statements kept when the system property is not set.
+	 */
+	public static final int DEFAULT_SIZE = 32;
+
+	private final Connection connection;
+
+	private final int maxSize;
+
+	/**
+	 * The statements that are not in use, by their SQL, least recently used
+	 * first.
+	 */
+	@GuardedBy("this")
+	private final Map<String, PreparedStatement> idle;
+
+	private final AtomicLong hitCount = new AtomicLong();
+
+	private final AtomicLong missCount = new AtomicLong();
+
+	private final Connection cachingConnection;
+
+	/**
+	 * Creates a cache of the statements of the given connection that keeps as
+	 * many idle statements as the {@link #SIZE_PROPERTY} system property says.
+	 */
+	public PreparedStatementCache(@Nonnull Connection connection) {
+		this(connection, Integer.getInteger(SIZE_PROPERTY, DEFAULT_SIZE));
+	}
+
+	public PreparedStatementCache(@Nonnull Connection connection, int maxSize) {
+		this.connection = connection;
+		this.maxSize = Math.max(0, maxSize);
+		idle = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true);
+		cachingConnection = (Connection) Proxy.newProxyInstance(
+				Connection.class.getClassLoader(), 
+				new Class<?>[] { Connection.class }, 
+				new InvocationHandler() {
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						if (method.getName().equals("prepareStatement") && 
+								args != null && args.length == 1) {
+							return prepareStatement((String) args[0]);
+						} else if (method.getName().equals("close")) {
+							clear();
+						} else if (method.getName().equals("equals")) {
+							return proxy == args[0];
+						} else if (method.getName().equals("hashCode")) {
+							return System.identityHashCode(proxy);
+						}
+						return invokeOn(connection, method, args);
+					}
+				});
+	}
+
+	/**
+	 * Returns the connection whose single argument
+	 * {@link Connection#prepareStatement(String)} goes through this cache.
+	 * Closing it closes the idle statements and the underlying connection.
+	 */
+	public Connection getConnection() {
+		return cachingConnection;
+	}
+
+	/**
+	 * Returns an idle statement of the given SQL, or prepares a new one if
+	 * there is none. Closing the returned statement puts it back in the cache.
+	 */
+	public PreparedStatement prepareStatement(@Nonnull String sql) throws SQLException {
+		PreparedStatement statement;
+		synchronized (this) {
+			statement = idle.remove(sql);
+		}
+		if (statement != null && isClosed(statement)) {
+			statement = null;
+		}
+		if (statement != null) {
+			hitCount.incrementAndGet();
+			logger.debug("Reusing the prepared statement of " + sql);
+		} else {
+			missCount.incrementAndGet();
+			statement = connection.prepareStatement(sql);
+		}
+		return wrap(sql, statement);
+	}
+
+	/**
+	 * Puts the given statement back in the cache once its user closed it,
+	 * closing it instead if it cannot be reset or the cache is off.
+	 */
+	private void release(String sql, PreparedStatement statement) {
+		try {
+			if (maxSize == 0 || isClosed(statement)) {
+				statement.close();
+				return;
+			}
+			ResultSet rs = statement.getResultSet();
+			if (rs != null) {
+				rs.close();
+			}
+			statement.clearParameters();
+			statement.setMaxRows(0);
+			statement.setFetchSize(0);
+			statement.setFetchDirection(ResultSet.FETCH_FORWARD);
+			statement.setQueryTimeout(0);
+		} catch (SQLException e) {
+			logger.debug("Could not reset the statement of " + sql + ", closing it", e);
+			close(statement);
+			return;
+		}
+		List<PreparedStatement> evicted = new ArrayList<PreparedStatement>();
+		synchronized (this) {
+			PreparedStatement replaced = idle.put(sql, statement);
+			if (replaced != null) {
+				evicted.add(replaced);
+			}
+			while (idle.size() > maxSize) {
+				String eldest = idle.keySet().iterator().next();
+				evicted.add(idle.remove(eldest));
+			}
+		}
+		for (PreparedStatement s : evicted) {
+			close(s);
+		}
+	}
+
+	/**
+	 * Closes every idle statement. Statements in use are closed when their
+	 * user closes them after this.
+	 */
+	public void clear() {
+		List<PreparedStatement> statements;
+		synchronized (this) {
+			statements = new ArrayList<PreparedStatement>(idle.values());
+			idle.clear();
+		}
+		for (PreparedStatement statement : statements) {
+			close(statement);
+		}
+	}
+
+	/**
+	 * Returns the number of idle statements.
+	 */
+	public synchronized int size() {
+		return idle.size();
+	}
+
+	/**
+	 * Returns the number of statements that were reused instead of prepared.
+	 */
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	/**
+	 * Returns the number of statements that had to be prepared.
+	 */
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	/**
+	 * Returns a view of the given statement whose close puts the statement
+	 * back in this cache. Everything else is passed through to the statement.
+	 */
+	private PreparedStatement wrap(final String sql, final PreparedStatement statement) {
+		return (PreparedStatement) Proxy.newProxyInstance(
+				PreparedStatement.class.getClassLoader(), 
+				new Class<?>[] { PreparedStatement.class }, 
+				new InvocationHandler() {
+					private boolean closed = false;
+					
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						if (method.getName().equals("close")) {
+							synchronized (this) {
+								if (closed) return null;
+								closed = true;
+							}
+							release(sql, statement);
+							return null;
+						} else if (method.getName().equals("isClosed")) {
+							synchronized (this) {
+								if (closed) return true;
+							}
+						} else if (method.getName().equals("cancel")) {
+							// the statement may already be executing for its next user
+							synchronized (this) {
+								if (closed) return null;
+							}
+						} else if (method.getName().equals("getConnection")) {
+							return cachingConnection;
+						} else if (method.getName().equals("equals")) {
+							return proxy == args[0];
+						} else if (method.getName().equals("hashCode")) {
+							return System.identityHashCode(proxy);
+						}
+						return invokeOn(statement, method, args);
+					}
+				});
+	}
+
+	private static Object invokeOn(Object target, Method method, Object[] args) throws Throwable {
+		try {
+			return method.invoke(target, args);
+		} catch (InvocationTargetException e) {
+			throw e.getCause();
+		}
+	}
+
+	private static boolean isClosed(PreparedStatement statement) {
+		try {
+			return statement.isClosed();
+		} catch (SQLException e) {
+			return true;
+		} catch (AbstractMethodError e) {
+			// drivers written before JDBC 4 cannot tell
+			return false;
+		}
+	}
+
+	private static void close(PreparedStatement statement) {
+		try {
+			statement.close();
+		} catch (SQLException e) {
+			logger.debug("Could not close a cached statement", e);
+		}
+	}
+}
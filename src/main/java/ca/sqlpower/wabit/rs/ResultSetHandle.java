@@ -22,15 +22,18 @@ package ca.sqlpower.wabit.rs;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.lang.Thread.UncaughtExceptionHandler;
+import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -49,9 +52,14 @@ import ca.sqlpower.sql.JDBCDataSource;
 import ca.sqlpower.sql.Olap4jDataSource;
 import ca.sqlpower.sql.RowSetChangeEvent;
 import ca.sqlpower.sql.RowSetChangeListener;
+import ca.sqlpower.sql.SPDataSource;
 import ca.sqlpower.swingui.SPSUtils;
 import ca.sqlpower.wabit.OlapConnectionProvider;
 import ca.sqlpower.wabit.SqlConnectionProvider;
+import ca.sqlpower.wabit.rs.metrics.QueryMetrics;
+import ca.sqlpower.wabit.rs.metrics.QueryTrace;
+import ca.sqlpower.wabit.rs.metrics.QueryTrace.Phase;
+import ca.sqlpower.wabit.rs.olap.CellSetCache;
 import ca.sqlpower.wabit.swingui.ExceptionHandler;
 
 /**
@@ -59,6 +67,17 @@ import ca.sqlpower.wabit.swingui.ExceptionHandler;
  * a {@link ResultSet} once it completes.
  * 
  * All events fired from this object will be fired on the Swing event thread.
+ * <p>
+ * The time spent in each phase of the execution is recorded in a
+ * {@link QueryTrace} which is given to the tracers of {@link QueryMetrics}
+ * once the execution ends.
+ * <p>
+ * Relational and streaming queries are executed with the
+ * {@link ExecutionProfile} of their data source.
+ * <p>
+ * A handle whose results are displayed by several objects at once gives each
+ * of them a view from {@link #createView()}, as the row cursor of a result set
+ * cannot be shared.
  */
 public class ResultSetHandle {
 	
@@ -72,20 +91,59 @@ public class ResultSetHandle {
 		NEW,
 		RUNNING,
 		SUCCESS,
-		ERROR
+		ERROR,
+		CANCELLED
 	}
+
+	/**
+	 * The data source property that sets how many seconds the queries on the
+	 * data source may take, including reading their rows. Queries on data
+	 * sources that do not set it use the {@link #DEFAULT_QUERY_TIMEOUT_PROPERTY}
+	 * system property. A timeout of 0 means no time limit.
+	 */
+	public static final String QUERY_TIMEOUT_KEY = "ca.sqlpower.wabit.queryTimeoutSeconds";
+
+	/**
+	 * The system property that sets the query timeout, in seconds, of the data
+	 * sources that do not set {@link #QUERY_TIMEOUT_KEY}. Streaming queries
+	 * only have their execution limited, not how long they are followed.
+	 */
+	public static final String DEFAULT_QUERY_TIMEOUT_PROPERTY = 
+		"ca.sqlpower.wabit.rs.ResultSetHandle.queryTimeout";
 	
 	private final ResultSetType rsType;
 	
-	private ResultSetStatus status = ResultSetStatus.NEW;
+	private volatile ResultSetStatus status = ResultSetStatus.NEW;
 	
 	private Exception exception = null;
 
 	private final Task task;
 	
+	/**
+	 * Cancelled when this handle is cancelled, to stop the execution and the
+	 * copy of the rows wherever they are.
+	 */
+	private final CancellationToken token = new CancellationToken();
+	
 	private boolean populated = false;
 
 	private final int rowLimit;
+	
+	/**
+	 * The UUID of the object that executed the query, for the query metrics.
+	 */
+	private volatile String producerUUID;
+	
+	/**
+	 * The name of the object that executed the query, for the query metrics.
+	 */
+	private volatile String producerName;
+	
+	/**
+	 * The record of the execution. This is created when the handle is
+	 * populated.
+	 */
+	private volatile QueryTrace trace;
     
     private static final Logger logger = Logger.getLogger(ResultSetHandle.class);
     
@@ -99,6 +157,35 @@ public class ResultSetHandle {
      * This is the internal CellSet object 
      */
     private CellSet olapCellSet = null;
+
+	/**
+	 * The handle this handle is a view of, or null if this handle executes
+	 * its own query.
+	 */
+	private final ResultSetHandle source;
+
+	/**
+	 * Forwards the events of the source of a view to the listeners of the
+	 * view. Null if this handle is not a view.
+	 */
+	private final ResultSetListener sourceListener;
+
+	/**
+	 * The copy of the results of the source of a view with a row cursor of its
+	 * own. It is made once the source finished executing.
+	 */
+	@GuardedBy("this")
+	private CachedRowSet viewRowSet = null;
+
+	/**
+	 * The number of views of this handle that were not cancelled.
+	 */
+	private final AtomicInteger openViews = new AtomicInteger();
+
+	/**
+	 * Counted down when the execution of this handle ends.
+	 */
+	private final CountDownLatch finished = new CountDownLatch(1);
     
     private static ExecutorService executorService;
     
@@ -198,6 +285,8 @@ public class ResultSetHandle {
     	
     	this.rowLimit = rowLimit;
     	this.rsType = type;
+    	this.source = null;
+    	this.sourceListener = null;
     	
     	if (this.rsType.equals(ResultSetType.OLAP)) {
     		this.cachedRowSet = new OlapResultSet();
@@ -226,6 +315,28 @@ public class ResultSetHandle {
 			ResultSetType type, 
 			int rowLimit, 
 			@Nullable final ExceptionHandler injectedHandler) 
+    {
+    	this(connectionProvider, dataSource, query, variablesContext, type, 
+    			rowLimit, null, injectedHandler);
+    }
+
+	/**
+	 * Creates a handle for an MDX query that will first look for an already
+	 * evaluated {@link CellSet} in the given cache before executing the query,
+	 * and will store the {@link CellSet} it evaluates in the cache.
+	 * 
+	 * @param cellSetCache
+	 *            The cache to use. If null, the query is always executed.
+	 */
+    public ResultSetHandle(
+    		OlapConnectionProvider connectionProvider,
+    		Olap4jDataSource dataSource,
+    		String query, 
+    		SPVariableHelper variablesContext,
+			ResultSetType type, 
+			int rowLimit, 
+			@Nullable CellSetCache cellSetCache,
+			@Nullable final ExceptionHandler injectedHandler) 
     {
     	if (query == null) {
     		throw new NullPointerException("Query cannot be null");
@@ -236,6 +347,8 @@ public class ResultSetHandle {
     	
     	this.rowLimit = rowLimit;
     	this.rsType = type;
+    	this.source = null;
+    	this.sourceListener = null;
     	
     	if (this.rsType.equals(ResultSetType.OLAP)) {
     		this.cachedRowSet = new OlapResultSet();
@@ -253,12 +366,49 @@ public class ResultSetHandle {
 						dataSource, 
 						query, 
 						variablesContext, 
+						cellSetCache,
 						injectedHandler);
 	}
 
+	/**
+	 * Creates a view of the given handle.
+	 * 
+	 * @see #createView()
+	 */
+	private ResultSetHandle(@Nonnull ResultSetHandle source) {
+		this.source = source;
+		this.rowLimit = source.rowLimit;
+		this.rsType = source.rsType;
+		this.cachedRowSet = source.cachedRowSet;
+		this.task = null;
+		this.populated = true;
+		this.internalListener.cleanup();
+		this.sourceListener = new ResultSetListener() {
+			public void executionStarted(ResultSetEvent evt) {
+				ResultSetEvent viewEvent = ResultSetEvent.getExecutionStartedEvent(ResultSetHandle.this);
+				for (ResultSetListener listener : resultSetListeners) {
+					listener.executionStarted(viewEvent);
+				}
+			}
+			public void newData(ResultSetEvent evt) {
+				ResultSetEvent viewEvent = ResultSetEvent.getNewDataEvent(ResultSetHandle.this);
+				for (ResultSetListener listener : resultSetListeners) {
+					listener.newData(viewEvent);
+				}
+			}
+			public void executionComplete(ResultSetEvent evt) {
+				ResultSetEvent viewEvent = ResultSetEvent.getExecutionCompleteEvent(ResultSetHandle.this);
+				for (ResultSetListener listener : resultSetListeners) {
+					listener.executionComplete(viewEvent);
+				}
+			}
+		};
+		source.addResultSetListener(sourceListener);
+	}
+
 	private class Task implements Runnable {
     	
-		private PreparedStatement statement = null;
+		private volatile PreparedStatement statement = null;
 		
 		private final UncaughtExceptionHandler handler;
 		private String query = null;
@@ -268,6 +418,7 @@ public class ResultSetHandle {
 		private OlapConnectionProvider olapConnectionProvider = null;
 		private JDBCDataSource jdbcDataSource = null;
 		private Olap4jDataSource olapDataSource = null; 
+		private CellSetCache cellSetCache = null;
 		
 		
 		public Task(
@@ -289,17 +440,20 @@ public class ResultSetHandle {
 	    		Olap4jDataSource dataSource,
 				String query, 
 				SPVariableHelper variablesContext,
+				CellSetCache cellSetCache,
 				ExceptionHandler injectedHandler) 
 		{
 			this.olapConnectionProvider = connectionProvider;
 			this.olapDataSource = dataSource;
 			this.query = query;
 			this.variablesContext = variablesContext;
+			this.cellSetCache = cellSetCache;
 			handler = injectedHandler;
 		}
 		
 		public void cancel() {
 			try {
+				PreparedStatement statement = this.statement;
 				if (statement != null) {
 					statement.cancel();    				
 				}
@@ -307,10 +461,51 @@ public class ResultSetHandle {
 				throw new RuntimeException(e);
 			}
 		}
+		
+		/**
+		 * Returns the number of seconds the query may take on its data source,
+		 * or 0 if it has no time limit.
+		 */
+		int getQueryTimeout() {
+			SPDataSource ds = jdbcDataSource != null ? jdbcDataSource : olapDataSource;
+			String timeout = ds == null ? null : ds.get(QUERY_TIMEOUT_KEY);
+			if (timeout == null) {
+				timeout = System.getProperty(DEFAULT_QUERY_TIMEOUT_PROPERTY);
+			}
+			if (timeout == null || timeout.trim().length() == 0) return 0;
+			try {
+				return Math.max(0, Integer.parseInt(timeout.trim()));
+			} catch (NumberFormatException e) {
+				logger.warn("Ignoring the invalid query timeout " + timeout + 
+						" of data source " + getDataSourceName());
+				return 0;
+			}
+		}
+		/**
+		 * Returns the name of the data source the query runs on.
+		 */
+		String getDataSourceName() {
+			if (jdbcDataSource != null) return jdbcDataSource.getName();
+			if (olapDataSource != null) return olapDataSource.getName();
+			return null;
+		}
+		
 		public void run() {
+			final QueryTrace trace = ResultSetHandle.this.trace;
+			trace.mark(Phase.QUEUE);
+			Phase phase = Phase.PREPARE;
+			final ExecutionProfile profile = ExecutionProfile.forDataSource(jdbcDataSource);
+			Connection dedicatedConnection = null;
 			try {
             	
+				if (token.isCancelled()) {
+					logger.debug("Skipping the execution of a query cancelled before it started");
+					status = ResultSetStatus.CANCELLED;
+					return;
+				}
             	status = ResultSetStatus.RUNNING;
+				final int timeout = getQueryTimeout();
+				token.startTimeout(timeout);
             	
             	// Place an exception handler
             	Thread.currentThread().setUncaughtExceptionHandler(
@@ -334,12 +529,23 @@ public class ResultSetHandle {
         		switch (rsType) {
         		
             		case OLAP:
-            			statement = olapConnectionProvider.createPreparedStatement(olapDataSource, query, variablesContext);
+            			// The statement is only created if the cell set is not cached.
                 		break;
                 		
             		case RELATIONAL:
             		case STREAMING:
-            			statement = sqlConnectionProvider.createPreparedStatement(jdbcDataSource, query, variablesContext);
+            			if (rsType == ResultSetType.STREAMING && !profile.isStreamingAutoCommit()) {
+            				// Some drivers only use a cursor inside a transaction. The
+            				// connection of the data source is shared by other queries
+            				// so the stream gets a connection of its own.
+            				dedicatedConnection = sqlConnectionProvider.createConnection(jdbcDataSource);
+            				dedicatedConnection.setAutoCommit(false);
+            				statement = variablesContext.substituteForDb(dedicatedConnection, query);
+            			} else {
+            				statement = sqlConnectionProvider.createPreparedStatement(jdbcDataSource, query, variablesContext);
+            			}
+            			statement.setQueryTimeout(timeout);
+            			profile.applyTo(statement, getDataSourceName(), query, rowLimit);
             			break;
             			
             		default:
@@ -350,24 +556,60 @@ public class ResultSetHandle {
             	switch (rsType) {
             	
                 	case OLAP:
-                		olapCellSet = ((PreparedOlapStatement)statement).executeQuery();
-                		((OlapResultSet)cachedRowSet).populate(olapCellSet);
+                		String cacheKey = null;
+                		boolean evaluated = false;
+                		if (cellSetCache != null) {
+                			cacheKey = CellSetCache.createKey(query, variablesContext);
+                			olapCellSet = cellSetCache.get(cacheKey, ResultSetHandle.this);
+                		}
+                		if (olapCellSet == null) {
+                			statement = olapConnectionProvider.createPreparedStatement(olapDataSource, query, variablesContext);
+                			statement.setQueryTimeout(timeout);
+                			trace.mark(phase);
+                			phase = Phase.EXECUTE;
+                			token.checkCancelled();
+                			olapCellSet = ((PreparedOlapStatement)statement).executeQuery();
+                			evaluated = true;
+                		} else {
+                			logger.debug("Reusing cached cell set for " + cacheKey);
+                		}
+                		trace.mark(phase);
+                		phase = Phase.FETCH;
+                		((OlapResultSet)cachedRowSet).populate(olapCellSet, token);
+                		if (evaluated && cacheKey != null && 
+                				cellSetCache.put(cacheKey, olapCellSet, statement, ResultSetHandle.this)) {
+                			// closing the statement would close the cached cell set
+                			statement = null;
+                		}
                 		status = ResultSetStatus.SUCCESS;
                 		break;
                 
                 	case STREAMING:
+                		trace.mark(phase);
+                		phase = Phase.EXECUTE;
+                		token.checkCancelled();
                 		statement.execute();
-                		final ResultSet streamingRS = statement.getResultSet();
-            			cachedRowSet.follow(streamingRS, rowLimit);
+                		final ResultSet streamingRS = profile.prepare(statement.getResultSet(), 
+                				getDataSourceName(), query, rowLimit);
+                		trace.mark(phase);
+                		phase = Phase.FETCH;
+                		// A stream is followed for as long as it is open.
+                		token.startTimeout(0);
+            			cachedRowSet.follow(token.wrap(streamingRS), rowLimit);
             			status = ResultSetStatus.SUCCESS;
             			break;
                 	
                 	case RELATIONAL:
+                		trace.mark(phase);
+                		phase = Phase.EXECUTE;
                 		statement.setMaxRows(rowLimit);
+                		token.checkCancelled();
                 		statement.execute();
                 		final ResultSet rs = statement.getResultSet();
+                		trace.mark(phase);
+                		phase = Phase.FETCH;
                 		if (rs != null) {
-                			cachedRowSet.populate(rs);                			                			
+                			cachedRowSet.populate(token.wrap(profile.prepare(rs, getDataSourceName(), query, rowLimit)));
                 		}
                 		status = ResultSetStatus.SUCCESS;
                 		break;
@@ -376,16 +618,42 @@ public class ResultSetHandle {
             	}
             	
             } catch (Throwable t) {
+            	if (token.isTimedOut()) {
+            		logger.warn("The query did not complete in " + getQueryTimeout() + 
+            				" seconds on data source " + getDataSourceName(), t);
+            		status = ResultSetStatus.ERROR;
+            		exception = token.createTimeoutException(t);
+            		return;
+            	}
+            	if (token.isCancelled()) {
+            		logger.debug("The query was cancelled", t);
+            		status = ResultSetStatus.CANCELLED;
+            		return;
+            	}
                 logger.error("Exception ecountered while executing the query", t);
                 status = ResultSetStatus.ERROR;
                 SQLException e = new SQLException();
                 e.initCause(t);
                 exception = e;
             } finally {
+            	trace.mark(phase);
+            	trace.finish(countRows(), exception);
+            	QueryMetrics.executionFinished(trace);
             	try {
-            		if (statement != null) {
-            			statement.close();
-                	}
+            		try {
+            			if (statement != null) {
+            				statement.close();
+            			}
+            		} finally {
+            			if (dedicatedConnection != null) {
+            				try {
+            					dedicatedConnection.rollback();
+            					dedicatedConnection.setAutoCommit(true);
+            				} finally {
+            					dedicatedConnection.close();
+            				}
+            			}
+            		}
             		ResultSetHandle.this.internalListener.cleanup();
             	} catch (Exception eX) {
             		logger.debug("Exception ecountered while closing the statement's connection", eX);
@@ -404,20 +672,68 @@ public class ResultSetHandle {
             		} else {
             			SwingUtilities.invokeLater(task);
             		}
+            		finished.countDown();
             	}
             }
         }
     }
 
+	/**
+	 * Returns the number of rows loaded into the result set, or 0 if the
+	 * execution failed. Streaming result sets are not counted as they keep
+	 * growing. The rows are counted on a cursor of their own as the cursor of
+	 * the result set may already be in use by the listeners.
+	 */
+	private int countRows() {
+		if (status != ResultSetStatus.SUCCESS || rsType == ResultSetType.STREAMING) return 0;
+		try {
+			CachedRowSet rows = cachedRowSet.createShared();
+			if (rows.last()) {
+				return rows.getRow();
+			}
+			return 0;
+		} catch (SQLException e) {
+			logger.debug("Could not count the rows of the result set", e);
+			return 0;
+		}
+	}
+
+	/**
+	 * Sets the object that executed the query, which is used to group the
+	 * query metrics. This must be set before the handle is populated.
+	 * 
+	 * @param producerUUID
+	 *            The UUID of the object the query metrics are grouped by.
+	 * @param producerName
+	 *            The name the query metrics are displayed with.
+	 */
+	public void setProducer(@Nullable String producerUUID, @Nullable String producerName) {
+		this.producerUUID = producerUUID;
+		this.producerName = producerName;
+	}
+
+	/**
+	 * Returns the record of the execution, or null if the handle was not
+	 * populated yet. The trace is complete once the execution ends.
+	 */
+	@Nullable
+	public QueryTrace getTrace() {
+		if (source != null) {
+			return source.getTrace();
+		}
+		return trace;
+	}
+
 	/**
      * Triggers the population of this handle.
      */
     public void populate(boolean async) {
     	
-    	if (populated)
+    	if (populated || source != null)
     		throw new RuntimeException("Cannot populate a ResultSetHandle twice.");
     	
     	populated = true;
+    	trace = new QueryTrace(task.getDataSourceName(), producerUUID, producerName, task.query, rsType);
     	
     	// Streaming queries are always async.
     	if (this.rsType.equals(ResultSetType.STREAMING)) {
@@ -467,8 +783,50 @@ public class ResultSetHandle {
      * this object by registering a {@link ResultSetListener}
      */
     public ResultSet getResultSet() {
-        return this.cachedRowSet;
+    	if (source == null) {
+    		return this.cachedRowSet;
+    	}
+    	synchronized (this) {
+    		ResultSetStatus sourceStatus = source.getStatus();
+    		if (viewRowSet == null && sourceStatus != ResultSetStatus.NEW && 
+    				sourceStatus != ResultSetStatus.RUNNING) {
+    			try {
+    				viewRowSet = source.cachedRowSet.createShared();
+    			} catch (SQLException e) {
+    				throw new RuntimeException(e);
+    			}
+    		}
+    		// the source's rows are still arriving, which only the source may read
+    		return viewRowSet != null ? viewRowSet : source.cachedRowSet;
+    	}
     }
+
+	/**
+	 * Returns a handle on the results of this handle with a row cursor of its
+	 * own, for each object that displays the results of a handle it shares
+	 * with others. The view fires the events of this handle as its own.
+	 * Cancelling a view only detaches it, this handle is cancelled when every
+	 * one of its views is cancelled while it is still running.
+	 */
+	public ResultSetHandle createView() {
+		if (source != null) {
+			return source.createView();
+		}
+		openViews.incrementAndGet();
+		return new ResultSetHandle(this);
+	}
+
+	/**
+	 * Waits for the execution of this handle to end, whether it succeeded,
+	 * failed or was cancelled. The handle must have been populated.
+	 */
+	public void awaitCompletion() throws InterruptedException {
+		if (source != null) {
+			source.awaitCompletion();
+		} else {
+			finished.await();
+		}
+	}
     
     /**
      * This method will block and return the CellSet object as soon as the
@@ -479,24 +837,52 @@ public class ResultSetHandle {
     	if (!this.rsType.equals(ResultSetType.OLAP)) {
     		throw new UnsupportedOperationException("Cannot obtain a CellSet object from a ResultSetHandle that is not of OLAP type.");
     	}
+    	if (source != null) {
+    		return source.getCellSet();
+    	}
     	return this.olapCellSet;
     }
     
     /**
-     * Cancels this 
+     * Cancels this handle's execution. If it did not start yet it will not
+     * run, and if it is running its statement is cancelled and it stops
+     * copying rows into the result set. Cancelling a view detaches it from
+     * the handle it is a view of.
      */
     public void cancel() {
+    	if (source != null) {
+    		synchronized (this) {
+    			if (token.isCancelled()) return;
+    			token.cancel();
+    		}
+    		source.removeResultSetListener(sourceListener);
+    		if (source.openViews.decrementAndGet() == 0 && source.isRunning()) {
+    			source.cancel();
+    		}
+    		return;
+    	}
+    	this.token.cancel();
+    	if (trace != null) {
+    		trace.cancelled();
+    	}
     	if (this.isRunning()) {
     		this.task.cancel();
     	}
     	this.internalListener.cleanup();
     }
     
+    /**
+     * Returns the token that is cancelled when this handle is cancelled.
+     */
+    public CancellationToken getCancellationToken() {
+    	return token;
+    }
+    
     /**
      * Returns true if at least one of the distributed handles is still running.
      */
     public boolean isRunning() {
-    	return this.status.equals(ResultSetStatus.RUNNING);
+    	return getStatus().equals(ResultSetStatus.RUNNING);
     }
     
     /**
@@ -510,6 +896,9 @@ public class ResultSetHandle {
      * Returns the status of this {@link ResultSetHandle}
      */
     public ResultSetStatus getStatus() {
+    	if (source != null) {
+    		return token.isCancelled() ? ResultSetStatus.CANCELLED : source.getStatus();
+    	}
     	return this.status;
     }
     
@@ -519,6 +908,9 @@ public class ResultSetHandle {
      * @see {@link ResultSetHandle#getStatus()}
      */
     public Exception getException() {
+    	if (source != null) {
+    		return source.getException();
+    	}
 		return exception;
 	}
 }
@@ -19,30 +19,102 @@
 
 package ca.sqlpower.wabit.rs;
 
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.CopyOnWriteArrayList;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 
+import net.jcip.annotations.GuardedBy;
+
+import org.apache.log4j.Logger;
+import org.olap4j.CellSet;
+
+import ca.sqlpower.object.SPObject;
 import ca.sqlpower.object.SPVariableHelper;
 import ca.sqlpower.object.SPVariableResolver;
 import ca.sqlpower.sql.JDBCDataSource;
 import ca.sqlpower.sql.Olap4jDataSource;
 import ca.sqlpower.wabit.OlapConnectionProvider;
 import ca.sqlpower.wabit.SqlConnectionProvider;
+import ca.sqlpower.wabit.rs.ResultSetHandle.ResultSetStatus;
 import ca.sqlpower.wabit.rs.ResultSetHandle.ResultSetType;
+import ca.sqlpower.wabit.rs.metrics.QueryMetrics;
+import ca.sqlpower.wabit.rs.olap.CellSetCache;
 
 
 /**
  * Convenient implementation support for the {@link ResultSetProducer} interface.
- * 
- * 
+ * <p>
+ * Structure changes are coalesced: the listeners are told once the producer
+ * stopped changing for a quiet period, so a burst of edits makes each
+ * dependant refresh once instead of once per edit.
  */
 public class ResultSetProducerSupport {
+	
+	private static final Logger logger = Logger.getLogger(ResultSetProducerSupport.class);
+
+	/**
+	 * The system property that sets how many milliseconds a producer's
+	 * structure must stay unchanged before its listeners are told it changed.
+	 * A value of 0 tells them as soon as the event thread gets to it, which
+	 * still coalesces the changes made before then.
+	 */
+	public static final String STRUCTURE_CHANGE_QUIET_PERIOD_PROPERTY = 
+		"ca.sqlpower.wabit.rs.structureChangeQuietMillis";
+
+	/**
+	 * The quiet period used when the system property is not set.
+	 */
+	public static final int DEFAULT_STRUCTURE_CHANGE_QUIET_PERIOD = 50;
+
+	/**
+	 * The longest a structure change is held back by the changes following
+	 * it, as a multiple of the quiet period. This keeps a producer that never
+	 * stops changing from never telling its listeners.
+	 */
+	private static final int MAX_STRUCTURE_CHANGE_DELAY_FACTOR = 10;
+
+	/**
+	 * Tells the listeners that the structure changed once the quiet period
+	 * after the last change has passed.
+	 */
+	private final Timer structureChangeTimer;
+
+	/**
+	 * True if the structure changed since the listeners were last told.
+	 */
+	@GuardedBy("this")
+	private boolean structureChangePending = false;
+
+	/**
+	 * The {@link System#nanoTime()} of the first change the listeners were
+	 * not told about yet.
+	 */
+	@GuardedBy("this")
+	private long firstPendingChange;
+
+	/**
+	 * The number of structure changes that were folded into an earlier one.
+	 */
+	@GuardedBy("this")
+	private int coalescedStructureChanges = 0;
+
+	/**
+	 * The handles that existed when the structure last changed. They are
+	 * cancelled when the listeners are told about the change.
+	 */
+	@GuardedBy("this")
+	private final Set<ResultSetHandle> supersededHandles = new HashSet<ResultSetHandle>();
 
 	private final List<ResultSetHandle> handles = new CopyOnWriteArrayList<ResultSetHandle>();
 	
@@ -104,6 +176,15 @@ public class ResultSetProducerSupport {
     		@Nullable ResultSetProducerStatusInformant informant) {
 		this.source = source;
 		this.informant = informant;
+		int quietPeriod = Math.max(0, Integer.getInteger(STRUCTURE_CHANGE_QUIET_PERIOD_PROPERTY, 
+				DEFAULT_STRUCTURE_CHANGE_QUIET_PERIOD));
+		structureChangeTimer = new Timer(quietPeriod, new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				deliverStructureChanged();
+			}
+		});
+		structureChangeTimer.setRepeats(false);
+		structureChangeTimer.setCoalesce(true);
     }
     
     
@@ -119,6 +200,45 @@ public class ResultSetProducerSupport {
     }
     
     /**
+	 * Returns the name the query metrics of the {@link ResultSetProducer} this
+	 * class supports are grouped under.
+	 */
+	private String getProducerName() {
+		if (source instanceof SPObject) {
+			return ((SPObject) source).getName();
+		}
+		return source.getClass().getSimpleName();
+	}
+
+	/**
+	 * Returns the UUID the query metrics of the {@link ResultSetProducer} this
+	 * class supports are grouped by, or null if it has none.
+	 */
+	@Nullable
+	private String getProducerUUID() {
+		if (source instanceof SPObject) {
+			return ((SPObject) source).getUUID();
+		}
+		return null;
+	}
+
+	/**
+	 * Cancels the execution of every handle and drops the query metrics of
+	 * the {@link ResultSetProducer} this class supports. This is called when
+	 * the producer is removed.
+	 */
+	public void cleanup() {
+		try {
+			cancel();
+		} finally {
+			String uuid = getProducerUUID();
+			if (uuid != null) {
+				QueryMetrics.getRegistry().removeProducer(uuid);
+			}
+		}
+	}
+
+	/**
      * Builds a {@link ResultSetHandle} and will trigger it's execution
      * in the background.
      * 
@@ -163,6 +283,7 @@ public class ResultSetProducerSupport {
 		// Save this new one
 		this.handles.add(rsh);
 		
+		rsh.setProducer(getProducerUUID(), getProducerName());
 		rsh.populate(async);
 		
 		return rsh;
@@ -193,6 +314,32 @@ public class ResultSetProducerSupport {
             final int rowLimit,
             @Nullable final ResultSetListener listener,
             boolean async) throws SQLException
+    {
+    	return execute(connectionProvider, dataSource, query, variablesContext, 
+    			type, rowLimit, listener, null, async);
+    }
+
+    /**
+     * Builds a {@link ResultSetHandle} for an MDX query and will trigger it's
+     * execution in the background. The handle will reuse a {@link CellSet}
+     * from the given cache if the same query was evaluated before.
+     * 
+     * @param cellSetCache
+     *            The cache to reuse cell sets from and store new cell sets
+     *            in. If null the query is always executed.
+     * @see #execute(OlapConnectionProvider, Olap4jDataSource, String,
+     *      SPVariableHelper, ResultSetType, int, ResultSetListener, boolean)
+     */
+    public ResultSetHandle execute(
+    		@Nonnull final OlapConnectionProvider connectionProvider,
+    		@Nonnull final Olap4jDataSource dataSource,
+    		@Nonnull final String query,
+    		@Nonnull final SPVariableHelper variablesContext,
+    		@Nonnull final ResultSetType type,
+    		final int rowLimit,
+    		@Nullable final ResultSetListener listener,
+    		@Nullable final CellSetCache cellSetCache,
+    		boolean async) throws SQLException
     {
 		ResultSetHandle rsh = 
 			new ResultSetHandle(
@@ -202,6 +349,7 @@ public class ResultSetProducerSupport {
 					variablesContext,
 					type,
 					rowLimit,
+					cellSetCache,
 					null);
 		
 		rsh.addResultSetListener(internalListener);
@@ -212,6 +360,7 @@ public class ResultSetProducerSupport {
 		// Save this new one
 		this.handles.add(rsh);
 		
+		rsh.setProducer(getProducerUUID(), getProducerName());
 		rsh.populate(async);
 		
 		return rsh;
@@ -238,15 +387,65 @@ public class ResultSetProducerSupport {
     /**
      * Notifies all listeners that this producer's structure has
      * changed and the subsequent handles will be different.
+     * <p>
+     * The listeners are told on the event thread once the structure stopped
+     * changing for the quiet period set by
+     * {@link #STRUCTURE_CHANGE_QUIET_PERIOD_PROPERTY}; the changes made until
+     * then are told as one. The handles created before the change that are
+     * still executing are cancelled just before, as their results are
+     * superseded. Until then they keep running so the listeners are not left
+     * with cancelled results while the structure is still changing.
      */
 	public synchronized void fireStructureChanged() {
-		SwingUtilities.invokeLater(new Runnable() {
-			public void run() {
-				for (ResultSetProducerListener rspl : ResultSetProducerSupport.this.listeners) {
-					rspl.structureChanged(new ResultSetProducerEvent(source));
+		supersededHandles.addAll(handles);
+		if (!structureChangePending) {
+			structureChangePending = true;
+			firstPendingChange = System.nanoTime();
+			structureChangeTimer.restart();
+		} else {
+			coalescedStructureChanges++;
+			long maxDelayNanos = structureChangeTimer.getDelay() * 
+				MAX_STRUCTURE_CHANGE_DELAY_FACTOR * 1000000L;
+			if (System.nanoTime() - firstPendingChange < maxDelayNanos) {
+				structureChangeTimer.restart();
+			}
+		}
+	}
+
+	/**
+	 * Cancels the handles executing the previous structure and tells the
+	 * listeners about the structure changes made since they were last told.
+	 * This is called on the event thread.
+	 */
+	private void deliverStructureChanged() {
+		List<ResultSetHandle> superseded;
+		synchronized (this) {
+			if (!structureChangePending) return;
+			structureChangePending = false;
+			superseded = new ArrayList<ResultSetHandle>(supersededHandles);
+			supersededHandles.clear();
+		}
+		for (ResultSetHandle rsh : superseded) {
+			if (rsh.isRunning() || rsh.getStatus() == ResultSetStatus.NEW) {
+				try {
+					rsh.cancel();
+				} catch (RuntimeException e) {
+					logger.warn("Could not cancel a superseded execution of " + getProducerName(), e);
 				}
 			}
-		});
+		}
+		ResultSetProducerEvent evt = new ResultSetProducerEvent(source);
+		for (ResultSetProducerListener rspl : listeners) {
+			rspl.structureChanged(evt);
+		}
+	}
+
+	/**
+	 * Returns the number of structure changes whose listeners were told
+	 * together with an earlier change.
+	 */
+	public synchronized int getCoalescedStructureChangeCount() {
+		return coalescedStructureChanges;
 	}
 	
 	/**
@@ -0,0 +1,502 @@
+/*
+ * Copyright (c) 2010, SQL Power Group Inc.
+ *
+ * This file is part of Wabit.
+ *
+ * Wabit is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wabit is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ca.sqlpower.wabit.rs;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.swing.SwingUtilities;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.Immutable;
+import net.jcip.annotations.ThreadSafe;
+
+import org.apache.log4j.Logger;
+
+import ca.sqlpower.object.SPObject;
+import ca.sqlpower.object.SPSimpleVariableResolver;
+import ca.sqlpower.object.SPVariableHelper;
+import ca.sqlpower.wabit.WabitUtils;
+import ca.sqlpower.wabit.WabitWorkspace;
+
+/**
+ * A variable resolver that exposes the columns of a query's results as
+ * variables. The query is executed in the background and its results are
+ * kept until the query changes, so looking the variables up never executes
+ * the query on the event dispatch thread.
+ * <p>
+ * When the query changes, {@link #invalidate()} marks the loaded values as
+ * stale. If the variables were looked up before, they are loaded again once
+ * the query stops changing for {@link #DEBOUNCE_DELAY} milliseconds, so a
+ * compound edit only executes the query once. Lookups on the event dispatch
+ * thread return the values loaded so far and schedule a load if they are
+ * stale; the {@link LoadListener}s of the workspace the resolver's owner is
+ * in are told when the new values are in, see
+ * {@link WabitWorkspace#addVariableLoadListener(LoadListener)}. Lookups on
+ * any other thread wait for stale values to be loaded, as execution and
+ * printing need the current values.
+ * <p>
+ * The values of each column are stored once per loaded result, in the order
+ * they first appear, so the distinct values of a column are computed when
+ * the query is executed rather than every time they are looked up. They are
+ * also available as a {@link DistinctValueIndex} through
+ * {@link #getIndex(String)}. Subclasses can compute the distinct values of a
+ * column in the database instead by overriding
+ * {@link #executeDistinct(String)}, in which case a resolver that is only
+ * asked for indexes, as selectors do, does not execute the full query.
+ */
+@ThreadSafe
+public abstract class ResultSetVariableResolver extends SPSimpleVariableResolver {
+
+	private static final Logger logger = Logger.getLogger(ResultSetVariableResolver.class);
+
+	/**
+	 * The number of milliseconds to wait after the last change to a query
+	 * before loading its variables again.
+	 */
+	public static final long DEBOUNCE_DELAY = 250;
+
+	/**
+	 * Tells interested parties, usually selectors and labels displaying the
+	 * values of a variable, that new values were loaded.
+	 */
+	public interface LoadListener {
+
+		/**
+		 * Called on the foreground thread of the session after new values
+		 * were loaded into the given resolver.
+		 */
+		void variablesLoaded(@Nonnull ResultSetVariableResolver source);
+	}
+
+	/**
+	 * Loads the variables of every query. The threads are daemons so pending
+	 * loads do not keep the application from exiting.
+	 */
+	private static final ScheduledExecutorService loader =
+		Executors.newScheduledThreadPool(1, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "Query variables loader");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+	/**
+	 * The values loaded by one execution, and what they were loaded for.
+	 */
+	@Immutable
+	private static class LoadedValues {
+
+		/**
+		 * The version of the query the values were loaded from. 0 means
+		 * nothing was loaded yet.
+		 */
+		private final long version;
+
+		/**
+		 * The distinct values of each loaded column, by column name.
+		 */
+		private final Map<String, DistinctValueIndex> indexes;
+
+		/**
+		 * The indexed columns the values were loaded for. Their indexes hold
+		 * every distinct value of the column.
+		 */
+		private final Set<String> indexedColumns;
+
+		/**
+		 * True if the full results of the query were read.
+		 */
+		private final boolean fullResults;
+
+		LoadedValues(long version, Map<String, DistinctValueIndex> indexes, 
+				Set<String> indexedColumns, boolean fullResults) {
+			this.version = version;
+			this.indexes = Collections.unmodifiableMap(indexes);
+			this.indexedColumns = Collections.unmodifiableSet(indexedColumns);
+			this.fullResults = fullResults;
+		}
+
+		/**
+		 * Returns true if these values were loaded for the given version and
+		 * cover the given needs.
+		 */
+		boolean covers(long version, Set<String> indexedColumns, boolean fullResults) {
+			return this.version == version && this.indexedColumns.containsAll(indexedColumns) && 
+				(this.fullResults || !fullResults);
+		}
+	}
+
+	/**
+	 * Incremented every time the query changes.
+	 */
+	private final AtomicLong version = new AtomicLong(1);
+
+	/**
+	 * The current values.
+	 */
+	@GuardedBy("loadLock")
+	private volatile LoadedValues loaded = new LoadedValues(0, 
+			Collections.<String, DistinctValueIndex>emptyMap(), Collections.<String>emptySet(), false);
+
+	/**
+	 * True once the variables were looked up. Changes to the query only load
+	 * the variables again when someone is using them.
+	 */
+	private volatile boolean used = false;
+
+	/**
+	 * True once a variable was looked up, which needs the full results of the
+	 * query. Until then only the indexed columns are loaded.
+	 */
+	private volatile boolean fullResultsUsed = false;
+
+	/**
+	 * Held while a load is started and while its values are stored. The query
+	 * itself is executed without holding it.
+	 */
+	private final Object loadLock = new Object();
+
+	/**
+	 * The execution that is loading the values described by
+	 * {@link #runningValues}, or null if no load is running. Concurrent loads
+	 * that need no more than it loads wait for this execution instead of
+	 * executing the query again.
+	 */
+	@GuardedBy("loadLock")
+	private FutureTask<LoadedValues> runningLoad;
+
+	/**
+	 * What {@link #runningLoad} is loading, without its values.
+	 */
+	@GuardedBy("loadLock")
+	private LoadedValues runningValues;
+
+	/**
+	 * Set on the thread that is loading the variables so lookups made while
+	 * executing the query return the current values instead of loading them
+	 * again.
+	 */
+	private final ThreadLocal<Boolean> loading = new ThreadLocal<Boolean>();
+
+	@GuardedBy("this")
+	private ScheduledFuture<?> pendingLoad;
+
+	/**
+	 * The columns whose index was asked for. Only these are given to
+	 * {@link #executeDistinct(String)}.
+	 */
+	private final Set<String> indexedColumns = new CopyOnWriteArraySet<String>();
+
+	/**
+	 * The object whose variables this resolves. Its workspace is told when new
+	 * values are loaded.
+	 */
+	private final SPObject owner;
+
+	public ResultSetVariableResolver(SPObject owner, String namespace, String userFriendlyName) {
+		super(owner, namespace, userFriendlyName);
+		this.owner = owner;
+	}
+
+	/**
+	 * Executes the query on the current thread and returns the handle holding
+	 * its results, or null if the query cannot provide variables. In that case
+	 * the variables are cleared.
+	 */
+	@Nullable
+	protected abstract ResultSetHandle executeForVariables() throws ResultSetProducerException;
+
+	/**
+	 * Executes a query on the current thread that returns every distinct
+	 * value of the given column in its first column, or returns null if the
+	 * distinct values must be taken from the results of
+	 * {@link #executeForVariables()}. This lets the database find the
+	 * distinct values of columns that have many more rows than values. As
+	 * long as no variable is looked up, only these queries are executed to
+	 * load the indexes.
+	 * <p>
+	 * The default implementation returns null.
+	 */
+	@Nullable
+	protected ResultSetHandle executeDistinct(@Nonnull String columnName) throws ResultSetProducerException {
+		return null;
+	}
+
+	/**
+	 * Returns the distinct values of the given variable, loading them the
+	 * same way variable lookups do. On the event dispatch thread this returns
+	 * the values loaded so far, which may be null if nothing was loaded yet.
+	 *
+	 * @param key
+	 *            The variable key, with or without this resolver's namespace.
+	 */
+	@Nullable
+	public DistinctValueIndex getIndex(@Nonnull String key) {
+		String columnName = SPVariableHelper.getKey(key);
+		indexedColumns.add(columnName);
+		ensureLoaded();
+		return loaded.indexes.get(columnName);
+	}
+
+	/**
+	 * Marks the loaded values as stale. If the variables were used they are
+	 * loaded again after the query stops changing.
+	 */
+	public void invalidate() {
+		version.incrementAndGet();
+		if (used) {
+			scheduleLoad(DEBOUNCE_DELAY);
+		}
+	}
+
+	/**
+	 * Stops any load that is waiting to start. This should be called when the
+	 * resolver is discarded.
+	 */
+	public synchronized void cancelPendingLoad() {
+		if (pendingLoad != null) {
+			pendingLoad.cancel(false);
+			pendingLoad = null;
+		}
+	}
+
+	@Override
+	protected void beforeLookups(String key) {
+		if (this.resolvesNamespace(SPVariableHelper.getNamespace(key))) {
+			fullResultsUsed = true;
+			ensureLoaded();
+		}
+	}
+
+	@Override
+	protected void beforeKeyLookup(String namespace) {
+		fullResultsUsed = true;
+		ensureLoaded();
+	}
+
+	private void ensureLoaded() {
+		used = true;
+		if (isCurrent() || Boolean.TRUE.equals(loading.get())) return;
+		if (SwingUtilities.isEventDispatchThread()) {
+			scheduleLoad(0);
+		} else {
+			load();
+		}
+	}
+
+	/**
+	 * Returns true if the loaded values are of the current version of the
+	 * query and hold everything that was asked for.
+	 */
+	private boolean isCurrent() {
+		return loaded.covers(version.get(), indexedColumns, fullResultsUsed);
+	}
+
+	/**
+	 * Starts loading the variables after the given delay, replacing a load
+	 * that is waiting to start.
+	 */
+	private synchronized void scheduleLoad(long delay) {
+		if (pendingLoad != null) {
+			pendingLoad.cancel(false);
+		}
+		pendingLoad = loader.schedule(new Runnable() {
+			public void run() {
+				load();
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Loads the values of the current version of the query, unless they are
+	 * already loaded. The queries are executed outside of {@link #loadLock};
+	 * only storing the new values holds it, and values older than the ones
+	 * already stored are dropped.
+	 */
+	private void load() {
+		final long loadingVersion = version.get();
+		final Set<String> columns = new LinkedHashSet<String>(indexedColumns);
+		final boolean fullResults = fullResultsUsed;
+		FutureTask<LoadedValues> execution;
+		boolean executing = false;
+		synchronized (loadLock) {
+			if (loaded.covers(loadingVersion, columns, fullResults)) return;
+			if (runningLoad == null || !runningValues.covers(loadingVersion, columns, fullResults)) {
+				runningLoad = new FutureTask<LoadedValues>(new Callable<LoadedValues>() {
+					public LoadedValues call() throws Exception {
+						return executeIndexes(loadingVersion, columns, fullResults);
+					}
+				});
+				runningValues = new LoadedValues(loadingVersion, 
+						Collections.<String, DistinctValueIndex>emptyMap(), columns, fullResults);
+				executing = true;
+			}
+			execution = runningLoad;
+		}
+
+		LoadedValues newValues;
+		try {
+			if (executing) {
+				loading.set(Boolean.TRUE);
+				try {
+					execution.run();
+				} finally {
+					loading.remove();
+				}
+			}
+			newValues = execution.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return;
+		} catch (ExecutionException e) {
+			// The query is not executed again until it changes.
+			logger.error("Failed to resolve available variables from a query.", e.getCause());
+			newValues = null;
+		}
+
+		synchronized (loadLock) {
+			if (runningLoad == execution) {
+				runningLoad = null;
+				runningValues = null;
+			}
+			if (loaded.version > loadingVersion || 
+					loaded.covers(loadingVersion, columns, fullResults)) return;
+			if (newValues == null) {
+				loaded = new LoadedValues(loadingVersion, loaded.indexes, columns, fullResults);
+				return;
+			}
+			synchronized (variables) {
+				variables.clear();
+				for (Map.Entry<String, DistinctValueIndex> column : newValues.indexes.entrySet()) {
+					for (Object value : column.getValue().getValues()) {
+						store(column.getKey(), value);
+					}
+				}
+			}
+			loaded = newValues;
+		}
+		fireVariablesLoaded();
+	}
+
+	/**
+	 * Executes the queries that load the given columns and returns the
+	 * distinct values of each column they return, by column name. The full
+	 * query is only executed if its results are wanted or the distinct values
+	 * of one of the columns cannot be found by the database.
+	 */
+	private LoadedValues executeIndexes(long loadingVersion, Set<String> columns, 
+			boolean fullResults) throws Exception {
+		Map<String, DistinctValueIndex> distinctIndexes = new LinkedHashMap<String, DistinctValueIndex>();
+		boolean executeFull = fullResults;
+		for (String columnName : columns) {
+			DistinctValueIndex distinct = loadDistinct(columnName);
+			if (distinct != null) {
+				distinctIndexes.put(columnName, distinct);
+			} else {
+				executeFull = true;
+			}
+		}
+
+		Map<String, DistinctValueIndex> newIndexes = new LinkedHashMap<String, DistinctValueIndex>();
+		if (executeFull) {
+			ResultSetHandle handle = executeForVariables();
+			Map<String, DistinctValueIndex.Builder> columnValues =
+				new LinkedHashMap<String, DistinctValueIndex.Builder>();
+			ResultSet rs = handle == null ? null : handle.getResultSet();
+			if (rs != null && rs.first()) {
+				ResultSetMetaData metaData = rs.getMetaData();
+				List<DistinctValueIndex.Builder> builders = new ArrayList<DistinctValueIndex.Builder>();
+				for (int i = 0; i < metaData.getColumnCount(); i++) {
+					builders.add(new DistinctValueIndex.Builder());
+					columnValues.put(metaData.getColumnName(i + 1), builders.get(i));
+				}
+				do {
+					for (int i = 0; i < builders.size(); i++) {
+						builders.get(i).add(rs.getObject(i + 1));
+					}
+				} while (rs.next());
+			}
+			for (Map.Entry<String, DistinctValueIndex.Builder> column : columnValues.entrySet()) {
+				newIndexes.put(column.getKey(), column.getValue().build());
+			}
+			if (handle == null) {
+				// the query cannot provide variables
+				distinctIndexes.clear();
+			}
+		}
+		newIndexes.putAll(distinctIndexes);
+		return new LoadedValues(loadingVersion, newIndexes, columns, executeFull);
+	}
+
+	/**
+	 * Builds the index of the given column from {@link #executeDistinct(String)}
+	 * or returns null if the subclass cannot compute it or it failed.
+	 */
+	@Nullable
+	private DistinctValueIndex loadDistinct(String columnName) {
+		try {
+			ResultSetHandle handle = executeDistinct(columnName);
+			ResultSet rs = handle == null ? null : handle.getResultSet();
+			if (rs == null) return null;
+			DistinctValueIndex.Builder builder = new DistinctValueIndex.Builder();
+			rs.beforeFirst();
+			while (rs.next()) {
+				builder.add(rs.getObject(1));
+			}
+			return builder.build();
+		} catch (Exception e) {
+			logger.debug("Could not find the distinct values of " + columnName +
+					" in the database, using the query results instead.", e);
+			return null;
+		}
+	}
+
+	/**
+	 * Tells the workspace of the owner that new values were loaded. Nothing
+	 * is told if the owner is not in a workspace.
+	 */
+	private void fireVariablesLoaded() {
+		WabitWorkspace workspace = WabitUtils.getWorkspace(owner);
+		if (workspace != null) {
+			workspace.fireVariablesLoaded(this);
+		}
+	}
+}
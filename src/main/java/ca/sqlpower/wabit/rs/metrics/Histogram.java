@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2010, SQL Power Group Inc.
+ *
+ * This file is part of Wabit.
+ *
+ * Wabit is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wabit is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ca.sqlpower.wabit.rs.metrics;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * Counts durations in buckets that double in size, from under a millisecond
+ * to over half an hour. This keeps a fixed amount of memory no matter how
+ * many durations are recorded while still telling how they are distributed.
+ */
+@ThreadSafe
+public class Histogram {
+
+	/**
+	 * Bucket i counts the durations of less than 2^i milliseconds that did not
+	 * fit in a smaller bucket. The last bucket counts everything longer.
+	 */
+	private static final int BUCKET_COUNT = 22;
+
+	@GuardedBy("this")
+	private final long[] buckets = new long[BUCKET_COUNT];
+
+	@GuardedBy("this")
+	private long count;
+
+	@GuardedBy("this")
+	private long totalNanos;
+
+	@GuardedBy("this")
+	private long maxNanos;
+
+	public synchronized void record(long nanos) {
+		long millis = nanos / 1000000;
+		int bucket = 0;
+		while (bucket < BUCKET_COUNT - 1 && millis >= (1L << bucket)) {
+			bucket++;
+		}
+		buckets[bucket]++;
+		count++;
+		totalNanos += nanos;
+		maxNanos = Math.max(maxNanos, nanos);
+	}
+
+	public synchronized long getCount() {
+		return count;
+	}
+
+	public synchronized double getMeanMillis() {
+		if (count == 0) return 0;
+		return totalNanos / 1000000.0 / count;
+	}
+
+	public synchronized double getMaxMillis() {
+		return maxNanos / 1000000.0;
+	}
+
+	public synchronized double getTotalMillis() {
+		return totalNanos / 1000000.0;
+	}
+
+	/**
+	 * Returns the duration under which the given fraction of the recorded
+	 * durations fall, rounded up to the limit of its bucket but never more
+	 * than the longest duration recorded.
+	 *
+	 * @param fraction
+	 *            A number between 0 and 1, 0.95 for the 95th percentile.
+	 */
+	public synchronized double getPercentileMillis(double fraction) {
+		if (count == 0) return 0;
+		long rank = (long) Math.ceil(fraction * count);
+		long seen = 0;
+		for (int i = 0; i < BUCKET_COUNT - 1; i++) {
+			seen += buckets[i];
+			if (seen >= rank) {
+				return Math.min(1L << i, getMaxMillis());
+			}
+		}
+		return getMaxMillis();
+	}
+
+	public synchronized void reset() {
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			buckets[i] = 0;
+		}
+		count = 0;
+		totalNanos = 0;
+		maxNanos = 0;
+	}
+}
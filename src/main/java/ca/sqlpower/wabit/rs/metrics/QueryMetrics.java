@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2010, SQL Power Group Inc.
+ *
+ * This file is part of Wabit.
+ *
+ * Wabit is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wabit is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ca.sqlpower.wabit.rs.metrics;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.annotation.Nonnull;
+
+import org.apache.log4j.Logger;
+
+import ca.sqlpower.wabit.rs.ResultSetHandle;
+
+/**
+ * The tracers every {@link ResultSetHandle} reports its executions to. By
+ * default these are a {@link QueryMetricsRegistry}, exposed over JMX unless
+ * the <code>ca.sqlpower.wabit.rs.metrics.jmx</code> system property is
+ * false, and a {@link SlowQueryLog}.
+ */
+public class QueryMetrics {
+
+	private static final Logger logger = Logger.getLogger(QueryMetrics.class);
+
+	/**
+	 * The system property that turns the JMX exposure of the default registry
+	 * off when set to false.
+	 */
+	public static final String JMX_PROPERTY = "ca.sqlpower.wabit.rs.metrics.jmx";
+
+	private static final QueryMetricsRegistry registry;
+
+	private static final List<QueryTracer> tracers = new CopyOnWriteArrayList<QueryTracer>();
+
+	static {
+		if (Boolean.valueOf(System.getProperty(JMX_PROPERTY, "true"))) {
+			registry = QueryMetricsRegistry.createWithPlatformMBeanServer();
+		} else {
+			registry = new QueryMetricsRegistry();
+		}
+		tracers.add(registry);
+		tracers.add(new SlowQueryLog());
+	}
+
+	private QueryMetrics() {
+		// static access only
+	}
+
+	/**
+	 * Returns the registry that keeps the statistics of every query executed
+	 * in this JVM.
+	 */
+	public static QueryMetricsRegistry getRegistry() {
+		return registry;
+	}
+
+	public static void addTracer(@Nonnull QueryTracer tracer) {
+		tracers.add(tracer);
+	}
+
+	public static void removeTracer(QueryTracer tracer) {
+		tracers.remove(tracer);
+	}
+
+	/**
+	 * Hands the given finished trace to every tracer. A tracer that fails is
+	 * logged and does not keep the others from seeing the trace.
+	 */
+	public static void executionFinished(@Nonnull QueryTrace trace) {
+		for (QueryTracer tracer : tracers) {
+			try {
+				tracer.executionFinished(trace);
+			} catch (RuntimeException e) {
+				logger.error("Query tracer " + tracer + " failed", e);
+			}
+		}
+	}
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 2010, SQL Power Group Inc.
+ *
+ * This file is part of Wabit.
+ *
+ * Wabit is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wabit is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ca.sqlpower.wabit.rs.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import net.jcip.annotations.ThreadSafe;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Keeps the {@link QueryStatistics} of every data source and every query
+ * object that executed a query in this JVM. The statistics of the query
+ * objects are kept by their UUID, or by their name for queries that do not
+ * know the UUID of the object executing them, until the object is removed.
+ * When JMX is enabled the statistics are registered with the platform MBean
+ * server as <code>ca.sqlpower.wabit:type=DataSourceQueries,name=...</code>
+ * and <code>ca.sqlpower.wabit:type=ProducerQueries,name=...,uuid=...</code>
+ * as they are created.
+ */
+@ThreadSafe
+public class QueryMetricsRegistry implements QueryTracer {
+
+	private static final Logger logger = Logger.getLogger(QueryMetricsRegistry.class);
+
+	/**
+	 * The name used for queries whose data source or producer is not known.
+	 */
+	public static final String UNKNOWN = "(unknown)";
+
+	private final ConcurrentMap<String, QueryStatistics> dataSources =
+		new ConcurrentHashMap<String, QueryStatistics>();
+
+	private final ConcurrentMap<String, QueryStatistics> producers =
+		new ConcurrentHashMap<String, QueryStatistics>();
+
+	/**
+	 * The names the statistics in {@link #producers} are registered under
+	 * with the MBean server, by the same keys.
+	 */
+	private final ConcurrentMap<String, ObjectName> producerMBeanNames =
+		new ConcurrentHashMap<String, ObjectName>();
+
+	/**
+	 * The server to register the statistics with, or null if they are not
+	 * exposed over JMX.
+	 */
+	private final MBeanServer mbeanServer;
+
+	/**
+	 * Creates a registry that does not expose its statistics over JMX.
+	 */
+	public QueryMetricsRegistry() {
+		this(null);
+	}
+
+	/**
+	 * Creates a registry that registers its statistics with the given server.
+	 *
+	 * @param mbeanServer
+	 *            The server to register the statistics with. If null they are
+	 *            not exposed over JMX.
+	 */
+	public QueryMetricsRegistry(@Nullable MBeanServer mbeanServer) {
+		this.mbeanServer = mbeanServer;
+	}
+
+	/**
+	 * Creates a registry that registers its statistics with the platform MBean
+	 * server.
+	 */
+	public static QueryMetricsRegistry createWithPlatformMBeanServer() {
+		return new QueryMetricsRegistry(ManagementFactory.getPlatformMBeanServer());
+	}
+
+	public void executionFinished(@Nonnull QueryTrace trace) {
+		getStatistics(dataSources, null, "DataSourceQueries", trace.getDataSourceName(), null).record(trace);
+		getStatistics(producers, producerMBeanNames, "ProducerQueries", 
+				trace.getProducerName(), trace.getProducerUUID()).record(trace);
+	}
+
+	/**
+	 * Drops the statistics of the query object with the given UUID and
+	 * removes them from the MBean server. This is called when the object is
+	 * removed so the statistics of removed objects do not pile up.
+	 */
+	public void removeProducer(@Nonnull String producerUUID) {
+		producers.remove(producerUUID);
+		ObjectName mbeanName = producerMBeanNames.remove(producerUUID);
+		if (mbeanServer != null && mbeanName != null) {
+			try {
+				mbeanServer.unregisterMBean(mbeanName);
+			} catch (JMException e) {
+				logger.warn("Could not remove the query statistics " + mbeanName + " from JMX", e);
+			}
+		}
+	}
+
+	/**
+	 * Returns the statistics of the data source with the given name, or null
+	 * if no query ran on it.
+	 */
+	@Nullable
+	public QueryStatistics getDataSourceStatistics(@Nonnull String dataSourceName) {
+		return dataSources.get(dataSourceName);
+	}
+
+	/**
+	 * Returns the statistics of the query object with the given UUID, or null
+	 * if it did not execute a query. The statistics of queries that did not
+	 * know the UUID of the object executing them are returned by its name.
+	 */
+	@Nullable
+	public QueryStatistics getProducerStatistics(@Nonnull String producerUUID) {
+		return producers.get(producerUUID);
+	}
+
+	/**
+	 * Returns the statistics of every data source, sorted by name.
+	 */
+	public Map<String, QueryStatistics> getDataSourceStatistics() {
+		return Collections.unmodifiableMap(new TreeMap<String, QueryStatistics>(dataSources));
+	}
+
+	/**
+	 * Returns the statistics of every query object, sorted by UUID.
+	 */
+	public Map<String, QueryStatistics> getProducerStatistics() {
+		return Collections.unmodifiableMap(new TreeMap<String, QueryStatistics>(producers));
+	}
+
+	/**
+	 * Returns the statistics kept under the given UUID, or under the given
+	 * name if the UUID is null, creating and registering them if there are
+	 * none yet.
+	 * 
+	 * @param mbeanNames
+	 *            Where the names the statistics are registered under are kept
+	 *            so they can be unregistered, or null if they are never
+	 *            unregistered.
+	 */
+	private QueryStatistics getStatistics(ConcurrentMap<String, QueryStatistics> statistics,
+			@Nullable ConcurrentMap<String, ObjectName> mbeanNames,
+			String type, @Nullable String name, @Nullable String uuid) {
+		if (name == null) {
+			name = UNKNOWN;
+		}
+		String key = uuid != null ? uuid : name;
+		QueryStatistics existing = statistics.get(key);
+		if (existing != null) return existing;
+
+		QueryStatistics created = new QueryStatistics(name);
+		existing = statistics.putIfAbsent(key, created);
+		if (existing != null) return existing;
+
+		if (mbeanServer != null) {
+			try {
+				ObjectName mbeanName = new ObjectName("ca.sqlpower.wabit:type=" + type +
+						",name=" + ObjectName.quote(name) + 
+						(uuid != null ? ",uuid=" + ObjectName.quote(uuid) : ""));
+				mbeanServer.registerMBean(created, mbeanName);
+				if (mbeanNames != null) {
+					mbeanNames.put(key, mbeanName);
+				}
+			} catch (JMException e) {
+				logger.warn("Could not expose the query statistics of " + name + " over JMX", e);
+			}
+		}
+		return created;
+	}
+}
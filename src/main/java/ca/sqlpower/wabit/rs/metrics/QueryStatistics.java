@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2010, SQL Power Group Inc.
+ *
+ * This file is part of Wabit.
+ *
+ * Wabit is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wabit is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ca.sqlpower.wabit.rs.metrics;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import ca.sqlpower.wabit.rs.metrics.QueryTrace.Outcome;
+import ca.sqlpower.wabit.rs.metrics.QueryTrace.Phase;
+
+/**
+ * The statistics of every query executed on one data source or by one query
+ * object: how many ran, how they ended, how many rows they returned, and how
+ * long each phase of their execution took.
+ */
+@ThreadSafe
+public class QueryStatistics implements QueryStatisticsMBean {
+
+	private final String name;
+
+	private final AtomicLong errorCount = new AtomicLong();
+
+	private final AtomicLong cancelledCount = new AtomicLong();
+
+	private final AtomicLong rowCount = new AtomicLong();
+
+	private final Histogram total = new Histogram();
+
+	private final Map<Phase, Histogram> phases = new EnumMap<Phase, Histogram>(Phase.class);
+
+	@GuardedBy("this")
+	private QueryTrace slowest;
+
+	public QueryStatistics(@Nonnull String name) {
+		this.name = name;
+		for (Phase phase : Phase.values()) {
+			phases.put(phase, new Histogram());
+		}
+	}
+
+	/**
+	 * Adds the given execution to these statistics.
+	 */
+	public void record(@Nonnull QueryTrace trace) {
+		total.record(trace.getTotalNanos());
+		for (Phase phase : Phase.values()) {
+			phases.get(phase).record(trace.getNanos(phase));
+		}
+		rowCount.addAndGet(trace.getRowCount());
+		if (trace.getOutcome() == Outcome.ERROR) {
+			errorCount.incrementAndGet();
+		} else if (trace.getOutcome() == Outcome.CANCELLED) {
+			cancelledCount.incrementAndGet();
+		}
+		synchronized (this) {
+			if (slowest == null || slowest.getTotalNanos() < trace.getTotalNanos()) {
+				slowest = trace;
+			}
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Returns the distribution of the total time of the executions.
+	 */
+	public Histogram getHistogram() {
+		return total;
+	}
+
+	/**
+	 * Returns the distribution of the time the executions spent in the given
+	 * phase.
+	 */
+	public Histogram getHistogram(@Nonnull Phase phase) {
+		return phases.get(phase);
+	}
+
+	public long getExecutionCount() {
+		return total.getCount();
+	}
+
+	public long getErrorCount() {
+		return errorCount.get();
+	}
+
+	public long getCancelledCount() {
+		return cancelledCount.get();
+	}
+
+	public long getRowCount() {
+		return rowCount.get();
+	}
+
+	public double getMeanMillis() {
+		return total.getMeanMillis();
+	}
+
+	public double getMaxMillis() {
+		return total.getMaxMillis();
+	}
+
+	public double get95thPercentileMillis() {
+		return total.getPercentileMillis(0.95);
+	}
+
+	public double getMeanQueueMillis() {
+		return phases.get(Phase.QUEUE).getMeanMillis();
+	}
+
+	public double getMeanPrepareMillis() {
+		return phases.get(Phase.PREPARE).getMeanMillis();
+	}
+
+	public double getMeanExecuteMillis() {
+		return phases.get(Phase.EXECUTE).getMeanMillis();
+	}
+
+	public double getMeanFetchMillis() {
+		return phases.get(Phase.FETCH).getMeanMillis();
+	}
+
+	public synchronized String getSlowestExecution() {
+		return slowest == null ? null : slowest.toString();
+	}
+
+	public void reset() {
+		total.reset();
+		for (Histogram histogram : phases.values()) {
+			histogram.reset();
+		}
+		errorCount.set(0);
+		cancelledCount.set(0);
+		rowCount.set(0);
+		synchronized (this) {
+			slowest = null;
+		}
+	}
+}
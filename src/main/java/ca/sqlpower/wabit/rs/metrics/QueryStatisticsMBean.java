@@ -0,0 +1,58 @@
+/*
+ * Copyright (c) 2010, SQL Power Group Inc.
+ *
+ * This file is part of Wabit.
+ *
+ * Wabit is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wabit is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ca.sqlpower.wabit.rs.metrics;
+
+/**
+ * The management interface of {@link QueryStatistics}, which exposes the
+ * statistics of a data source or a query over JMX.
+ */
+public interface QueryStatisticsMBean {
+
+	String getName();
+
+	long getExecutionCount();
+
+	long getErrorCount();
+
+	long getCancelledCount();
+
+	long getRowCount();
+
+	double getMeanMillis();
+
+	double getMaxMillis();
+
+	double get95thPercentileMillis();
+
+	double getMeanQueueMillis();
+
+	double getMeanPrepareMillis();
+
+	double getMeanExecuteMillis();
+
+	double getMeanFetchMillis();
+
+	/**
+	 * Returns a description of the slowest execution recorded.
+	 */
+	String getSlowestExecution();
+
+	void reset();
+}
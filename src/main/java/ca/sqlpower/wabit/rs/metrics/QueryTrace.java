@@ -0,0 +1,242 @@
+/*
+ * Copyright (c) 2010, SQL Power Group Inc.
+ *
+ * This file is part of Wabit.
+ *
+ * Wabit is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wabit is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ca.sqlpower.wabit.rs.metrics;
+
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import ca.sqlpower.wabit.rs.ResultSetHandle;
+import ca.sqlpower.wabit.rs.ResultSetHandle.ResultSetType;
+
+/**
+ * The record of one execution of a query by a {@link ResultSetHandle}. The
+ * handle marks the end of each {@link Phase} of the execution as it goes and
+ * hands the finished trace to the {@link QueryTracer}s registered with
+ * {@link QueryMetrics}.
+ * <p>
+ * A trace is only modified by the thread executing the query. Tracers are
+ * given the trace once it is finished and must not modify it.
+ */
+public class QueryTrace {
+
+	/**
+	 * The parts of a query's execution that are timed.
+	 */
+	public enum Phase {
+
+		/**
+		 * From the time the query was submitted until a thread started
+		 * executing it.
+		 */
+		QUEUE,
+
+		/**
+		 * Getting a connection from the data source and preparing the
+		 * statement, or finding a cached OLAP result.
+		 */
+		PREPARE,
+
+		/**
+		 * Executing the statement in the database.
+		 */
+		EXECUTE,
+
+		/**
+		 * Reading the results from the database. For streaming queries this
+		 * lasts until the stream stops.
+		 */
+		FETCH
+	}
+
+	public enum Outcome {
+		SUCCESS,
+		ERROR,
+		CANCELLED
+	}
+
+	private final String dataSourceName;
+
+	private final String producerUUID;
+
+	private final String producerName;
+
+	private final String query;
+
+	private final ResultSetType type;
+
+	private final Date submitted = new Date();
+
+	private final Map<Phase, Long> phaseNanos = new EnumMap<Phase, Long>(Phase.class);
+
+	/**
+	 * The time the last phase ended, or the query was submitted.
+	 */
+	private long lastMark = System.nanoTime();
+
+	private long totalNanos;
+
+	private int rowCount;
+
+	private Outcome outcome;
+
+	private Throwable exception;
+
+	private volatile boolean cancelled;
+
+	public QueryTrace(@Nullable String dataSourceName, @Nullable String producerName,
+			@Nonnull String query, @Nonnull ResultSetType type) {
+		this(dataSourceName, null, producerName, query, type);
+	}
+
+	public QueryTrace(@Nullable String dataSourceName, @Nullable String producerUUID,
+			@Nullable String producerName, @Nonnull String query, @Nonnull ResultSetType type) {
+		this.dataSourceName = dataSourceName;
+		this.producerUUID = producerUUID;
+		this.producerName = producerName;
+		this.query = query;
+		this.type = type;
+	}
+
+	/**
+	 * Records that the given phase ended now. The phase lasted from the end of
+	 * the last phase, or from the time the query was submitted.
+	 */
+	public void mark(@Nonnull Phase phase) {
+		long now = System.nanoTime();
+		Long previous = phaseNanos.get(phase);
+		phaseNanos.put(phase, (previous == null ? 0 : previous.longValue()) + now - lastMark);
+		totalNanos += now - lastMark;
+		lastMark = now;
+	}
+
+	/**
+	 * Records that the query was cancelled. This can be called from any
+	 * thread.
+	 */
+	public void cancelled() {
+		cancelled = true;
+	}
+
+	/**
+	 * Records the outcome of the execution. If the query was cancelled the
+	 * outcome is {@link Outcome#CANCELLED} regardless of how it ended.
+	 */
+	public void finish(int rowCount, @Nullable Throwable exception) {
+		this.rowCount = rowCount;
+		this.exception = exception;
+		if (cancelled) {
+			outcome = Outcome.CANCELLED;
+		} else if (exception != null) {
+			outcome = Outcome.ERROR;
+		} else {
+			outcome = Outcome.SUCCESS;
+		}
+	}
+
+	/**
+	 * Returns the name of the data source the query ran on, or null if it is
+	 * not known.
+	 */
+	@Nullable
+	public String getDataSourceName() {
+		return dataSourceName;
+	}
+
+	/**
+	 * Returns the UUID of the query or report object that executed the query,
+	 * or null if it is not known.
+	 */
+	@Nullable
+	public String getProducerUUID() {
+		return producerUUID;
+	}
+
+	/**
+	 * Returns the name of the query or report object that executed the query,
+	 * or null if it is not known.
+	 */
+	@Nullable
+	public String getProducerName() {
+		return producerName;
+	}
+
+	public String getQuery() {
+		return query;
+	}
+
+	public ResultSetType getType() {
+		return type;
+	}
+
+	public Date getSubmitted() {
+		return submitted;
+	}
+
+	/**
+	 * Returns the nanoseconds spent in the given phase, or 0 if the phase was
+	 * not reached.
+	 */
+	public long getNanos(@Nonnull Phase phase) {
+		Long nanos = phaseNanos.get(phase);
+		return nanos == null ? 0 : nanos.longValue();
+	}
+
+	/**
+	 * Returns the nanoseconds from the time the query was submitted to the
+	 * end of its last phase.
+	 */
+	public long getTotalNanos() {
+		return totalNanos;
+	}
+
+	public int getRowCount() {
+		return rowCount;
+	}
+
+	/**
+	 * Returns how the execution ended, or null if it has not ended yet.
+	 */
+	@Nullable
+	public Outcome getOutcome() {
+		return outcome;
+	}
+
+	@Nullable
+	public Throwable getException() {
+		return exception;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(outcome).append(" in ").append(totalNanos / 1000000).append(" ms (");
+		for (Phase phase : Phase.values()) {
+			if (phase.ordinal() > 0) sb.append(", ");
+			sb.append(phase.name().toLowerCase()).append(" ").append(getNanos(phase) / 1000000).append(" ms");
+		}
+		sb.append("), ").append(rowCount).append(" rows, data source ").append(dataSourceName);
+		sb.append(", producer ").append(producerName).append(": ").append(query);
+		return sb.toString();
+	}
+}
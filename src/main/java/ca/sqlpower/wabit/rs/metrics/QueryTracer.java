@@ -0,0 +1,36 @@
+/*
+ * Copyright (c) 2010, SQL Power Group Inc.
+ *
+ * This file is part of Wabit.
+ *
+ * Wabit is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wabit is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ca.sqlpower.wabit.rs.metrics;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Receives the trace of every query execution. Tracers are registered with
+ * {@link QueryMetrics#addTracer(QueryTracer)}.
+ */
+public interface QueryTracer {
+
+	/**
+	 * Called on the thread that executed the query once the execution ended,
+	 * successfully or not. This must return quickly as it delays the
+	 * notification that the results are ready.
+	 */
+	void executionFinished(@Nonnull QueryTrace trace);
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2010, SQL Power Group Inc.
+ *
+ * This file is part of Wabit.
+ *
+ * Wabit is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wabit is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ca.sqlpower.wabit.rs.metrics;
+
+import javax.annotation.Nonnull;
+
+import net.jcip.annotations.Immutable;
+
+import org.apache.log4j.Logger;
+
+import ca.sqlpower.wabit.rs.ResultSetHandle.ResultSetType;
+import ca.sqlpower.wabit.rs.metrics.QueryTrace.Outcome;
+import ca.sqlpower.wabit.rs.metrics.QueryTrace.Phase;
+
+/**
+ * Logs every query that took longer than a threshold, along with the time it
+ * spent in each phase, to the <code>ca.sqlpower.wabit.rs.metrics.SlowQueryLog</code>
+ * log4j category. Cancelled queries are not logged. The fetch phase of a
+ * streaming query lasts for as long as the stream is followed, so it is not
+ * counted against the threshold.
+ */
+@Immutable
+public class SlowQueryLog implements QueryTracer {
+
+	private static final Logger logger = Logger.getLogger(SlowQueryLog.class);
+
+	/**
+	 * The system property that sets the threshold of the default slow query
+	 * log, in milliseconds.
+	 */
+	public static final String THRESHOLD_PROPERTY = "ca.sqlpower.wabit.rs.metrics.slowQueryMillis";
+
+	/**
+	 * The threshold used when the system property is not set.
+	 */
+	public static final long DEFAULT_THRESHOLD_MILLIS = 5000;
+
+	private final long thresholdNanos;
+
+	/**
+	 * Creates a log of the queries taking longer than the threshold given by
+	 * the {@link #THRESHOLD_PROPERTY} system property.
+	 */
+	public SlowQueryLog() {
+		this(Long.getLong(THRESHOLD_PROPERTY, DEFAULT_THRESHOLD_MILLIS));
+	}
+
+	public SlowQueryLog(long thresholdMillis) {
+		this.thresholdNanos = thresholdMillis * 1000000;
+	}
+
+	public void executionFinished(@Nonnull QueryTrace trace) {
+		if (trace.getOutcome() == Outcome.CANCELLED) return;
+		long nanos = trace.getTotalNanos();
+		if (trace.getType() == ResultSetType.STREAMING) {
+			nanos -= trace.getNanos(Phase.FETCH);
+		}
+		if (nanos >= thresholdNanos) {
+			logger.warn("Slow query: " + trace);
+		}
+	}
+}
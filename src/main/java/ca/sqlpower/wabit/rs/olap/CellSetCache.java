@@ -0,0 +1,441 @@
+/*
+ * Copyright (c) 2010, SQL Power Group Inc.
+ *
+ * This file is part of Wabit.
+ *
+ * Wabit is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wabit is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ca.sqlpower.wabit.rs.olap;
+
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import org.apache.log4j.Logger;
+import org.olap4j.CellSet;
+import org.olap4j.CellSetAxis;
+import org.olap4j.CellSetMetaData;
+import org.olap4j.OlapException;
+import org.olap4j.metadata.Cube;
+
+import ca.sqlpower.object.SPVariableHelper;
+import ca.sqlpower.sql.Olap4jDataSource;
+
+/**
+ * A cache of evaluated {@link CellSet}s for a single {@link Olap4jDataSource}.
+ * Entries are keyed by the normalized text of the MDX query after its
+ * variables have been substituted, so two queries that only differ in their
+ * whitespace or that resolve to the same variable bindings share an entry.
+ * This lets drill-down, drill-up and undo navigation in the OLAP editor, and
+ * renderers that display the same query, reuse a previous result instead of
+ * evaluating the same MDX against the server again.
+ * <p>
+ * The cache is bounded by the estimated number of cells it holds (the product
+ * of the position counts of every axis of each cell set). The least recently
+ * used entries are evicted first. Entries are also dropped when the statement
+ * they were evaluated by was closed, which happens when the connection of the
+ * data source is replaced because its schema is reloaded, and they can be
+ * dropped explicitly per cube with {@link #invalidate(Cube)}. Changes made to
+ * a cube on the server while the connection stays open are not detected.
+ * <p>
+ * Closing a statement closes its cell set, so the cache owns the statements
+ * of the cell sets it holds. The objects a cell set was given to, typically
+ * the {@link ca.sqlpower.wabit.rs.ResultSetHandle}s whose renderers display
+ * it, are remembered as its holders without keeping them from being garbage
+ * collected. The statement of a removed entry is only closed once none of
+ * its holders is left, which is checked whenever the cache is used.
+ */
+@ThreadSafe
+public class CellSetCache {
+
+	private static final Logger logger = Logger.getLogger(CellSetCache.class);
+
+	/**
+	 * The default maximum number of cells each data source's cache will hold
+	 * before evicting entries.
+	 */
+	public static final long DEFAULT_MAX_CELLS = 1000000;
+
+	/**
+	 * One cache per data source. This is weak on the data source so caches go
+	 * away along with the data sources they were created for.
+	 */
+	@GuardedBy("caches")
+	private static final Map<Olap4jDataSource, CellSetCache> caches =
+		new WeakHashMap<Olap4jDataSource, CellSetCache>();
+
+	/**
+	 * Returns the cache shared by all queries on the given data source,
+	 * creating it if necessary.
+	 */
+	public static CellSetCache getCache(@Nonnull Olap4jDataSource dataSource) {
+		synchronized (caches) {
+			CellSetCache cache = caches.get(dataSource);
+			if (cache == null) {
+				cache = new CellSetCache(DEFAULT_MAX_CELLS);
+				caches.put(dataSource, cache);
+			}
+			return cache;
+		}
+	}
+
+	/**
+	 * Builds the key a query will be cached under. The variables in the query
+	 * are substituted first so different variable bindings result in
+	 * different entries, then the whitespace outside of quoted strings and
+	 * bracketed identifiers is collapsed.
+	 *
+	 * @param mdx
+	 *            The MDX text, which may contain variables.
+	 * @param variablesContext
+	 *            The variables to resolve the query with. If null the
+	 *            variables are left as they are.
+	 */
+	public static String createKey(@Nonnull String mdx, @Nullable SPVariableHelper variablesContext) {
+		String resolved = mdx;
+		if (variablesContext != null) {
+			resolved = SPVariableHelper.substitute(mdx, variablesContext);
+		}
+		return normalize(resolved);
+	}
+
+	/**
+	 * Collapses runs of whitespace into a single space and trims the given
+	 * MDX. Whitespace inside quotes or square-bracketed identifiers is left
+	 * as is since it is significant there.
+	 */
+	static String normalize(@Nonnull String mdx) {
+		StringBuilder sb = new StringBuilder(mdx.length());
+		char closing = 0;
+		boolean pendingSpace = false;
+		for (int i = 0; i < mdx.length(); i++) {
+			char c = mdx.charAt(i);
+			if (closing != 0) {
+				sb.append(c);
+				if (c == closing) {
+					closing = 0;
+				}
+			} else if (Character.isWhitespace(c)) {
+				pendingSpace = sb.length() > 0;
+			} else {
+				if (pendingSpace) {
+					sb.append(' ');
+					pendingSpace = false;
+				}
+				if (c == '[') {
+					closing = ']';
+				} else if (c == '"' || c == '\'') {
+					closing = c;
+				}
+				sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Returns the number of cells in the given cell set, or 1 if it has no
+	 * axes (a single cell is still returned in that case).
+	 */
+	static long estimateCellCount(@Nonnull CellSet cellSet) {
+		long cells = 1;
+		for (CellSetAxis axis : cellSet.getAxes()) {
+			cells *= Math.max(1, axis.getPositionCount());
+		}
+		return cells;
+	}
+
+	/**
+	 * A cached cell set, the statement that produced it and the information
+	 * needed to decide if it is stale.
+	 */
+	private static class Entry {
+		private final CellSet cellSet;
+		private final Statement statement;
+		private final String cubeName;
+		private final long cellCount;
+
+		/**
+		 * The objects the cell set was given to that were not garbage
+		 * collected yet. Guarded by the cache the entry is in.
+		 */
+		private final Set<Object> holders = 
+			Collections.newSetFromMap(new WeakHashMap<Object, Boolean>());
+
+		Entry(CellSet cellSet, Statement statement, String cubeName, long cellCount) {
+			this.cellSet = cellSet;
+			this.statement = statement;
+			this.cubeName = cubeName;
+			this.cellCount = cellCount;
+		}
+	}
+
+	/**
+	 * The cached entries in least recently accessed order.
+	 */
+	@GuardedBy("this")
+	private final LinkedHashMap<String, Entry> entries =
+		new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+	@GuardedBy("this")
+	private long cellCount = 0;
+
+	/**
+	 * The entries that were removed while their cell set still had holders.
+	 * Their statements are closed once the holders are gone.
+	 */
+	@GuardedBy("this")
+	private final List<Entry> retired = new ArrayList<Entry>();
+
+	private final long maxCells;
+
+	/**
+	 * Creates a new cache that will hold at most the given number of cells.
+	 * Most code should use {@link #getCache(Olap4jDataSource)} instead so the
+	 * cache is shared by every query on the data source.
+	 */
+	public CellSetCache(long maxCells) {
+		this.maxCells = maxCells;
+	}
+
+	/**
+	 * Returns the cell set cached under the given key, or null if there is
+	 * none or if the statement that evaluated it was closed.
+	 *
+	 * @param key
+	 *            A key created by {@link #createKey(String, SPVariableHelper)}.
+	 */
+	public CellSet get(@Nonnull String key) {
+		return get(key, null);
+	}
+
+	/**
+	 * Returns the cell set cached under the given key like
+	 * {@link #get(String)}, remembering the given object as one of its
+	 * holders so its statement stays open for as long as the holder exists.
+	 */
+	public CellSet get(@Nonnull String key, @Nullable Object holder) {
+		List<Statement> removed = new ArrayList<Statement>();
+		try {
+			synchronized (this) {
+				closeReleased(removed);
+				Entry entry = entries.get(key);
+				if (entry == null) return null;
+				if (isClosed(entry.statement)) {
+					logger.debug("Discarding stale cell set for " + key);
+					remove(key, removed);
+					return null;
+				}
+				if (holder != null) {
+					entry.holders.add(holder);
+				}
+				return entry.cellSet;
+			}
+		} finally {
+			closeAll(removed);
+		}
+	}
+
+	/**
+	 * Stores the given cell set under the given key. Least recently used
+	 * entries are evicted until the cache fits within its maximum cell count.
+	 * Cell sets larger than the whole cache are not stored.
+	 * 
+	 * @param statement
+	 *            The statement that evaluated the cell set. If the cell set is
+	 *            stored the cache closes the statement once the entry is
+	 *            removed and has no holders, otherwise the caller still has to
+	 *            close it.
+	 * @return True if the cell set was stored.
+	 */
+	public boolean put(@Nonnull String key, @Nonnull CellSet cellSet, 
+			@Nullable Statement statement) {
+		return put(key, cellSet, statement, null);
+	}
+
+	/**
+	 * Stores the given cell set like {@link #put(String, CellSet, Statement)},
+	 * remembering the given object as one of its holders.
+	 */
+	public boolean put(@Nonnull String key, @Nonnull CellSet cellSet, 
+			@Nullable Statement statement, @Nullable Object holder) {
+		List<Statement> removed = new ArrayList<Statement>();
+		try {
+			synchronized (this) {
+				closeReleased(removed);
+				return put(key, cellSet, statement, holder, removed);
+			}
+		} finally {
+			closeAll(removed);
+		}
+	}
+
+	@GuardedBy("this")
+	private boolean put(String key, CellSet cellSet, Statement statement, Object holder, 
+			List<Statement> removed) {
+		long cells = estimateCellCount(cellSet);
+		remove(key, removed);
+		if (cells > maxCells) return false;
+
+		String cubeName = null;
+		try {
+			CellSetMetaData metaData = cellSet.getMetaData();
+			if (metaData != null) {
+				cubeName = metaData.getCube().getUniqueName();
+			}
+		} catch (OlapException e) {
+			logger.debug("Could not find the cube of a cell set, it will only " +
+					"be invalidated when the connection changes", e);
+		}
+		Entry entry = new Entry(cellSet, statement, cubeName, cells);
+		if (holder != null) {
+			entry.holders.add(holder);
+		}
+		entries.put(key, entry);
+		cellCount += cells;
+
+		Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+		while (cellCount > maxCells && it.hasNext()) {
+			Entry eldest = it.next().getValue();
+			it.remove();
+			cellCount -= eldest.cellCount;
+			retire(eldest, removed);
+		}
+		return true;
+	}
+
+	/**
+	 * Removes every cell set that was evaluated against the given cube.
+	 */
+	public void invalidate(@Nonnull Cube cube) {
+		String cubeName = cube.getUniqueName();
+		List<Statement> removed = new ArrayList<Statement>();
+		synchronized (this) {
+			closeReleased(removed);
+			for (Iterator<Entry> it = entries.values().iterator(); it.hasNext(); ) {
+				Entry entry = it.next();
+				if (entry.cubeName == null || entry.cubeName.equals(cubeName)) {
+					it.remove();
+					cellCount -= entry.cellCount;
+					retire(entry, removed);
+				}
+			}
+		}
+		closeAll(removed);
+	}
+
+	/**
+	 * Removes every cell set in this cache.
+	 */
+	public void clear() {
+		List<Statement> removed = new ArrayList<Statement>();
+		synchronized (this) {
+			closeReleased(removed);
+			for (Entry entry : entries.values()) {
+				retire(entry, removed);
+			}
+			entries.clear();
+			cellCount = 0;
+		}
+		closeAll(removed);
+	}
+
+	/**
+	 * Returns the estimated number of cells currently held by this cache.
+	 */
+	public synchronized long getCellCount() {
+		return cellCount;
+	}
+
+	/**
+	 * Returns the number of cell sets currently held by this cache.
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	@GuardedBy("this")
+	private void remove(String key, List<Statement> removed) {
+		Entry old = entries.remove(key);
+		if (old != null) {
+			cellCount -= old.cellCount;
+			retire(old, removed);
+		}
+	}
+
+	/**
+	 * Closes the statement of the given entry that was removed from the cache
+	 * if its cell set has no holders, otherwise waits for them to be gone.
+	 */
+	@GuardedBy("this")
+	private void retire(Entry entry, List<Statement> removed) {
+		if (entry.holders.isEmpty()) {
+			removed.add(entry.statement);
+		} else {
+			retired.add(entry);
+		}
+	}
+
+	/**
+	 * Closes the statements of the removed entries whose holders are gone.
+	 */
+	@GuardedBy("this")
+	private void closeReleased(List<Statement> removed) {
+		for (Iterator<Entry> it = retired.iterator(); it.hasNext(); ) {
+			Entry entry = it.next();
+			if (entry.holders.isEmpty()) {
+				it.remove();
+				removed.add(entry.statement);
+			}
+		}
+	}
+
+	private static boolean isClosed(Statement statement) {
+		if (statement == null) return false;
+		try {
+			return statement.isClosed() || statement.getConnection().isClosed();
+		} catch (Exception e) {
+			return true;
+		}
+	}
+
+	/**
+	 * Closes the statements of removed entries. This is done outside of the
+	 * lock of the cache as closing may go to the server.
+	 */
+	private static void closeAll(List<Statement> statements) {
+		for (Statement statement : statements) {
+			if (statement == null) continue;
+			try {
+				statement.close();
+			} catch (SQLException e) {
+				logger.debug("Could not close the statement of a cached cell set", e);
+			}
+		}
+	}
+}
@@ -0,0 +1,284 @@
+/*
+ * Copyright (c) 2010, SQL Power Group Inc.
+ *
+ * This file is part of Wabit.
+ *
+ * Wabit is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wabit is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ca.sqlpower.wabit.rs.olap;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import org.olap4j.OlapException;
+import org.olap4j.metadata.Cube;
+import org.olap4j.metadata.Level;
+import org.olap4j.metadata.Member;
+
+import ca.sqlpower.sql.Olap4jDataSource;
+
+/**
+ * Caches olap4j metadata lookups for a single {@link Olap4jDataSource}.
+ * Fetching metadata such as the members of a level can require a round trip
+ * to the server for XML/A data sources, and olap4j does not cache all of
+ * these lists itself. This cache remembers the children that were loaded for
+ * each metadata object and the members that were looked up by their unique
+ * name so the metadata tree and the queries on the same data source only load
+ * each of them once.
+ * <p>
+ * The cached lists are keyed by the identity of the metadata objects, so
+ * metadata from a new connection to the data source never sees lists loaded
+ * through an old one. The cache is bounded: the least recently used lists
+ * are dropped once more than {@link #DEFAULT_MAX_CHILDREN} children are
+ * cached, a list holding more than half of that is not cached at all so one
+ * large level does not push out everything else, and members are only
+ * remembered for the most recently used cubes.
+ * <p>
+ * olap4j has no way to load part of the members of a level, so the members
+ * of a level or member are always loaded all at once.
+ * Call {@link #clear()} to release everything that was loaded.
+ */
+@ThreadSafe
+public class OlapMetadataCache {
+
+	/**
+	 * One cache per data source. This is weak on the data source so caches go
+	 * away along with the data sources they were created for.
+	 */
+	@GuardedBy("caches")
+	private static final Map<Olap4jDataSource, OlapMetadataCache> caches =
+		new WeakHashMap<Olap4jDataSource, OlapMetadataCache>();
+
+	/**
+	 * Returns the cache shared by everything that reads metadata from the given
+	 * data source, creating it if necessary.
+	 */
+	public static OlapMetadataCache getCache(@Nonnull Olap4jDataSource dataSource) {
+		synchronized (caches) {
+			OlapMetadataCache cache = caches.get(dataSource);
+			if (cache == null) {
+				cache = new OlapMetadataCache();
+				caches.put(dataSource, cache);
+			}
+			return cache;
+		}
+	}
+
+	/**
+	 * The default number of children the cache holds, counted over all of
+	 * the cached lists.
+	 */
+	public static final int DEFAULT_MAX_CHILDREN = 200000;
+
+	/**
+	 * The number of cubes whose members looked up by name are remembered.
+	 */
+	static final int MAX_CUBES = 16;
+
+	/**
+	 * The number of members looked up by name remembered for each cube.
+	 */
+	static final int MAX_MEMBERS_PER_CUBE = 10000;
+
+	/**
+	 * A key that compares metadata objects by identity.
+	 */
+	private static final class IdentityKey {
+		private final Object object;
+
+		IdentityKey(Object object) {
+			this.object = object;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof IdentityKey && ((IdentityKey) obj).object == object;
+		}
+
+		@Override
+		public int hashCode() {
+			return System.identityHashCode(object);
+		}
+	}
+
+	/**
+	 * The children loaded for each metadata object, least recently used
+	 * first.
+	 */
+	@GuardedBy("this")
+	private final Map<IdentityKey, List<?>> children = 
+		new LinkedHashMap<IdentityKey, List<?>>(16, 0.75f, true);
+
+	/**
+	 * The number of children in all of the lists of {@link #children}.
+	 */
+	@GuardedBy("this")
+	private int childCount = 0;
+
+	private final int maxChildren;
+
+	/**
+	 * The members found by their unique name in each cube, least recently
+	 * used cube first.
+	 */
+	@GuardedBy("this")
+	private final Map<IdentityKey, Map<String, Member>> members =
+		new LinkedHashMap<IdentityKey, Map<String, Member>>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<IdentityKey, Map<String, Member>> eldest) {
+			return size() > MAX_CUBES;
+		}
+	};
+
+	public OlapMetadataCache() {
+		this(DEFAULT_MAX_CHILDREN);
+	}
+
+	/**
+	 * Creates a cache that holds about the given number of children. A list
+	 * longer than half of that is not cached.
+	 */
+	public OlapMetadataCache(int maxChildren) {
+		this.maxChildren = maxChildren;
+	}
+
+	/**
+	 * Returns the children that were stored for the given metadata object, or
+	 * null if they have not been loaded yet.
+	 */
+	@Nullable
+	public synchronized List<?> getChildren(@Nonnull Object parent) {
+		return children.get(new IdentityKey(parent));
+	}
+
+	/**
+	 * Stores the children loaded for the given metadata object. The list is
+	 * stored as an unmodifiable list, which is also what is returned. A list
+	 * holding more than half of the children this cache holds is returned
+	 * without being stored.
+	 */
+	public synchronized List<?> putChildren(@Nonnull Object parent, @Nonnull List<?> loadedChildren) {
+		List<?> unmodifiable = Collections.unmodifiableList(loadedChildren);
+		if (unmodifiable.size() > maxChildren / 2) return unmodifiable;
+		List<?> old = children.put(new IdentityKey(parent), unmodifiable);
+		if (old != null) {
+			childCount -= old.size();
+		}
+		childCount += unmodifiable.size();
+		Iterator<List<?>> it = children.values().iterator();
+		while (childCount > maxChildren && children.size() > 1) {
+			List<?> eldest = it.next();
+			it.remove();
+			childCount -= eldest.size();
+		}
+		return unmodifiable;
+	}
+
+	/**
+	 * Returns the members of the given level, loading them if they were not
+	 * loaded before.
+	 */
+	@SuppressWarnings("unchecked")
+	public List<Member> getMembers(@Nonnull Level level) throws OlapException {
+		List<?> cached = getChildren(level);
+		if (cached == null) {
+			cached = putChildren(level, level.getMembers());
+		}
+		return (List<Member>) cached;
+	}
+
+	/**
+	 * Returns the child members of the given member, loading them if they were
+	 * not loaded before.
+	 */
+	@SuppressWarnings("unchecked")
+	public List<Member> getChildMembers(@Nonnull Member member) throws OlapException {
+		List<?> cached = getChildren(member);
+		if (cached == null) {
+			cached = putChildren(member, member.getChildMembers());
+		}
+		return (List<Member>) cached;
+	}
+
+	/**
+	 * Finds the member with the given unique name in the given cube. Members
+	 * found before are returned without asking the cube again.
+	 *
+	 * @param cube
+	 *            The cube to look the member up in.
+	 * @param uniqueMemberName
+	 *            The unique name of the member in its bracketed form, for
+	 *            example <code>[Store].[USA].[CA]</code>.
+	 * @return The member or null if the cube does not contain it.
+	 */
+	@Nullable
+	public Member lookupMember(@Nonnull Cube cube, @Nonnull String uniqueMemberName) throws OlapException {
+		synchronized (this) {
+			Map<String, Member> cubeMembers = members.get(new IdentityKey(cube));
+			if (cubeMembers != null && cubeMembers.containsKey(uniqueMemberName)) {
+				return cubeMembers.get(uniqueMemberName);
+			}
+		}
+		Member member = cube.lookupMember(splitUniqueName(uniqueMemberName));
+		if (member != null) {
+			synchronized (this) {
+				IdentityKey key = new IdentityKey(cube);
+				Map<String, Member> cubeMembers = members.get(key);
+				if (cubeMembers == null) {
+					cubeMembers = new LinkedHashMap<String, Member>(16, 0.75f, true) {
+						@Override
+						protected boolean removeEldestEntry(Map.Entry<String, Member> eldest) {
+							return size() > MAX_MEMBERS_PER_CUBE;
+						}
+					};
+					members.put(key, cubeMembers);
+				}
+				cubeMembers.put(uniqueMemberName, member);
+			}
+		}
+		return member;
+	}
+
+	/**
+	 * Removes everything loaded through this cache.
+	 */
+	public synchronized void clear() {
+		children.clear();
+		childCount = 0;
+		members.clear();
+	}
+
+	/**
+	 * Splits a unique member name such as <code>[Store].[USA].[CA]</code> into
+	 * its name parts without the brackets.
+	 */
+	static String[] splitUniqueName(@Nonnull String uniqueMemberName) {
+		String[] uniqueMemberNameList = uniqueMemberName.split("\\]\\.\\[");
+		uniqueMemberNameList[0] = uniqueMemberNameList[0].substring(1); //remove starting [ bracket
+		final int lastMemberNamePosition = uniqueMemberNameList.length - 1;
+		uniqueMemberNameList[lastMemberNamePosition] = uniqueMemberNameList[lastMemberNamePosition].substring(0, uniqueMemberNameList[lastMemberNamePosition].length() - 1); //remove ending ] bracket
+		return uniqueMemberNameList;
+	}
+}
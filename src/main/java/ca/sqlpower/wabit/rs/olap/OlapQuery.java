@@ -19,26 +19,27 @@
 
 package ca.sqlpower.wabit.rs.olap;
 
-import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.Set;
 
 import javax.annotation.Nullable;
 
 import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.Immutable;
 import net.jcip.annotations.ThreadSafe;
 
 import org.apache.log4j.Logger;
 import org.olap4j.Axis;
 import org.olap4j.OlapConnection;
 import org.olap4j.OlapException;
-import org.olap4j.mdx.SelectNode;
 import org.olap4j.metadata.Catalog;
 import org.olap4j.metadata.Cube;
 import org.olap4j.metadata.Dimension;
@@ -56,8 +57,8 @@ import org.olap4j.query.SortOrder;
 import org.olap4j.query.QueryDimension.HierarchizeMode;
 import org.olap4j.query.Selection.Operator;
 
+import ca.sqlpower.object.CleanupExceptions;
 import ca.sqlpower.object.SPObject;
-import ca.sqlpower.object.SPSimpleVariableResolver;
 import ca.sqlpower.object.SPVariableHelper;
 import ca.sqlpower.object.SPVariableResolver;
 import ca.sqlpower.object.SPVariableResolverProvider;
@@ -71,6 +72,7 @@ import ca.sqlpower.wabit.rs.ResultSetListener;
 import ca.sqlpower.wabit.rs.ResultSetProducerException;
 import ca.sqlpower.wabit.rs.ResultSetProducerListener;
 import ca.sqlpower.wabit.rs.ResultSetProducerSupport;
+import ca.sqlpower.wabit.rs.ResultSetVariableResolver;
 import ca.sqlpower.wabit.rs.WabitResultSetProducer;
 import ca.sqlpower.wabit.rs.ResultSetHandle.ResultSetType;
 
@@ -100,6 +102,20 @@ import ca.sqlpower.wabit.rs.ResultSetHandle.ResultSetType;
  * with no intervening modifications to the query and no possibility that the
  * query would start executing on another thread when only half the members have
  * been added.
+ * <p>
+ * Reading the state of the query does not require this lock while the query
+ * is not being modified. {@link #getMdxText()}, {@link #getRowHierarchies()},
+ * {@link #getColumnHierarchies()}, {@link #isIncluded(Member)},
+ * {@link #getIncludedMemberCaptions()} and
+ * {@link #execute(SPVariableHelper, ResultSetListener)} read an immutable
+ * {@link QuerySnapshot} of its MDX text, the hierarchies on its axes and its
+ * included members. Every modification discards the snapshot, and the first
+ * read after it takes the lock to create a new one. That read waits for a
+ * series of modifications made while holding the lock to be finished, so it
+ * never sees only part of them, and the MDX text is created once for the
+ * whole series instead of once per modification. Reads between
+ * modifications share the snapshot without locking, which keeps renderers
+ * from waiting on each other.
  */
 @ThreadSafe
 public class OlapQuery extends AbstractWabitObject implements WabitResultSetProducer, SPVariableResolverProvider {
@@ -117,63 +133,20 @@ public class OlapQuery extends AbstractWabitObject implements WabitResultSetProd
      */
     private OlapVariableResolver variableProvider = null;
     
-    private final class OlapVariableResolver extends SPSimpleVariableResolver {
-    	
-    	private AtomicBoolean updateNeeded = new AtomicBoolean(true);
-    	private AtomicBoolean isUpdating = new AtomicBoolean(false);
+    /**
+     * Exposes the columns of this query's results as variables. The query is
+     * executed in the background when the variables are needed.
+     */
+    private final class OlapVariableResolver extends ResultSetVariableResolver {
     	
     	public OlapVariableResolver(SPObject owner, String namespace, String userFriendlyName) {
 			super(owner, namespace, userFriendlyName);
 		}
-    	public void setUpdateNeeded(boolean updateNeeded) {
-    		this.updateNeeded.set(updateNeeded);
-    	}
-    	protected void beforeLookups(String key) {
-    		if (this.resolvesNamespace(SPVariableHelper.getNamespace(key))) {
-    			this.updateVars();
-    		}
-    	}
-    	protected void beforeKeyLookup(String namespace) {
-    			this.updateVars();
+    	
+    	@Override
+    	protected ResultSetHandle executeForVariables() throws ResultSetProducerException {
+    		return execute(new SPVariableHelper(OlapQuery.this), null, false);
     	}
-		public void updateVars() {
-			try {
-				
-				if (!this.updateNeeded.get()
-						|| isUpdating.get()) return;
-				
-				isUpdating.set(true);
-				
-				try {
-					ResultSetHandle handle = execute(
-							new SPVariableHelper(OlapQuery.this),
-							null,
-							false);
-					
-					variables.clear();
-					ResultSet rs = handle.getResultSet();
-					if (rs != null &&
-							rs.first()) {
-				        do {
-							for (int i = 0; i < rs.getMetaData().getColumnCount(); i++) {
-								store(rs.getMetaData().getColumnName(i+1), rs.getObject(i+1));
-							}
-						} while (rs.next());
-					}
-					
-				} catch (SQLException e) {
-					logger.error("Failed to resolve available variables from a query.", e);
-				} finally {
-					isUpdating.set(false);
-				}
-			
-				
-				this.updateNeeded.set(false);
-				
-			} catch (ResultSetProducerException e) {
-				logger.error("Failed to resolve available variables from a query.", e);
-			}
-		}
     }
     
     /**
@@ -181,7 +154,75 @@ public class OlapQuery extends AbstractWabitObject implements WabitResultSetProd
      * slicers this variable is needed to assure that our user is unable to add
      * more than one member to their slicer axis
      */
-    @GuardedBy("this") private Member slicerMember = null;
+    @GuardedBy("this") private volatile Member slicerMember = null;
+
+	/**
+	 * An immutable copy of the parts of the query that renderers and the
+	 * executor read. The olap4j {@link Query} is mutable and not thread safe,
+	 * so it is only accessed while holding this query's lock, while the
+	 * snapshot can be read by any thread without locking.
+	 */
+    @Immutable
+    private static class QuerySnapshot {
+    	
+    	/**
+    	 * The snapshot of a query that has no olap4j query yet.
+    	 */
+    	static final QuerySnapshot EMPTY = new QuerySnapshot(null, null, 
+    			Collections.<Hierarchy>emptyList(), Collections.<Hierarchy>emptyList(), 
+    			Collections.<String>emptySet(), Collections.<String>emptyList());
+    	
+    	/**
+    	 * The MDX text of the query, null if there is no query or if creating
+    	 * the text failed.
+    	 */
+    	private final String mdxText;
+    	
+    	/**
+    	 * The exception thrown while creating the MDX text, if any. It is
+    	 * thrown again from {@link OlapQuery#getMdxText()}.
+    	 */
+    	private final RuntimeException mdxError;
+    	
+    	private final List<Hierarchy> rowHierarchies;
+    	
+    	private final List<Hierarchy> columnHierarchies;
+    	
+    	/**
+    	 * The unique names of every member included in any dimension of the
+    	 * query.
+    	 */
+    	private final Set<String> includedMembers;
+    	
+    	/**
+    	 * The captions of the members in {@link #includedMembers}.
+    	 */
+    	private final List<String> includedMemberCaptions;
+    	
+    	QuerySnapshot(String mdxText, RuntimeException mdxError, List<Hierarchy> rowHierarchies,
+    			List<Hierarchy> columnHierarchies, Set<String> includedMembers, 
+    			List<String> includedMemberCaptions) {
+    		this.mdxText = mdxText;
+    		this.mdxError = mdxError;
+    		this.rowHierarchies = rowHierarchies;
+    		this.columnHierarchies = columnHierarchies;
+    		this.includedMembers = includedMembers;
+    		this.includedMemberCaptions = includedMemberCaptions;
+    	}
+    	
+    	String getMdxText() {
+    		if (mdxError != null) throw mdxError;
+    		return mdxText;
+    	}
+    }
+
+    /**
+     * The snapshot of the current state of the query, created by
+     * {@link #getSnapshot()}. This is null until it is first read after the
+     * olap4j query has been created or last modified.
+     */
+    @GuardedBy("this")
+    private volatile QuerySnapshot snapshot = null;
     
     /**
      * Creates a copy of the given OlapQuery.
@@ -234,7 +275,7 @@ public class OlapQuery extends AbstractWabitObject implements WabitResultSetProd
      * The current cube (this can be selected/changed via the GUI or the
      * {@link #setCurrentCube(Cube)} method). Null by default.
      */
-    private Cube currentCube;
+    private volatile Cube currentCube;
 
     /**
      * This is the data source that this query obtains its connections from. 
@@ -283,7 +324,7 @@ public class OlapQuery extends AbstractWabitObject implements WabitResultSetProd
      * This is used when the mdxQuery is null.
      */
     @GuardedBy("this")
-    private boolean nonEmpty = false;
+    private volatile boolean nonEmpty = false;
     
     /**
      * Helps with the ResultSetProducer implementation.
@@ -409,7 +450,7 @@ public class OlapQuery extends AbstractWabitObject implements WabitResultSetProd
         fireStructureChanged();
     }
 
-    public synchronized Cube getCurrentCube() {
+    public Cube getCurrentCube() {
         return currentCube;
     }
     
@@ -601,7 +642,7 @@ public class OlapQuery extends AbstractWabitObject implements WabitResultSetProd
      * mondrian does not support compound slicers we will use this variable to
      * make sure that the user does not add more than one member to their slicer
      */
-    public synchronized Member getSlicerMember() {
+    public Member getSlicerMember() {
     	return slicerMember;
     }
 
@@ -703,6 +744,7 @@ public class OlapQuery extends AbstractWabitObject implements WabitResultSetProd
 		
         mdxQuery = localMDXQuery;
         this.initDone = true;
+        invalidateSnapshot();
     }
 
 	/**
@@ -715,7 +757,7 @@ public class OlapQuery extends AbstractWabitObject implements WabitResultSetProd
     		axis.updateChildren();
     	}
     	if (this.variableProvider!=null) {
-    		this.variableProvider.setUpdateNeeded(true);
+    		this.variableProvider.invalidate();
     	}
     	fireStructureChanged();
     }
@@ -764,17 +806,26 @@ public class OlapQuery extends AbstractWabitObject implements WabitResultSetProd
 	 * Finds a member from the current cube based on the unique member name.
 	 */
 	synchronized Member findMember(String uniqueMemberName) {
-		String[] uniqueMemberNameList = uniqueMemberName.split("\\]\\.\\[");
-		uniqueMemberNameList[0] = uniqueMemberNameList[0].substring(1); //remove starting [ bracket
-		final int lastMemberNamePosition = uniqueMemberNameList.length - 1;
-		uniqueMemberNameList[lastMemberNamePosition] = uniqueMemberNameList[lastMemberNamePosition].substring(0, uniqueMemberNameList[lastMemberNamePosition].length() - 1); //remove ending ] bracket
 		try {
-			return currentCube.lookupMember(uniqueMemberNameList);
+			return lookupMember(currentCube, uniqueMemberName);
 		} catch (OlapException e) {
 			throw new RuntimeException(e);
 		}
 	}
 
+	/**
+	 * Looks up a member by its unique name through the metadata cache of this
+	 * query's data source so members already found by other queries or by the
+	 * metadata tree are not looked up on the server again.
+	 */
+	private Member lookupMember(Cube cube, String uniqueMemberName) throws OlapException {
+		Olap4jDataSource dataSource = getOlapDataSource();
+		if (dataSource == null) {
+			return cube.lookupMember(OlapMetadataCache.splitUniqueName(uniqueMemberName));
+		}
+		return OlapMetadataCache.getCache(dataSource).lookupMember(cube, uniqueMemberName);
+	}
+
     
     /**
      * This method finds a member from a cube based on given attributes.
@@ -782,12 +833,8 @@ public class OlapQuery extends AbstractWabitObject implements WabitResultSetProd
     public synchronized Member findMember(Map<String,String> attributes, Cube cube) {
         String uniqueMemberName = attributes.get("unique-member-name");
         if (uniqueMemberName != null) {
-            String[] uniqueMemberNameList = uniqueMemberName.split("\\]\\.\\[");
-            uniqueMemberNameList[0] = uniqueMemberNameList[0].substring(1); //remove starting [ bracket
-            final int lastMemberNamePosition = uniqueMemberNameList.length - 1;
-            uniqueMemberNameList[lastMemberNamePosition] = uniqueMemberNameList[lastMemberNamePosition].substring(0, uniqueMemberNameList[lastMemberNamePosition].length() - 1); //remove ending ] bracket
             try {
-                return cube.lookupMember(uniqueMemberNameList);
+                return lookupMember(cube, uniqueMemberName);
             } catch (OlapException e) {
                 throw new RuntimeException(e);
             }
@@ -802,7 +849,13 @@ public class OlapQuery extends AbstractWabitObject implements WabitResultSetProd
             final Hierarchy hierarchy = dimension.getHierarchies().get(hierarchyName);
             final Level level = hierarchy.getLevels().get(levelName);
             try {
-                for (Member member : level.getMembers()) {
+                List<Member> members;
+                if (getOlapDataSource() != null) {
+                    members = OlapMetadataCache.getCache(getOlapDataSource()).getMembers(level);
+                } else {
+                    members = level.getMembers();
+                }
+                for (Member member : members) {
                     if (member.getName().equals(memberName)) {
                         actualMember = member;
                         break;
@@ -879,9 +932,16 @@ public class OlapQuery extends AbstractWabitObject implements WabitResultSetProd
      * Returns the current MDX text that this query object's state represents.
      * @throws QueryInitializationException 
      */
-    public synchronized String getMdxText() throws QueryInitializationException {
-    	if (getMDXQuery() == null) return null;
-        return getMDXQuery().getSelect().toString();
+    public String getMdxText() throws QueryInitializationException {
+    	return getSnapshot().getMdxText();
+    }
+
+	/**
+	 * Returns the captions of the members included in the query, as of the
+	 * last modification. This can be called on any thread.
+	 */
+    public List<String> getIncludedMemberCaptions() throws QueryInitializationException {
+    	return getSnapshot().includedMemberCaptions;
     }
 
 	/**
@@ -954,7 +1014,7 @@ public class OlapQuery extends AbstractWabitObject implements WabitResultSetProd
         	}
         }
         
-        if (!isIncluded(member)) {
+        if (!isIncludedInQuery(member)) {
         	qd.include(operator, member);
         }
         
@@ -986,7 +1046,7 @@ public class OlapQuery extends AbstractWabitObject implements WabitResultSetProd
      * @param qa The axis to add the dimension to.
      * @param qd The dimension to add to the axis.
      */
-    void addDimensionToAxis(int ordinal, Axis axis, QueryDimension qd) throws QueryInitializationException {
+    synchronized void addDimensionToAxis(int ordinal, Axis axis, QueryDimension qd) throws QueryInitializationException {
         QueryAxis qa = getMDXQuery().getAxis(axis);
         if (!qa.equals(qd.getAxis())) {
         	qd.clearInclusions();
@@ -1007,14 +1067,23 @@ public class OlapQuery extends AbstractWabitObject implements WabitResultSetProd
             	}
         	}
         }
+        invalidateSnapshot();
     }
 
-    public synchronized List<Hierarchy> getRowHierarchies() throws QueryInitializationException {
-        return getHierarchies(Axis.ROWS);
+    /**
+     * Returns the hierarchies on the rows axis as of the last modification of
+     * this query. The returned list cannot be modified.
+     */
+    public List<Hierarchy> getRowHierarchies() throws QueryInitializationException {
+        return getSnapshot().rowHierarchies;
     }
 
-    public synchronized List<Hierarchy> getColumnHierarchies() throws QueryInitializationException {
-        return getHierarchies(Axis.COLUMNS);
+    /**
+     * Returns the hierarchies on the columns axis as of the last modification
+     * of this query. The returned list cannot be modified.
+     */
+    public List<Hierarchy> getColumnHierarchies() throws QueryInitializationException {
+        return getSnapshot().columnHierarchies;
     }
 
     /**
@@ -1027,16 +1096,75 @@ public class OlapQuery extends AbstractWabitObject implements WabitResultSetProd
     private Map<QueryDimension, Hierarchy> hierarchiesInUse =
         new HashMap<QueryDimension, Hierarchy>();
     
-    private synchronized List<Hierarchy> getHierarchies(Axis axis) throws QueryInitializationException {
-    	if (getMDXQuery() == null) return Collections.emptyList();
-        QueryAxis qa = getMDXQuery().getAxis(axis);
+    @GuardedBy("this")
+    private List<Hierarchy> getHierarchies(Axis axis) {
+        QueryAxis qa = mdxQuery.getAxis(axis);
         List<Hierarchy> selectedHierarchies = new ArrayList<Hierarchy>();
         for (QueryDimension qd : qa.getDimensions()) {
             Hierarchy h = hierarchiesInUse.get(qd);
             assert h != null : qd + " not in " + hierarchiesInUse;
             selectedHierarchies.add(h);
         }
-        return selectedHierarchies;
+        return Collections.unmodifiableList(selectedHierarchies);
+    }
+
+	/**
+	 * Discards the snapshot of the query so the next read creates one that
+	 * reflects the current state of the olap4j query. This must be called
+	 * after every modification of the olap4j query.
+	 */
+    private synchronized void invalidateSnapshot() {
+    	snapshot = null;
+    }
+
+	/**
+	 * Creates a snapshot of the current state of the olap4j query, which must
+	 * exist.
+	 */
+    @GuardedBy("this")
+    private QuerySnapshot createSnapshot() {
+    	String mdxText = null;
+    	RuntimeException mdxError = null;
+    	try {
+    		mdxText = mdxQuery.getSelect().toString();
+    	} catch (RuntimeException e) {
+    		mdxError = e;
+    	}
+    	Set<String> includedMembers = new HashSet<String>();
+    	List<String> includedMemberCaptions = new ArrayList<String>();
+    	for (QueryAxis qa : mdxQuery.getAxes().values()) {
+    		for (QueryDimension qd : qa.getDimensions()) {
+    			for (Selection s : qd.getInclusions()) {
+    				Member member = s.getMember();
+    				if (includedMembers.add(member.getUniqueName())) {
+    					String caption = member.getCaption(Locale.getDefault());
+    					includedMemberCaptions.add(caption != null ? caption : member.getName());
+    				}
+    			}
+    		}
+    	}
+    	return new QuerySnapshot(mdxText, mdxError, getHierarchies(Axis.ROWS), 
+    			getHierarchies(Axis.COLUMNS), Collections.unmodifiableSet(includedMembers), 
+    			Collections.unmodifiableList(includedMemberCaptions));
+    }
+
+	/**
+	 * Returns the snapshot of this query, without locking if it was not
+	 * modified since the snapshot was created. Otherwise this takes the lock,
+	 * waiting for a series of modifications made by another thread to be
+	 * finished, and creates the snapshot, initializing the query first if it
+	 * was loaded.
+	 */
+    private QuerySnapshot getSnapshot() throws QueryInitializationException {
+    	QuerySnapshot current = snapshot;
+    	if (current != null) return current;
+    	synchronized (this) {
+    		if (getMDXQuery() == null) return QuerySnapshot.EMPTY;
+    		if (snapshot == null) {
+    			snapshot = createSnapshot();
+    		}
+    		return snapshot;
+    	}
     }
 
     /**
@@ -1090,7 +1218,7 @@ public class OlapQuery extends AbstractWabitObject implements WabitResultSetProd
     	Member member = fromMember;
     	while (member.getParentMember() != null && !member.equals(targetAncestor)) {
 			member = member.getParentMember();
-			if (!isIncluded(member)) {
+			if (!isIncludedInQuery(member)) {
 				includeMember(member);
 			}
 		}
@@ -1140,7 +1268,16 @@ public class OlapQuery extends AbstractWabitObject implements WabitResultSetProd
 	 * @return True if member is in one of the {@link Selection}s in dimension's
 	 *         inclusions. Otherwise false.
 	 */
-    public synchronized boolean isIncluded(Member member) throws QueryInitializationException {
+    public boolean isIncluded(Member member) throws QueryInitializationException {
+    	return getSnapshot().includedMembers.contains(member.getUniqueName());
+    }
+
+	/**
+	 * Checks the olap4j query itself for the given member rather than its
+	 * snapshot. Modifications of the query use this so they do not create a
+	 * snapshot in the middle of a series of modifications.
+	 */
+    private synchronized boolean isIncludedInQuery(Member member) throws QueryInitializationException {
     	QueryDimension dimension = findQueryDimension(member);
     	for (Selection s: dimension.getInclusions()) {
     		if (s.getMember().equals(member)) {
@@ -1226,7 +1363,7 @@ public class OlapQuery extends AbstractWabitObject implements WabitResultSetProd
      * 
      * @return True is this query omits empty rows; false if it includes them.
      */
-    public synchronized boolean isNonEmpty() {
+    public boolean isNonEmpty() {
     	return nonEmpty;
     }
 
@@ -1334,6 +1471,17 @@ public class OlapQuery extends AbstractWabitObject implements WabitResultSetProd
     }
     
     // -------------- End of WabitBackgroundWorker interface --------------
+    
+    @Override
+    public CleanupExceptions cleanup() {
+        CleanupExceptions exceptions = new CleanupExceptions();
+        try {
+        	rsps.cleanup();
+        } catch (Exception e) {
+        	exceptions.add(e);
+        }
+        return exceptions;
+    }
 
     // -------------- ResultSetProducer interface --------------
 
@@ -1365,17 +1513,11 @@ public class OlapQuery extends AbstractWabitObject implements WabitResultSetProd
         	
         	String textualQuery;
         	if (this.modifiedOlapQuery == null) {
-        		// take the snapshot
-        		SelectNode mdx;
-        		synchronized (this) {
-        			if (getRowHierarchies().isEmpty() || getColumnHierarchies().isEmpty()) {
-        				return null;
-        			} else {
-        				mdx = getMDXQuery().getSelect();
-        			}
+        		QuerySnapshot state = getSnapshot();
+        		if (state.rowHierarchies.isEmpty() || state.columnHierarchies.isEmpty()) {
+        			return null;
         		}
-        		
-        		textualQuery = mdx.toString();
+        		textualQuery = state.getMdxText();
         	
         	} else {
         	
@@ -1392,19 +1534,34 @@ public class OlapQuery extends AbstractWabitObject implements WabitResultSetProd
         				ResultSetType.OLAP, 
 	        			0, 
 	        			listener,
+	        			CellSetCache.getCache(getOlapDataSource()),
 	        			async);	
             
         } catch (Exception e) {
             throw new ResultSetProducerException("Couldn't create database connection for Olap query", e);
-        } finally {
-        	if (this.variableProvider!=null) {
-        		this.variableProvider.setUpdateNeeded(true);
-            }
         }
     }
 
     // -------------- end ResultSetProducer interface --------------
 
+	/**
+	 * Discards the cell sets cached for this query's cube and the metadata
+	 * cached for its data source so the next execution evaluates the MDX
+	 * against the data source again. This is useful when the user explicitly
+	 * asks for the query to be executed to see the latest data.
+	 */
+    public void invalidateCachedResults() {
+    	Olap4jDataSource dataSource = getOlapDataSource();
+    	Cube cube = getCurrentCube();
+    	if (dataSource == null) return;
+    	OlapMetadataCache.getCache(dataSource).clear();
+    	if (cube != null) {
+    		CellSetCache.getCache(dataSource).invalidate(cube);
+    	} else {
+    		CellSetCache.getCache(dataSource).clear();
+    	}
+    }
+
     
     public List<Class<? extends SPObject>> getAllowedChildTypes() {
     	List<Class<? extends SPObject>> types = new ArrayList<Class<? extends SPObject>>();
@@ -1422,6 +1579,7 @@ public class OlapQuery extends AbstractWabitObject implements WabitResultSetProd
 		// Initialize the variables provider once this object is hooked up to the tree only.
 		if (actsAsVariableProvider) {
 			if (this.variableProvider != null) {
+				this.variableProvider.cancelPendingLoad();
 				this.variableProvider.cleanup();
 			}
 			this.variableProvider = new OlapVariableResolver(this, this.uuid, "OLAP Query - " + this.getName());
@@ -1433,6 +1591,7 @@ public class OlapQuery extends AbstractWabitObject implements WabitResultSetProd
 	}
 	
 	private void fireStructureChanged() {
+		invalidateSnapshot();
 		if (!this.wasLoadedFromDao || this.initDone || this.mdxQuery!=null) {
 			rsps.fireStructureChanged();
 		}
@@ -20,6 +20,7 @@
 package ca.sqlpower.wabit.rs.query;
 
 import java.beans.PropertyChangeEvent;
+import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
@@ -30,16 +31,16 @@ import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
-import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.Immutable;
 
 import org.apache.log4j.Logger;
 
 import ca.sqlpower.object.CleanupExceptions;
 import ca.sqlpower.object.SPObject;
-import ca.sqlpower.object.SPSimpleVariableResolver;
 import ca.sqlpower.object.SPVariableHelper;
 import ca.sqlpower.object.SPVariableResolver;
 import ca.sqlpower.object.SPVariableResolverProvider;
@@ -50,11 +51,13 @@ import ca.sqlpower.query.QueryChangeEvent;
 import ca.sqlpower.query.QueryChangeListener;
 import ca.sqlpower.query.QueryImpl;
 import ca.sqlpower.query.SQLJoin;
+import ca.sqlpower.query.SQLObjectItem;
 import ca.sqlpower.query.QueryImpl.OrderByArgument;
 import ca.sqlpower.sql.JDBCDataSource;
 import ca.sqlpower.sql.SPDataSource;
 import ca.sqlpower.sqlobject.SQLDatabase;
 import ca.sqlpower.sqlobject.SQLDatabaseMapping;
+import ca.sqlpower.sqlobject.SQLObjectException;
 import ca.sqlpower.swingui.query.StatementExecutor;
 import ca.sqlpower.swingui.query.StatementExecutorListener;
 import ca.sqlpower.util.TransactionEvent;
@@ -68,6 +71,7 @@ import ca.sqlpower.wabit.rs.ResultSetListener;
 import ca.sqlpower.wabit.rs.ResultSetProducerException;
 import ca.sqlpower.wabit.rs.ResultSetProducerListener;
 import ca.sqlpower.wabit.rs.ResultSetProducerSupport;
+import ca.sqlpower.wabit.rs.ResultSetVariableResolver;
 import ca.sqlpower.wabit.rs.WabitResultSetProducer;
 import ca.sqlpower.wabit.rs.ResultSetHandle.ResultSetType;
 
@@ -114,6 +118,66 @@ public class QueryCache extends AbstractWabitObject implements StatementExecutor
     @GuardedBy("queryListeners")
     private final List<QueryChangeListener> queryListeners = new ArrayList<QueryChangeListener>();
 
+    /**
+     * The deliveries of query events waiting for the foreground task that
+     * runs them, in the order the events were fired.
+     */
+    @GuardedBy("pendingQueryEvents")
+    private final List<Runnable> pendingQueryEvents = new ArrayList<Runnable>();
+
+    /**
+     * True while a foreground task is delivering the pending query events or
+     * is waiting to. Events fired until then are delivered by that task.
+     */
+    @GuardedBy("pendingQueryEvents")
+    private boolean deliveringQueryEvents = false;
+
+    /**
+     * Counts the changes made to the query. The memoized SQL and cross join
+     * analysis are keyed on this revision instead of on a hash of the
+     * structure of the delegate query, which would mean walking the whole
+     * query on every lookup. Advancing it makes the values memoized for the
+     * previous revision stale. It is advanced by:
+     * <ul>
+     * <li>every event the delegate fires to the {@link #queryChangeListener}:
+     * containers, items and joins added, removed or changed, and property
+     * changes of the query itself such as its where clause;</li>
+     * <li>{@link #setDataSource(JDBCDataSource)} and
+     * {@link #setDataSourceWithoutSideEffects(JDBCDataSource)}, as the SQL
+     * depends on the database it is generated for;</li>
+     * <li>{@link #setDBMapping(SQLDatabaseMapping)}, for the same reason.</li>
+     * </ul>
+     * A change to the query that none of these report leaves the memoized
+     * values in place, so new ways of changing the query must advance it too.
+     */
+    private final AtomicLong revision = new AtomicLong();
+
+    /**
+     * The SQL generated for the query at some revision, or null if it has not
+     * been generated yet.
+     */
+    private volatile Memo<String> generatedQuery;
+
+    /**
+     * The cross join analysis of the query at some revision, or null if the
+     * query has not been analyzed yet.
+     */
+    private volatile Memo<Boolean> crossJoins;
+
+    /**
+     * A value computed from the query at the given revision.
+     */
+    @Immutable
+    private static final class Memo<T> {
+    	private final long revision;
+    	private final T value;
+    	
+    	Memo(long revision, T value) {
+    		this.revision = revision;
+    		this.value = value;
+    	}
+    }
+
     /**
      * This listener will be added to the query and refire events to the
      * {@link #queryListeners} list with this object as the source.
@@ -123,10 +187,12 @@ public class QueryCache extends AbstractWabitObject implements StatementExecutor
     	private AtomicInteger compoundEdits = new AtomicInteger(0);
     	
         public void propertyChangeEvent(PropertyChangeEvent evt) {
+            revision.incrementAndGet();
             firePropertyChangeEvent(evt);
         }
     
         public void joinRemoved(QueryChangeEvent evt) {
+            revision.incrementAndGet();
             fireJoinRemoved(evt);
             if (compoundEdits.get() == 0){
             	rsps.fireStructureChanged();
@@ -135,6 +201,7 @@ public class QueryCache extends AbstractWabitObject implements StatementExecutor
         }
     
         public void joinPropertyChangeEvent(PropertyChangeEvent evt) {
+            revision.incrementAndGet();
             fireJoinPropertyChangeEvent(evt);
             if (compoundEdits.get() == 0){
             	rsps.fireStructureChanged();
@@ -143,6 +210,7 @@ public class QueryCache extends AbstractWabitObject implements StatementExecutor
         }
     
         public void joinAdded(QueryChangeEvent evt) {
+            revision.incrementAndGet();
             fireJoinAdded(evt);
             if (compoundEdits.get() == 0){
             	rsps.fireStructureChanged();
@@ -151,6 +219,7 @@ public class QueryCache extends AbstractWabitObject implements StatementExecutor
         }
     
         public void itemRemoved(QueryChangeEvent evt) {
+            revision.incrementAndGet();
             fireItemRemoved(evt);
             if (compoundEdits.get() == 0){
             	rsps.fireStructureChanged();
@@ -159,6 +228,7 @@ public class QueryCache extends AbstractWabitObject implements StatementExecutor
         }
     
         public void itemPropertyChangeEvent(PropertyChangeEvent evt) {
+            revision.incrementAndGet();
             fireItemPropertyChangeEvent(evt);
             if (compoundEdits.get() == 0){
             	rsps.fireStructureChanged();
@@ -167,6 +237,7 @@ public class QueryCache extends AbstractWabitObject implements StatementExecutor
         }
     
         public void itemAdded(QueryChangeEvent evt) {
+            revision.incrementAndGet();
             fireItemAdded(evt);
             if (compoundEdits.get() == 0){
             	rsps.fireStructureChanged();
@@ -175,6 +246,7 @@ public class QueryCache extends AbstractWabitObject implements StatementExecutor
         }
     
         public void containerRemoved(QueryChangeEvent evt) {
+            revision.incrementAndGet();
             fireContainerRemoved(evt);
             if (compoundEdits.get() == 0){
             	rsps.fireStructureChanged();
@@ -183,6 +255,7 @@ public class QueryCache extends AbstractWabitObject implements StatementExecutor
         }
     
         public void containerAdded(QueryChangeEvent evt) {
+            revision.incrementAndGet();
             fireContainerAdded(evt);
             if (compoundEdits.get() == 0){
             	rsps.fireStructureChanged();
@@ -207,7 +280,7 @@ public class QueryCache extends AbstractWabitObject implements StatementExecutor
     
     private void updateVariables() {
     	if (variableProvider != null) {            	
-        	variableProvider.setUpdateNeeded(true);
+        	variableProvider.invalidate();
         }
     }
     
@@ -224,69 +297,107 @@ public class QueryCache extends AbstractWabitObject implements StatementExecutor
     private QueryVariableResolver variableProvider = null;
     
     /**
-     * Extends {@link SPSimpleVariableResolver} to make sure that we
-     * initialize the variables before trying to resolve them.
+     * Exposes the columns of this query's results as variables. The query is
+     * executed in the background when the variables are needed.
      */
-    private final class QueryVariableResolver extends SPSimpleVariableResolver {
-    	private AtomicBoolean updateNeeded = new AtomicBoolean(true);
-    	private AtomicBoolean isUpdating = new AtomicBoolean(false);
+    private final class QueryVariableResolver extends ResultSetVariableResolver {
+    	
+    	private final Object quoteLock = new Object();
+    	
+    	/**
+    	 * The data source {@link #identifierQuote} was read from.
+    	 */
+    	@GuardedBy("quoteLock")
+    	private JDBCDataSource quotedDataSource;
+    	
+    	/**
+    	 * The string the database of {@link #quotedDataSource} quotes
+    	 * identifiers with, kept so the selectors of this query do not open a
+    	 * connection every time they list the distinct values of a column.
+    	 */
+    	@GuardedBy("quoteLock")
+    	private String identifierQuote;
+    	
     	public QueryVariableResolver(SPObject owner, String namespace, String userFriendlyName) {
 			super(owner, namespace, userFriendlyName);
 		}
-    	public void setUpdateNeeded(boolean updateNeeded) {
-    		this.updateNeeded.set(updateNeeded);
+    	
+    	@Override
+    	protected ResultSetHandle executeForVariables() throws ResultSetProducerException {
+    		if (isStreaming()) {
+    			// XXX We can't use streaming queries as variables providers
+    			return null;
+    		}
+    		return execute(new SPVariableHelper(QueryCache.this), null, false);
     	}
-    	protected void beforeLookups(String key) {
-    		if (this.resolvesNamespace(SPVariableHelper.getNamespace(key))) {
-    			this.updateVars();
+    	
+    	/**
+    	 * Selects the distinct values of a column that comes straight from a
+    	 * table in the database by wrapping the generated query, so a large
+    	 * column does not need to be read row by row to find them. Every
+    	 * distinct value is selected, the row limit of the query only applies
+    	 * to its own rows. The handle is not one of this query's executions, so
+    	 * its listeners are not told about it and it is not recorded in the
+    	 * metrics of this query.
+    	 */
+    	@Override
+    	protected ResultSetHandle executeDistinct(String columnName) throws ResultSetProducerException {
+    		if (isStreaming() || query.isScriptModified()) return null;
+    		Item column = null;
+    		for (Item item : query.getSelectedColumns()) {
+    			String label = item.getAlias() != null && item.getAlias().trim().length() > 0 ? 
+    					item.getAlias() : item.getName();
+    			if (item instanceof SQLObjectItem && columnName.equalsIgnoreCase(label)) {
+    				column = item;
+    				break;
+    			}
+    		}
+    		if (column == null) return null;
+    		
+    		try {
+    			String sql = "SELECT DISTINCT distinct_values." + quoteIdentifier(columnName) + 
+    				" FROM (" + QueryCache.this.generateQuery() + ") distinct_values ORDER BY 1";
+    			ResultSetHandle handle = new ResultSetHandle(
+    					QueryCache.this.getSession().getContext(),
+    					QueryCache.this.getDataSource(),
+    					sql,
+    					new SPVariableHelper(QueryCache.this),
+    					ResultSetType.RELATIONAL,
+    					0,
+    					null);
+    			handle.populate(false);
+    			return handle;
+    		} catch (Exception e) {
+    			throw new ResultSetProducerException(e);
     		}
     	}
-    	protected void beforeKeyLookup(String namespace) {
-    			this.updateVars();
+
+    	/**
+    	 * Quotes the given column name the way the database of this query
+    	 * quotes identifiers. The name is the column name the database gave
+    	 * the results, so quoting it keeps its case. The quote string is only
+    	 * read from the database again when the data source changes.
+    	 */
+    	private String quoteIdentifier(String identifier) throws SQLException, SQLObjectException {
+    		JDBCDataSource dataSource = getDataSource();
+    		String quote;
+    		synchronized (quoteLock) {
+    			if (dataSource != quotedDataSource) {
+    				Connection con = QueryCache.this.getSession().getContext().createConnection(dataSource);
+    				try {
+    					identifierQuote = con.getMetaData().getIdentifierQuoteString();
+    				} finally {
+    					con.close();
+    				}
+    				quotedDataSource = dataSource;
+    			}
+    			quote = identifierQuote;
+    		}
+    		// a space means the database does not quote identifiers
+    		if (quote == null || quote.trim().length() == 0) return identifier;
+    		quote = quote.trim();
+    		return quote + identifier.replace(quote, quote + quote) + quote;
     	}
-		private synchronized void updateVars() {
-			try {
-				
-				if (isStreaming()) {
-					// XXX We can't use streaming queries as variables providers
-					variables.clear();
-					return;
-				}
-				
-				if (!updateNeeded.get() ||
-						isUpdating.get()) return;
-				
-				isUpdating.set(true);
-				
-				try {
-					ResultSetHandle variablesHandle = execute(
-							new SPVariableHelper(QueryCache.this),
-							null,
-							false);
-					
-					synchronized (variables) {
-						ResultSet rs = variablesHandle.getResultSet();
-						variables.clear();
-						if (rs != null &&
-								rs.first()) {
-							do {
-								for (int i = 0; i < rs.getMetaData().getColumnCount(); i++) {
-									this.store(rs.getMetaData().getColumnName(i+1), rs.getObject(i+1));
-								}
-							} while (rs.next());
-						}					
-					}
-					
-				} finally {
-					isUpdating.set(false);
-				}
-				
-				this.updateNeeded.set(false);
-				
-			} catch (Exception e) {
-				logger.error("Failed to resolve available variables from a query.", e);
-			}
-		}
     }
     
     /**
@@ -515,7 +626,7 @@ public class QueryCache extends AbstractWabitObject implements StatementExecutor
             throw new NullPointerException("Data source is null.");
         }
         	
-    	String sql = query.generateQuery();
+    	String sql = generateQuery();
     	
     	try {
         	
@@ -557,7 +668,7 @@ public class QueryCache extends AbstractWabitObject implements StatementExecutor
     public CleanupExceptions cleanup() {
         CleanupExceptions exceptions = new CleanupExceptions();
         try {
-        	rsps.cancel();
+        	rsps.cleanup();
         } catch (Exception e) {
         	exceptions.add(e);
         }
@@ -720,12 +831,32 @@ public class QueryCache extends AbstractWabitObject implements StatementExecutor
     
     //------------------- start Query interface---------------------------------
     
+    /**
+     * Returns the SQL of the query. The SQL is only generated again after the
+     * query changed, repeated executions of an unchanged query reuse it.
+     */
     public String generateQuery() {
-        return query.generateQuery();
+    	long current = revision.get();
+    	Memo<String> memo = generatedQuery;
+    	if (memo == null || memo.revision != current) {
+    		memo = new Memo<String>(current, query.generateQuery());
+    		generatedQuery = memo;
+    	}
+    	return memo.value;
     }
     
+    /**
+     * Returns true if the query contains cross joins. Like the SQL, the
+     * analysis is only done again after the query changed.
+     */
     public boolean containsCrossJoins() {
-        return query.containsCrossJoins();
+    	long current = revision.get();
+    	Memo<Boolean> memo = crossJoins;
+    	if (memo == null || memo.revision != current) {
+    		memo = new Memo<Boolean>(current, query.containsCrossJoins());
+    		crossJoins = memo;
+    	}
+    	return memo.value;
     }
 
     public boolean isScriptModified() {
@@ -743,6 +874,8 @@ public class QueryCache extends AbstractWabitObject implements StatementExecutor
     	} else {
     		query.setDataSource(ds);
     	}
+    	// the generated SQL depends on the database it is for
+    	revision.incrementAndGet();
 		firePropertyChange("dataSource", oldValue, ds);
     }
     
@@ -750,6 +883,7 @@ public class QueryCache extends AbstractWabitObject implements StatementExecutor
     	JDBCDataSource oldValue = this.getDataSource();
     	boolean returnValue = query.setDataSourceWithoutSideEffects(dataSource);
     	if (returnValue) {
+    		revision.incrementAndGet();
     		firePropertyChange("dataSource", oldValue, dataSource);
     	}
     	return returnValue;
@@ -772,6 +906,7 @@ public class QueryCache extends AbstractWabitObject implements StatementExecutor
     
     public void setDBMapping(SQLDatabaseMapping dbMapping) {
         query.setDBMapping(dbMapping);
+        revision.incrementAndGet();
     }
 
     public int getStreamingRowLimit() {
@@ -916,6 +1051,7 @@ public class QueryCache extends AbstractWabitObject implements StatementExecutor
 
     public void setStreaming(boolean streaming) {
         query.setStreaming(streaming);
+        updateVariables();
     }
 
     public void setZoomLevel(int zoomLevel) {
@@ -948,9 +1084,57 @@ public class QueryCache extends AbstractWabitObject implements StatementExecutor
     
     //------------------- event handling for query delegate-------------------
     
+    /**
+     * Runs the given delivery of a query event in the foreground. Events
+     * fired off the foreground thread are queued and delivered in the order
+     * they were fired by a single task, so a burst of query edits made in
+     * the background does not post one task per event. An event fired on the
+     * foreground thread is delivered at once unless other events are still
+     * waiting, including events fired by the listeners of an event being
+     * delivered, in which case it is delivered after them.
+     */
+    private void runQueryEventInForeground(Runnable event) {
+    	synchronized (pendingQueryEvents) {
+    		pendingQueryEvents.add(event);
+    		if (deliveringQueryEvents) return;
+    		deliveringQueryEvents = true;
+    	}
+    	runInForeground(new Runnable() {
+    		public void run() {
+    			boolean delivered = false;
+    			try {
+    				while (true) {
+    					Runnable pending;
+    					synchronized (pendingQueryEvents) {
+    						if (pendingQueryEvents.isEmpty()) {
+    							deliveringQueryEvents = false;
+    							delivered = true;
+    							return;
+    						}
+    						pending = pendingQueryEvents.remove(0);
+    					}
+    					pending.run();
+    				}
+    			} finally {
+    				if (!delivered) {
+    					// a listener failed, the events after it get a task of their own
+    					boolean remaining;
+    					synchronized (pendingQueryEvents) {
+    						remaining = !pendingQueryEvents.isEmpty();
+    						deliveringQueryEvents = remaining;
+    					}
+    					if (remaining) {
+    						runInForeground(this);
+    					}
+    				}
+    			}
+    		}
+    	});
+    }
+    
     protected void fireJoinAdded(final QueryChangeEvent evt) {
         final QueryChangeEvent newEvent = new QueryChangeEvent(this, evt.getJoinChanged());
-        runInForeground(new Runnable() {
+        runQueryEventInForeground(new Runnable() {
             public void run() {
                 synchronized(queryListeners) {
                     for (int i = queryListeners.size() - 1; i >= 0; i--) {
@@ -964,7 +1148,7 @@ public class QueryCache extends AbstractWabitObject implements StatementExecutor
 
     protected void fireJoinRemoved(final QueryChangeEvent evt) {
         final QueryChangeEvent newEvent = new QueryChangeEvent(this, evt.getJoinChanged());
-        runInForeground(new Runnable() {
+        runQueryEventInForeground(new Runnable() {
             public void run() {
                 synchronized(queryListeners) {
                     for (int i = queryListeners.size() - 1; i >= 0; i--) {
@@ -996,7 +1180,7 @@ public class QueryCache extends AbstractWabitObject implements StatementExecutor
     protected void fireJoinPropertyChangeEvent(final PropertyChangeEvent evt) {
         final PropertyChangeEvent newEvent = new PropertyChangeEvent(this, 
                 evt.getPropertyName(), evt.getOldValue(), evt.getNewValue());
-        runInForeground(new Runnable() {
+        runQueryEventInForeground(new Runnable() {
             public void run() {
                 synchronized(queryListeners) {
                     for (int i = queryListeners.size() - 1; i >= 0; i--) {
@@ -1010,7 +1194,7 @@ public class QueryCache extends AbstractWabitObject implements StatementExecutor
     protected void firePropertyChangeEvent(final PropertyChangeEvent evt) {
         final PropertyChangeEvent newEvent = new PropertyChangeEvent(this, 
                 evt.getPropertyName(), evt.getOldValue(), evt.getNewValue());
-        runInForeground(new Runnable() {
+        runQueryEventInForeground(new Runnable() {
             public void run() {
                 synchronized(queryListeners) {
                     for (int i = queryListeners.size() - 1; i >= 0; i--) {
@@ -1025,7 +1209,7 @@ public class QueryCache extends AbstractWabitObject implements StatementExecutor
     protected void fireCompoundEditStarted(final TransactionEvent evt) {
         final TransactionEvent newEvent = 
             TransactionEvent.createStartTransactionEvent(this, evt.getMessage());
-        runInForeground(new Runnable() {
+        runQueryEventInForeground(new Runnable() {
             public void run() {
                 synchronized(queryListeners) {
                     for (int i = queryListeners.size() - 1; i >= 0; i--) {
@@ -1040,7 +1224,7 @@ public class QueryCache extends AbstractWabitObject implements StatementExecutor
     protected void fireCompoundEditEnded(TransactionEvent evt) {
         final TransactionEvent newEvent =
             TransactionEvent.createEndTransactionEvent(this);
-        runInForeground(new Runnable() {
+        runQueryEventInForeground(new Runnable() {
             public void run() {
                 synchronized(queryListeners) {
                     for (int i = queryListeners.size() - 1; i >= 0; i--) {
@@ -1053,7 +1237,7 @@ public class QueryCache extends AbstractWabitObject implements StatementExecutor
     }
     
     protected void fireItemPropertyChangeEvent(final PropertyChangeEvent evt) {
-        runInForeground(new Runnable() {
+        runQueryEventInForeground(new Runnable() {
             public void run() {
                 synchronized(queryListeners) {
                     for (int i = queryListeners.size() - 1; i >= 0; i--) {
@@ -1066,7 +1250,7 @@ public class QueryCache extends AbstractWabitObject implements StatementExecutor
     
     protected void fireItemAdded(final QueryChangeEvent evt) {
         final QueryChangeEvent newEvent = new QueryChangeEvent(this, evt.getItemChanged());
-        runInForeground(new Runnable() {
+        runQueryEventInForeground(new Runnable() {
             public void run() {
                 synchronized(queryListeners) {
                     for (int i = queryListeners.size() - 1; i >= 0; i--) {
@@ -1081,7 +1265,7 @@ public class QueryCache extends AbstractWabitObject implements StatementExecutor
     
     protected void fireItemRemoved(final QueryChangeEvent evt) {
         final QueryChangeEvent newEvent = new QueryChangeEvent(this, evt.getItemChanged());
-        runInForeground(new Runnable() {
+        runQueryEventInForeground(new Runnable() {
             public void run() {
                 synchronized(queryListeners) {
                     for (int i = queryListeners.size() - 1; i >= 0; i--) {
@@ -1096,7 +1280,7 @@ public class QueryCache extends AbstractWabitObject implements StatementExecutor
     
     protected void fireContainerRemoved(final QueryChangeEvent evt) {
         final QueryChangeEvent newEvent = new QueryChangeEvent(this, evt.getContainerChanged());
-        runInForeground(new Runnable() {
+        runQueryEventInForeground(new Runnable() {
             public void run() {
                 synchronized(queryListeners) {
                     for (int i = queryListeners.size() - 1; i >= 0; i--) {
@@ -1136,7 +1320,7 @@ public class QueryCache extends AbstractWabitObject implements StatementExecutor
     
     protected void fireContainerAdded(final QueryChangeEvent evt) {
         final QueryChangeEvent newEvent = new QueryChangeEvent(this, evt.getContainerChanged());
-        runInForeground(new Runnable() {
+        runQueryEventInForeground(new Runnable() {
             public void run() {
                 synchronized(queryListeners) {
                     for (int i = queryListeners.size() - 1; i >= 0; i--) {
@@ -1196,6 +1380,7 @@ public class QueryCache extends AbstractWabitObject implements StatementExecutor
     	
     	// Create a variable context.
     	if (this.variableProvider != null) {
+    		this.variableProvider.cancelPendingLoad();
 			this.variableProvider.cleanup();
 		}
         this.variableProvider = new QueryVariableResolver(this, this.uuid, "Relational Query - " + this.getName());
@@ -1268,6 +1453,6 @@ public class QueryCache extends AbstractWabitObject implements StatementExecutor
 	}
 	
 	public String getStatement() {
-        return query.generateQuery();
+        return generateQuery();
     }
 }
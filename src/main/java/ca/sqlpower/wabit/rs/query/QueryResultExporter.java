@@ -0,0 +1,435 @@
+/*
+ * Copyright (c) 2009, SQL Power Group Inc.
+ *
+ * This file is part of Wabit.
+ *
+ * Wabit is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wabit is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. 
+ */
+
+package ca.sqlpower.wabit.rs.query;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+
+import javax.annotation.Nonnull;
+
+import org.apache.log4j.Logger;
+
+import ca.sqlpower.object.SPVariableHelper;
+import ca.sqlpower.sql.JDBCDataSource;
+import ca.sqlpower.sqlobject.SQLObjectException;
+import ca.sqlpower.util.Monitorable;
+import ca.sqlpower.util.MonitorableImpl;
+import ca.sqlpower.util.SQLPowerUtils;
+import ca.sqlpower.wabit.rs.CancellationToken;
+import ca.sqlpower.wabit.rs.ExecutionProfile;
+import ca.sqlpower.wabit.rs.ResultSetHandle;
+import ca.sqlpower.wabit.rs.ResultSetHandle.ResultSetType;
+import ca.sqlpower.wabit.rs.metrics.QueryMetrics;
+import ca.sqlpower.wabit.rs.metrics.QueryTrace;
+import ca.sqlpower.wabit.rs.metrics.QueryTrace.Phase;
+
+import au.com.bytecode.opencsv.CSVWriter;
+
+/**
+ * Writes every row of a {@link QueryCache}'s query to a stream as it is read
+ * from the database. Unlike the result sets of a {@link QueryCache}'s
+ * handles the rows are never held in memory, so any number of rows can be
+ * exported in constant memory.
+ * <p>
+ * The query is executed with the same variables as a regular execution, on
+ * a connection of the query's data source used only by the export. The
+ * connection's auto-commit is turned off during the export, as some drivers
+ * only use a cursor inside a transaction, and the {@link ExecutionProfile} of
+ * the data source is applied. The execution is recorded in the
+ * {@link QueryMetrics} and is stopped when the export is cancelled.
+ * <p>
+ * The export does not go through the {@link ResultSetHandle}s of the query,
+ * as they keep every row they read.
+ */
+public class QueryResultExporter implements Monitorable {
+
+	private static final Logger logger = Logger.getLogger(QueryResultExporter.class);
+
+	/**
+	 * The formats the rows can be written in.
+	 */
+	public enum Format {
+		
+		/**
+		 * Comma separated values.
+		 */
+		CSV("csv"),
+		
+		/**
+		 * Tab separated values.
+		 */
+		TSV("tsv"),
+		
+		/**
+		 * An XML spreadsheet that Excel and most other spreadsheet programs
+		 * can open. Unlike a binary workbook it can be written one row at a
+		 * time.
+		 */
+		EXCEL_XML("xml");
+		
+		private final String extension;
+		
+		private Format(String extension) {
+			this.extension = extension;
+		}
+		
+		/**
+		 * Returns the usual file extension of the format, without the dot.
+		 */
+		public String getExtension() {
+			return extension;
+		}
+	}
+
+	/**
+	 * The number of rows the driver is asked to fetch at a time if neither
+	 * the exporter nor the execution profile of the data source sets one.
+	 */
+	public static final int DEFAULT_FETCH_SIZE = 1000;
+
+	/**
+	 * The progress is updated every time this many rows were written.
+	 */
+	private static final int PROGRESS_INTERVAL = 1000;
+
+	private final QueryCache query;
+
+	private final Format format;
+
+	private final OutputStream out;
+
+	/**
+	 * The number of rows fetched at a time, or 0 to use the execution profile
+	 * of the data source.
+	 */
+	private int fetchSize = 0;
+
+	private final MonitorableImpl monitorableHelper = new MonitorableImpl();
+
+	private final CancellationToken token = new CancellationToken();
+
+	/**
+	 * The statement being executed, kept to be cancelled with the export.
+	 */
+	private volatile PreparedStatement statement;
+
+	/**
+	 * @param query
+	 *            The query whose rows to export.
+	 * @param format
+	 *            The format to write the rows in.
+	 * @param out
+	 *            The stream to write to. It is not closed by the export.
+	 */
+	public QueryResultExporter(@Nonnull QueryCache query, @Nonnull Format format, 
+			@Nonnull OutputStream out) {
+		this.query = query;
+		this.format = format;
+		this.out = out;
+	}
+
+	/**
+	 * Sets the number of rows the driver is asked to fetch at a time instead
+	 * of the number the execution profile of the data source sets. This is
+	 * only a hint, some drivers fetch every row regardless.
+	 */
+	public void setFetchSize(int fetchSize) {
+		this.fetchSize = fetchSize;
+	}
+
+	/**
+	 * Executes the query and writes all of its rows. The query's row limit
+	 * does not apply to exports.
+	 * 
+	 * @return The number of rows written.
+	 * @throws IllegalStateException
+	 *             If the query is a streaming query, whose results never end.
+	 */
+	public int export() throws SQLException, SQLObjectException, IOException {
+		if (query.getDataSource() == null) {
+			throw new NullPointerException("Data source is null.");
+		}
+		if (query.isStreaming()) {
+			throw new IllegalStateException("The streaming query " + query.getName() + 
+					" cannot be exported as its results never end.");
+		}
+		monitorableHelper.setStarted(true);
+		monitorableHelper.setMessage("Executing " + query.getName());
+		JDBCDataSource dataSource = query.getDataSource();
+		String sql = query.generateQuery();
+		QueryTrace trace = new QueryTrace(dataSource.getName(), query.getUUID(), query.getName(), 
+				sql, ResultSetType.STREAMING);
+		trace.mark(Phase.QUEUE);
+		Phase phase = Phase.PREPARE;
+		int rows = 0;
+		Throwable exception = null;
+		Connection connection = null;
+		boolean autoCommit = true;
+		try {
+			ExecutionProfile profile = getProfile(dataSource);
+			connection = query.getSession().getContext().createConnection(dataSource);
+			autoCommit = connection.getAutoCommit();
+			if (autoCommit) {
+				// some drivers only use a cursor inside a transaction
+				connection.setAutoCommit(false);
+			}
+			statement = new SPVariableHelper(query).substituteForDb(connection, sql);
+			profile.applyTo(statement, dataSource.getName(), sql, 0);
+			trace.mark(phase);
+			phase = Phase.EXECUTE;
+			token.checkCancelled();
+			ResultSet rs = statement.executeQuery();
+			trace.mark(phase);
+			phase = Phase.FETCH;
+			try {
+				rows = write(profile.prepare(rs, dataSource.getName(), sql, 0));
+			} finally {
+				rs.close();
+			}
+			return rows;
+		} catch (SQLException e) {
+			exception = e;
+			throw e;
+		} catch (IOException e) {
+			exception = e;
+			throw e;
+		} catch (RuntimeException e) {
+			exception = e;
+			throw e;
+		} finally {
+			trace.mark(phase);
+			if (token.isCancelled()) {
+				trace.cancelled();
+			}
+			trace.finish(rows, exception);
+			QueryMetrics.executionFinished(trace);
+			if (statement != null) {
+				try {
+					statement.close();
+				} catch (SQLException e) {
+					logger.debug("Exception while closing the export statement", e);
+				}
+				statement = null;
+			}
+			if (connection != null) {
+				try {
+					if (autoCommit) {
+						connection.rollback();
+						connection.setAutoCommit(true);
+					}
+					connection.close();
+				} catch (SQLException e) {
+					logger.debug("Exception while closing the export connection", e);
+				}
+			}
+			monitorableHelper.setFinished(true);
+		}
+	}
+
+	/**
+	 * Returns the execution profile of the given data source with the fetch
+	 * size of this exporter. The rows are always fetched with a forward only
+	 * cursor, and a fetch size is set even if the data source leaves it to
+	 * the driver, as some drivers read every row at once otherwise.
+	 */
+	private ExecutionProfile getProfile(JDBCDataSource dataSource) {
+		ExecutionProfile profile = ExecutionProfile.forDataSource(dataSource);
+		int size = profile.getFetchSize();
+		if (fetchSize > 0) {
+			size = fetchSize;
+		} else if (size == 0) {
+			size = DEFAULT_FETCH_SIZE;
+		}
+		return new ExecutionProfile(size, true, false, profile.getLobStrategy());
+	}
+
+	/**
+	 * Writes the column names and then every row of the given result set to
+	 * the stream of this exporter, in its format.
+	 * 
+	 * @return The number of rows written.
+	 */
+	public int write(@Nonnull ResultSet rs) throws SQLException, IOException {
+		Writer writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
+		RowWriter rowWriter;
+		if (format == Format.EXCEL_XML) {
+			rowWriter = new SpreadsheetRowWriter(writer, query.getName());
+		} else {
+			rowWriter = new CSVRowWriter(writer, format == Format.TSV ? '\t' : ',');
+		}
+		
+		ResultSetMetaData rsmd = rs.getMetaData();
+		Object[] row = new Object[rsmd.getColumnCount()];
+		for (int i = 0; i < row.length; i++) {
+			row[i] = rsmd.getColumnLabel(i + 1);
+		}
+		rowWriter.writeRow(row);
+		
+		int rows = 0;
+		rs = token.wrap(rs);
+		while (rs.next()) {
+			for (int i = 0; i < row.length; i++) {
+				row[i] = rs.getObject(i + 1);
+			}
+			rowWriter.writeRow(row);
+			rows++;
+			if (rows % PROGRESS_INTERVAL == 0) {
+				monitorableHelper.setProgress(rows);
+				monitorableHelper.setMessage(rows + " rows exported");
+			}
+		}
+		rowWriter.finish();
+		monitorableHelper.setProgress(rows);
+		monitorableHelper.setMessage(rows + " rows exported");
+		return rows;
+	}
+
+	/**
+	 * Writes rows in one of the export formats.
+	 */
+	private interface RowWriter {
+		
+		void writeRow(Object[] values) throws IOException;
+
+		/**
+		 * Ends the output and flushes it to the stream.
+		 */
+		void finish() throws IOException;
+	}
+
+	private static class CSVRowWriter implements RowWriter {
+		
+		private final CSVWriter writer;
+		
+		private String[] line;
+		
+		public CSVRowWriter(Writer writer, char separator) {
+			this.writer = new CSVWriter(writer, separator);
+		}
+		
+		public void writeRow(Object[] values) throws IOException {
+			if (line == null) {
+				line = new String[values.length];
+			}
+			for (int i = 0; i < values.length; i++) {
+				line[i] = values[i] == null ? "" : values[i].toString();
+			}
+			writer.writeNext(line);
+		}
+		
+		public void finish() throws IOException {
+			writer.flush();
+		}
+	}
+
+	/**
+	 * Writes the rows as an XML spreadsheet with a single worksheet. Numbers
+	 * are written as numeric cells and everything else as text.
+	 */
+	private static class SpreadsheetRowWriter implements RowWriter {
+
+		private final Writer writer;
+
+		public SpreadsheetRowWriter(Writer writer, String sheetName) throws IOException {
+			this.writer = writer;
+			writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+			writer.write("<?mso-application progid=\"Excel.Sheet\"?>\n");
+			writer.write("<Workbook xmlns=\"urn:schemas-microsoft-com:office:spreadsheet\"" +
+					" xmlns:ss=\"urn:schemas-microsoft-com:office:spreadsheet\">\n");
+			writer.write("<Worksheet ss:Name=\"" + 
+					SQLPowerUtils.escapeXML(sheetName == null ? "Query" : sheetName) + "\">\n");
+			writer.write("<Table>\n");
+		}
+		
+		public void writeRow(Object[] values) throws IOException {
+			writer.write("<Row>");
+			for (Object value : values) {
+				if (value == null) {
+					writer.write("<Cell/>");
+				} else if (value instanceof Number) {
+					writer.write("<Cell><Data ss:Type=\"Number\">" + value + "</Data></Cell>");
+				} else {
+					writer.write("<Cell><Data ss:Type=\"String\">" + 
+							SQLPowerUtils.escapeXML(value.toString()) + "</Data></Cell>");
+				}
+			}
+			writer.write("</Row>\n");
+		}
+		
+		public void finish() throws IOException {
+			writer.write("</Table>\n</Worksheet>\n</Workbook>\n");
+			writer.flush();
+		}
+	}
+
+	/**
+	 * Cancels the export. The statement is cancelled if it is executing and
+	 * no more rows are written.
+	 */
+	public void setCancelled(boolean cancelled) {
+		monitorableHelper.setCancelled(cancelled);
+		if (cancelled) {
+			token.cancel();
+			PreparedStatement statement = this.statement;
+			if (statement != null) {
+				try {
+					statement.cancel();
+				} catch (SQLException e) {
+					logger.debug("Could not cancel the export statement", e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * The size of an export is not known until it completes.
+	 */
+	public Integer getJobSize() {
+		return null;
+	}
+
+	public String getMessage() {
+		return monitorableHelper.getMessage();
+	}
+
+	public int getProgress() {
+		return monitorableHelper.getProgress();
+	}
+
+	public boolean hasStarted() {
+		return monitorableHelper.hasStarted();
+	}
+
+	public boolean isCancelled() {
+		return monitorableHelper.isCancelled();
+	}
+
+	public boolean isFinished() {
+		return monitorableHelper.isFinished();
+	}
+}
@@ -121,6 +121,7 @@ import ca.sqlpower.wabit.rs.ResultSetProducerEvent;
 import ca.sqlpower.wabit.rs.ResultSetProducerListener;
 import ca.sqlpower.wabit.rs.query.QueryCache;
 import ca.sqlpower.wabit.swingui.action.CreateLayoutFromQueryAction;
+import ca.sqlpower.wabit.swingui.action.ExportQueryResultsAction;
 import ca.sqlpower.wabit.swingui.action.ExportSQLScriptAction;
 import ca.sqlpower.wabit.swingui.action.ExportWabitObjectAction;
 import ca.sqlpower.wabit.swingui.action.NewChartAction;
@@ -437,6 +438,9 @@ public class QueryPanel implements WabitPanel {
                 menuItem = new JMenuItem(new ExportSQLScriptAction(session, queryCache));
                 menuItem.setText("Export Query to SQL Script");
                 popupMenu.add(menuItem);
+                menuItem = new JMenuItem(new ExportQueryResultsAction(session, queryCache));
+                menuItem.setText("Export Results to CSV, TSV or Spreadsheet");
+                popupMenu.add(menuItem);
                 popupMenu.show(source, 0, source.getHeight());
             }
         }
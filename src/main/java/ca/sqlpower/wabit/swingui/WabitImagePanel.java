@@ -37,7 +37,10 @@ import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.beans.PropertyChangeEvent;
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -48,6 +51,7 @@ import java.util.Iterator;
 import java.util.List;
 
 import javax.imageio.ImageIO;
+import javax.imageio.stream.ImageInputStream;
 import javax.swing.AbstractAction;
 import javax.swing.Action;
 import javax.swing.ImageIcon;
@@ -301,7 +305,15 @@ public class WabitImagePanel implements WabitPanel {
         if (retVal == JFileChooser.APPROVE_OPTION) {
             logger.debug("Chosen file is " + imageChooser.getSelectedFile().getAbsolutePath());
             try {
-                image.setImage(ImageIO.read(imageChooser.getSelectedFile()));
+                // The file is kept as it is so it does not have to be encoded
+                // again when it is saved or exported. Only its format is
+                // checked here, the image decodes it once when it is shown.
+                byte[] encodedImage = readFile(imageChooser.getSelectedFile());
+                if (isReadableImage(encodedImage)) {
+                    image.setEncodedImage(encodedImage);
+                } else {
+                    image.setImage(null);
+                }
             } catch (IOException ex) {
                 throw new RuntimeException(ex);
             }
@@ -309,6 +321,36 @@ public class WabitImagePanel implements WabitPanel {
         }
     }
 
+    /**
+     * Returns true if {@link ImageIO} has a reader for the format of the
+     * given encoded image. The image is not decoded.
+     */
+    private static boolean isReadableImage(byte[] encodedImage) throws IOException {
+        ImageInputStream in = ImageIO.createImageInputStream(new ByteArrayInputStream(encodedImage));
+        try {
+            return in != null && ImageIO.getImageReaders(in).hasNext();
+        } finally {
+            if (in != null) {
+                in.close();
+            }
+        }
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int) file.length());
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
     public boolean applyChanges() {
         cleanup();
         return true;
@@ -59,12 +59,21 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.prefs.BackingStoreException;
 import java.util.prefs.Preferences;
 import java.util.regex.Pattern;
@@ -112,7 +121,6 @@ import javax.swing.text.SimpleAttributeSet;
 import javax.swing.text.StyleConstants;
 import javax.swing.tree.DefaultMutableTreeNode;
 import javax.swing.tree.DefaultTreeModel;
-import javax.swing.tree.TreeModel;
 import javax.swing.tree.TreePath;
 
 import net.miginfocom.swing.MigLayout;
@@ -136,7 +144,6 @@ import ca.sqlpower.sql.Olap4jDataSource;
 import ca.sqlpower.sql.PlDotIni;
 import ca.sqlpower.sql.SPDataSource;
 import ca.sqlpower.sqlobject.SQLDatabase;
-import ca.sqlpower.sqlobject.SQLObject;
 import ca.sqlpower.sqlobject.SQLObjectException;
 import ca.sqlpower.sqlobject.SQLObjectRuntimeException;
 import ca.sqlpower.swingui.MemoryMonitor;
@@ -174,15 +181,8 @@ import ca.sqlpower.wabit.enterprise.client.WabitClientSession;
 import ca.sqlpower.wabit.enterprise.client.security.CachingWabitAccessManager;
 import ca.sqlpower.wabit.enterprise.client.security.WabitAccessManager;
 import ca.sqlpower.wabit.image.WabitImage;
-import ca.sqlpower.wabit.report.CellSetRenderer;
-import ca.sqlpower.wabit.report.ChartRenderer;
-import ca.sqlpower.wabit.report.ContentBox;
-import ca.sqlpower.wabit.report.ImageRenderer;
-import ca.sqlpower.wabit.report.WabitLabel;
 import ca.sqlpower.wabit.report.Layout;
 import ca.sqlpower.wabit.report.Report;
-import ca.sqlpower.wabit.report.ReportContentRenderer;
-import ca.sqlpower.wabit.report.ResultSetRenderer;
 import ca.sqlpower.wabit.report.Template;
 import ca.sqlpower.wabit.report.chart.Chart;
 import ca.sqlpower.wabit.rs.olap.OlapQuery;
@@ -217,6 +217,7 @@ import ca.sqlpower.wabit.swingui.olap.OlapQueryPanel;
 import ca.sqlpower.wabit.swingui.report.LayoutPanel;
 import ca.sqlpower.wabit.swingui.report.ReportPanel;
 import ca.sqlpower.wabit.swingui.tree.SmartTreeTransferable;
+import ca.sqlpower.wabit.swingui.tree.WorkspaceSearchIndex;
 import ca.sqlpower.wabit.swingui.tree.WorkspaceTreeCellRenderer;
 import ca.sqlpower.wabit.swingui.tree.WorkspaceTreeModel;
 
@@ -1018,159 +1019,172 @@ public class WabitSwingSessionContextImpl implements WabitSwingSessionContext {
         }
 	}
 	
+	/**
+	 * The search index of each session's tree model. Indexes of sessions that
+	 * were closed are discarded at the next search.
+	 */
+	private final Map<WorkspaceTreeModel, WorkspaceSearchIndex> searchIndexes =
+		new HashMap<WorkspaceTreeModel, WorkspaceSearchIndex>();
+	
+	/**
+	 * Matches the search text against the search indexes so typing in the
+	 * search box does not wait for the matching.
+	 */
+	private final ExecutorService searchExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "Workspace search");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	
+	/**
+	 * Incremented for every search so the results of a search that was
+	 * replaced by a newer one are not displayed.
+	 */
+	private final AtomicInteger searchGeneration = new AtomicInteger();
+	
 	/**
 	 * This is the class that actually does the search on the search tree.
 	 * It implements 'Search' which is something used in the library to have
-	 * a generic search text box that looks nice and has regular expressions. 
+	 * a generic search text box that looks nice and has regular expressions.
+	 * <p>
+	 * The search goes through a {@link WorkspaceSearchIndex} of each session
+	 * on a background thread. The objects found through the words of the
+	 * indexes are displayed first, then the tree is replaced once the
+	 * remaining objects were checked.
 	 */
 	private class SearchWabitTree implements Search {
-		public void doSearch(Pattern p, boolean matchExactly) {
-			String searchString = searchTextArea.getText().trim();
-			
-			//clear the tree and start over
-			searchTreeRoot = new DefaultMutableTreeNode();
-			searchTreeModel = new DefaultTreeModel(searchTreeRoot);
-			searchTree.setModel(searchTreeModel);
+		public void doSearch(final Pattern p, final boolean matchExactly) {
+			final String searchString = searchTextArea.getText().trim();
+			final int generation = searchGeneration.incrementAndGet();
 			
 			//this just makes sure that we don't see an all workspaces tree when there is
 			//no text showing we are not sure if we actually want this
 			if (searchString.equals("")) {
+				showSearchResults(Collections.<WorkspaceSearchIndex.Match>emptyList());
 				searchScrollPane.setViewportView(explainText);
+				return;
 			} else {
 				searchScrollPane.setViewportView(searchTree);
 			}
 
-			//get all the tree models we can search
-			List<TreeModel> searchableModels = new ArrayList<TreeModel>();
+			//get the indexes of all the tree models we can search
+			final List<WorkspaceSearchIndex> indexes = new ArrayList<WorkspaceSearchIndex>();
+			Set<WorkspaceTreeModel> searchableModels = new HashSet<WorkspaceTreeModel>();
 			for (WabitSession session : getSessions()) {
 				if (!(session instanceof WabitSwingSession)) {
 					throw new IllegalStateException("Found non swing session in swing session context!");
 				}
-				JTree tree = ((WabitSwingSession) session).getTree();
-				searchableModels.add(tree.getModel());
+				WorkspaceTreeModel model = ((WabitSwingSession) session).getWorkspaceTreeModel();
+				searchableModels.add(model);
+				WorkspaceSearchIndex index = searchIndexes.get(model);
+				if (index == null) {
+					index = new WorkspaceSearchIndex(model);
+					searchIndexes.put(model, index);
+				}
+				index.update();
+				indexes.add(index);
+			}
+			for (Iterator<Map.Entry<WorkspaceTreeModel, WorkspaceSearchIndex>> it = searchIndexes.entrySet().iterator(); it.hasNext(); ) {
+				Map.Entry<WorkspaceTreeModel, WorkspaceSearchIndex> entry = it.next();
+				if (!searchableModels.contains(entry.getKey())) {
+					entry.getValue().cleanup();
+					it.remove();
+				}
 			}
 			
-			for (TreeModel originalModel : searchableModels) {
-				WorkspaceTreeModel model = (WorkspaceTreeModel) originalModel;
-				
-				//search the tree
-				ArrayList<Object> rootTreePath = new ArrayList<Object>();
-				rootTreePath.add(model.getRoot());
-				List<List<Object>> matchedTreePaths = searchTree(rootTreePath, model, p, matchExactly);
-				
-				//add everything into the tree if it's not already there
-				for (List<Object> treePath : matchedTreePaths) {
-					DefaultMutableTreeNode lastObject = (DefaultMutableTreeNode) searchTreeModel.getRoot();
-					for (Object object : treePath) {
-						int indexOfChild = -1;
-						for (int i = 0; i < lastObject.getChildCount(); i++) {
-							DefaultMutableTreeNode childNode = (DefaultMutableTreeNode) lastObject.getChildAt(i);
-							if (childNode.getUserObject().equals(object)) {
-								indexOfChild = i;
-								break;
-							}
-						}
-						if (indexOfChild == -1) {
-							DefaultMutableTreeNode currentNode = new DefaultMutableTreeNode(object);
-							searchTreeModel.insertNodeInto(currentNode, lastObject, lastObject.getChildCount());
-							lastObject = currentNode;
-						} else {
-							if (treePath.indexOf(object) != (treePath.size() - 1)) {
-								lastObject = (DefaultMutableTreeNode) searchTreeModel.getChild(lastObject, indexOfChild);
-							}
+			searchExecutor.execute(new Runnable() {
+				public void run() {
+					final List<WorkspaceSearchIndex.Snapshot> snapshots = new ArrayList<WorkspaceSearchIndex.Snapshot>();
+					try {
+						for (WorkspaceSearchIndex index : indexes) {
+							snapshots.add(index.getSnapshot());
 						}
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return;
+					}
+					final List<WorkspaceSearchIndex.Match> matches = new ArrayList<WorkspaceSearchIndex.Match>();
+					List<BitSet> found = new ArrayList<BitSet>();
+					for (WorkspaceSearchIndex.Snapshot snapshot : snapshots) {
+						BitSet snapshotFound = new BitSet();
+						matches.addAll(snapshot.searchWords(searchString, p, matchExactly, snapshotFound));
+						found.add(snapshotFound);
+					}
+					if (searchGeneration.get() != generation) return;
+					publishSearchResults(generation, matches);
+					
+					final List<WorkspaceSearchIndex.Match> remaining = new ArrayList<WorkspaceSearchIndex.Match>();
+					for (int i = 0; i < snapshots.size(); i++) {
+						if (searchGeneration.get() != generation) return;
+						remaining.addAll(snapshots.get(i).searchRemaining(searchString, p, matchExactly, found.get(i)));
+					}
+					if (!remaining.isEmpty()) {
+						List<WorkspaceSearchIndex.Match> allMatches = new ArrayList<WorkspaceSearchIndex.Match>(matches);
+						allMatches.addAll(remaining);
+						publishSearchResults(generation, allMatches);
 					}
 				}
-
-				//Show everything in the tree, we would do this as we go but it doesn't wan't to work.
-				searchTree.expandPath(new TreePath(searchTreeModel.getRoot()));
-				for (int i = 0; i < searchTree.getRowCount(); i++) {
-					searchTree.expandRow(i); 
-				}
-				
-			}
-			
+			});
 		}
 		
 	}
-	
-	private boolean isSafeForSearchChild(Object currentObject) {
-		if (currentObject instanceof SQLObject) {
-			//only search populated tables
-			if (!((SQLObject) currentObject).isPopulated()) {
-				return false;
-			}
-		} else if (currentObject instanceof WabitDataSource) {
-			SPDataSource ds = ((WabitDataSource) currentObject).getSPDataSource();
-			if (ds instanceof Olap4jDataSource) {
-				//TODO there is no way of knowing whether an OLAP query is cached...
-				//We should eventually make the search run in the background
-				return false;
+
+	/**
+	 * Displays the given search results on the event dispatch thread unless a
+	 * newer search was started.
+	 */
+	private void publishSearchResults(final int generation, final List<WorkspaceSearchIndex.Match> matches) {
+		SwingUtilities.invokeLater(new Runnable() {
+			public void run() {
+				if (searchGeneration.get() == generation) {
+					showSearchResults(matches);
+				}
 			}
-		}
-		return true;
+		});
 	}
-	
+
 	/**
-	 * Recursive function which searches all of the objects' names in a tree
-	 * model for a given string.
-	 * 
-	 * @param searchString
-	 * 		The string to search all the names of objects in the treemodel for
-	 * @param currentTreePath
-	 * 		The current path in the tree (since the function is recursive)
-	 * @param model
-	 * 		The tree model being searched
-	 * @return
-	 * 		Returns a 
-				WabitSwingSessionContextImpl.this.createConnelist of paths to all the tree objects in a model which have
-	 * 		a name which contains the searchString
+	 * Replaces the search tree with one built from the given matches. The
+	 * whole tree is built before it is given to the {@link JTree}, and better
+	 * ranked matches are placed first among their siblings.
 	 */
-	private List<List<Object>> searchTree(List<Object> currentTreePath, 
-			WorkspaceTreeModel model, Pattern p, boolean matchExactly) {
-		
-		Object currentObject = currentTreePath.get(currentTreePath.size() - 1);
-
-		ArrayList<List<Object>> returnList = new ArrayList<List<Object>>();
-
-		if (isSafeForSearchChild(currentObject)) {
-			for (int i = 0; i < model.getChildCount(currentObject); i++) {
-				List<Object> childPath = new ArrayList<Object>(currentTreePath);
-				childPath.add(model.getChild(currentObject, i));
-				returnList.addAll(searchTree(childPath, model, p, matchExactly));
+	private void showSearchResults(List<WorkspaceSearchIndex.Match> matches) {
+		List<WorkspaceSearchIndex.Match> rankedMatches = new ArrayList<WorkspaceSearchIndex.Match>(matches);
+		Collections.sort(rankedMatches, new Comparator<WorkspaceSearchIndex.Match>() {
+			public int compare(WorkspaceSearchIndex.Match m1, WorkspaceSearchIndex.Match m2) {
+				return m1.getRank() - m2.getRank();
 			}
-		}
-		if (currentObject instanceof WabitObject) { //It could be a FolderNode...
-			WabitObject currentWO = (WabitObject) currentObject;
-			String name = currentWO.getName();
-			if (currentWO instanceof ContentBox) {
-				ReportContentRenderer content = ((ContentBox) currentWO).getContentRenderer();
-				if (content instanceof CellSetRenderer) {
-					name = ((CellSetRenderer) content).getContent().getName();
-				} else if (content instanceof ResultSetRenderer) {
-					name = ((ResultSetRenderer) content).getContent().getName();
-				} else if (content instanceof WabitLabel) {
-					name = ((WabitLabel) content).getText();
-				} else if (content instanceof ChartRenderer) {
-					name = ((ChartRenderer) content).getContent().getName();
-				} else if (content instanceof ImageRenderer) {
-					name = ((ImageRenderer) content).getImage().getName();
+		});
+		
+		searchTreeRoot = new DefaultMutableTreeNode();
+		Map<DefaultMutableTreeNode, Map<Object, DefaultMutableTreeNode>> childNodes = 
+			new HashMap<DefaultMutableTreeNode, Map<Object, DefaultMutableTreeNode>>();
+		for (WorkspaceSearchIndex.Match match : rankedMatches) {
+			DefaultMutableTreeNode lastNode = searchTreeRoot;
+			for (Object object : match.getPath()) {
+				Map<Object, DefaultMutableTreeNode> children = childNodes.get(lastNode);
+				if (children == null) {
+					children = new HashMap<Object, DefaultMutableTreeNode>();
+					childNodes.put(lastNode, children);
+				}
+				DefaultMutableTreeNode node = children.get(object);
+				if (node == null) {
+					node = new DefaultMutableTreeNode(object);
+					lastNode.add(node);
+					children.put(object, node);
 				}
+				lastNode = node;
 			}
-            if (matchExactly && p.matcher(name).matches()) {
-				returnList.add(currentTreePath);
-            } else if (!matchExactly && p.matcher(name).find()) {
-				returnList.add(currentTreePath);
-            }
-		} else if (currentObject instanceof SQLObject) {
-			String name = ((SQLObject) currentObject).getName();
-            if (matchExactly && p.matcher(name).matches()) {
-				returnList.add(currentTreePath);
-            } else if (!matchExactly && p.matcher(name).find()) {
-				returnList.add(currentTreePath);
-            }
-		} 
-		return returnList;
+		}
+		searchTreeModel = new DefaultTreeModel(searchTreeRoot);
+		searchTree.setModel(searchTreeModel);
+		
+		//Show everything in the tree
+		for (int i = 0; i < searchTree.getRowCount(); i++) {
+			searchTree.expandRow(i); 
+		}
 	}
 
 	public WabitSwingSession createSession() {
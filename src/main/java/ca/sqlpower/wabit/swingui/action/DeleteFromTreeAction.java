@@ -24,8 +24,9 @@ import java.awt.Component;
 import java.awt.Dimension;
 import java.awt.Toolkit;
 import java.awt.event.ActionEvent;
-import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.Callable;
 
 import javax.swing.AbstractAction;
@@ -49,8 +50,8 @@ import ca.sqlpower.swingui.SPSUtils;
 import ca.sqlpower.swingui.object.WorkspaceGraphTreeModel;
 import ca.sqlpower.util.SQLPowerUtils;
 import ca.sqlpower.util.UserPrompterFactory;
-import ca.sqlpower.wabit.WabitObject;
 import ca.sqlpower.wabit.WabitWorkspace;
+import ca.sqlpower.wabit.WorkspaceDependencyGraph;
 import ca.sqlpower.wabit.swingui.WabitIcons;
 import ca.sqlpower.wabit.swingui.tree.WorkspaceTreeCellRenderer;
 
@@ -112,17 +113,25 @@ public class DeleteFromTreeAction extends AbstractAction {
 
     public void actionPerformed(ActionEvent e) {
 
-        final WorkspaceGraphModel graph = new WorkspaceGraphModel(workspace, item, true, true);
+        final WorkspaceDependencyGraph graph = workspace.getDependencyGraph();
         
-        List<SPObject> dependentList = new ArrayList<SPObject>(graph.getNodes());
+        List<SPObject> dependentList = graph.getDependants(item);
         dependentList.remove(item);
         
+        // The objects the user agreed to delete.
+        final Set<SPObject> confirmed = new HashSet<SPObject>();
         if (dependentList.isEmpty()) {
             int response = JOptionPane.showConfirmDialog(parent, 
                     "Do you really wish to delete " + item.getName(), "Confirm Delete", 
                     JOptionPane.YES_NO_OPTION);
             if (response != JOptionPane.YES_OPTION) return;
+            confirmed.add(item);
         } else {
+            // The tree shows the path to each dependant, which only the full
+            // graph model of the workspace has. The objects it shows are the
+            // ones deleted.
+            final WorkspaceGraphModel graphModel = new WorkspaceGraphModel(workspace, item, true, true);
+            confirmed.addAll(graphModel.getNodes());
             
             DataEntryPanel displayPanel = new DataEntryPanel() {
 
@@ -141,7 +150,7 @@ public class DeleteFromTreeAction extends AbstractAction {
                         + item.getName() 
                         + " and its dependent objects?");
                     panel.add(questionLabel, BorderLayout.NORTH);
-                    final JTree dependencyTree = new JTree(new WorkspaceGraphTreeModel(graph));
+                    final JTree dependencyTree = new JTree(new WorkspaceGraphTreeModel(graphModel));
                     for (int i = 0; i < dependencyTree.getRowCount(); i++) {
                         dependencyTree.expandRow(i);
                     }
@@ -185,10 +194,8 @@ public class DeleteFromTreeAction extends AbstractAction {
             if (!deleteConfirmed) return;
         }
         
-        SPObject startNode = graph.getGraphStartNode();
-        
         try {
-            boolean nodeRemoved = removeNode(startNode, graph);
+            boolean nodeRemoved = removeNode(item, graph, confirmed);
             if (!nodeRemoved) {
                 JOptionPane.showMessageDialog(parent, "The object " + 
                         item.getName() + " or one of its dependencies was not removed " +
@@ -206,23 +213,58 @@ public class DeleteFromTreeAction extends AbstractAction {
     }
 
     /**
-     * This recursive method will remove the given node and all nodes that
-     * are reachable from it from their parents based on the graph given.
+     * Removes the given node and the objects in the given graph model, which
+     * must be the objects that depend on the node, from their parents.
      * <p>
      * package private for testing.
      * 
+     * @see #removeNode(SPObject, WorkspaceDependencyGraph, Set)
+     */
+    boolean removeNode(SPObject nodeToRemove, WorkspaceGraphModel graph) throws IllegalArgumentException, ObjectDependentException  {
+        return removeNode(nodeToRemove, workspace.getDependencyGraph(), 
+                new HashSet<SPObject>(graph.getNodes()));
+    }
+
+    /**
+     * Removes the given node and every object that depends on it from their
+     * parents, as long as they are all in the given set of objects the user
+     * agreed to delete. Nothing is removed if an object that is not in the
+     * set depends on the node, which happens when the workspace changed
+     * after the user was asked.
+     * 
      * @param nodeToRemove
-     *            The node to remove from its parents. The nodes reachable
-     *            from this node based on the given graph will also be
-     *            removed from their parents.
+     *            The node to remove from its parent.
      * @param graph
-     *            The graph that will decide what objects are adjacent to
-     *            this node. As this method is being used for removing a
-     *            {@link WabitObject} and its dependencies from the tree
-     *            this graph should contain the {@link WabitObject} being
-     *            removed by the action and all of the {@link WabitObject}s
-     *            depending on this object and the dependent object's
-     *            dependencies.
+     *            The dependency graph of the workspace, which decides what
+     *            objects depend on this node and are removed with it.
+     * @param confirmed
+     *            The objects that may be removed, including the node.
+     * @return true if the node and its dependants were successfully removed.
+     *         False otherwise.
+     * @throws ObjectDependentException
+     *             Thrown if an object that is not in the confirmed set depends
+     *             on the node.
+     * @throws IllegalArgumentException
+     *             Thrown if a node being removed is not a child of its
+     *             parent. This suggests there is something wrong with the
+     *             parent/child relationships in the workspace.
+     */
+    private boolean removeNode(SPObject nodeToRemove, WorkspaceDependencyGraph graph, 
+            Set<SPObject> confirmed) throws IllegalArgumentException, ObjectDependentException {
+        for (SPObject dependant : graph.getDependants(nodeToRemove)) {
+            if (!confirmed.contains(dependant)) {
+                throw new ObjectDependentException("The object " + dependant.getName() + 
+                        " started depending on " + nodeToRemove.getName() + 
+                        " after the delete was confirmed.");
+            }
+        }
+        return removeConfirmedNode(nodeToRemove, graph);
+    }
+
+    /**
+     * This recursive method will remove the given node and all nodes that
+     * depend on it from their parents based on the graph given.
+     * 
      * @return true if the node and its descendants were successful. False
      *         otherwise.
      * @throws ObjectDependentException
@@ -230,21 +272,17 @@ public class DeleteFromTreeAction extends AbstractAction {
      *             dependent on other objects existing. This suggests that
      *             there is a problem in the graph given that should connect
      *             all of the objects to their dependencies.
-     * @throws IllegalArgumentException
-     *             Thrown if a node being removed is not a child of its
-     *             parent. This suggests there is something wrong with the
-     *             parent/child relationships in the workspace.
      */
-    boolean removeNode(SPObject nodeToRemove, WorkspaceGraphModel graph) throws IllegalArgumentException, ObjectDependentException  {
+    private boolean removeConfirmedNode(SPObject nodeToRemove, WorkspaceDependencyGraph graph) throws IllegalArgumentException, ObjectDependentException  {
         boolean successfullyRemoved = true;
-        for (SPObject dependent : graph.getAdjacentNodes(nodeToRemove)) {
+        for (SPObject dependent : graph.getDirectDependants(nodeToRemove)) {
             
             //Check if the dependency exists to prevent infinite recursion if there is
             //a cycle in the graph.
             if (!dependent.getDependencies().contains(nodeToRemove)) continue;
             
             dependent.removeDependency(nodeToRemove);
-            successfullyRemoved = successfullyRemoved && removeNode(dependent, graph);
+            successfullyRemoved = successfullyRemoved && removeConfirmedNode(dependent, graph);
             if (logger.isDebugEnabled() && !successfullyRemoved) {
             	logger.debug("Could not remove " + dependent.getName());
             }
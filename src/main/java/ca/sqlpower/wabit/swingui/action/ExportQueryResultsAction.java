@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) 2009, SQL Power Group Inc.
+ *
+ * This file is part of Wabit.
+ *
+ * Wabit is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wabit is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. 
+ */
+
+package ca.sqlpower.wabit.swingui.action;
+
+import java.awt.event.ActionEvent;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.swing.AbstractAction;
+import javax.swing.JFileChooser;
+import javax.swing.JOptionPane;
+import javax.swing.ProgressMonitor;
+import javax.swing.filechooser.FileFilter;
+import javax.swing.filechooser.FileNameExtensionFilter;
+
+import ca.sqlpower.swingui.ProgressWatcher;
+import ca.sqlpower.swingui.SPSUtils;
+import ca.sqlpower.swingui.SPSwingWorker;
+import ca.sqlpower.swingui.SwingWorkerRegistry;
+import ca.sqlpower.wabit.rs.query.QueryCache;
+import ca.sqlpower.wabit.rs.query.QueryResultExporter;
+import ca.sqlpower.wabit.rs.query.QueryResultExporter.Format;
+import ca.sqlpower.wabit.swingui.WabitSwingSession;
+import ca.sqlpower.wabit.swingui.WabitSwingSessionContext;
+
+/**
+ * This action will export all of the rows of the given query to a CSV, TSV
+ * or spreadsheet file when it is executed. The rows are written as they are
+ * read from the database in a background worker which can be cancelled from
+ * its progress dialog.
+ */
+public class ExportQueryResultsAction extends AbstractAction {
+
+	/**
+	 * Writes the rows of a query to a file.
+	 */
+	private static class ExportWorker extends SPSwingWorker {
+		
+		private final QueryResultExporter exporter;
+		
+		private final OutputStream out;
+		
+		private final WabitSwingSessionContext context;
+
+		public ExportWorker(SwingWorkerRegistry registry, WabitSwingSessionContext context, 
+				QueryCache query, Format format, File file) throws IOException {
+			super(registry);
+			this.context = context;
+			out = new BufferedOutputStream(new FileOutputStream(file));
+			exporter = new QueryResultExporter(query, format, out);
+		}
+
+		@Override
+		public void doStuff() throws Exception {
+			try {
+				exporter.export();
+			} finally {
+				out.close();
+			}
+		}
+		
+		@Override
+		public void cleanup() throws Exception {
+			if (getDoStuffException() != null && !exporter.isCancelled()) {
+				SPSUtils.showExceptionDialogNoReport(context.getFrame(), 
+						"Export Failed", getDoStuffException());
+			}
+		}
+		
+		@Override
+		public void setCancelled(boolean cancelled) {
+			super.setCancelled(cancelled);
+			exporter.setCancelled(cancelled);
+		}
+
+		@Override
+		protected Integer getJobSizeImpl() {
+			return exporter.getJobSize();
+		}
+
+		@Override
+		protected String getMessageImpl() {
+			return exporter.getMessage();
+		}
+
+		@Override
+		protected int getProgressImpl() {
+			return exporter.getProgress();
+		}
+
+		@Override
+		protected boolean hasStartedImpl() {
+			return exporter.hasStarted();
+		}
+
+		@Override
+		protected boolean isFinishedImpl() {
+			return exporter.isFinished();
+		}
+	}
+
+	private final QueryCache query;
+	
+	private final WabitSwingSession session;
+	
+	private final WabitSwingSessionContext context;
+
+	public ExportQueryResultsAction(WabitSwingSession session, QueryCache query) {
+		super("Export Results...");
+		this.session = session;
+		this.query = query;
+		context = (WabitSwingSessionContext) session.getContext();
+	}
+
+	public void actionPerformed(ActionEvent e) {
+		if (query.isStreaming()) {
+			JOptionPane.showMessageDialog(context.getFrame(), 
+					"The results of a streaming query never end, so they cannot be exported.", 
+					"Export Results", JOptionPane.INFORMATION_MESSAGE);
+			return;
+		}
+		File defaultFile = null;
+		if (context.getActiveSession() != null) {
+			defaultFile = context.getActiveSwingSession().getCurrentURIAsFile();
+		}
+		JFileChooser chooser = new JFileChooser(defaultFile);
+		chooser.setDialogTitle("Select the file to export the results to.");
+		chooser.setAcceptAllFileFilterUsed(false);
+		FileFilter csvFilter = new FileNameExtensionFilter("Comma Separated Values (*.csv)", 
+				Format.CSV.getExtension());
+		FileFilter tsvFilter = new FileNameExtensionFilter("Tab Separated Values (*.tsv)", 
+				Format.TSV.getExtension());
+		FileFilter xmlFilter = new FileNameExtensionFilter("XML Spreadsheet (*.xml)", 
+				Format.EXCEL_XML.getExtension());
+		chooser.addChoosableFileFilter(csvFilter);
+		chooser.addChoosableFileFilter(tsvFilter);
+		chooser.addChoosableFileFilter(xmlFilter);
+		chooser.setFileFilter(csvFilter);
+		
+		int retval = chooser.showSaveDialog(context.getFrame());
+		if (retval != JFileChooser.APPROVE_OPTION) {
+			return;
+		}
+		
+		Format format;
+		if (chooser.getFileFilter() == tsvFilter) {
+			format = Format.TSV;
+		} else if (chooser.getFileFilter() == xmlFilter) {
+			format = Format.EXCEL_XML;
+		} else {
+			format = Format.CSV;
+		}
+		File file = chooser.getSelectedFile();
+		if (!file.getName().toLowerCase().endsWith("." + format.getExtension())) {
+			file = new File(file.getPath() + "." + format.getExtension());
+		}
+		
+		final ExportWorker worker;
+		try {
+			worker = new ExportWorker(session, context, query, format, file);
+		} catch (IOException ex) {
+			throw new RuntimeException(ex);
+		}
+		ProgressMonitor monitor = new ProgressMonitor(context.getFrame(), 
+				"Exporting " + query.getName(), "", 0, 1);
+		monitor.setMillisToPopup(0);
+		new ProgressWatcher(monitor, worker).start();
+		new Thread(worker).start();
+	}
+}
@@ -103,6 +103,9 @@ public class Olap4JTreeCellRenderer extends DefaultTreeCellRenderer {
             } else if (value instanceof NamedSet) {
                 configureMe.setText(((NamedSet) value).getName());
                 configureMe.setIcon(OlapIcons.NAMEDSET_ICON);
+            } else if (Olap4jTreeModel.isPlaceholder(value)) {
+                configureMe.setText(value.toString());
+                configureMe.setIcon(null);
             } else {
                 logger.warn("Leaving default label for unknown tree node " + value);
             }
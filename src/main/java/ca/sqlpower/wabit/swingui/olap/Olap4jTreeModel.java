@@ -22,10 +22,20 @@ package ca.sqlpower.wabit.swingui.olap;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.swing.SwingUtilities;
+import javax.swing.event.TreeModelEvent;
 import javax.swing.event.TreeModelListener;
 import javax.swing.tree.TreeModel;
 import javax.swing.tree.TreePath;
@@ -45,6 +55,8 @@ import org.olap4j.metadata.NamedSet;
 import org.olap4j.metadata.Property;
 import org.olap4j.metadata.Schema;
 
+import ca.sqlpower.wabit.rs.olap.OlapMetadataCache;
+
 /**
  * Models the metadata structure under a list of olap4j database connections.
  * <p>
@@ -66,11 +78,47 @@ import org.olap4j.metadata.Schema;
  *         <li type="circle">Dimension (shared)</li>
  *         </ul></li>
  *     </ul></li>
+ * <p>
+ * The children of each node are loaded once and kept in an
+ * {@link OlapMetadataCache}, which can be shared with other trees and queries
+ * on the same data source. The members of a level or member are loaded all
+ * at once, as olap4j cannot load part of them, but only
+ * {@value #MEMBER_PAGE_SIZE} of them are shown at a time, with the remaining
+ * members under a {@link MemberPage} node at the end of each page. If the model is created to load in the background, children
+ * requested on the event dispatch thread that are not loaded yet are shown as
+ * a single {@link LoadingNode} until they have been loaded on a worker thread.
  */
 public class Olap4jTreeModel implements TreeModel {
     
     private static final Logger logger = Logger.getLogger(Olap4jTreeModel.class);
 
+    /**
+     * The number of members shown under a level, member or member page before
+     * the remaining members are moved under another {@link MemberPage}.
+     */
+    public static final int MEMBER_PAGE_SIZE = 500;
+
+    /**
+     * The number of threads loading children for the models that load in the
+     * background.
+     */
+    private static final int LOADER_THREADS = 2;
+
+    /**
+     * Loads the children of nodes for all of the models that load in the
+     * background.
+     */
+    private static final ExecutorService loader = Executors.newFixedThreadPool(LOADER_THREADS, 
+            new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+        
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "OLAP metadata loader " + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
     public class OlapTreeRoot {
         
         /** These are the children of the root object. */
@@ -92,10 +140,108 @@ public class Olap4jTreeModel implements TreeModel {
             return "Current Connection";
         }
     }
+
+    /**
+     * A placeholder that is the only child of a node while that node's
+     * children are being loaded in the background.
+     */
+    public static class LoadingNode {
+        
+        private final Object parent;
+        
+        private LoadingNode(Object parent) {
+            this.parent = parent;
+        }
+        
+        public Object getParent() {
+            return parent;
+        }
+        
+        /**
+         * A new placeholder is returned every time the children of a node
+         * that is loading are asked for, so placeholders of the same node
+         * are equal for the tree to find the one it holds.
+         */
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof LoadingNode && ((LoadingNode) obj).parent == parent;
+        }
+        
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(parent);
+        }
+        
+        @Override
+        public String toString() {
+            return "Loading...";
+        }
+    }
+
+    /**
+     * A node holding the members that come after the first
+     * {@link Olap4jTreeModel#MEMBER_PAGE_SIZE} members of a level or member.
+     * Its children are the next page of members followed by another page node
+     * if there are more members left.
+     */
+    public static class MemberPage {
+        
+        private final List<?> members;
+        private final int start;
+        
+        private MemberPage(List<?> members, int start) {
+            this.members = members;
+            this.start = start;
+        }
+        
+        @Override
+        public String toString() {
+            int end = Math.min(start + MEMBER_PAGE_SIZE, members.size());
+            return "More members (" + (start + 1) + " - " + end + " of " + members.size() + ")";
+        }
+    }
+
+    /**
+     * Returns true if the given node is one of the nodes this model adds to
+     * the tree itself instead of an olap4j metadata object.
+     */
+    public static boolean isPlaceholder(Object node) {
+        return node instanceof LoadingNode || node instanceof MemberPage;
+    }
     
     private final OlapTreeRoot root;
     private final Class<?> forceLeafType;
     private final Class<?> hideNodeType;
+
+    /**
+     * The cache the children of the metadata objects are loaded into.
+     */
+    private final OlapMetadataCache metadataCache;
+
+    /**
+     * If true, children that are not loaded yet are loaded on a worker thread
+     * when they are requested on the event dispatch thread.
+     */
+    private final boolean loadInBackground;
+
+    /**
+     * The children of each node as they are shown in this tree, after hiding
+     * and paging. This is only accessed on the thread the tree is used on.
+     */
+    private final Map<Object, List<?>> visibleChildren = new IdentityHashMap<Object, List<?>>();
+
+    /**
+     * The node each node was shown under, used to build the path to a node
+     * whose children have finished loading in the background.
+     */
+    private final Map<Object, Object> parents = new IdentityHashMap<Object, Object>();
+
+    /**
+     * The nodes whose children are currently being loaded in the background.
+     */
+    private final Set<Object> loading = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+    
+    private final List<TreeModelListener> treeModelListeners = new CopyOnWriteArrayList<TreeModelListener>();
     
     /**
      * Creates a full tree model of the given list of olap connections.
@@ -123,20 +269,163 @@ public class Olap4jTreeModel implements TreeModel {
      * @param class1
      */
     public Olap4jTreeModel(List<?> rootItems, Class<?> forceLeafType, Class<?> hideNodeType) {
+        this(rootItems, forceLeafType, hideNodeType, new OlapMetadataCache(), false);
+    }
+
+    /**
+     * Creates a tree model of the given list of olap connections that loads
+     * its metadata through the given cache.
+     * 
+     * @param rootItems
+     *            The olap4j metadata objects that should appear under the
+     *            (hidden) root node of the tree.
+     * @param forceLeafType
+     *            The type that should be considered a leaf, or null.
+     * @param hideNodeType
+     *            The type that should not be shown at all, or null.
+     * @param metadataCache
+     *            The cache to load the metadata through. This is normally the
+     *            cache of the data source the root items come from so the
+     *            metadata is shared with the queries on that data source.
+     * @param loadInBackground
+     *            If true, children requested on the event dispatch thread that
+     *            have not been loaded yet will be loaded on a worker thread and
+     *            a {@link LoadingNode} will be shown until they are loaded.
+     *            Trees that expand their rows right after being created should
+     *            pass false.
+     */
+    public Olap4jTreeModel(List<?> rootItems, Class<?> forceLeafType, Class<?> hideNodeType,
+            OlapMetadataCache metadataCache, boolean loadInBackground) {
         root = new OlapTreeRoot(rootItems);
         this.forceLeafType = forceLeafType;
         this.hideNodeType = hideNodeType;
+        this.metadataCache = metadataCache;
+        this.loadInBackground = loadInBackground;
     }
 
+    /**
+     * Returns the children of the given node as they are shown in this tree.
+     */
+    private List<?> getChildren(Object parent) {
+        List<?> children = visibleChildren.get(parent);
+        if (children != null) return children;
+        
+        if (forceLeafType != null && forceLeafType.isInstance(parent)) {
+            children = Collections.emptyList();
+        } else if (parent instanceof LoadingNode) {
+            children = Collections.emptyList();
+        } else if (parent instanceof MemberPage) {
+            MemberPage page = (MemberPage) parent;
+            children = createPage(page.members, page.start);
+        } else if (parent instanceof OlapTreeRoot) {
+            children = filterChildren(((OlapTreeRoot) parent).children);
+        } else {
+            List<?> loadedChildren = metadataCache.getChildren(parent);
+            if (loadedChildren == null) {
+                if (loadInBackground && SwingUtilities.isEventDispatchThread()) {
+                    loadChildrenInBackground(parent);
+                    // not stored so the children are shown once they are loaded.
+                    return Collections.singletonList(new LoadingNode(parent));
+                }
+                loadedChildren = metadataCache.putChildren(parent, loadChildren(parent));
+            }
+            return showChildren(parent, loadedChildren);
+        }
+        
+        for (Object child : children) {
+            parents.put(child, parent);
+        }
+        visibleChildren.put(parent, children);
+        logger.debug("Children of type " + parent.getClass() + " are " + children);
+        return children;
+    }
 
-    private List<? extends Object> getChildren(Object parent) {
+    /**
+     * Hides and pages the loaded children of the given metadata object and
+     * remembers them as the children shown under it.
+     */
+    private List<?> showChildren(Object parent, List<?> loadedChildren) {
+        List<?> children = filterChildren(loadedChildren);
+        if (parent instanceof Level || parent instanceof Member) {
+            children = createPage(children, 0);
+        }
+        for (Object child : children) {
+            parents.put(child, parent);
+        }
+        visibleChildren.put(parent, children);
+        logger.debug("Children of type " + parent.getClass() + " are " + children);
+        return children;
+    }
+
+    /**
+     * Returns the members in the given list starting at the given index, up
+     * to the page size, followed by a {@link MemberPage} for the remaining
+     * members if there are any.
+     */
+    private List<?> createPage(List<?> members, int start) {
+        if (start == 0 && members.size() <= MEMBER_PAGE_SIZE) return members;
+        int end = Math.min(start + MEMBER_PAGE_SIZE, members.size());
+        List<Object> page = new ArrayList<Object>(end - start + 1);
+        page.addAll(members.subList(start, end));
+        if (end < members.size()) {
+            page.add(new MemberPage(members, end));
+        }
+        return page;
+    }
+
+    /**
+     * Removes the children of the type hidden by this tree from the given list.
+     */
+    private List<?> filterChildren(List<?> children) {
+        if (hideNodeType == null) return children;
+        List<Object> filteredChildren = new ArrayList<Object>(children.size());
+        for (Object child : children) {
+            if (!hideNodeType.isInstance(child)) {
+                filteredChildren.add(child);
+            }
+        }
+        return filteredChildren;
+    }
+
+    /**
+     * Loads the children of the given node on a worker thread and notifies
+     * the listeners of this model on the event dispatch thread that the node's
+     * structure changed once they are loaded. The loaded children are shown
+     * even if they were too many to be kept in the cache.
+     */
+    private void loadChildrenInBackground(final Object parent) {
+        if (!loading.add(parent)) return;
+        loader.execute(new Runnable() {
+            public void run() {
+                List<?> loaded = Collections.emptyList();
+                try {
+                    loaded = metadataCache.putChildren(parent, loadChildren(parent));
+                } catch (RuntimeException e) {
+                    logger.error("Could not load the children of " + parent, e);
+                    metadataCache.putChildren(parent, loaded);
+                } finally {
+                    final List<?> loadedChildren = loaded;
+                    SwingUtilities.invokeLater(new Runnable() {
+                        public void run() {
+                            loading.remove(parent);
+                            showChildren(parent, loadedChildren);
+                            fireTreeStructureChanged(parent);
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    /**
+     * Loads the children of the given olap4j metadata object. This can be
+     * slow and should not be called on the event dispatch thread for models
+     * that load in the background.
+     */
+    private List<? extends Object> loadChildren(Object parent) {
         List<?> children;
         try {
-            if (forceLeafType != null && forceLeafType.isInstance(parent)) {
-                children = Collections.emptyList();
-            } else if (parent instanceof OlapTreeRoot) {
-                children = ((OlapTreeRoot) parent).children;
-            } else if (parent instanceof OlapConnection) {
+            if (parent instanceof OlapConnection) {
                 children = ((OlapConnection) parent).getCatalogs();
             } else if (parent instanceof Catalog) {
                 List<Schema> childrenWithDuplicates = ((Catalog) parent).getSchemas();
@@ -164,7 +453,6 @@ public class Olap4jTreeModel implements TreeModel {
                 NamedList<Cube> cubes = s.getCubes();
                 NamedList<Dimension> sharedDimensions = s.getSharedDimensions();
 
-                // This could be cached, but it probably wouldn't make a big difference
                 List<Object> schemaKids = new ArrayList<Object>(cubes.size() + sharedDimensions.size());
 
                 schemaKids.addAll(cubes);
@@ -219,27 +507,35 @@ public class Olap4jTreeModel implements TreeModel {
         } catch (OlapException ex) {
             throw new RuntimeException(ex);
         }
-        
-        if (hideNodeType != null) {
-            List<Object> filteredChildren = new ArrayList<Object>(children.size());
-            for (Object child : children) {
-                if (!hideNodeType.isInstance(child)) {
-                    filteredChildren.add(child);
-                }
-            }
-            children = filteredChildren;
-        }
-        
-        logger.debug("Children of type " + parent.getClass() + " are " + children);
         return children;
     }
 
+    /**
+     * Tells the listeners that the children of the given node have changed.
+     * This must be called on the event dispatch thread.
+     */
+    private void fireTreeStructureChanged(Object node) {
+        LinkedList<Object> path = new LinkedList<Object>();
+        for (Object pathNode = node; pathNode != null; pathNode = parents.get(pathNode)) {
+            path.addFirst(pathNode);
+            if (pathNode == root) break;
+        }
+        if (path.getFirst() != root) {
+            logger.debug("Node " + node + " is no longer in the tree.");
+            return;
+        }
+        TreeModelEvent e = new TreeModelEvent(this, path.toArray());
+        for (TreeModelListener l : treeModelListeners) {
+            l.treeStructureChanged(e);
+        }
+    }
+
     public void addTreeModelListener(TreeModelListener l) {
-        // this tree doesn't make events
+        treeModelListeners.add(l);
     }
 
     public void removeTreeModelListener(TreeModelListener l) {
-        // this tree doesn't make events
+        treeModelListeners.remove(l);
     }
 
     public Object getChild(Object parent, int index) {
@@ -259,6 +555,18 @@ public class Olap4jTreeModel implements TreeModel {
     }
 
     public boolean isLeaf(Object node) {
+        if (forceLeafType != null && forceLeafType.isInstance(node)) {
+            return true;
+        } else if (node instanceof LoadingNode) {
+            return true;
+        } else if (node instanceof MemberPage) {
+            return false;
+        } else if (node instanceof Member && !visibleChildren.containsKey(node)) {
+            // avoids loading every member just to draw the expand handle
+            return ((Member) node).getChildMemberCount() == 0;
+        } else if (node instanceof Level && !visibleChildren.containsKey(node)) {
+            return false;
+        }
         return getChildren(node).isEmpty();
     }
 
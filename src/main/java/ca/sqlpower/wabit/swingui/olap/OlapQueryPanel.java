@@ -93,6 +93,7 @@ import ca.sqlpower.wabit.rs.ResultSetProducerEvent;
 import ca.sqlpower.wabit.rs.ResultSetProducerException;
 import ca.sqlpower.wabit.rs.ResultSetProducerListener;
 import ca.sqlpower.wabit.rs.ResultSetHandle.ResultSetStatus;
+import ca.sqlpower.wabit.rs.olap.OlapMetadataCache;
 import ca.sqlpower.wabit.rs.olap.OlapQuery;
 import ca.sqlpower.wabit.swingui.QueryPanel;
 import ca.sqlpower.wabit.swingui.WabitIcons;
@@ -129,8 +130,11 @@ public class OlapQueryPanel implements WabitPanel {
             List<Object> selectedNodes = new ArrayList<Object>();
             if (t.getSelectionPaths() == null) return;
             for (TreePath path : t.getSelectionPaths()) {
-            	selectedNodes.add(path.getLastPathComponent());
+            	if (!Olap4jTreeModel.isPlaceholder(path.getLastPathComponent())) {
+            		selectedNodes.add(path.getLastPathComponent());
+            	}
             }
+            if (selectedNodes.isEmpty()) return;
             dge.getDragSource().startDrag(dge, null, 
                     new OlapMetadataTransferable(selectedNodes.toArray()), 
                     new DragSourceAdapter() {//just need a default adapter
@@ -425,7 +429,9 @@ public class OlapQueryPanel implements WabitPanel {
                                 new Olap4jTreeModel(
                                         Collections.singletonList(session.getContext().createConnection(query.getOlapDataSource())),
                                         Cube.class,
-                                        Dimension.class));
+                                        Dimension.class,
+                                        OlapMetadataCache.getCache(query.getOlapDataSource()),
+                                        false));
                     } catch (Exception e1) {
                         throw new RuntimeException(e1);
                     }
@@ -589,6 +595,8 @@ public class OlapQueryPanel implements WabitPanel {
         executeMdxAction = new AbstractAction() {
             public void actionPerformed(ActionEvent e) {
             	
+            	// An explicit execution should show the latest data.
+            	query.invalidateCachedResults();
             	if (queryPanels.getSelectedComponent() == mdxTextArea) {
             		// Setting the modified query will trigger the execution.
             		query.setModifiedOlapQuery(mdxTextArea.getText());
@@ -656,7 +664,14 @@ public class OlapQueryPanel implements WabitPanel {
             query.setCurrentCube(currentCube);
         }
         if (currentCube != null) {
-            cubeTree.setModel(new Olap4jTreeModel(Collections.singletonList(currentCube)));
+            OlapMetadataCache metadataCache;
+            if (query.getOlapDataSource() != null) {
+                metadataCache = OlapMetadataCache.getCache(query.getOlapDataSource());
+            } else {
+                metadataCache = new OlapMetadataCache();
+            }
+            cubeTree.setModel(new Olap4jTreeModel(
+                    Collections.singletonList(currentCube), null, null, metadataCache, true));
             cubeTree.expandRow(0);
         } else {
             cubeTree.setModel(new DefaultTreeModel(new DefaultMutableTreeNode("Hidden")));
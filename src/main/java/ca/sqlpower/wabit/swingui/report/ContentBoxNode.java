@@ -23,14 +23,19 @@ import java.awt.BasicStroke;
 import java.awt.Color;
 import java.awt.Graphics2D;
 import java.awt.Image;
+import java.awt.RenderingHints;
 import java.awt.Window;
 import java.awt.event.ActionEvent;
 import java.awt.geom.Point2D;
 import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
 import java.beans.PropertyChangeSupport;
 import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import javax.imageio.ImageIO;
 import javax.swing.AbstractAction;
@@ -40,6 +45,7 @@ import javax.swing.JMenuItem;
 import javax.swing.JPanel;
 import javax.swing.JPopupMenu;
 
+import net.jcip.annotations.Immutable;
 import net.miginfocom.swing.MigLayout;
 
 import org.apache.log4j.Logger;
@@ -63,6 +69,8 @@ import ca.sqlpower.wabit.report.ReportContentRenderer;
 import ca.sqlpower.wabit.report.ResultSetRenderer;
 import ca.sqlpower.wabit.report.WabitObjectReportRenderer;
 import ca.sqlpower.wabit.report.selectors.ContextAware;
+import ca.sqlpower.wabit.rs.ResultSetVariableResolver;
+import ca.sqlpower.wabit.rs.ResultSetVariableResolver.LoadListener;
 import ca.sqlpower.wabit.swingui.WabitSwingSession;
 import ca.sqlpower.wabit.swingui.report.selectors.SelectorsPanel;
 import edu.umd.cs.piccolo.PCamera;
@@ -74,10 +82,91 @@ import edu.umd.cs.piccolo.event.PInputEvent;
 import edu.umd.cs.piccolo.event.PInputEventListener;
 import edu.umd.cs.piccolo.util.PPaintContext;
 
+/**
+ * Displays a {@link ContentBox} in a {@link LayoutPanel}.
+ * <p>
+ * The content of the box is rendered into an offscreen image which is reused
+ * until the content box or its renderer changes, or the box is zoomed or
+ * resized. This way moving or editing one box on a page does not render the
+ * tables and charts of every other box it overlaps again. An image that is
+ * out of date is rendered again on the event dispatch thread the next time
+ * the box is painted, as the renderers are only safe to use there. The images
+ * of every box together are limited to {@link #MAX_CONTENT_IMAGE_BYTES}; the
+ * images of the boxes painted least recently are dropped first.
+ */
 public class ContentBoxNode extends PNode implements ReportNode {
 
     private static final Logger logger = Logger.getLogger(ContentBoxNode.class);
     
+    /**
+     * Boxes whose rendered content would take more pixels than this at the
+     * current zoom are rendered directly every time they are painted instead
+     * of being kept in an image.
+     */
+    private static final int MAX_CONTENT_IMAGE_PIXELS = 4000000;
+    
+    /**
+     * The number of bytes the images of the content of every box may take
+     * together.
+     */
+    private static final long MAX_CONTENT_IMAGE_BYTES = 64L * 1024 * 1024;
+    
+    /**
+     * The image of the content of each box, the least recently painted first.
+     * This is only used on the event dispatch thread.
+     */
+    private static final Map<ContentBoxNode, BufferedImage> contentImages = 
+    	new LinkedHashMap<ContentBoxNode, BufferedImage>(16, 0.75f, true);
+    
+    /**
+     * The number of bytes the images in {@link #contentImages} take. This is
+     * only used on the event dispatch thread.
+     */
+    private static long contentImageBytes = 0;
+    
+    /**
+     * The icon displayed in the parameters banner of boxes with selectors.
+     */
+    private static Image parametersIcon;
+    
+    /**
+     * Describes what an image of the content was rendered for. An image can
+     * be reused as long as it is for the same description.
+     */
+    @Immutable
+    private static final class ContentImageKey {
+    	private final int version;
+    	private final double scale;
+    	private final int width;
+    	private final int height;
+    	
+    	ContentImageKey(int version, double scale, int width, int height) {
+    		this.version = version;
+    		this.scale = scale;
+    		this.width = width;
+    		this.height = height;
+    	}
+    	
+    	@Override
+    	public boolean equals(Object obj) {
+    		if (!(obj instanceof ContentImageKey)) return false;
+    		ContentImageKey other = (ContentImageKey) obj;
+    		return version == other.version && scale == other.scale
+    			&& width == other.width && height == other.height;
+    	}
+    	
+    	@Override
+    	public int hashCode() {
+    		long scaleBits = Double.doubleToLongBits(scale);
+    		int result = 17;
+    		result = 31 * result + version;
+    		result = 31 * result + (int) (scaleBits ^ (scaleBits >>> 32));
+    		result = 31 * result + width;
+    		result = 31 * result + height;
+    		return result;
+    	}
+    }
+    
     private final WabitSwingSession session;
     
     private final ContentBox contentBox;
@@ -242,10 +331,37 @@ public class ContentBoxNode extends PNode implements ReportNode {
     private final RepaintListener modelRepaintListener = new RepaintListener() {
         public void requestRepaint() {
             updateBoundsFromContentBox();
+            invalidateContentImage();
             repaint();
         }
     };
     
+    /**
+     * Labels show the values of variables, which are loaded in the background
+     * when the values of a query are asked for on the event dispatch thread.
+     * The label is painted again once new values are loaded so it does not
+     * keep showing the values it found before.
+     */
+    private final LoadListener variableLoadListener = new LoadListener() {
+        public void variablesLoaded(ResultSetVariableResolver source) {
+            if (contentBox.getContentRenderer() instanceof WabitLabel) {
+                modelRepaintListener.requestRepaint();
+            }
+        }
+    };
+    
+    /**
+     * Incremented every time the content of the box may look different. This
+     * is only used on the event dispatch thread.
+     */
+    private int contentVersion = 0;
+    
+    /**
+     * What the image of the content of this box in {@link #contentImages} was
+     * rendered for. This is only used on the event dispatch thread.
+     */
+    private ContentImageKey contentImageKey;
+    
     private final Window dialogOwner;
 
     /**
@@ -277,6 +393,10 @@ public class ContentBoxNode extends PNode implements ReportNode {
 
         public void propertyChanged(PropertyChangeEvent evt) {
             updateBoundsFromContentBox();
+            // moving the box does not change what is drawn in it
+            if (!"x".equals(evt.getPropertyName()) && !"y".equals(evt.getPropertyName())) {
+            	invalidateContentImage();
+            }
             repaint();
         }
 
@@ -321,6 +441,7 @@ public class ContentBoxNode extends PNode implements ReportNode {
 	 */
 	private void setSwingContentRenderer(ReportContentRenderer renderer) {
 	    SwingContentRenderer oldSwingRenderer = swingRenderer;
+	    invalidateContentImage();
 		if (swingRenderer != null) {
 			removeInputEventListener(swingRenderer);
 		}
@@ -378,6 +499,7 @@ public class ContentBoxNode extends PNode implements ReportNode {
         setSwingContentRenderer(contentBox.getContentRenderer());
 		contentBox.addSPListener(contentRendererListener);
         contentBox.addRepaintListener(modelRepaintListener);
+        workspace.addVariableLoadListener(variableLoadListener);
         addInputEventListener(inputHandler);
         updateBoundsFromContentBox();
 
@@ -463,14 +585,8 @@ public class ContentBoxNode extends PNode implements ReportNode {
             	parametersBoxGraphics.setColor(Color.BLACK);
             	parametersBoxGraphics.setFont(parametersBoxGraphics.getFont().deriveFont(8f));
             	
-            	Image image;
-				try {
-					image = ImageIO.read(this.getClass().getClassLoader().getResourceAsStream("icons/parameters-12.png"));
-				} catch (IOException e) {
-					throw new RuntimeException("Failed to load image file.");
-				}
             	parametersBoxGraphics.drawImage(
-            			image, 
+            			getParametersIcon(), 
             			10, 
             			1, 
             			PARAMETER_BANNER_HEIGHT - 2, 
@@ -483,23 +599,7 @@ public class ContentBoxNode extends PNode implements ReportNode {
             	boxHeight -= PARAMETER_BANNER_HEIGHT;
             }
             
-            Graphics2D contentGraphics = (Graphics2D) g2.create(
-                    boxX, boxY,
-                    boxWidth, boxHeight);
-            
-            contentGraphics.setFont(contentBox.getFont()); // XXX could use piccolo attribute to do this magically
-            contentRenderer.resetToFirstPage();
-            
-            contentRenderer.renderReportContent(
-            		contentGraphics,
-            		boxWidth, 
-            		boxHeight, 
-            		camera.getViewScale(), 
-            		0, 
-            		false, 
-            		this.helper);
-            
-            contentGraphics.dispose();
+            paintContent(g2, contentRenderer, boxX, boxY, boxWidth, boxHeight, camera.getViewScale());
             if (showDropInfo) {
             	g2.setColor(borderColor);
                 g2.drawString(str, (int) x,(int) y);
@@ -521,6 +621,113 @@ public class ContentBoxNode extends PNode implements ReportNode {
 	        g2.draw(getBounds());
         }
     }
+
+	/**
+	 * Paints the content of the box, reusing the last image of the content if
+	 * it is still valid and rendering a new one otherwise.
+	 */
+    private void paintContent(Graphics2D g2, ReportContentRenderer renderer, 
+    		int boxX, int boxY, int boxWidth, int boxHeight, double scale) {
+    	int pixelWidth = (int) Math.ceil(boxWidth * scale);
+    	int pixelHeight = (int) Math.ceil(boxHeight * scale);
+    	if (pixelWidth <= 0 || pixelHeight <= 0) return;
+    	
+    	if ((long) pixelWidth * pixelHeight > MAX_CONTENT_IMAGE_PIXELS) {
+    		removeContentImage(this);
+    		Graphics2D contentGraphics = (Graphics2D) g2.create(boxX, boxY, boxWidth, boxHeight);
+    		renderContent(contentGraphics, renderer, boxWidth, boxHeight, scale);
+    		contentGraphics.dispose();
+    		return;
+    	}
+    	
+    	ContentImageKey key = new ContentImageKey(contentVersion, scale, boxWidth, boxHeight);
+    	BufferedImage image = contentImages.get(this);
+    	if (image == null || !key.equals(contentImageKey)) {
+    		image = renderContentImage(renderer, key);
+    		putContentImage(this, image);
+    		contentImageKey = key;
+    	}
+    	g2.drawImage(image, boxX, boxY, boxWidth, boxHeight, null);
+    }
+
+	/**
+	 * Keeps the given image of the content of the given box, dropping the
+	 * images of the boxes painted least recently if the images take too many
+	 * bytes. The given image is kept even if it is the only one that fits.
+	 */
+    private static void putContentImage(ContentBoxNode node, BufferedImage image) {
+    	removeContentImage(node);
+    	contentImages.put(node, image);
+    	contentImageBytes += bytesOf(image);
+    	for (Iterator<Map.Entry<ContentBoxNode, BufferedImage>> it = contentImages.entrySet().iterator(); 
+    			contentImageBytes > MAX_CONTENT_IMAGE_BYTES && it.hasNext(); ) {
+    		Map.Entry<ContentBoxNode, BufferedImage> eldest = it.next();
+    		if (eldest.getKey() == node) break;
+    		contentImageBytes -= bytesOf(eldest.getValue());
+    		it.remove();
+    	}
+    }
+    
+    private static void removeContentImage(ContentBoxNode node) {
+    	BufferedImage image = contentImages.remove(node);
+    	if (image != null) {
+    		contentImageBytes -= bytesOf(image);
+    	}
+    }
+    
+    private static long bytesOf(BufferedImage image) {
+    	// the images are TYPE_INT_ARGB
+    	return 4L * image.getWidth() * image.getHeight();
+    }
+    
+    private BufferedImage renderContentImage(ReportContentRenderer renderer, ContentImageKey key) {
+    	BufferedImage image = new BufferedImage(
+    			(int) Math.ceil(key.width * key.scale), (int) Math.ceil(key.height * key.scale), 
+    			BufferedImage.TYPE_INT_ARGB);
+    	Graphics2D g = image.createGraphics();
+    	g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+    	g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+    	g.scale(key.scale, key.scale);
+    	g.clipRect(0, 0, key.width, key.height);
+    	g.setColor(textColour);
+    	renderContent(g, renderer, key.width, key.height, key.scale);
+    	g.dispose();
+    	return image;
+    }
+    
+    private void renderContent(Graphics2D contentGraphics, ReportContentRenderer renderer, 
+    		int width, int height, double scale) {
+    	contentGraphics.setFont(contentBox.getFont()); // XXX could use piccolo attribute to do this magically
+    	renderer.resetToFirstPage();
+    	renderer.renderReportContent(
+    			contentGraphics,
+    			width, 
+    			height, 
+    			scale, 
+    			0, 
+    			false, 
+    			this.helper);
+    }
+
+	/**
+	 * Marks the image of the content as out of date so a new one is rendered
+	 * the next time the box is painted.
+	 */
+    private void invalidateContentImage() {
+    	contentVersion++;
+    }
+    
+    private static synchronized Image getParametersIcon() {
+    	if (parametersIcon == null) {
+    		try {
+    			parametersIcon = ImageIO.read(ContentBoxNode.class.getClassLoader().getResourceAsStream("icons/parameters-12.png"));
+    		} catch (IOException e) {
+    			throw new RuntimeException("Failed to load image file.");
+    		}
+    	}
+    	return parametersIcon;
+    }
+    
     @Override
     public void offset(double dx, double dy) {
     	logger.debug("setting offset: x="+dx+" y="+dy);
@@ -549,6 +756,9 @@ public class ContentBoxNode extends PNode implements ReportNode {
     public void cleanup() {
         contentBox.removeSPListener(contentRendererListener);
         contentBox.removeRepaintListener(modelRepaintListener);
+        workspace.removeVariableLoadListener(variableLoadListener);
+        removeContentImage(this);
+        contentImageKey = null;
     }
 
     public ContentBox getModel() {
@@ -84,6 +84,7 @@ import ca.sqlpower.wabit.report.Layout;
 import ca.sqlpower.wabit.report.Page;
 import ca.sqlpower.wabit.report.Report;
 import ca.sqlpower.wabit.report.ReportContentRenderer;
+import ca.sqlpower.wabit.report.ReportPrewarmer;
 import ca.sqlpower.wabit.report.ResultSetRenderer;
 import ca.sqlpower.wabit.report.Template;
 import ca.sqlpower.wabit.report.chart.Chart;
@@ -408,6 +409,8 @@ public class LayoutPanel implements WabitPanel, MouseState {
         
         cursorManager = new CursorManager(canvas);
         
+        // Start every query of the layout now rather than as each content box is painted.
+        ReportPrewarmer.prewarm(layout);
         pageNode = new PageNode(session, this, layout.getPage());
         canvas.getLayer().addChild(pageNode);
         
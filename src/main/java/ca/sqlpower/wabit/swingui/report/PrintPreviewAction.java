@@ -55,6 +55,7 @@ import ca.sqlpower.wabit.report.Layout;
 public class PrintPreviewAction extends AbstractAction {
 	private JDialog printPreviewDialog;
 	private JTextArea pageNumberTextArea;
+	private JLabel pageCountLabel;
 	private ReportPrintPreviewPanel reportPrintPreviewPanel;
 	private JFrame parentFrame;
 	private Layout layout;
@@ -68,6 +69,8 @@ public class PrintPreviewAction extends AbstractAction {
 				pageNumberTextArea.setText(String.valueOf(reportPrintPreviewPanel.getPageIndex()));
 				pageNumberTextArea.invalidate();
 				reportPrintPreviewPanel.repaint();
+			} else if (evt.getPropertyName().equals("pageCount")) {
+				updatePageCountLabel();
 			}
 		}
 	};
@@ -83,6 +86,10 @@ public class PrintPreviewAction extends AbstractAction {
 
 		public void keyReleased(KeyEvent e) {
 			if (e.getKeyChar() == KeyEvent.VK_ENTER) {
+				if (reportPrintPreviewPanel.getPageCount() == -1) {
+					// the pages are still being counted
+					return;
+				}
 				int currentPageIndex;
 				try {
 					currentPageIndex = Integer.parseInt(pageNumberTextArea.getText().trim());
@@ -166,7 +173,9 @@ public class PrintPreviewAction extends AbstractAction {
 		pageNumberTextArea.setPreferredSize(new Dimension(20, pageNumberTextArea.getPreferredSize().height));
 		toolBarPanel.add(pageNumberTextArea);
 		
-		toolBarPanel.add(new JLabel(" of " + reportPrintPreviewPanel.getPageCount()));
+		pageCountLabel = new JLabel();
+		updatePageCountLabel();
+		toolBarPanel.add(pageCountLabel);
 		
 		JButton nextPage = new JButton(new AbstractAction() {
 			public void actionPerformed(ActionEvent e) {
@@ -196,8 +205,18 @@ public class PrintPreviewAction extends AbstractAction {
 		printPreviewDialog.addWindowListener(closeListener);
 	}
 	
+	/**
+	 * Shows the number of pages of the report, which is only known once the
+	 * preview has counted them.
+	 */
+	private void updatePageCountLabel() {
+		int pageCount = reportPrintPreviewPanel.getPageCount();
+		pageCountLabel.setText(" of " + (pageCount == -1 ? "..." : String.valueOf(pageCount)));
+	}
+	
 	private void cleanup() {
 		reportPrintPreviewPanel.removePropertyChangeListener(pageIndexListener);
+		reportPrintPreviewPanel.cleanup();
 		pageNumberTextArea.removeKeyListener(keyListener);
 		printPreviewDialog.removeWindowListener(closeListener);
 		printPreviewDialog.dispose();
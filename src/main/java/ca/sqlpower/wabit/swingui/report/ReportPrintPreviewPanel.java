@@ -19,32 +19,306 @@
 
 package ca.sqlpower.wabit.swingui.report;
 
+import java.awt.Color;
 import java.awt.Graphics;
+import java.awt.Graphics2D;
 import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
 import java.beans.PropertyChangeSupport;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
 
 import javax.swing.JComponent;
+import javax.swing.SwingUtilities;
 
+import org.apache.log4j.Logger;
+
+import ca.sqlpower.object.AbstractSPListener;
+import ca.sqlpower.object.SPChildEvent;
+import ca.sqlpower.object.SPListener;
+import ca.sqlpower.util.SQLPowerUtils;
+import ca.sqlpower.wabit.WabitObject;
 import ca.sqlpower.wabit.WabitUtils;
 import ca.sqlpower.wabit.enterprise.client.Watermarker;
+import ca.sqlpower.wabit.report.ContentBox;
 import ca.sqlpower.wabit.report.Layout;
 import ca.sqlpower.wabit.report.Page;
+import ca.sqlpower.wabit.report.RepaintListener;
+import ca.sqlpower.wabit.report.ReportContentRenderer;
+import ca.sqlpower.wabit.report.WabitObjectReportRenderer;
+import ca.sqlpower.wabit.report.chart.Chart;
+import ca.sqlpower.wabit.rs.ResultSetProducer;
+import ca.sqlpower.wabit.rs.ResultSetProducerEvent;
+import ca.sqlpower.wabit.rs.ResultSetProducerListener;
 
 /**
  * This is a JComponent which keeps track of what page you are on
  * and prints out all the data to the screen
+ * <p>
+ * The pages are printed into images at the resolution the panel is painted
+ * at, and painted from those images. The renderers of the content boxes are
+ * also painted by the layout editor on the event dispatch thread, so the
+ * pages are counted and printed on that thread too. The pages next to the one
+ * shown are printed in their own events after it is painted, so flipping
+ * through the pages does not wait for the report.
+ * <p>
+ * The pages are counted and printed again when the layout, the objects its
+ * content boxes display or the structure of their queries change, and when a
+ * content box asks to be repainted, for example once its query returns the
+ * data a page was printed without. Counting and printing the pages makes the
+ * renderers refresh and ask to be repainted, so the changes and repaint
+ * requests they cause are not taken as changes.
  */
 public class ReportPrintPreviewPanel extends JComponent {
+	
+	private static final Logger logger = Logger.getLogger(ReportPrintPreviewPanel.class);
+
+	/**
+	 * The number of page images kept.
+	 */
+	private static final int MAX_CACHED_PAGES = 8;
+
+	/**
+	 * The number of pages rendered ahead on each side of the one shown.
+	 */
+	private static final int PREFETCHED_PAGES = 1;
+	
 	private Layout layout;
 	private int pageIndex;
-	private final int pageCount;
+	
+	/**
+	 * The number of pages of the layout, or -1 while they are being counted.
+	 */
+	private int pageCount = -1;
+	
 	private final PropertyChangeSupport pcs = new PropertyChangeSupport(this);
 	
+	private final Watermarker watermarker;
+
+	/**
+	 * Incremented every time the pages may look different. Images and page
+	 * counts made for an older version are thrown away. This and the other
+	 * cache fields are only used on the event dispatch thread.
+	 */
+	private int version = 0;
+
+	/**
+	 * The version the pages are being counted for, or -1 if they are not
+	 * being counted.
+	 */
+	private int countingVersion = -1;
+
+	/**
+	 * The scale the page images are made for.
+	 */
+	private double imageScale = 1;
+
+	/**
+	 * The images of the pages of the current version, by zero-based page
+	 * index, least recently painted first.
+	 */
+	private final Map<Integer, BufferedImage> pageImages = 
+		new LinkedHashMap<Integer, BufferedImage>(MAX_CACHED_PAGES, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, BufferedImage> eldest) {
+				return size() > MAX_CACHED_PAGES;
+			}
+		};
+
+	/**
+	 * The zero-based indices of the pages waiting to be rendered for the
+	 * current version and scale.
+	 */
+	private final Set<Integer> pendingPages = new HashSet<Integer>();
+
+	/**
+	 * True while the pages are counted or printed. Changes to the layout and
+	 * its content in that time are side effects of printing.
+	 */
+	private boolean printing = false;
+
+	/**
+	 * The number of times the pages were counted or printed whose repaint
+	 * requests may still be waiting in the event queue. Renderers that are
+	 * printed ask to be repainted, directly or through the event queue, and
+	 * those requests must not make the pages print again.
+	 */
+	private int pendingPrintRepaints = 0;
+
+	/**
+	 * The objects the content boxes of the layout display, and the queries
+	 * they display the results of, that are listened to for changes.
+	 */
+	private final Set<WabitObject> listenedContent = new HashSet<WabitObject>();
+
+	/**
+	 * The content boxes of the layout whose repaint requests are listened to.
+	 */
+	private final Set<ContentBox> listenedBoxes = new HashSet<ContentBox>();
+
+	/**
+	 * Renders the pages again when an object displayed in the layout is
+	 * changed. Events fired while the pages are printed and events fired off
+	 * the event dispatch thread are side effects of executing the queries and
+	 * are ignored.
+	 */
+	private final SPListener contentListener = new AbstractSPListener() {
+		@Override
+		protected void childAddedImpl(SPChildEvent e) {
+			changed();
+		}
+		
+		@Override
+		protected void childRemovedImpl(SPChildEvent e) {
+			changed();
+		}
+		
+		@Override
+		protected void propertyChangeImpl(PropertyChangeEvent evt) {
+			changed();
+		}
+		
+		private void changed() {
+			if (SwingUtilities.isEventDispatchThread() && !printing) {
+				invalidatePages();
+			}
+		}
+	};
+
+	/**
+	 * Renders the pages again when a content box asks to be repainted, for
+	 * example when its query returns new data, unless printing the pages
+	 * asked for it.
+	 */
+	private final RepaintListener repaintListener = new RepaintListener() {
+		public void requestRepaint() {
+			if (SwingUtilities.isEventDispatchThread()) {
+				repaintRequested();
+			} else {
+				SwingUtilities.invokeLater(new Runnable() {
+					public void run() {
+						repaintRequested();
+					}
+				});
+			}
+		}
+	};
+
+	/**
+	 * Renders the pages again when the structure of a query displayed in the
+	 * layout changes. Executing the queries to render the pages does not
+	 * change their structure.
+	 */
+	private final ResultSetProducerListener producerListener = new ResultSetProducerListener() {
+		public void structureChanged(ResultSetProducerEvent evt) {
+			invalidatePages();
+		}
+		public void executionStarted(ResultSetProducerEvent evt) {
+			// executing does not change the pages
+		}
+		public void executionStopped(ResultSetProducerEvent evt) {
+			// executing does not change the pages
+		}
+	};
+
+	/**
+	 * Renders the pages again when the layout changes. Events fired while the
+	 * pages are printed and events fired off the event dispatch thread are
+	 * side effects of executing the queries and are ignored.
+	 */
+	private final SPListener layoutListener = new AbstractSPListener() {
+		@Override
+		protected void childAddedImpl(SPChildEvent e) {
+			SQLPowerUtils.listenToHierarchy(e.getChild(), this);
+			changed();
+		}
+		
+		@Override
+		protected void childRemovedImpl(SPChildEvent e) {
+			SQLPowerUtils.unlistenToHierarchy(e.getChild(), this);
+			changed();
+		}
+		
+		@Override
+		protected void propertyChangeImpl(PropertyChangeEvent evt) {
+			changed();
+		}
+		
+		private void changed() {
+			if (SwingUtilities.isEventDispatchThread() && !printing) {
+				listenToContent();
+				invalidatePages();
+			}
+		}
+	};
+	
 	public ReportPrintPreviewPanel(Layout layout) {
 		this.layout = layout;
 		pageIndex = 1;
-		pageCount = layout.getNumberOfPages();
+		watermarker = new Watermarker(WabitUtils.getWorkspace(layout).getSession());
+		SQLPowerUtils.listenToHierarchy(layout, layoutListener);
+		listenToContent();
+		countPages();
+	}
+
+	/**
+	 * Listens to the content boxes of the layout and the objects they display
+	 * now, and stops listening to the ones that are gone.
+	 */
+	private void listenToContent() {
+		Set<WabitObject> content = new HashSet<WabitObject>();
+		Set<ContentBox> boxes = new HashSet<ContentBox>(layout.getPage().getContentBoxes());
+		for (ContentBox cb : new ArrayList<ContentBox>(listenedBoxes)) {
+			if (!boxes.contains(cb)) {
+				cb.removeRepaintListener(repaintListener);
+				listenedBoxes.remove(cb);
+			}
+		}
+		for (ContentBox cb : boxes) {
+			if (listenedBoxes.add(cb)) {
+				cb.addRepaintListener(repaintListener);
+			}
+		}
+		for (ContentBox cb : boxes) {
+			ReportContentRenderer renderer = cb.getContentRenderer();
+			if (renderer instanceof WabitObjectReportRenderer) {
+				WabitObject object = ((WabitObjectReportRenderer) renderer).getContent();
+				if (object != null) {
+					content.add(object);
+				}
+				if (object instanceof Chart && ((Chart) object).getQuery() != null) {
+					content.add(((Chart) object).getQuery());
+				}
+			}
+		}
+		for (WabitObject object : new ArrayList<WabitObject>(listenedContent)) {
+			if (!content.contains(object)) {
+				unlistenToContent(object);
+			}
+		}
+		for (WabitObject object : content) {
+			if (listenedContent.add(object)) {
+				object.addSPListener(contentListener);
+				if (object instanceof ResultSetProducer) {
+					((ResultSetProducer) object).addResultSetProducerListener(producerListener);
+				}
+			}
+		}
+	}
+	
+	private void unlistenToContent(WabitObject object) {
+		listenedContent.remove(object);
+		object.removeSPListener(contentListener);
+		if (object instanceof ResultSetProducer) {
+			((ResultSetProducer) object).removeResultSetProducerListener(producerListener);
+		}
 	}
 	
 	public void setPageIndex(int pageIndex) {
@@ -56,7 +330,11 @@ public class ReportPrintPreviewPanel extends JComponent {
 	public int getPageIndex() {
 		return pageIndex;
 	}
-	
+
+	/**
+	 * Returns the number of pages of the layout, or -1 while they are being
+	 * counted. A "pageCount" property change is fired once they are counted.
+	 */
 	public int getPageCount() {
 		return pageCount;
 	}
@@ -69,6 +347,24 @@ public class ReportPrintPreviewPanel extends JComponent {
 			PropertyChangeListener listener) {
 		pcs.removePropertyChangeListener(listener);
 	}
+
+	/**
+	 * Stops listening to the layout and discards the page images. This must
+	 * be called when the panel is no longer displayed.
+	 */
+	public void cleanup() {
+		SQLPowerUtils.unlistenToHierarchy(layout, layoutListener);
+		for (WabitObject object : new ArrayList<WabitObject>(listenedContent)) {
+			unlistenToContent(object);
+		}
+		for (ContentBox cb : listenedBoxes) {
+			cb.removeRepaintListener(repaintListener);
+		}
+		listenedBoxes.clear();
+		version++;
+		pageImages.clear();
+		pendingPages.clear();
+	}
 	
 	/**
 	 * This is the method which is overridden to paint the correct
@@ -76,15 +372,174 @@ public class ReportPrintPreviewPanel extends JComponent {
 	 */
 	@Override
 	protected void paintComponent(Graphics g) {
+		Page page = layout.getPage();
+		double scale = 1;
+		if (g instanceof Graphics2D) {
+			AffineTransform transform = ((Graphics2D) g).getTransform();
+			scale = Math.max(Math.abs(transform.getScaleX()), Math.abs(transform.getScaleY()));
+		}
+		if (scale != imageScale) {
+			imageScale = scale;
+			pageImages.clear();
+			pendingPages.clear();
+		}
+		
+		BufferedImage image = pageImages.get(pageIndex - 1);
+		if (image == null && pageCount != -1 && pageIndex - 1 < pageCount) {
+			image = printPage(pageIndex - 1);
+		}
+		if (image != null) {
+			g.drawImage(image, 0, 0, page.getWidth(), page.getHeight(), null);
+		} else {
+			g.setColor(Color.GRAY);
+			g.drawString(pageCount == -1 ? "Counting pages..." : "Could not render page " + pageIndex, 
+					20, 20 + g.getFontMetrics().getAscent());
+		}
+		if (pageCount != -1) {
+			for (int i = pageIndex - 1 - PREFETCHED_PAGES; i <= pageIndex - 1 + PREFETCHED_PAGES; i++) {
+				if (i >= 0 && i < pageCount) {
+					schedulePage(i);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Discards the page images and the page count and counts the pages again.
+	 */
+	private void invalidatePages() {
+		version++;
+		pageImages.clear();
+		pendingPages.clear();
+		countPages();
+		repaint();
+	}
+
+	/**
+	 * Renders the pages again when a content box asks to be repainted, unless
+	 * counting or printing the pages asked for it.
+	 */
+	private void repaintRequested() {
+		if (printing || pendingPrintRepaints > 0) return;
+		invalidatePages();
+	}
+
+	/**
+	 * Marks the start of counting or printing the pages.
+	 */
+	private void startPrinting() {
+		printing = true;
+		pendingPrintRepaints++;
+	}
+
+	/**
+	 * Marks the end of counting or printing the pages. The repaint requests
+	 * the renderers put in the event queue while they were printed are
+	 * handled before the ones after them are taken as changes again.
+	 */
+	private void finishPrinting() {
+		printing = false;
+		SwingUtilities.invokeLater(new Runnable() {
+			public void run() {
+				pendingPrintRepaints--;
+			}
+		});
+	}
+
+	/**
+	 * Counts the pages in a later event, so a series of changes is counted
+	 * once, then updates the page count and repaints the page.
+	 */
+	private void countPages() {
+		if (countingVersion == version) return;
+		countingVersion = version;
+		final int countedVersion = version;
+		SwingUtilities.invokeLater(new Runnable() {
+			public void run() {
+				if (countedVersion != version) return;
+				int counted = -1;
+				startPrinting();
+				try {
+					counted = layout.getNumberOfPages();
+				} catch (RuntimeException e) {
+					logger.error("Failed to count the pages of " + layout.getName(), e);
+				} finally {
+					finishPrinting();
+				}
+				countingVersion = -1;
+				if (counted == -1) return;
+				int oldCount = pageCount;
+				pageCount = counted;
+				pcs.firePropertyChange("pageCount", oldCount, pageCount);
+				if (pageIndex > pageCount) {
+					setPageIndex(Math.max(1, pageCount));
+				}
+				repaint();
+			}
+		});
+	}
+
+	/**
+	 * Renders the page with the given zero-based index in a later event
+	 * unless its image is already made or about to be made.
+	 */
+	private void schedulePage(final int index) {
+		if (pageImages.containsKey(index) || !pendingPages.add(index)) return;
+		final int renderedVersion = version;
+		final double scale = imageScale;
+		SwingUtilities.invokeLater(new Runnable() {
+			public void run() {
+				if (renderedVersion != version || scale != imageScale) return;
+				pendingPages.remove(index);
+				if (!pageImages.containsKey(index) && index < pageCount) {
+					printPage(index);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Prints the page with the given zero-based index into a new image at
+	 * the current scale and caches it.
+	 * 
+	 * @return The image, or null if the page could not be printed.
+	 */
+	private BufferedImage printPage(int index) {
+		BufferedImage image = null;
+		startPrinting();
 		try {
-			layout.print(g, layout.getPageFormat(pageIndex - 1), pageIndex - 1);
-			Watermarker watermarker = new Watermarker(WabitUtils.getWorkspace(layout).getSession());
-			Page page = layout.getPage();
-	    	Rectangle pageSize = new Rectangle(page.getWidth(), page.getHeight());
-	        watermarker.maybeWatermark(g, pageSize);
+			image = renderPage(index, imageScale);
+			pageImages.put(index, image);
 		} catch (Exception e) {
-			throw new RuntimeException(e); //TODO make this nicer for the user
+			logger.error("Failed to render page " + (index + 1) + " of " + layout.getName(), e);
+		} finally {
+			finishPrinting();
+		}
+		return image;
+	}
+
+	/**
+	 * Prints the page with the given zero-based index into a new image at the
+	 * given scale.
+	 */
+	private BufferedImage renderPage(int index, double scale) throws Exception {
+		Page page = layout.getPage();
+		BufferedImage image = new BufferedImage(
+				(int) Math.ceil(page.getWidth() * scale), (int) Math.ceil(page.getHeight() * scale), 
+				BufferedImage.TYPE_INT_RGB);
+		Graphics2D g = image.createGraphics();
+		try {
+			g.setColor(Color.WHITE);
+			g.fillRect(0, 0, image.getWidth(), image.getHeight());
+			g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+			g.scale(scale, scale);
+			g.setFont(getFont());
+			layout.print(g, layout.getPageFormat(index), index);
+			watermarker.maybeWatermark(g, new Rectangle(page.getWidth(), page.getHeight()));
+		} finally {
+			g.dispose();
 		}
+		return image;
 	}
 
 }
@@ -22,8 +22,10 @@ package ca.sqlpower.wabit.swingui.report.selectors;
 import java.awt.event.ItemEvent;
 import java.awt.event.ItemListener;
 import java.util.Collection;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
 
+import javax.swing.ComboBoxModel;
 import javax.swing.JComboBox;
 import javax.swing.SwingUtilities;
 
@@ -31,14 +33,30 @@ import org.apache.commons.lang.ObjectUtils;
 
 import ca.sqlpower.object.AbstractPoolingSPListener;
 import ca.sqlpower.object.SPListener;
+import ca.sqlpower.object.SPVariableHelper;
+import ca.sqlpower.wabit.WabitUtils;
+import ca.sqlpower.wabit.WabitWorkspace;
 import ca.sqlpower.wabit.report.selectors.ComboBoxSelector;
 import ca.sqlpower.wabit.report.selectors.Selector;
 import ca.sqlpower.wabit.report.selectors.SelectorListener;
+import ca.sqlpower.wabit.rs.ResultSetVariableResolver;
 
 public class FancyComboBoxSelector extends JComboBox implements
 		SelectorComponent {
 
+	/**
+	 * The longest time in milliseconds between two key strokes that are
+	 * typed as one prefix.
+	 */
+	private static final long TYPE_AHEAD_DELAY = 1000;
+
 	private final ComboBoxSelector selector;
+	
+	/**
+	 * The workspace {@link #loadListener} was added to, or null if the
+	 * selector was not in a workspace.
+	 */
+	private final WabitWorkspace workspace;
 	private final Runnable refreshRoutine;
 	private AtomicBoolean ignoreEvents = new AtomicBoolean(false);
 
@@ -63,6 +81,51 @@ public class FancyComboBoxSelector extends JComboBox implements
 		}
 	};
 	
+	/**
+	 * The values of query-backed variables are loaded in the background, so
+	 * the possible values are listed again once the query this selector takes
+	 * its values from is loaded. It listens to the workspace of the selector.
+	 */
+	private final ResultSetVariableResolver.LoadListener loadListener = new ResultSetVariableResolver.LoadListener() {
+		public void variablesLoaded(ResultSetVariableResolver source) {
+			String sourceKey = selector.getSourceKey();
+			if (sourceKey != null && source.resolvesNamespace(SPVariableHelper.getNamespace(sourceKey))) {
+				refresh();
+			}
+		}
+	};
+	
+	/**
+	 * Selects the first value that starts with the characters typed in quick
+	 * succession. The values are searched through the selector, which uses
+	 * the index of the distinct values of a query column when there is one
+	 * instead of comparing every item of the list.
+	 */
+	private class PrefixKeySelectionManager implements KeySelectionManager {
+		
+		private final StringBuilder prefix = new StringBuilder();
+		
+		private long lastKeyTime = 0;
+		
+		public int selectionForKey(char aKey, ComboBoxModel model) {
+			long now = System.currentTimeMillis();
+			if (now - lastKeyTime > TYPE_AHEAD_DELAY) {
+				prefix.setLength(0);
+			}
+			lastKeyTime = now;
+			prefix.append(aKey);
+			
+			List<Object> found = selector.findPossibleValues(prefix.toString(), 1);
+			if (found.isEmpty()) return -1;
+			for (int i = 0; i < model.getSize(); i++) {
+				if (ObjectUtils.equals(model.getElementAt(i), found.get(0))) {
+					return i;
+				}
+			}
+			return -1;
+		}
+	}
+	
 	public FancyComboBoxSelector(ComboBoxSelector selector, Runnable refreshRoutine) {
 		
 		this.selector = selector;
@@ -70,6 +133,11 @@ public class FancyComboBoxSelector extends JComboBox implements
 		
 		this.selector.addSPListener(selectorListener);
 		this.selector.addSelectorListener(selectionListener);
+		this.workspace = WabitUtils.getWorkspace(selector);
+		if (workspace != null) {
+			workspace.addVariableLoadListener(loadListener);
+		}
+		setKeySelectionManager(new PrefixKeySelectionManager());
 		
 		addItemListener(new ItemListener() {
 			public void itemStateChanged(ItemEvent e) {
@@ -108,6 +176,9 @@ public class FancyComboBoxSelector extends JComboBox implements
 	public void cleanup() {
 		this.selector.removeSPListener(selectorListener);
 		this.selector.removeSelectorListener(selectionListener);
+		if (workspace != null) {
+			workspace.removeVariableLoadListener(loadListener);
+		}
 	}
 
 }
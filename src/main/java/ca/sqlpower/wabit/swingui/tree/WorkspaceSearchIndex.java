@@ -0,0 +1,663 @@
+/*
+ * Copyright (c) 2010, SQL Power Group Inc.
+ *
+ * This file is part of Wabit.
+ *
+ * Wabit is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wabit is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ca.sqlpower.wabit.swingui.tree;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.beans.PropertyChangeEvent;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nonnull;
+import javax.swing.Timer;
+import javax.swing.event.TreeModelEvent;
+import javax.swing.event.TreeModelListener;
+
+import net.jcip.annotations.Immutable;
+
+import org.apache.log4j.Logger;
+
+import ca.sqlpower.object.AbstractSPListener;
+import ca.sqlpower.object.SPChildEvent;
+import ca.sqlpower.object.SPListener;
+import ca.sqlpower.object.SPObject;
+import ca.sqlpower.query.Item;
+import ca.sqlpower.sql.Olap4jDataSource;
+import ca.sqlpower.sql.SPDataSource;
+import ca.sqlpower.sqlobject.SQLObject;
+import ca.sqlpower.util.SQLPowerUtils;
+import ca.sqlpower.wabit.WabitDataSource;
+import ca.sqlpower.wabit.WabitObject;
+import ca.sqlpower.wabit.WabitWorkspace;
+import ca.sqlpower.wabit.image.WabitImage;
+import ca.sqlpower.wabit.report.CellSetRenderer;
+import ca.sqlpower.wabit.report.ChartRenderer;
+import ca.sqlpower.wabit.report.ContentBox;
+import ca.sqlpower.wabit.report.ImageRenderer;
+import ca.sqlpower.wabit.report.ReportContentRenderer;
+import ca.sqlpower.wabit.report.ResultSetRenderer;
+import ca.sqlpower.wabit.report.WabitLabel;
+import ca.sqlpower.wabit.rs.olap.OlapQuery;
+import ca.sqlpower.wabit.rs.query.QueryCache;
+
+/**
+ * An index of the objects shown in a {@link WorkspaceTreeModel} that the
+ * search tab searches instead of walking the tree model on every keystroke.
+ * The index records the tree path to every object along with the text it can
+ * be found by: its name, the SQL and the column names of relational queries
+ * and the captions of the members OLAP queries select. It also keeps the words
+ * of that text in sorted order so objects with a word starting with the
+ * search string are found without looking at every object.
+ * <p>
+ * Shortly after the workspace or the tree model stop changing, only the
+ * objects that changed are indexed again. The subtrees that were added are
+ * walked on the event dispatch thread, as the tree model is not safe to read
+ * on other threads, and everything else, reading the text of the objects and
+ * building the words, is done on a background thread. Each update produces
+ * an immutable {@link Snapshot} which can be searched on any thread.
+ */
+public class WorkspaceSearchIndex {
+
+	private static final Logger logger = Logger.getLogger(WorkspaceSearchIndex.class);
+
+	/**
+	 * The number of milliseconds to wait after the last change to the
+	 * workspace before updating the index.
+	 */
+	public static final int UPDATE_DELAY = 300;
+
+	/**
+	 * How well a search matched an object. Lower ranks are better matches.
+	 */
+	public static final int RANK_EXACT_NAME = 0;
+	public static final int RANK_NAME_WORD = 1;
+	public static final int RANK_NAME = 2;
+	public static final int RANK_CONTENT = 3;
+
+	/**
+	 * An object in the tree and the text it can be found by.
+	 */
+	@Immutable
+	private static class Entry {
+		private final List<Object> path;
+		private final String name;
+		private final String lowerCaseName;
+		private final List<String> content;
+
+		Entry(List<Object> path, String name, List<String> content) {
+			this.path = Collections.unmodifiableList(path);
+			this.name = name;
+			this.lowerCaseName = name.toLowerCase(Locale.getDefault());
+			this.content = Collections.unmodifiableList(content);
+		}
+	}
+
+	/**
+	 * An object that matched a search.
+	 */
+	@Immutable
+	public static class Match {
+		private final List<Object> path;
+		private final int rank;
+
+		Match(List<Object> path, int rank) {
+			this.path = path;
+			this.rank = rank;
+		}
+
+		/**
+		 * Returns the path from the root of the tree model to the matched
+		 * object, which is the last element.
+		 */
+		public List<Object> getPath() {
+			return path;
+		}
+
+		/**
+		 * Returns one of the RANK constants. Lower ranks are better matches.
+		 */
+		public int getRank() {
+			return rank;
+		}
+	}
+
+	/**
+	 * The contents of the index at the time it was built.
+	 */
+	@Immutable
+	public static class Snapshot {
+
+		private final List<Entry> entries;
+
+		/**
+		 * The entries containing each lower case word, by their position in
+		 * {@link #entries}.
+		 */
+		private final SortedMap<String, BitSet> words;
+
+		Snapshot(List<Entry> entries) {
+			this.entries = entries;
+			SortedMap<String, BitSet> words = new TreeMap<String, BitSet>();
+			for (int i = 0; i < entries.size(); i++) {
+				Entry entry = entries.get(i);
+				addWords(words, entry.lowerCaseName, i);
+				for (String text : entry.content) {
+					addWords(words, text.toLowerCase(Locale.getDefault()), i);
+				}
+			}
+			this.words = words;
+		}
+
+		private static void addWords(Map<String, BitSet> words, String text, int entry) {
+			for (String word : text.split("[^\\p{L}\\p{N}_]+")) {
+				if (word.length() == 0) continue;
+				BitSet entries = words.get(word);
+				if (entries == null) {
+					entries = new BitSet();
+					words.put(word, entries);
+				}
+				entries.set(entry);
+			}
+		}
+
+		public int size() {
+			return entries.size();
+		}
+
+		/**
+		 * Returns the objects that have a word starting with the given search
+		 * string and that match the given pattern, best matches first. These
+		 * are found through the words of the index so this is fast even for
+		 * large workspaces.
+		 *
+		 * @param searchString
+		 *            The text the user searched for.
+		 * @param p
+		 *            The pattern built from the search string.
+		 * @param matchExactly
+		 *            True if the whole name or text must match the pattern.
+		 * @param found
+		 *            Set for each entry that matched, so a following
+		 *            {@link #searchRemaining(String, Pattern, boolean, BitSet)}
+		 *            can skip them.
+		 */
+		public List<Match> searchWords(@Nonnull String searchString, @Nonnull Pattern p,
+				boolean matchExactly, @Nonnull BitSet found) {
+			String prefix = searchString.trim().toLowerCase(Locale.getDefault());
+			BitSet candidates = new BitSet();
+			if (prefix.length() > 0) {
+				for (BitSet entries : words.subMap(prefix, prefix + Character.MAX_VALUE).values()) {
+					candidates.or(entries);
+				}
+			}
+			List<Match> matches = new ArrayList<Match>();
+			for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+				Match match = match(entries.get(i), prefix, p, matchExactly);
+				if (match != null) {
+					matches.add(match);
+					found.set(i);
+				}
+			}
+			sort(matches);
+			return matches;
+		}
+
+		/**
+		 * Returns the objects that match the given pattern and are not set in
+		 * the given found entries, best matches first. This checks every
+		 * remaining object, which finds text in the middle of a word and
+		 * regular expressions.
+		 *
+		 * @see #searchWords(String, Pattern, boolean, BitSet)
+		 */
+		public List<Match> searchRemaining(@Nonnull String searchString, @Nonnull Pattern p,
+				boolean matchExactly, @Nonnull BitSet found) {
+			String prefix = searchString.trim().toLowerCase(Locale.getDefault());
+			List<Match> matches = new ArrayList<Match>();
+			for (int i = found.nextClearBit(0); i < entries.size(); i = found.nextClearBit(i + 1)) {
+				Match match = match(entries.get(i), prefix, p, matchExactly);
+				if (match != null) {
+					matches.add(match);
+					found.set(i);
+				}
+			}
+			sort(matches);
+			return matches;
+		}
+
+		private static Match match(Entry entry, String prefix, Pattern p, boolean matchExactly) {
+			if (matches(p, entry.name, matchExactly)) {
+				int rank;
+				if (entry.lowerCaseName.equals(prefix)) {
+					rank = RANK_EXACT_NAME;
+				} else if (entry.lowerCaseName.startsWith(prefix)
+						|| entry.lowerCaseName.contains(" " + prefix)) {
+					rank = RANK_NAME_WORD;
+				} else {
+					rank = RANK_NAME;
+				}
+				return new Match(entry.path, rank);
+			}
+			for (String text : entry.content) {
+				if (matches(p, text, matchExactly)) {
+					return new Match(entry.path, RANK_CONTENT);
+				}
+			}
+			return null;
+		}
+
+		private static boolean matches(Pattern p, String text, boolean matchExactly) {
+			if (matchExactly) {
+				return p.matcher(text).matches();
+			} else {
+				return p.matcher(text).find();
+			}
+		}
+
+		private static void sort(List<Match> matches) {
+			Collections.sort(matches, new Comparator<Match>() {
+				public int compare(Match m1, Match m2) {
+					return m1.rank - m2.rank;
+				}
+			});
+		}
+	}
+
+	/**
+	 * What changed in the tree since the index was last updated.
+	 */
+	private enum ChangeType {
+		/**
+		 * The subtree at the path was added or changed its structure and is
+		 * walked again.
+		 */
+		WALK,
+		/**
+		 * The subtree at the path was removed.
+		 */
+		REMOVE,
+		/**
+		 * The name or content of the object changed.
+		 */
+		REFRESH
+	}
+
+	private static class Change {
+		private final ChangeType type;
+		private final List<Object> path;
+		private final Object object;
+
+		Change(ChangeType type, List<Object> path, Object object) {
+			this.type = type;
+			this.path = path;
+			this.object = object;
+		}
+	}
+
+	/**
+	 * Applies the changes to every index and builds their snapshots. The
+	 * threads are daemons so pending updates do not keep the application from
+	 * exiting.
+	 */
+	private static final ExecutorService indexer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "Workspace search indexer");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	private final WorkspaceTreeModel model;
+
+	private final WabitWorkspace workspace;
+
+	/**
+	 * The last snapshot built.
+	 */
+	private volatile Snapshot snapshot = new Snapshot(Collections.<Entry>emptyList());
+
+	/**
+	 * The entry of each object in the index, by the object. This is only used
+	 * on the {@link #indexer} thread.
+	 */
+	private final Map<Object, Entry> entries = new IdentityHashMap<Object, Entry>();
+
+	/**
+	 * The changes that were not given to the {@link #indexer} yet, in the
+	 * order they happened. This is only used on the event dispatch thread.
+	 */
+	private final List<Change> pendingChanges = new ArrayList<Change>();
+
+	/**
+	 * Updates the index once the workspace stops changing.
+	 */
+	private final Timer updateTimer;
+
+	private final SPListener workspaceListener = new AbstractSPListener() {
+		@Override
+		protected void childAddedImpl(SPChildEvent e) {
+			SQLPowerUtils.listenToHierarchy(e.getChild(), this);
+			refresh(e.getSource());
+		}
+
+		@Override
+		protected void childRemovedImpl(SPChildEvent e) {
+			SQLPowerUtils.unlistenToHierarchy(e.getChild(), this);
+			refresh(e.getSource());
+		}
+
+		@Override
+		protected void propertyChangeImpl(PropertyChangeEvent evt) {
+			refresh(evt.getSource());
+		}
+	};
+
+	/**
+	 * The tree model tells where objects were added and removed, including
+	 * the tables of a data source which are loaded without going through the
+	 * workspace.
+	 */
+	private final TreeModelListener treeModelListener = new TreeModelListener() {
+		public void treeNodesChanged(TreeModelEvent e) {
+			if (e.getChildren() == null) {
+				changed(ChangeType.REFRESH, null, e.getTreePath().getLastPathComponent());
+			} else {
+				for (Object child : e.getChildren()) {
+					changed(ChangeType.REFRESH, null, child);
+				}
+			}
+		}
+
+		public void treeNodesInserted(TreeModelEvent e) {
+			changedChildren(ChangeType.WALK, e);
+		}
+
+		public void treeNodesRemoved(TreeModelEvent e) {
+			changedChildren(ChangeType.REMOVE, e);
+		}
+
+		public void treeStructureChanged(TreeModelEvent e) {
+			changed(ChangeType.WALK, Arrays.asList(e.getPath()), null);
+		}
+	};
+
+	/**
+	 * Creates an index of the given tree model. Call {@link #cleanup()} when
+	 * the index is no longer needed to stop listening to the workspace. This
+	 * must be called on the event dispatch thread.
+	 */
+	public WorkspaceSearchIndex(@Nonnull WorkspaceTreeModel model) {
+		this.model = model;
+		this.workspace = (WabitWorkspace) model.getRoot();
+		updateTimer = new Timer(UPDATE_DELAY, new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				update();
+			}
+		});
+		updateTimer.setRepeats(false);
+		SQLPowerUtils.listenToHierarchy(workspace, workspaceListener);
+		model.addTreeModelListener(treeModelListener);
+		pendingChanges.add(new Change(ChangeType.WALK, 
+				Collections.singletonList(model.getRoot()), null));
+		update();
+	}
+
+	public WorkspaceTreeModel getModel() {
+		return model;
+	}
+
+	private void changed(ChangeType type, List<Object> path, Object object) {
+		pendingChanges.add(new Change(type, path, object));
+		updateTimer.restart();
+	}
+
+	private void changedChildren(ChangeType type, TreeModelEvent e) {
+		List<Object> parentPath = Arrays.asList(e.getPath());
+		if (e.getChildren() == null) {
+			changed(ChangeType.WALK, parentPath, null);
+			return;
+		}
+		for (Object child : e.getChildren()) {
+			List<Object> path = new ArrayList<Object>(parentPath);
+			path.add(child);
+			changed(type, path, null);
+		}
+	}
+
+	/**
+	 * Refreshes the given object and its ancestors, as the content of a query
+	 * is made of its descendants.
+	 */
+	private void refresh(Object source) {
+		Object object = source;
+		while (object instanceof SPObject && object != workspace) {
+			changed(ChangeType.REFRESH, null, object);
+			object = ((SPObject) object).getParent();
+		}
+	}
+
+	/**
+	 * Walks the subtrees that changed and gives the changes to the
+	 * {@link #indexer}, which updates the entries of the changed objects and
+	 * builds a new snapshot. Only the tree model is read here, on the event
+	 * dispatch thread; the text of the objects is read by the indexer.
+	 */
+	public void update() {
+		updateTimer.stop();
+		if (pendingChanges.isEmpty()) return;
+		final List<Change> changes = new ArrayList<Change>();
+		final List<List<List<Object>>> walkedPaths = new ArrayList<List<List<Object>>>();
+		for (Change change : pendingChanges) {
+			changes.add(change);
+			List<List<Object>> paths = new ArrayList<List<Object>>();
+			if (change.type == ChangeType.WALK) {
+				collectPaths(new ArrayList<Object>(change.path), paths);
+			}
+			walkedPaths.add(paths);
+		}
+		pendingChanges.clear();
+		indexer.execute(new Runnable() {
+			public void run() {
+				long start = System.currentTimeMillis();
+				for (int i = 0; i < changes.size(); i++) {
+					apply(changes.get(i), walkedPaths.get(i));
+				}
+				snapshot = new Snapshot(new ArrayList<Entry>(entries.values()));
+				logger.debug("Applied " + changes.size() + " changes to the index of " + 
+						workspace.getName() + " in " + (System.currentTimeMillis() - start) + "ms");
+			}
+		});
+	}
+
+	/**
+	 * Returns the contents of the index once the updates given to the indexer
+	 * so far are applied. This waits for the indexer and must not be called on
+	 * the event dispatch thread; call {@link #update()} there first to include
+	 * the latest changes.
+	 */
+	public Snapshot getSnapshot() throws InterruptedException {
+		try {
+			indexer.submit(new Runnable() {
+				public void run() {
+					// waits for the updates before it
+				}
+			}).get();
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e);
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Applies a change to the entries. This runs on the {@link #indexer}.
+	 */
+	private void apply(Change change, List<List<Object>> walkedPaths) {
+		switch (change.type) {
+		case WALK:
+		case REMOVE:
+			Object root = change.path.get(change.path.size() - 1);
+			for (Iterator<Entry> it = entries.values().iterator(); it.hasNext(); ) {
+				if (containsObject(it.next().path, root)) {
+					it.remove();
+				}
+			}
+			for (List<Object> path : walkedPaths) {
+				Object object = path.get(path.size() - 1);
+				entries.put(object, createEntry(path, object));
+			}
+			break;
+		case REFRESH:
+			Entry entry = entries.get(change.object);
+			if (entry != null) {
+				entries.put(change.object, createEntry(entry.path, change.object));
+			}
+			break;
+		}
+	}
+
+	private static boolean containsObject(List<Object> path, Object object) {
+		for (Object element : path) {
+			if (element == object) return true;
+		}
+		return false;
+	}
+
+	private static Entry createEntry(List<Object> path, Object object) {
+		if (object instanceof WabitObject) {
+			WabitObject wo = (WabitObject) object;
+			return new Entry(path, getSearchName(wo), getContent(wo));
+		} else {
+			String name = ((SQLObject) object).getName();
+			return new Entry(path, name == null ? "" : name, Collections.<String>emptyList());
+		}
+	}
+
+	/**
+	 * Adds the path of every object the index has an entry for in the subtree
+	 * at the given path. This walks the tree model so it must be called on the
+	 * event dispatch thread.
+	 */
+	private void collectPaths(List<Object> path, List<List<Object>> paths) {
+		Object currentObject = path.get(path.size() - 1);
+		if (currentObject instanceof WabitObject || currentObject instanceof SQLObject) { //It could be a FolderNode...
+			paths.add(path);
+		}
+		if (isSafeForSearchChild(currentObject)) {
+			for (int i = 0; i < model.getChildCount(currentObject); i++) {
+				List<Object> childPath = new ArrayList<Object>(path);
+				childPath.add(model.getChild(currentObject, i));
+				collectPaths(childPath, paths);
+			}
+		}
+	}
+
+	/**
+	 * Returns the name an object is found by. Content boxes are found by the
+	 * name of what they display.
+	 */
+	private static String getSearchName(WabitObject wo) {
+		String name = wo.getName();
+		if (wo instanceof ContentBox) {
+			ReportContentRenderer content = ((ContentBox) wo).getContentRenderer();
+			if (content instanceof CellSetRenderer) {
+				name = ((CellSetRenderer) content).getContent().getName();
+			} else if (content instanceof ResultSetRenderer) {
+				name = ((ResultSetRenderer) content).getContent().getName();
+			} else if (content instanceof WabitLabel) {
+				name = ((WabitLabel) content).getText();
+			} else if (content instanceof ChartRenderer) {
+				name = ((ChartRenderer) content).getContent().getName();
+			} else if (content instanceof ImageRenderer) {
+				WabitImage image = ((ImageRenderer) content).getImage();
+				name = image == null ? null : image.getName();
+			}
+		}
+		return name == null ? "" : name;
+	}
+
+	/**
+	 * Returns the text other than the name an object can be found by. This is
+	 * read on the indexer thread, from the generated SQL of a query and the
+	 * published snapshot of an OLAP query.
+	 */
+	private static List<String> getContent(WabitObject wo) {
+		List<String> content = new ArrayList<String>();
+		try {
+			if (wo instanceof QueryCache) {
+				QueryCache query = (QueryCache) wo;
+				for (Item item : query.getSelectedColumns()) {
+					if (item.getAlias() != null && item.getAlias().length() > 0) {
+						content.add(item.getAlias());
+					}
+					if (item.getName() != null) {
+						content.add(item.getName());
+					}
+				}
+				content.add(query.generateQuery());
+			} else if (wo instanceof OlapQuery) {
+				content.addAll(((OlapQuery) wo).getIncludedMemberCaptions());
+			}
+		} catch (Exception e) {
+			logger.debug("Could not index the content of " + wo.getName(), e);
+		}
+		return content;
+	}
+
+	private static boolean isSafeForSearchChild(Object currentObject) {
+		if (currentObject instanceof SQLObject) {
+			//only search populated tables
+			if (!((SQLObject) currentObject).isPopulated()) {
+				return false;
+			}
+		} else if (currentObject instanceof WabitDataSource) {
+			SPDataSource ds = ((WabitDataSource) currentObject).getSPDataSource();
+			if (ds instanceof Olap4jDataSource) {
+				// the cubes of an OLAP data source are loaded when they are walked
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Stops listening to the workspace and the tree model.
+	 */
+	public void cleanup() {
+		updateTimer.stop();
+		pendingChanges.clear();
+		SQLPowerUtils.unlistenToHierarchy(workspace, workspaceListener);
+		model.removeTreeModelListener(treeModelListener);
+	}
+}
@@ -59,6 +59,7 @@ import ca.sqlpower.util.SQLPowerUtils;
 import ca.sqlpower.wabit.WabitDataSource;
 import ca.sqlpower.wabit.WabitObject;
 import ca.sqlpower.wabit.WabitSessionContext;
+import ca.sqlpower.wabit.WabitUtils;
 import ca.sqlpower.wabit.WabitWorkspace;
 import ca.sqlpower.wabit.enterprise.client.ReportTask;
 import ca.sqlpower.wabit.image.WabitImage;
@@ -73,6 +74,7 @@ import ca.sqlpower.wabit.report.Guide.Axis;
 import ca.sqlpower.wabit.report.chart.Chart;
 import ca.sqlpower.wabit.report.chart.ChartColumn;
 import ca.sqlpower.wabit.report.selectors.Selector;
+import ca.sqlpower.wabit.rs.olap.OlapMetadataCache;
 import ca.sqlpower.wabit.rs.olap.OlapQuery;
 import ca.sqlpower.wabit.rs.olap.WabitOlapAxis;
 import ca.sqlpower.wabit.rs.olap.WabitOlapDimension;
@@ -318,7 +320,8 @@ public class WorkspaceTreeModel implements TreeModel {
 			if (treeModelMap.containsKey(connection)) {
 				olapTreeModel = treeModelMap.get(connection);
 			} else {
-				olapTreeModel = new Olap4jTreeModel(Collections.singletonList(connection));
+				olapTreeModel = new Olap4jTreeModel(Collections.singletonList(connection), 
+						null, null, OlapMetadataCache.getCache(olapDS), false);
 				treeModelMap.put(connection, olapTreeModel);
 			}
 			Object root = olapTreeModel.getRoot();
@@ -568,14 +571,14 @@ public class WorkspaceTreeModel implements TreeModel {
                 }
                 
                 treePath = treePath.getParentPath();
-                int index = node.getParent().getChildren(node.getClass()).indexOf(node);
+                int index = WabitUtils.indexOfChildOfType(node.getParent(), node);
                 if (index < 0) {
                     // This is normal since not all objects are connected at once.
                 	return;
                 }
                 
                 if (node instanceof OlapQuery) {
-                	index += workspace.getChildren(QueryCache.class).size();
+                	index += workspace.getQueries().size();
                 } else if (node.getParent() instanceof Report
                 		&& node instanceof Selector) {
                 	index = ((Report)node.getParent()).getSelectors().indexOf(node) + ((Report)node.getParent()).getPage().getContentBoxes().size();
@@ -608,7 +611,7 @@ public class WorkspaceTreeModel implements TreeModel {
 		    
 			int index;
 			if (e.getChild() instanceof OlapQuery) {
-				index = e.getIndex() + workspace.getChildren(QueryCache.class).size();
+				index = e.getIndex() + workspace.getQueries().size();
 			} else if (e.getSource() instanceof Report
 					&& e.getChild() instanceof Selector) {
 				index = ((Report)e.getSource()).getSelectors().indexOf(e.getChild()) + ((Report)e.getSource()).getPage().getContentBoxes().size();
@@ -637,7 +640,7 @@ public class WorkspaceTreeModel implements TreeModel {
             
 		    int index;
 			if (e.getChild() instanceof OlapQuery) {
-				index = e.getIndex() + workspace.getChildren(QueryCache.class).size();
+				index = e.getIndex() + workspace.getQueries().size();
 			} else if (e.getSource() instanceof Report
 					&& e.getChild() instanceof Selector) {
 				index = e.getIndex() - 1 + ((Report)e.getSource()).getPage().getContentBoxes().size();
@@ -19,7 +19,9 @@
 
 package ca.sqlpower.wabit;
 
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 import ca.sqlpower.object.ObjectDependentException;
@@ -33,6 +35,7 @@ import ca.sqlpower.wabit.report.ChartRenderer;
 import ca.sqlpower.wabit.report.ContentBox;
 import ca.sqlpower.wabit.report.Report;
 import ca.sqlpower.wabit.report.ResultSetRenderer;
+import ca.sqlpower.wabit.report.Template;
 import ca.sqlpower.wabit.report.chart.Chart;
 import ca.sqlpower.wabit.rs.olap.OlapQuery;
 import ca.sqlpower.wabit.rs.query.QueryCache;
@@ -370,5 +373,31 @@ public class WabitWorkspaceTest extends AbstractWabitObjectTest {
         
         assertFalse(workspace.getChildren().contains(q));
     }
+    
+    /**
+     * The children are cached between changes, so the positions returned for
+     * them must follow children being added and removed.
+     */
+    public void testChildPositionsFollowChanges() throws Exception {
+        Report first = new Report("first");
+        Report second = new Report("second");
+        Template template = new Template("template");
+        workspace.addReport(first);
+        workspace.addReport(second);
+        workspace.addTemplate(template);
+        
+        List<SPObject> children = workspace.getChildren();
+        assertSame(children, workspace.getChildren());
+        assertEquals(children.indexOf(second), workspace.indexOfChild(second));
+        assertEquals(1, workspace.indexOfChildOfType(second));
+        assertEquals(0, workspace.indexOfChildOfType(template));
+        
+        workspace.removeChild(first);
+        assertNotSame(children, workspace.getChildren());
+        assertEquals(-1, workspace.indexOfChild(first));
+        assertEquals(workspace.getChildren().indexOf(second), workspace.indexOfChild(second));
+        assertEquals(0, workspace.indexOfChildOfType(second));
+        assertEquals(Collections.singletonList(second), workspace.getChildren(Report.class));
+    }
 
 }
@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2009, SQL Power Group Inc.
+ *
+ * This file is part of Wabit.
+ *
+ * Wabit is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wabit is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. 
+ */
+
+package ca.sqlpower.wabit;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+import ca.sqlpower.object.SPObject;
+import ca.sqlpower.wabit.report.ChartRenderer;
+import ca.sqlpower.wabit.report.ContentBox;
+import ca.sqlpower.wabit.report.Report;
+import ca.sqlpower.wabit.report.chart.Chart;
+import ca.sqlpower.wabit.rs.query.QueryCache;
+
+public class WorkspaceDependencyGraphTest extends TestCase {
+
+	private StubWabitSessionContext context;
+	private StubWabitSession session;
+	private WabitWorkspace workspace;
+	private WorkspaceDependencyGraph graph;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		context = new StubWabitSessionContext();
+		workspace = new WabitWorkspace();
+		session = new StubWabitSession(context) {
+			@Override
+			public WabitWorkspace getWorkspace() {
+				return workspace;
+			}
+		};
+		workspace.setSession(session);
+		graph = workspace.getDependencyGraph();
+	}
+
+	protected void tearDown() throws Exception {
+		graph.cleanup();
+		super.tearDown();
+	}
+
+	/**
+	 * Dependencies set before and after objects are added to the workspace
+	 * must both be found.
+	 */
+	public void testFollowsChanges() throws Exception {
+		QueryCache query = new QueryCache(context);
+		workspace.addQuery(query, session);
+		Chart chart = new Chart();
+		workspace.addChart(chart);
+		assertTrue(graph.getDirectDependants(query).isEmpty());
+
+		chart.setQuery(query);
+		assertEquals(1, graph.getDirectDependants(query).size());
+		assertTrue(graph.getDirectDependants(query).contains(chart));
+		assertTrue(graph.getDirectDependencies(chart).contains(query));
+
+		Report report = new Report("Report");
+		workspace.addReport(report);
+		ContentBox box = new ContentBox();
+		ChartRenderer renderer = new ChartRenderer(chart);
+		box.setContentRenderer(renderer);
+		report.getPage().addContentBox(box);
+		assertTrue(graph.getDirectDependants(chart).contains(renderer));
+
+		List<SPObject> dependants = graph.getDependants(query);
+		assertEquals(3, dependants.size());
+		assertEquals(query, dependants.get(0));
+		assertTrue(dependants.contains(chart));
+		assertTrue(dependants.contains(renderer));
+
+		report.getPage().removeContentBox(box);
+		assertFalse(graph.getDirectDependants(chart).contains(renderer));
+		assertEquals(2, graph.getDependants(query).size());
+	}
+
+	/**
+	 * Objects must come after the objects they depend on and after their
+	 * children when saved.
+	 */
+	public void testSaveOrder() throws Exception {
+		QueryCache query = new QueryCache(context);
+		workspace.addQuery(query, session);
+		Chart chart = new Chart();
+		workspace.addChart(chart);
+		chart.setQuery(query);
+		Report report = new Report("Report");
+		workspace.addReport(report);
+		ContentBox box = new ContentBox();
+		box.setContentRenderer(new ChartRenderer(chart));
+		report.getPage().addContentBox(box);
+
+		List<SPObject> order = graph.getSaveOrder(report);
+		assertEquals(report, order.get(order.size() - 1));
+		assertTrue(order.indexOf(query) < order.indexOf(chart));
+		assertTrue(order.indexOf(chart) < order.indexOf(box));
+		assertTrue(order.indexOf(box) < order.indexOf(report.getPage()));
+		assertFalse(order.contains(workspace));
+	}
+}
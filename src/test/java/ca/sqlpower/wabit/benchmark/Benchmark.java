@@ -0,0 +1,255 @@
+/*
+ * Copyright (c) 2010, SQL Power Group Inc.
+ *
+ * This file is part of Wabit.
+ *
+ * Wabit is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wabit is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ca.sqlpower.wabit.benchmark;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One operation to be timed by the benchmarks. The operation is run a
+ * number of times to warm up the JVM before it is measured, and the time and
+ * memory allocated by the measured runs are reported per operation.
+ * <p>
+ * Allocation is measured on the thread running the benchmark, so the
+ * benchmarks should be run with the
+ * <code>ca.sqlpower.wabit.rs.ResultSetHandle.forceSync</code> system property
+ * set to have queries execute on that thread as well.
+ * <p>
+ * The results of a run can be saved to the file named by the
+ * <code>benchmark.report</code> system property and compared against the
+ * results of an earlier run saved in the file named by the
+ * <code>benchmark.baseline</code> system property, see
+ * {@link #report(List, PrintStream)}.
+ */
+public abstract class Benchmark {
+
+	/**
+	 * The measurements of one benchmark.
+	 */
+	public static class Result {
+
+		private final String name;
+		private final int operations;
+		private final long elapsedNanos;
+
+		/**
+		 * The bytes allocated by all the measured operations, or -1 if the
+		 * JVM cannot measure allocation.
+		 */
+		private final long allocatedBytes;
+
+		public Result(String name, int operations, long elapsedNanos, long allocatedBytes) {
+			this.name = name;
+			this.operations = operations;
+			this.elapsedNanos = elapsedNanos;
+			this.allocatedBytes = allocatedBytes;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public double getMillisPerOperation() {
+			return elapsedNanos / 1000000.0 / operations;
+		}
+
+		public double getOperationsPerSecond() {
+			return operations * 1000000000.0 / elapsedNanos;
+		}
+
+		/**
+		 * Returns the kilobytes allocated per operation, or -1 if the JVM
+		 * cannot measure allocation.
+		 */
+		public double getKilobytesPerOperation() {
+			if (allocatedBytes < 0) return -1;
+			return allocatedBytes / 1024.0 / operations;
+		}
+
+		public void print(PrintStream out) {
+			out.println(String.format("%-60s %10.3f ms/op %12.3f ops/s %14.1f KB/op",
+					name, getMillisPerOperation(), getOperationsPerSecond(),
+					getKilobytesPerOperation()));
+		}
+
+		/**
+		 * Prints this result along with the change in time and allocation
+		 * from the given result of an earlier run.
+		 */
+		public void printComparison(Result baseline, PrintStream out) {
+			out.println(String.format("%-60s %10.3f ms/op (%+7.1f%%) %14.1f KB/op (%+7.1f%%)",
+					name, getMillisPerOperation(),
+					percentChange(baseline.getMillisPerOperation(), getMillisPerOperation()),
+					getKilobytesPerOperation(),
+					percentChange(baseline.getKilobytesPerOperation(), getKilobytesPerOperation())));
+		}
+
+		private static double percentChange(double before, double after) {
+			if (before <= 0 || after < 0) return 0;
+			return (after - before) * 100 / before;
+		}
+	}
+
+	/**
+	 * Prints the given results. If the <code>benchmark.baseline</code> system
+	 * property names a report of an earlier run, each result is compared to
+	 * the result of the same name in it. If the <code>benchmark.report</code>
+	 * system property names a file, the results are saved to it so later runs
+	 * can be compared against them.
+	 */
+	public static void report(List<Result> results, PrintStream out) throws IOException {
+		Map<String, Result> baseline = new LinkedHashMap<String, Result>();
+		String baselineFile = System.getProperty("benchmark.baseline");
+		if (baselineFile != null && baselineFile.trim().length() > 0) {
+			baseline = readReport(new File(baselineFile));
+		}
+
+		out.println();
+		for (Result result : results) {
+			Result baselineResult = baseline.get(result.getName());
+			if (baselineResult != null) {
+				result.printComparison(baselineResult, out);
+			} else {
+				result.print(out);
+			}
+		}
+
+		String reportFile = System.getProperty("benchmark.report");
+		if (reportFile != null && reportFile.trim().length() > 0) {
+			writeReport(results, new File(reportFile));
+		}
+	}
+
+	/**
+	 * Saves the given results to a file, one tab separated result per line.
+	 */
+	public static void writeReport(List<Result> results, File file) throws IOException {
+		PrintWriter writer = new PrintWriter(new FileWriter(file));
+		try {
+			for (Result result : results) {
+				writer.println(result.name + "\t" + result.operations + "\t" +
+						result.elapsedNanos + "\t" + result.allocatedBytes);
+			}
+		} finally {
+			writer.close();
+		}
+	}
+
+	/**
+	 * Reads the results saved by {@link #writeReport(List, File)}, by name.
+	 */
+	public static Map<String, Result> readReport(File file) throws IOException {
+		Map<String, Result> results = new LinkedHashMap<String, Result>();
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.split("\t");
+				if (fields.length != 4) continue;
+				results.put(fields[0], new Result(fields[0], Integer.parseInt(fields[1]),
+						Long.parseLong(fields[2]), Long.parseLong(fields[3])));
+			}
+		} finally {
+			reader.close();
+		}
+		return results;
+	}
+
+	private final String name;
+
+	public Benchmark(String name) {
+		this.name = name;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Prepares the data the operation needs. This is not measured.
+	 */
+	public void setUp() throws Exception {
+		// nothing to prepare by default
+	}
+
+	/**
+	 * The operation being measured.
+	 */
+	public abstract void run() throws Exception;
+
+	/**
+	 * Releases what {@link #setUp()} created. This is not measured.
+	 */
+	public void tearDown() throws Exception {
+		// nothing to release by default
+	}
+
+	/**
+	 * Sets up this benchmark, runs it the given number of times without
+	 * measuring it and then measures the given number of runs.
+	 */
+	public Result measure(int warmupRuns, int measuredRuns) throws Exception {
+		setUp();
+		try {
+			for (int i = 0; i < warmupRuns; i++) {
+				run();
+			}
+			System.gc();
+
+			long startBytes = allocatedBytes();
+			long start = System.nanoTime();
+			for (int i = 0; i < measuredRuns; i++) {
+				run();
+			}
+			long elapsed = System.nanoTime() - start;
+			long endBytes = allocatedBytes();
+
+			long allocated = startBytes < 0 || endBytes < 0 ? -1 : endBytes - startBytes;
+			return new Result(name, measuredRuns, elapsed, allocated);
+		} finally {
+			tearDown();
+		}
+	}
+
+	/**
+	 * Returns the number of bytes the current thread allocated so far, or -1
+	 * if the JVM does not track it.
+	 */
+	private static long allocatedBytes() {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (threads instanceof com.sun.management.ThreadMXBean) {
+			com.sun.management.ThreadMXBean sunThreads = (com.sun.management.ThreadMXBean) threads;
+			if (sunThreads.isThreadAllocatedMemorySupported() && sunThreads.isThreadAllocatedMemoryEnabled()) {
+				return sunThreads.getThreadAllocatedBytes(Thread.currentThread().getId());
+			}
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2010, SQL Power Group Inc.
+ *
+ * This file is part of Wabit.
+ *
+ * Wabit is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wabit is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ca.sqlpower.wabit.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+
+import javax.naming.NamingException;
+
+import org.olap4j.OlapConnection;
+
+import ca.sqlpower.sql.DataSourceCollection;
+import ca.sqlpower.sql.JDBCDataSource;
+import ca.sqlpower.sql.Olap4jDataSource;
+import ca.sqlpower.sql.PlDotIni;
+import ca.sqlpower.sql.SPDataSource;
+import ca.sqlpower.sqlobject.SQLDatabase;
+import ca.sqlpower.sqlobject.SQLDatabaseMapping;
+import ca.sqlpower.util.DefaultUserPrompter;
+import ca.sqlpower.util.UserPrompter;
+import ca.sqlpower.util.UserPrompter.UserPromptOptions;
+import ca.sqlpower.util.UserPrompter.UserPromptResponse;
+import ca.sqlpower.util.UserPrompterFactory.UserPromptType;
+import ca.sqlpower.wabit.StubWabitSession;
+import ca.sqlpower.wabit.StubWabitSessionContext;
+import ca.sqlpower.wabit.WabitSession;
+import ca.sqlpower.wabit.WabitWorkspace;
+import ca.sqlpower.wabit.rs.olap.OlapConnectionPool;
+
+/**
+ * A session context for the benchmarks that connects to the databases of the
+ * regression tests, including the World Facts OLAP cube. Questions that would
+ * be put to the user are answered with their default response.
+ */
+public class RegressionSessionContext extends StubWabitSessionContext {
+
+	/**
+	 * The name of the in-memory relational database of the regression tests.
+	 */
+	public static final String REGRESSION_DATA_SOURCE = "regression_test";
+
+	/**
+	 * The name of the OLAP data source on the World Facts database.
+	 */
+	public static final String OLAP_DATA_SOURCE = "World Facts OLAP Connection";
+
+	private final PlDotIni plIni;
+
+	private final OlapConnectionPool connectionPool;
+
+	public RegressionSessionContext() throws IOException {
+		plIni = new PlDotIni();
+		plIni.read(new File("src/test/resources/pl.regression.ini"));
+		final Olap4jDataSource olapDS = getOlapDataSource();
+		connectionPool = new OlapConnectionPool(olapDS, new SQLDatabaseMapping() {
+			private final SQLDatabase sqlDB = new SQLDatabase(olapDS.getDataSource());
+			public SQLDatabase getDatabase(JDBCDataSource ds) {
+				return sqlDB;
+			}
+		});
+	}
+
+	@Override
+	public OlapConnection createConnection(Olap4jDataSource dataSource)
+		throws SQLException, ClassNotFoundException, NamingException {
+		return connectionPool.getConnection();
+	}
+
+	@Override
+	public DataSourceCollection<SPDataSource> getDataSources() {
+		return plIni;
+	}
+
+	@Override
+	public WabitSession createSession() {
+		return createSession(new WabitWorkspace());
+	}
+
+	/**
+	 * Creates a session in this context on the given workspace.
+	 */
+	public WabitSession createSession(final WabitWorkspace workspace) {
+		WabitSession session = new StubWabitSession(this) {
+			@Override
+			public DataSourceCollection<SPDataSource> getDataSources() {
+				return plIni;
+			}
+			@Override
+			public WabitWorkspace getWorkspace() {
+				return workspace;
+			}
+		};
+		workspace.setSession(session);
+		return session;
+	}
+
+	@Override
+	public UserPrompter createUserPrompter(String question,
+			UserPromptType responseType, UserPromptOptions optionType,
+			UserPromptResponse defaultResponseType,
+			Object defaultResponse, String... buttonNames) {
+		return new DefaultUserPrompter(optionType, defaultResponseType, defaultResponse);
+	}
+
+	public JDBCDataSource getRegressionDataSource() {
+		return plIni.getDataSource(REGRESSION_DATA_SOURCE, JDBCDataSource.class);
+	}
+
+	public Olap4jDataSource getOlapDataSource() {
+		return plIni.getDataSource(OLAP_DATA_SOURCE, Olap4jDataSource.class);
+	}
+}
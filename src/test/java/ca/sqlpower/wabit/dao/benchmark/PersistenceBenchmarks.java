@@ -0,0 +1,327 @@
+/*
+ * Copyright (c) 2010, SQL Power Group Inc.
+ *
+ * This file is part of Wabit.
+ *
+ * Wabit is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wabit is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ca.sqlpower.wabit.dao.benchmark;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.olap4j.Axis;
+import org.olap4j.metadata.Cube;
+import org.olap4j.query.Selection.Operator;
+
+import ca.sqlpower.dao.MessageSender;
+import ca.sqlpower.dao.SPPersistenceException;
+import ca.sqlpower.dao.json.SPJSONMessageDecoder;
+import ca.sqlpower.sql.JDBCDataSource;
+import ca.sqlpower.sql.Olap4jDataSource;
+import ca.sqlpower.wabit.WabitSession;
+import ca.sqlpower.wabit.WabitWorkspace;
+import ca.sqlpower.wabit.benchmark.Benchmark;
+import ca.sqlpower.wabit.benchmark.RegressionSessionContext;
+import ca.sqlpower.wabit.dao.OpenWorkspaceXMLDAO;
+import ca.sqlpower.wabit.dao.WabitSessionPersister;
+import ca.sqlpower.wabit.dao.WorkspaceXMLDAO;
+import ca.sqlpower.wabit.dao.json.WabitJSONPersister;
+import ca.sqlpower.wabit.dao.session.WorkspacePersisterListener;
+import ca.sqlpower.wabit.image.WabitImage;
+import ca.sqlpower.wabit.report.ChartRenderer;
+import ca.sqlpower.wabit.report.ContentBox;
+import ca.sqlpower.wabit.report.DataType;
+import ca.sqlpower.wabit.report.ImageRenderer;
+import ca.sqlpower.wabit.report.Report;
+import ca.sqlpower.wabit.report.ResultSetRenderer;
+import ca.sqlpower.wabit.report.WabitLabel;
+import ca.sqlpower.wabit.report.chart.Chart;
+import ca.sqlpower.wabit.report.chart.ChartColumn;
+import ca.sqlpower.wabit.report.chart.ChartType;
+import ca.sqlpower.wabit.report.chart.ColumnRole;
+import ca.sqlpower.wabit.rs.olap.OlapQuery;
+import ca.sqlpower.wabit.rs.olap.WabitOlapAxis;
+import ca.sqlpower.wabit.rs.olap.WabitOlapDimension;
+import ca.sqlpower.wabit.rs.olap.WabitOlapInclusion;
+import ca.sqlpower.wabit.rs.query.QueryCache;
+
+/**
+ * Measures the time and memory taken to save, open and synchronize
+ * workspaces. A workspace is generated for each scale given in the
+ * <code>benchmark.scale</code> system property, holding that many times
+ * {@link #QUERIES} queries, {@link #OLAP_QUERIES} OLAP queries,
+ * {@link #CHARTS} charts, {@link #IMAGES} images and {@link #REPORTS} reports
+ * of {@link #CONTENT_BOXES} content boxes each, and is then:
+ * <ul>
+ * <li>saved to XML by the {@link WorkspaceXMLDAO},</li>
+ * <li>opened from that XML by the {@link OpenWorkspaceXMLDAO},</li>
+ * <li>persisted by a {@link WorkspacePersisterListener} into a
+ * {@link WabitSessionPersister} on an empty workspace, which is what
+ * happens when a workspace is synchronized with a server,</li>
+ * <li>encoded to JSON by the {@link WabitJSONPersister},</li>
+ * <li>decoded from that JSON into an empty workspace.</li>
+ * </ul>
+ * Run this with the <code>persistence-benchmark</code> Ant target.
+ */
+public class PersistenceBenchmarks {
+
+	public static final int QUERIES = 20;
+	public static final int OLAP_QUERIES = 5;
+	public static final int CHARTS = 10;
+	public static final int IMAGES = 5;
+	public static final int REPORTS = 5;
+	public static final int CONTENT_BOXES = 20;
+
+	/**
+	 * Keeps the JSON messages the {@link WabitJSONPersister} sends, as the
+	 * server would receive them.
+	 */
+	private static class CollectingMessageSender implements MessageSender<JSONObject> {
+
+		private JSONArray messages = new JSONArray();
+
+		private String lastTransaction;
+
+		public void send(JSONObject content) throws SPPersistenceException {
+			messages.put(content);
+		}
+
+		public void flush() throws SPPersistenceException {
+			lastTransaction = messages.toString();
+			messages = new JSONArray();
+		}
+
+		public void clear() {
+			messages = new JSONArray();
+		}
+
+		/**
+		 * Returns the messages sent before the last flush as a JSON array.
+		 */
+		public String getLastTransaction() {
+			return lastTransaction;
+		}
+	}
+
+	private final RegressionSessionContext context;
+
+	private final List<Benchmark.Result> results = new ArrayList<Benchmark.Result>();
+
+	public PersistenceBenchmarks() throws Exception {
+		context = new RegressionSessionContext();
+	}
+
+	public static void main(String[] args) throws Exception {
+		String[] scales = System.getProperty("benchmark.scale", "1,10").split(",");
+		int warmupRuns = Integer.getInteger("benchmark.warmup", 2);
+		int measuredRuns = Integer.getInteger("benchmark.iterations", 5);
+
+		PersistenceBenchmarks benchmarks = new PersistenceBenchmarks();
+		for (String scale : scales) {
+			benchmarks.runBenchmarks(Integer.parseInt(scale.trim()), warmupRuns, measuredRuns);
+		}
+
+		Benchmark.report(benchmarks.results, System.out);
+		System.exit(0);
+	}
+
+	private void measure(Benchmark benchmark, int warmupRuns, int measuredRuns) throws Exception {
+		Benchmark.Result result = benchmark.measure(warmupRuns, measuredRuns);
+		result.print(System.out);
+		results.add(result);
+	}
+
+	private void runBenchmarks(int scale, int warmupRuns, int measuredRuns) throws Exception {
+		final WabitWorkspace workspace = new WabitWorkspace();
+		final WabitSession session = context.createSession(workspace);
+		populateWorkspace(workspace, session, scale);
+		String size = workspace.getChildren().size() + " children, scale " + scale;
+
+		final ByteArrayOutputStream xml = new ByteArrayOutputStream();
+		measure(new Benchmark("XML save, " + size) {
+			@Override
+			public void run() throws Exception {
+				xml.reset();
+				new WorkspaceXMLDAO(xml, context).save(Collections.singletonList(workspace));
+			}
+		}, warmupRuns, measuredRuns);
+
+		measure(new Benchmark("XML open, " + size) {
+			@Override
+			public void run() throws Exception {
+				byte[] bytes = xml.toByteArray();
+				new OpenWorkspaceXMLDAO(context, new ByteArrayInputStream(bytes), bytes.length)
+					.openWorkspaces().close();
+			}
+		}, warmupRuns, measuredRuns);
+
+		measure(new Benchmark("Session persister commit, " + size) {
+			@Override
+			public void run() throws Exception {
+				WabitSessionPersister persister = createTargetPersister(workspace);
+				new WorkspacePersisterListener(session, persister, true).persistObject(workspace);
+			}
+		}, warmupRuns, measuredRuns);
+
+		final CollectingMessageSender sender = new CollectingMessageSender();
+		measure(new Benchmark("JSON encode, " + size) {
+			@Override
+			public void run() throws Exception {
+				new WorkspacePersisterListener(session, new WabitJSONPersister(sender), true)
+					.persistObject(workspace);
+			}
+		}, warmupRuns, measuredRuns);
+
+		final String json = sender.getLastTransaction();
+		measure(new Benchmark("JSON decode, " + size) {
+			@Override
+			public void run() throws Exception {
+				new SPJSONMessageDecoder(createTargetPersister(workspace)).decode(json);
+			}
+		}, warmupRuns, measuredRuns);
+
+		session.close();
+	}
+
+	/**
+	 * Creates a session persister on a new, empty workspace that has the UUID
+	 * of the given workspace, the way a client's workspace mirrors the one on
+	 * the server.
+	 */
+	private WabitSessionPersister createTargetPersister(WabitWorkspace source) {
+		WabitWorkspace target = new WabitWorkspace();
+		target.setUUID(source.getUUID());
+		WabitSession targetSession = context.createSession(target);
+		WabitSessionPersister persister = new WabitSessionPersister(
+				"Benchmark target", targetSession, target, true);
+		persister.setGodMode(true);
+		return persister;
+	}
+
+	/**
+	 * Fills the given workspace with the number of objects of each type given
+	 * by the constants of this class multiplied by the given scale.
+	 */
+	private void populateWorkspace(WabitWorkspace workspace, WabitSession session, int scale) throws Exception {
+		workspace.setName("Persistence benchmark");
+		JDBCDataSource dataSource = context.getRegressionDataSource();
+		Olap4jDataSource olapDataSource = context.getOlapDataSource();
+		workspace.addDataSource(dataSource);
+		workspace.addDataSource(olapDataSource);
+
+		List<QueryCache> queries = new ArrayList<QueryCache>();
+		for (int i = 0; i < QUERIES * scale; i++) {
+			QueryCache query = new QueryCache(context);
+			query.setName("Query " + i);
+			workspace.addQuery(query, session);
+			query.setDataSource(dataSource);
+			query.setUserModifiedQuery("select id, category, label, amount from benchmark_table " +
+					"where id > " + i + " order by category");
+			queries.add(query);
+		}
+
+		Cube cube = null;
+		for (int i = 0; i < OLAP_QUERIES * scale; i++) {
+			OlapQuery query = new OlapQuery(null, context, "OLAP query " + i, "GUI Query",
+					"LOCALDB", "World", "World Countries", null);
+			query.setOlapDataSource(olapDataSource);
+			if (cube == null) {
+				cube = context.createConnection(olapDataSource).getCatalogs().get(query.getCatalogName())
+					.getSchemas().get(query.getSchemaName()).getCubes().get(query.getCubeName());
+			}
+			query.setCurrentCube(cube, false);
+			workspace.addOlapQuery(query);
+
+			WabitOlapAxis rowsAxis = new WabitOlapAxis(Axis.ROWS);
+			WabitOlapDimension rowsDimension = new WabitOlapDimension("Geography");
+			rowsAxis.addDimension(rowsDimension);
+			rowsDimension.addInclusion(new WabitOlapInclusion(Operator.CHILDREN, "[Geography].[World]"));
+			WabitOlapAxis columnsAxis = new WabitOlapAxis(Axis.COLUMNS);
+			WabitOlapDimension columnsDimension = new WabitOlapDimension("Measures");
+			columnsAxis.addDimension(columnsDimension);
+			columnsDimension.addInclusion(new WabitOlapInclusion(Operator.MEMBER, "[Measures].[Population]"));
+			query.addAxis(columnsAxis);
+			query.addAxis(rowsAxis);
+		}
+
+		List<Chart> charts = new ArrayList<Chart>();
+		for (int i = 0; i < CHARTS * scale; i++) {
+			Chart chart = new Chart();
+			chart.setName("Chart " + i);
+			workspace.addChart(chart);
+			chart.setType(ChartType.BAR);
+			chart.setQuery(queries.get(i % queries.size()));
+			ChartColumn category = new ChartColumn("CATEGORY", DataType.TEXT);
+			category.setRoleInChart(ColumnRole.CATEGORY);
+			chart.addChartColumn(category);
+			ChartColumn amount = new ChartColumn("AMOUNT", DataType.NUMERIC);
+			amount.setRoleInChart(ColumnRole.SERIES);
+			chart.addChartColumn(amount);
+			charts.add(chart);
+		}
+
+		List<WabitImage> images = new ArrayList<WabitImage>();
+		for (int i = 0; i < IMAGES * scale; i++) {
+			BufferedImage bufferedImage = new BufferedImage(64, 64, BufferedImage.TYPE_INT_ARGB);
+			Graphics2D g = bufferedImage.createGraphics();
+			g.setColor(new Color(i * 40 % 256, i * 80 % 256, i * 120 % 256));
+			g.fillOval(0, 0, 64, 64);
+			g.dispose();
+			WabitImage image = new WabitImage();
+			image.setName("Image " + i);
+			image.setImage(bufferedImage);
+			workspace.addImage(image);
+			images.add(image);
+		}
+
+		for (int i = 0; i < REPORTS * scale; i++) {
+			Report report = new Report("Report " + i);
+			workspace.addReport(report);
+			for (int j = 0; j < CONTENT_BOXES; j++) {
+				ContentBox contentBox = new ContentBox();
+				contentBox.setName("Content box " + j);
+				contentBox.setX(20 + (j % 4) * 130);
+				contentBox.setY(20 + (j / 4) * 140);
+				contentBox.setWidth(120);
+				contentBox.setHeight(130);
+				report.getPage().addContentBox(contentBox);
+				switch (j % 4) {
+				case 0:
+					contentBox.setContentRenderer(new WabitLabel("Label " + j + " of report " + i));
+					break;
+				case 1:
+					contentBox.setContentRenderer(new ResultSetRenderer(queries.get((i + j) % queries.size())));
+					break;
+				case 2:
+					contentBox.setContentRenderer(new ChartRenderer(charts.get((i + j) % charts.size())));
+					break;
+				default:
+					ImageRenderer imageRenderer = new ImageRenderer();
+					imageRenderer.setImage(images.get((i + j) % images.size()));
+					contentBox.setContentRenderer(imageRenderer);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) 2010, SQL Power Group Inc.
+ *
+ * This file is part of Wabit.
+ *
+ * Wabit is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wabit is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. 
+ */
+
+package ca.sqlpower.wabit.enterprise.client;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import ca.sqlpower.enterprise.client.ServerProperties;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class ServerInfoProviderTest extends TestCase {
+
+	/**
+	 * Answers the server information and font requests of one server path,
+	 * counting the server information requests. The answers can be held
+	 * until they are released.
+	 */
+	private static class ServerInfoHandler implements HttpHandler {
+		private final AtomicInteger infoRequests = new AtomicInteger();
+		private final CountDownLatch infoRequested = new CountDownLatch(1);
+		private volatile CountDownLatch release = new CountDownLatch(0);
+		private volatile String version = "1.0.0";
+
+		public void handle(HttpExchange exchange) throws IOException {
+			try {
+				String body;
+				if (exchange.getRequestURI().getPath().endsWith("serverinfo")) {
+					infoRequests.incrementAndGet();
+					infoRequested.countDown();
+					release.await();
+					JSONObject info = new JSONObject();
+					info.put(ServerProperties.SERVER_VERSION.toString(), version);
+					info.put(ServerProperties.SERVER_LICENSED.toString(), true);
+					info.put(ServerProperties.SERVER_WATERMARK_MESSAGE.toString(), "");
+					body = info.toString();
+				} else {
+					body = new JSONArray(Arrays.asList("Serif", "Monospaced")).toString();
+				}
+				byte[] bytes = body.getBytes("UTF-8");
+				exchange.sendResponseHeaders(200, bytes.length);
+				OutputStream out = exchange.getResponseBody();
+				out.write(bytes);
+				out.close();
+			} catch (Exception e) {
+				exchange.sendResponseHeaders(500, -1);
+			} finally {
+				exchange.close();
+			}
+		}
+	}
+
+	private HttpServer server;
+
+	private ExecutorService serverExecutor;
+
+	private String port;
+
+	private ServerInfoHandler fastServer;
+
+	private ServerInfoHandler slowServer;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		ServerInfoProvider.clearCache();
+		fastServer = new ServerInfoHandler();
+		slowServer = new ServerInfoHandler();
+		server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/fast/", fastServer);
+		server.createContext("/slow/", slowServer);
+		serverExecutor = Executors.newCachedThreadPool();
+		server.setExecutor(serverExecutor);
+		server.start();
+		port = String.valueOf(server.getAddress().getPort());
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		System.clearProperty(ServerInfoProvider.CACHE_TTL_PROPERTY);
+		slowServer.release.countDown();
+		if (server != null) {
+			server.stop(0);
+		}
+		serverExecutor.shutdownNow();
+		ServerInfoProvider.clearCache();
+		super.tearDown();
+	}
+
+	private String getVersion(String path) throws Exception {
+		return ServerInfoProvider.getServerVersion("localhost", port, path, "user", "password").toString();
+	}
+
+	/**
+	 * Asking about a server again before its information expires must not
+	 * ask the server.
+	 */
+	public void testInformationIsCachedUntilExpired() throws Exception {
+		System.setProperty(ServerInfoProvider.CACHE_TTL_PROPERTY, "60000");
+
+		assertEquals("1.0.0", getVersion("/fast/"));
+		fastServer.version = "2.0.0";
+		assertEquals("1.0.0", getVersion("/fast/"));
+		assertTrue(ServerInfoProvider.isServerLicensed("localhost", port, "/fast/", "user", "password"));
+		assertEquals(Arrays.asList("Monospaced", "Serif"), 
+				ServerInfoProvider.getServerFonts("localhost", port, "/fast/", "user", "password"));
+		assertEquals("", ServerInfoProvider.getWatermarkMessage("localhost", port, "/fast/", "user", "password"));
+
+		assertEquals(1, fastServer.infoRequests.get());
+	}
+
+	/**
+	 * Expired information must be returned right away and fetched again in
+	 * the background.
+	 */
+	public void testExpiredInformationIsRefreshedInBackground() throws Exception {
+		System.setProperty(ServerInfoProvider.CACHE_TTL_PROPERTY, "100");
+		assertEquals("1.0.0", getVersion("/fast/"));
+		fastServer.version = "2.0.0";
+		Thread.sleep(200);
+
+		assertEquals("1.0.0", getVersion("/fast/"));
+
+		long deadline = System.currentTimeMillis() + 5000;
+		while (!"2.0.0".equals(getVersion("/fast/")) && System.currentTimeMillis() < deadline) {
+			Thread.sleep(20);
+		}
+		assertEquals("2.0.0", getVersion("/fast/"));
+	}
+
+	/**
+	 * The expired information must be kept if the server cannot be reached.
+	 */
+	public void testExpiredInformationIsKeptWhenServerIsDown() throws Exception {
+		System.setProperty(ServerInfoProvider.CACHE_TTL_PROPERTY, "100");
+		assertEquals("1.0.0", getVersion("/fast/"));
+		server.stop(0);
+		server = null;
+		Thread.sleep(200);
+
+		assertEquals("1.0.0", getVersion("/fast/"));
+		Thread.sleep(500);
+		assertEquals("1.0.0", getVersion("/fast/"));
+	}
+
+	/**
+	 * A server that is slow to answer must not make the threads asking about
+	 * other servers wait.
+	 */
+	public void testSlowServerDoesNotBlockOtherServers() throws Exception {
+		System.setProperty(ServerInfoProvider.CACHE_TTL_PROPERTY, "60000");
+		slowServer.release = new CountDownLatch(1);
+		Thread slowLookup = new Thread(new Runnable() {
+			public void run() {
+				try {
+					getVersion("/slow/");
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			}
+		});
+		slowLookup.start();
+		assertTrue(slowServer.infoRequested.await(5, TimeUnit.SECONDS));
+
+		final String[] fastVersion = new String[1];
+		Thread fastLookup = new Thread(new Runnable() {
+			public void run() {
+				try {
+					fastVersion[0] = getVersion("/fast/");
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			}
+		});
+		fastLookup.start();
+		fastLookup.join(5000);
+		assertFalse(fastLookup.isAlive());
+		assertEquals("1.0.0", fastVersion[0]);
+		assertTrue(slowLookup.isAlive());
+
+		slowServer.release.countDown();
+		slowLookup.join(5000);
+		assertFalse(slowLookup.isAlive());
+		assertEquals(1, slowServer.infoRequests.get());
+	}
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2009, SQL Power Group Inc.
+ *
+ * This file is part of Wabit.
+ *
+ * Wabit is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wabit is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. 
+ */
+
+package ca.sqlpower.wabit.image;
+
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+
+import junit.framework.TestCase;
+
+public class ScaledImageCacheTest extends TestCase {
+
+	private BufferedImage source;
+
+	private ScaledImageCache cache;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		source = new BufferedImage(400, 200, BufferedImage.TYPE_INT_RGB);
+		for (int x = 0; x < source.getWidth(); x++) {
+			for (int y = 0; y < source.getHeight(); y++) {
+				source.setRGB(x, y, x < 200 ? 0xff0000 : 0x0000ff);
+			}
+		}
+		cache = new ScaledImageCache(source);
+	}
+
+	public void testScaledImageIsReused() throws Exception {
+		BufferedImage scaled = cache.getScaledImage(60, 30, null);
+		assertEquals(60, scaled.getWidth());
+		assertEquals(30, scaled.getHeight());
+		assertSame(scaled, cache.getScaledImage(60, 30, RenderingHints.VALUE_INTERPOLATION_BILINEAR));
+		assertNotSame(scaled, cache.getScaledImage(60, 30, RenderingHints.VALUE_INTERPOLATION_BICUBIC));
+		assertNotSame(scaled, cache.getScaledImage(61, 30, null));
+	}
+
+	public void testDownscaledImageKeepsContent() throws Exception {
+		BufferedImage scaled = cache.getScaledImage(40, 20, null);
+		assertEquals(0xffff0000, scaled.getRGB(5, 10));
+		assertEquals(0xff0000ff, scaled.getRGB(35, 10));
+	}
+
+	public void testUpscaledImage() throws Exception {
+		BufferedImage scaled = cache.getScaledImage(800, 400, null);
+		assertEquals(800, scaled.getWidth());
+		assertEquals(0xffff0000, scaled.getRGB(10, 10));
+	}
+
+	public void testOversizedImageIsNotCached() throws Exception {
+		assertNull(cache.getScaledImage(4096, 4096, null));
+		assertNull(cache.getScaledImage(0, 10, null));
+	}
+}
@@ -32,6 +32,21 @@ public class WabitImageTest extends AbstractWabitObjectTest {
     public Set<String> getPropertiesToNotPersistOnObjectPersist() {
     	Set<String> ignored = super.getPropertiesToNotPersistOnObjectPersist();
     	ignored.add("imageAsIcon");
+    	ignored.add("encodedImage");
+    	return ignored;
+    }
+    
+    @Override
+    public Set<String> getPropertiesToIgnoreForEvents() {
+    	Set<String> ignored = super.getPropertiesToIgnoreForEvents();
+    	ignored.add("encodedImage");
+    	return ignored;
+    }
+    
+    @Override
+    public Set<String> getPropertiesToIgnoreForPersisting() {
+    	Set<String> ignored = super.getPropertiesToIgnoreForPersisting();
+    	ignored.add("encodedImage");
     	return ignored;
     }
     
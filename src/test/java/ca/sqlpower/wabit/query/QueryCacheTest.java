@@ -148,6 +148,29 @@ public class QueryCacheTest extends AbstractWabitObjectTest {
 		assertEquals(1, listener.getChangeCount());
 	}
 
+	/**
+	 * The SQL of a query should only be generated again after the query
+	 * changed.
+	 */
+	public void testGeneratedQueryReusedUntilChanged() throws Exception {
+		Item item = new StringItem("'first'");
+		queryCache.addItem(item);
+		queryCache.selectItem(item);
+		String sql = queryCache.generateQuery();
+		assertSame(sql, queryCache.generateQuery());
+		assertSame(sql, queryCache.getStatement());
+		
+		Item other = new StringItem("'second'");
+		queryCache.addItem(other);
+		queryCache.selectItem(other);
+		String changed = queryCache.generateQuery();
+		assertNotSame(sql, changed);
+		assertTrue(changed.contains("'second'"));
+		
+		item.setAlias("renamed");
+		assertTrue(queryCache.generateQuery().contains("renamed"));
+	}
+
 	/**
 	 * Tests adding a {@link Container} to a query cache adds a corresponding
 	 * {@link WabitContainer} and its contained {@link Item}s as
@@ -19,11 +19,37 @@
 
 package ca.sqlpower.wabit.report;
 
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.sql.SQLException;
 import java.util.Set;
 
+import javax.naming.NamingException;
+
+import org.olap4j.Axis;
+import org.olap4j.OlapConnection;
+import org.olap4j.PreparedOlapStatement;
+import org.olap4j.metadata.Cube;
+import org.olap4j.query.Selection.Operator;
+
+import ca.sqlpower.object.SPVariableHelper;
+import ca.sqlpower.sql.JDBCDataSource;
+import ca.sqlpower.sql.Olap4jDataSource;
+import ca.sqlpower.sql.PlDotIni;
+import ca.sqlpower.sqlobject.SQLDatabase;
+import ca.sqlpower.sqlobject.SQLDatabaseMapping;
 import ca.sqlpower.wabit.AbstractWabitObjectTest;
+import ca.sqlpower.wabit.OlapConnectionProvider;
 import ca.sqlpower.wabit.WabitObject;
+import ca.sqlpower.wabit.rs.ResultSetHandle;
+import ca.sqlpower.wabit.rs.ResultSetHandle.ResultSetStatus;
+import ca.sqlpower.wabit.rs.olap.OlapConnectionPool;
 import ca.sqlpower.wabit.rs.olap.OlapQuery;
+import ca.sqlpower.wabit.rs.olap.WabitOlapAxis;
+import ca.sqlpower.wabit.rs.olap.WabitOlapDimension;
+import ca.sqlpower.wabit.rs.olap.WabitOlapInclusion;
 import ca.sqlpower.wabit.util.StubOlapConnectionMapping;
 
 public class CellSetRendererTest extends AbstractWabitObjectTest {
@@ -87,4 +113,105 @@ public class CellSetRendererTest extends AbstractWabitObjectTest {
         return renderer;
     }
 
+    /**
+     * Creates a query of the life expectancy of each region of the world
+     * against the regression test OLAP connection.
+     */
+    private OlapQuery createWorldFactsQuery() throws Exception {
+        PlDotIni plIni = new PlDotIni();
+        plIni.read(new File("src/test/resources/pl.regression.ini"));
+        final Olap4jDataSource ds = plIni.getDataSource("World Facts OLAP Connection", Olap4jDataSource.class);
+        final SQLDatabase db = new SQLDatabase(ds.getDataSource());
+        final SQLDatabaseMapping dbMapping = new SQLDatabaseMapping() {
+            public SQLDatabase getDatabase(JDBCDataSource ds) {
+                return db;
+            }
+        };
+        OlapConnectionProvider connectionMapping = new OlapConnectionProvider() {
+            public OlapConnection createConnection(Olap4jDataSource dataSource)
+                    throws SQLException, ClassNotFoundException, NamingException {
+                return new OlapConnectionPool(ds, dbMapping).getConnection();
+            }
+            public PreparedOlapStatement createPreparedStatement(
+                    Olap4jDataSource dataSource, String mdx, SPVariableHelper helper) {
+                try {
+                    return helper.substituteForDb(createConnection(dataSource), mdx);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        
+        OlapQuery worldQuery = new OlapQuery(null, connectionMapping, "Life Expectancy", 
+                "GUI Query", "LOCALDB", "World", "World Countries", null);
+        worldQuery.setOlapDataSource(ds);
+        Cube cube = connectionMapping.createConnection(ds).getCatalogs().get(worldQuery.getCatalogName())
+            .getSchemas().get(worldQuery.getSchemaName()).getCubes().get(worldQuery.getCubeName());
+        worldQuery.setCurrentCube(cube, false);
+        getWorkspace().addOlapQuery(worldQuery);
+        getWorkspace().addDataSource(ds);
+        
+        WabitOlapAxis rowsAxis = new WabitOlapAxis(Axis.ROWS);
+        WabitOlapDimension rowsDimension = new WabitOlapDimension("Geography");
+        rowsAxis.addDimension(rowsDimension);
+        rowsDimension.addInclusion(new WabitOlapInclusion(Operator.CHILDREN, "[Geography].[World]"));
+        WabitOlapAxis columnsAxis = new WabitOlapAxis(Axis.COLUMNS);
+        WabitOlapDimension columnsDimension = new WabitOlapDimension("Measures");
+        columnsAxis.addDimension(columnsDimension);
+        columnsDimension.addInclusion(new WabitOlapInclusion(Operator.MEMBER, "[Measures].[Life Expectancy]"));
+        worldQuery.addAxis(columnsAxis);
+        worldQuery.addAxis(rowsAxis);
+        return worldQuery;
+    }
+    
+    /**
+     * The pivot layout of a cell set is measured once and reused by every
+     * paint until the cell set or the fonts change.
+     */
+    public void testPivotLayoutReusedBetweenPaints() throws Exception {
+        OlapQuery worldQuery = createWorldFactsQuery();
+        CellSetRenderer worldRenderer = new CellSetRenderer(worldQuery);
+        ContentBox contentBox = new ContentBox();
+        contentBox.setContentRenderer(worldRenderer);
+        Report report = new Report("world report");
+        report.getPage().addContentBox(contentBox);
+        getWorkspace().addReport(report);
+        
+        ResultSetHandle handle = worldRenderer.getResultSetProducer().execute(
+                new SPVariableHelper(worldRenderer), null, false);
+        assertEquals(ResultSetStatus.SUCCESS, handle.getStatus());
+        worldRenderer.setPrewarmedResults(handle);
+        
+        BufferedImage image = new BufferedImage(400, 400, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = (Graphics2D) image.getGraphics();
+        try {
+            assertNull(worldRenderer.getPivotLayout());
+            worldRenderer.renderReportContent(g, 400, 400, 1, 0, false, new SPVariableHelper(worldRenderer));
+            CellSetRenderer.PivotLayout firstLayout = worldRenderer.getPivotLayout();
+            assertNotNull(firstLayout);
+            
+            worldRenderer.renderReportContent(g, 400, 400, 1, 0, false, new SPVariableHelper(worldRenderer));
+            worldRenderer.renderReportContent(g, 400, 100, 1, 1, true, new SPVariableHelper(worldRenderer));
+            assertSame(firstLayout, worldRenderer.getPivotLayout());
+            
+            Font biggerFont = worldRenderer.getBodyFont().deriveFont(worldRenderer.getBodyFont().getSize2D() * 2);
+            worldRenderer.setBodyFont(biggerFont);
+            worldRenderer.renderReportContent(g, 400, 400, 1, 0, false, new SPVariableHelper(worldRenderer));
+            CellSetRenderer.PivotLayout biggerFontLayout = worldRenderer.getPivotLayout();
+            assertNotSame(firstLayout, biggerFontLayout);
+            
+            ResultSetHandle newHandle = worldRenderer.getResultSetProducer().execute(
+                    new SPVariableHelper(worldRenderer), null, false);
+            worldRenderer.setPrewarmedResults(newHandle);
+            worldRenderer.renderReportContent(g, 400, 400, 1, 0, false, new SPVariableHelper(worldRenderer));
+            if (newHandle.getCellSet() != handle.getCellSet()) {
+                assertNotSame(biggerFontLayout, worldRenderer.getPivotLayout());
+            } else {
+                assertSame(biggerFontLayout, worldRenderer.getPivotLayout());
+            }
+        } finally {
+            g.dispose();
+        }
+    }
+
 }
@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2010, SQL Power Group Inc.
+ *
+ * This file is part of Wabit.
+ *
+ * Wabit is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wabit is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ca.sqlpower.wabit.report;
+
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.io.ByteArrayOutputStream;
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.TestCase;
+import ca.sqlpower.object.SPVariableResolver;
+import ca.sqlpower.wabit.StubWabitObject;
+import ca.sqlpower.wabit.enterprise.client.Watermarker;
+
+import com.itextpdf.text.pdf.PdfDictionary;
+import com.itextpdf.text.pdf.PdfName;
+import com.itextpdf.text.pdf.PdfReader;
+
+public class LayoutToPDFTest extends TestCase {
+
+	/**
+	 * Needs the given number of pages and paints nothing on them.
+	 */
+	private static class PagedRenderer extends StubWabitObject implements ReportContentRenderer {
+		private final int pages;
+
+		PagedRenderer(int pages) {
+			this.pages = pages;
+		}
+
+		public boolean renderReportContent(Graphics2D g, double width, double height,
+				double scaleFactor, int pageIndex, boolean printing,
+				SPVariableResolver variablesContext) {
+			return pageIndex < pages - 1;
+		}
+
+		public void resetToFirstPage() {
+			// every page is painted from its index
+		}
+
+		public Color getBackgroundColour() {
+			return Color.WHITE;
+		}
+
+		public void refresh() {
+			// nothing to refresh
+		}
+	}
+
+	/**
+	 * Counts the watermarks it paints.
+	 */
+	private static class CountingWatermarker extends Watermarker {
+		private int watermarks = 0;
+
+		@Override
+		public void watermark(Graphics g, Rectangle size) {
+			watermarks++;
+			g.drawLine(size.x, size.y, size.x + size.width, size.y + size.height);
+		}
+	}
+
+	/**
+	 * The watermark must be painted once per document and the same drawing
+	 * stamped on every page.
+	 */
+	public void testWatermarkIsPaintedOncePerDocument() throws Exception {
+		Report report = new Report("report");
+		ContentBox cb = new ContentBox();
+		report.getPage().addContentBox(cb);
+		cb.setContentRenderer(new PagedRenderer(3));
+		CountingWatermarker watermarker = new CountingWatermarker();
+		ByteArrayOutputStream pdf = new ByteArrayOutputStream();
+
+		new LayoutToPDF(pdf, report, watermarker).writePages();
+
+		assertEquals(1, watermarker.watermarks);
+		PdfReader reader = new PdfReader(pdf.toByteArray());
+		assertEquals(3, reader.getNumberOfPages());
+		Set<Integer> shared = null;
+		for (int i = 1; i <= reader.getNumberOfPages(); i++) {
+			PdfDictionary xObjects = reader.getPageN(i).getAsDict(PdfName.RESOURCES).getAsDict(PdfName.XOBJECT);
+			assertNotNull(xObjects);
+			Set<Integer> references = new HashSet<Integer>();
+			for (PdfName name : xObjects.getKeys()) {
+				references.add(xObjects.getAsIndirectObject(name).getNumber());
+			}
+			if (shared == null) {
+				shared = references;
+			} else {
+				shared.retainAll(references);
+			}
+		}
+		assertEquals(1, shared.size());
+	}
+
+	/**
+	 * A document written without a watermarker has no watermark.
+	 */
+	public void testNoWatermarkWithoutWatermarker() throws Exception {
+		Report report = new Report("report");
+		ContentBox cb = new ContentBox();
+		report.getPage().addContentBox(cb);
+		cb.setContentRenderer(new PagedRenderer(2));
+		ByteArrayOutputStream pdf = new ByteArrayOutputStream();
+
+		new LayoutToPDF(pdf, report, null).writePages();
+
+		PdfReader reader = new PdfReader(pdf.toByteArray());
+		assertEquals(2, reader.getNumberOfPages());
+		for (int i = 1; i <= reader.getNumberOfPages(); i++) {
+			assertNull(reader.getPageN(i).getAsDict(PdfName.RESOURCES).getAsDict(PdfName.XOBJECT));
+		}
+	}
+}
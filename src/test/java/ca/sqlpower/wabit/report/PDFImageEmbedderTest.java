@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2009, SQL Power Group Inc.
+ *
+ * This file is part of Wabit.
+ *
+ * Wabit is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wabit is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. 
+ */
+
+package ca.sqlpower.wabit.report;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import javax.imageio.ImageIO;
+
+import junit.framework.TestCase;
+
+import com.itextpdf.text.Document;
+import com.itextpdf.text.Rectangle;
+import com.itextpdf.text.pdf.PRStream;
+import com.itextpdf.text.pdf.PdfDictionary;
+import com.itextpdf.text.pdf.PdfName;
+import com.itextpdf.text.pdf.PdfReader;
+import com.itextpdf.text.pdf.PdfWriter;
+
+public class PDFImageEmbedderTest extends TestCase {
+
+	private byte[] jpeg;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		BufferedImage image = new BufferedImage(50, 40, BufferedImage.TYPE_INT_RGB);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ImageIO.write(image, "jpeg", out);
+		jpeg = out.toByteArray();
+	}
+
+	/**
+	 * The encoded image must be placed in the PDF as it is, not decoded and
+	 * stored again.
+	 */
+	public void testEmbedsEncodedBytes() throws Exception {
+		ByteArrayOutputStream pdf = new ByteArrayOutputStream();
+		Document document = new Document(new Rectangle(300, 200), 0, 0, 0, 0);
+		PdfWriter writer = PdfWriter.getInstance(document, pdf);
+		document.open();
+		Graphics2D g = writer.getDirectContent().createGraphics(300, 200);
+		g.translate(10, 20);
+		assertTrue(PDFImageEmbedder.drawImage(g, jpeg, 0, 0, 100, 80));
+		g.dispose();
+		document.close();
+
+		PdfReader reader = new PdfReader(pdf.toByteArray());
+		PdfDictionary xObjects = reader.getPageN(1).getAsDict(PdfName.RESOURCES).getAsDict(PdfName.XOBJECT);
+		assertEquals(1, xObjects.size());
+		PRStream image = (PRStream) xObjects.getAsStream(xObjects.getKeys().iterator().next());
+		assertEquals(PdfName.DCTDECODE, image.getAsName(PdfName.FILTER));
+		assertTrue(Arrays.equals(jpeg, PdfReader.getStreamBytesRaw(image)));
+
+		String content = new String(reader.getPageContent(1), "ISO-8859-1");
+		assertTrue(content, content.contains("100 0 0 80 10 100 cm"));
+	}
+
+	public void testIgnoresOtherGraphics() throws Exception {
+		BufferedImage image = new BufferedImage(10, 10, BufferedImage.TYPE_INT_ARGB);
+		Graphics2D g = image.createGraphics();
+		assertFalse(PDFImageEmbedder.drawImage(g, jpeg, 0, 0, 10, 10));
+		g.dispose();
+	}
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright (c) 2010, SQL Power Group Inc.
+ *
+ * This file is part of Wabit.
+ *
+ * Wabit is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wabit is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ca.sqlpower.wabit.report;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+import ca.sqlpower.object.SPObject;
+import ca.sqlpower.object.SPVariableHelper;
+import ca.sqlpower.object.SPVariableResolver;
+import ca.sqlpower.wabit.StubWabitObject;
+import ca.sqlpower.wabit.WabitObject;
+import ca.sqlpower.wabit.report.selectors.TextBoxSelector;
+import ca.sqlpower.wabit.rs.ResultSetHandle;
+import ca.sqlpower.wabit.rs.ResultSetListener;
+import ca.sqlpower.wabit.rs.ResultSetProducerException;
+import ca.sqlpower.wabit.rs.ResultSetProducerListener;
+import ca.sqlpower.wabit.rs.WabitResultSetProducer;
+
+public class ReportPrewarmerTest extends TestCase {
+
+	/**
+	 * A producer whose executions block until they are released or
+	 * interrupted. Executions that are released return no handle.
+	 */
+	private static class BlockingProducer extends StubWabitObject implements WabitResultSetProducer {
+		private final String name;
+		private final boolean streaming;
+		private final CountDownLatch started = new CountDownLatch(1);
+		private final CountDownLatch release = new CountDownLatch(1);
+		private final CountDownLatch stopped = new CountDownLatch(1);
+		private volatile boolean interrupted = false;
+		private volatile int executions = 0;
+
+		BlockingProducer(String name, boolean streaming) {
+			this.name = name;
+			this.streaming = streaming;
+		}
+
+		@Override
+		public String getName() {
+			return name;
+		}
+
+		@Override
+		public String getUUID() {
+			return name;
+		}
+
+		public ResultSetHandle execute(SPVariableHelper variablesContext,
+				ResultSetListener listener) throws ResultSetProducerException {
+			return execute(variablesContext, listener, false);
+		}
+
+		public ResultSetHandle execute(SPVariableHelper variablesContext,
+				ResultSetListener listener, boolean async) throws ResultSetProducerException {
+			executions++;
+			started.countDown();
+			try {
+				release.await();
+				return null;
+			} catch (InterruptedException e) {
+				interrupted = true;
+				throw new ResultSetProducerException(e);
+			} finally {
+				stopped.countDown();
+			}
+		}
+
+		public void addResultSetProducerListener(ResultSetProducerListener listener) {
+			// not used
+		}
+
+		public void removeResultSetProducerListener(ResultSetProducerListener listener) {
+			// not used
+		}
+
+		public boolean isRunning() {
+			return started.getCount() == 0 && stopped.getCount() > 0;
+		}
+
+		public boolean isStreaming() {
+			return streaming;
+		}
+
+		public void cancel() {
+			// executions are stopped by interrupting them
+		}
+	}
+
+	/**
+	 * Displays a producer and remembers the results it was given.
+	 */
+	private static class StubPrewarmableRenderer extends StubWabitObject implements PrewarmableRenderer {
+		private final WabitResultSetProducer producer;
+		private WabitObject parent;
+		private volatile ResultSetHandle prewarmedResults;
+
+		StubPrewarmableRenderer(WabitResultSetProducer producer) {
+			this.producer = producer;
+		}
+
+		@Override
+		public String getName() {
+			return "Renderer of " + producer.getName();
+		}
+
+		@Override
+		public WabitObject getParent() {
+			return parent;
+		}
+
+		@Override
+		public void setParent(SPObject parent) {
+			this.parent = (WabitObject) parent;
+		}
+
+		public WabitResultSetProducer getResultSetProducer() {
+			return producer;
+		}
+
+		public void setPrewarmedResults(ResultSetHandle handle) {
+			prewarmedResults = handle;
+		}
+
+		public boolean renderReportContent(Graphics2D g, double width, double height,
+				double scaleFactor, int pageIndex, boolean printing,
+				SPVariableResolver variablesContext) {
+			return false;
+		}
+
+		public void resetToFirstPage() {
+			// no pages
+		}
+
+		public Color getBackgroundColour() {
+			return Color.WHITE;
+		}
+
+		public void refresh() {
+			// nothing to refresh
+		}
+	}
+
+	private Report report;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		report = new Report("report");
+	}
+
+	/**
+	 * Adds a content box displaying the given producer to the report.
+	 */
+	private StubPrewarmableRenderer addRenderer(WabitResultSetProducer producer, boolean withSelector) {
+		ContentBox cb = new ContentBox();
+		report.getPage().addContentBox(cb);
+		if (withSelector) {
+			cb.addChild(new TextBoxSelector(), 0);
+		}
+		StubPrewarmableRenderer renderer = new StubPrewarmableRenderer(producer);
+		cb.setContentRenderer(renderer);
+		return renderer;
+	}
+
+	public void testRenderersOfSameProducerAreGrouped() throws Exception {
+		BlockingProducer first = new BlockingProducer("first", false);
+		BlockingProducer second = new BlockingProducer("second", false);
+		StubPrewarmableRenderer firstRenderer = addRenderer(first, false);
+		StubPrewarmableRenderer secondRenderer = addRenderer(second, false);
+		StubPrewarmableRenderer thirdRenderer = addRenderer(first, false);
+
+		List<List<PrewarmableRenderer>> groups = ReportPrewarmer.collectGroups(report);
+
+		assertEquals(2, groups.size());
+		assertEquals(2, groups.get(0).size());
+		assertSame(firstRenderer, groups.get(0).get(0));
+		assertSame(thirdRenderer, groups.get(0).get(1));
+		assertEquals(1, groups.get(1).size());
+		assertSame(secondRenderer, groups.get(1).get(0));
+	}
+
+	/**
+	 * A content box with selectors resolves its variables differently from
+	 * the rest of the report so it cannot share the results of the same
+	 * producer.
+	 */
+	public void testContentBoxWithSelectorsIsItsOwnScope() throws Exception {
+		BlockingProducer producer = new BlockingProducer("producer", false);
+		StubPrewarmableRenderer layoutScoped = addRenderer(producer, false);
+		StubPrewarmableRenderer boxScoped = addRenderer(producer, true);
+		StubPrewarmableRenderer otherBoxScoped = addRenderer(producer, true);
+
+		List<List<PrewarmableRenderer>> groups = ReportPrewarmer.collectGroups(report);
+
+		assertEquals(3, groups.size());
+		assertSame(layoutScoped, groups.get(0).get(0));
+		assertSame(boxScoped, groups.get(1).get(0));
+		assertSame(otherBoxScoped, groups.get(2).get(0));
+	}
+
+	public void testStreamingProducersAreNotGrouped() throws Exception {
+		addRenderer(new BlockingProducer("streaming", true), false);
+
+		assertTrue(ReportPrewarmer.collectGroups(report).isEmpty());
+	}
+
+	/**
+	 * An execution that does not finish in time is stopped and its renderer is
+	 * left to execute its query itself.
+	 */
+	public void testTimeoutCancelsExecution() throws Exception {
+		BlockingProducer producer = new BlockingProducer("slow", false);
+		StubPrewarmableRenderer renderer = addRenderer(producer, false);
+
+		long start = System.currentTimeMillis();
+		ReportPrewarmer.prewarmAndWait(report, 100);
+
+		assertTrue(System.currentTimeMillis() - start < 5000);
+		assertTrue(producer.stopped.await(5, TimeUnit.SECONDS));
+		assertTrue(producer.interrupted);
+		assertNull(renderer.prewarmedResults);
+	}
+
+	/**
+	 * Shared results may still be waited for by other layouts, so a layout
+	 * that times out leaves them running until they are forgotten.
+	 */
+	public void testSharedExecutionIsCancelledWhenForgotten() throws Exception {
+		BlockingProducer producer = new BlockingProducer("slow", false);
+		StubPrewarmableRenderer renderer = addRenderer(producer, false);
+		SharedQueryResults sharedResults = new SharedQueryResults();
+
+		ReportPrewarmer.prewarmAndWait(report, 100, sharedResults);
+
+		assertTrue(producer.started.await(5, TimeUnit.SECONDS));
+		assertEquals(1, sharedResults.size());
+		assertFalse(producer.interrupted);
+		assertNull(renderer.prewarmedResults);
+
+		sharedResults.forget(report);
+
+		assertTrue(producer.stopped.await(5, TimeUnit.SECONDS));
+		assertTrue(producer.interrupted);
+		assertEquals(0, sharedResults.size());
+		assertEquals(1, producer.executions);
+	}
+}
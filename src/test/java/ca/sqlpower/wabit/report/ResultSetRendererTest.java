@@ -25,6 +25,7 @@ import java.awt.Graphics2D;
 import java.awt.GraphicsEnvironment;
 import java.awt.Image;
 import java.awt.image.BufferedImage;
+import java.awt.print.Printable;
 import java.io.File;
 import java.sql.Connection;
 import java.sql.SQLException;
@@ -340,6 +341,89 @@ public class ResultSetRendererTest extends AbstractWabitObjectTest {
         
     }
 
+
+    /**
+     * The number of pages a layout plans from the pagination of its result set
+     * renderer must be the number of pages the renderer actually prints.
+     */
+    public void testPlannedPagesMatchPrintedPages() throws Exception {
+        Connection con = null;
+        Statement stmt = null;
+        try {
+            con = getContext().createConnection((JDBCDataSource)getSession().getDataSources().getDataSource("regression_test"));
+            stmt = con.createStatement();
+            stmt.execute("create table paged_table (row_num integer, row_text varchar(50))");
+            for (int i = 0; i < 100; i++) {
+                stmt.execute("insert into paged_table (row_num, row_text) values (" + i + ", 'row " + i + "')");
+            }
+        } finally {
+            if (stmt != null) stmt.close();
+            if (con != null) con.close();
+        }
+        
+        try {
+            query.setUserModifiedQuery("select * from paged_table");
+            
+            Report report = new Report("paged report");
+            getWorkspace().addReport(report);
+            ContentBox plannedCB = new ContentBox();
+            report.getPage().addContentBox(plannedCB);
+            plannedCB.setWidth(300);
+            plannedCB.setHeight(200);
+            plannedCB.setContentRenderer(new ResultSetRenderer(query));
+            
+            int plannedPages = report.getNumberOfPages();
+            assertTrue(plannedPages > 1);
+            
+            BufferedImage pageImage = new BufferedImage(
+                    (int) report.getPage().getWidth(), (int) report.getPage().getHeight(), 
+                    BufferedImage.TYPE_INT_ARGB);
+            Graphics2D pageGraphics = (Graphics2D) pageImage.getGraphics();
+            try {
+                for (int i = 0; i < plannedPages; i++) {
+                    assertEquals(Printable.PAGE_EXISTS, 
+                            report.print(pageGraphics, report.getPageFormat(i), i, true));
+                }
+                assertEquals(Printable.NO_SUCH_PAGE, 
+                        report.print(pageGraphics, report.getPageFormat(plannedPages), plannedPages, true));
+                
+                Report printedReport = new Report("printed report");
+                getWorkspace().addReport(printedReport);
+                ContentBox printedCB = new ContentBox();
+                printedReport.getPage().addContentBox(printedCB);
+                printedCB.setWidth(plannedCB.getWidth());
+                printedCB.setHeight(plannedCB.getHeight());
+                ResultSetRenderer printedRenderer = new ResultSetRenderer(query);
+                printedCB.setContentRenderer(printedRenderer);
+                int printedPages = 0;
+                boolean morePages = true;
+                while (morePages) {
+                    Graphics2D contentGraphics = (Graphics2D) pageGraphics.create(
+                            0, 0, (int) printedCB.getWidth(), (int) printedCB.getHeight());
+                    morePages = printedRenderer.renderReportContent(contentGraphics, 
+                            (int) printedCB.getWidth(), (int) printedCB.getHeight(), 1, 
+                            printedPages, true, new SPVariableHelper(printedRenderer));
+                    contentGraphics.dispose();
+                    printedPages++;
+                }
+                assertEquals(printedPages, plannedPages);
+            } finally {
+                pageGraphics.dispose();
+            }
+        } finally {
+            con = null;
+            stmt = null;
+            try {
+                con = getContext().createConnection((JDBCDataSource)getSession().getDataSources().getDataSource("regression_test"));
+                stmt = con.createStatement();
+                stmt.execute("drop table paged_table");
+            } finally {
+                if (stmt != null) stmt.close();
+                if (con != null) con.close();
+            }
+        }
+    }
+
     /**
      * This is a test to confirm that the correct column is being selected to
      * have it's width changed when dragging.
@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2009, SQL Power Group Inc.
+ *
+ * This file is part of Wabit.
+ *
+ * Wabit is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wabit is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. 
+ */
+
+package ca.sqlpower.wabit.report.batch;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.PriorityBlockingQueue;
+
+import junit.framework.TestCase;
+import ca.sqlpower.sql.JDBCDataSource;
+import ca.sqlpower.wabit.WabitSession;
+import ca.sqlpower.wabit.WabitWorkspace;
+import ca.sqlpower.wabit.benchmark.RegressionSessionContext;
+import ca.sqlpower.wabit.report.ContentBox;
+import ca.sqlpower.wabit.report.Report;
+import ca.sqlpower.wabit.report.ResultSetRenderer;
+import ca.sqlpower.wabit.report.batch.ReportBatchRenderer.QueuedJob;
+import ca.sqlpower.wabit.rs.query.QueryCache;
+
+public class ReportBatchRendererTest extends TestCase {
+
+	private RegressionSessionContext context;
+
+	private JDBCDataSource dataSource;
+
+	private WabitWorkspace workspace;
+
+	private QueryCache query;
+
+	private File outputDirectory;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		context = new RegressionSessionContext();
+		workspace = new WabitWorkspace();
+		WabitSession session = context.createSession(workspace);
+		dataSource = context.getRegressionDataSource();
+
+		Connection con = context.createConnection(dataSource);
+		Statement stmt = con.createStatement();
+		stmt.execute("create table batch_test (id integer, name varchar(50))");
+		stmt.execute("insert into batch_test values (1, 'first')");
+		stmt.execute("insert into batch_test values (2, 'second')");
+		stmt.close();
+		con.close();
+
+		query = new QueryCache(context);
+		query.setName("Batch");
+		workspace.addQuery(query, session);
+		query.setDataSource(dataSource);
+		query.setUserModifiedQuery("select id, name from batch_test order by id");
+
+		outputDirectory = File.createTempFile("batch", "");
+		outputDirectory.delete();
+		outputDirectory.mkdir();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		Connection con = context.createConnection(dataSource);
+		Statement stmt = con.createStatement();
+		stmt.execute("drop table batch_test");
+		stmt.close();
+		con.close();
+		for (File file : outputDirectory.listFiles()) {
+			file.delete();
+		}
+		outputDirectory.delete();
+		super.tearDown();
+	}
+
+	private Report createReport(String name) {
+		Report report = new Report(name);
+		workspace.addReport(report);
+		ContentBox box = new ContentBox();
+		box.setContentRenderer(new ResultSetRenderer(query));
+		report.getPage().addContentBox(box);
+		return report;
+	}
+
+	/**
+	 * Every report must be rendered and the query they share must only be
+	 * executed once.
+	 */
+	public void testRendersReportsWithSharedQuery() throws Exception {
+		List<BatchJob> jobs = new ArrayList<BatchJob>();
+		Report first = createReport("First");
+		jobs.add(BatchJob.forReport(first, outputDirectory, 0));
+		jobs.add(BatchJob.forReport(createReport("Second"), outputDirectory, 1));
+
+		ReportBatchRenderer renderer = new ReportBatchRenderer(2, 1);
+		List<BatchResult> results = renderer.renderAll(jobs);
+		assertEquals(1, renderer.getSharedResults().size());
+		renderer.shutdown();
+
+		assertEquals(2, results.size());
+		for (BatchResult result : results) {
+			assertTrue(String.valueOf(result.getException()), result.isSuccessful());
+			assertEquals(1, result.getAttempts());
+			assertTrue(result.getJob().getOutput().length() > 0);
+		}
+		assertEquals(new File(outputDirectory, ("First " + first.getUUID()).replaceAll("[^\\w\\-. ]", "_") + ".pdf"), 
+				results.get(0).getJob().getOutput());
+	}
+
+	/**
+	 * Reports with the same name must not write the same file, and a job may
+	 * not be submitted while another job writes to its file.
+	 */
+	public void testJobsDoNotShareOutput() throws Exception {
+		BatchJob first = BatchJob.forReport(createReport("Same"), outputDirectory, 0);
+		BatchJob second = BatchJob.forReport(createReport("Same"), outputDirectory, 0);
+		assertFalse(first.getOutput().equals(second.getOutput()));
+
+		ReportBatchRenderer renderer = new ReportBatchRenderer(1, 1);
+		BatchJob copy = new BatchJob(second.getReport(), first.getOutput(), 0);
+		Future<BatchResult> result;
+		synchronized (workspace) {
+			// the first job cannot write its pages until the workspace is released
+			result = renderer.submit(first);
+			try {
+				renderer.submit(copy);
+				fail("A job writing to the file of a pending job must be rejected");
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+		}
+		assertTrue(result.get().isSuccessful());
+		assertTrue(renderer.submit(copy).get().isSuccessful());
+		renderer.shutdown();
+	}
+
+	/**
+	 * Jobs with a higher priority must leave the queue first, jobs with the
+	 * same priority in the order they were submitted.
+	 */
+	public void testQueueOrder() throws Exception {
+		Callable<BatchResult> nothing = new Callable<BatchResult>() {
+			public BatchResult call() throws Exception {
+				return null;
+			}
+		};
+		PriorityBlockingQueue<QueuedJob> queue = new PriorityBlockingQueue<QueuedJob>();
+		QueuedJob low = new QueuedJob(nothing, 0, 0);
+		QueuedJob highLater = new QueuedJob(nothing, 5, 2);
+		QueuedJob high = new QueuedJob(nothing, 5, 1);
+		queue.add(low);
+		queue.add(highLater);
+		queue.add(high);
+		assertSame(high, queue.poll());
+		assertSame(highLater, queue.poll());
+		assertSame(low, queue.poll());
+	}
+}
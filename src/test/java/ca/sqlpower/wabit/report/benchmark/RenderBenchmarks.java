@@ -0,0 +1,406 @@
+/*
+ * Copyright (c) 2010, SQL Power Group Inc.
+ *
+ * This file is part of Wabit.
+ *
+ * Wabit is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wabit is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ca.sqlpower.wabit.report.benchmark;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.olap4j.Axis;
+import org.olap4j.metadata.Cube;
+import org.olap4j.query.Selection.Operator;
+
+import ca.sqlpower.object.SPVariableHelper;
+import ca.sqlpower.sql.CachedRowSet;
+import ca.sqlpower.sql.JDBCDataSource;
+import ca.sqlpower.sql.Olap4jDataSource;
+import ca.sqlpower.wabit.WabitSession;
+import ca.sqlpower.wabit.WabitWorkspace;
+import ca.sqlpower.wabit.benchmark.Benchmark;
+import ca.sqlpower.wabit.benchmark.RegressionSessionContext;
+import ca.sqlpower.wabit.report.CellSetRenderer;
+import ca.sqlpower.wabit.report.ChartRenderer;
+import ca.sqlpower.wabit.report.ColumnInfo;
+import ca.sqlpower.wabit.report.ContentBox;
+import ca.sqlpower.wabit.report.DataType;
+import ca.sqlpower.wabit.report.LayoutToPDF;
+import ca.sqlpower.wabit.report.Report;
+import ca.sqlpower.wabit.report.ResultSetRenderer;
+import ca.sqlpower.wabit.report.ColumnInfo.GroupAndBreak;
+import ca.sqlpower.wabit.report.ResultSetRenderer.BorderStyles;
+import ca.sqlpower.wabit.report.chart.Chart;
+import ca.sqlpower.wabit.report.chart.ChartColumn;
+import ca.sqlpower.wabit.report.chart.ChartType;
+import ca.sqlpower.wabit.report.chart.ColumnRole;
+import ca.sqlpower.wabit.report.resultset.ReportPositionRenderer;
+import ca.sqlpower.wabit.rs.ResultSetHandle;
+import ca.sqlpower.wabit.rs.olap.OlapQuery;
+import ca.sqlpower.wabit.rs.olap.WabitOlapAxis;
+import ca.sqlpower.wabit.rs.olap.WabitOlapDimension;
+import ca.sqlpower.wabit.rs.olap.WabitOlapInclusion;
+import ca.sqlpower.wabit.rs.query.QueryCache;
+
+/**
+ * Measures the time and memory taken to lay out and render reports. The
+ * result set layout, the PDF export and the charts are measured over a
+ * generated table of each size given in the <code>benchmark.rows</code>
+ * system property, and the cell set layout is measured over the World Facts
+ * cube used by the regression tests.
+ * <p>
+ * Run this with the <code>benchmark</code> Ant target. The number of runs is
+ * set with the <code>benchmark.warmup</code> and
+ * <code>benchmark.iterations</code> system properties.
+ */
+public class RenderBenchmarks {
+
+	/**
+	 * The table the generated rows are stored in, in the regression test
+	 * database.
+	 */
+	private static final String TABLE_NAME = "render_benchmark";
+
+	/**
+	 * The number of distinct values in the grouped column of the generated
+	 * table.
+	 */
+	private static final int CATEGORY_COUNT = 100;
+
+	private static final int BOX_WIDTH = 550;
+
+	private static final int BOX_HEIGHT = 700;
+
+	private static final Font[] FONTS = new Font[] {
+		new Font("Dialog", Font.PLAIN, 10),
+		new Font("Serif", Font.PLAIN, 12),
+		new Font("Monospaced", Font.BOLD, 9)
+	};
+
+	private final RegressionSessionContext context;
+	private final WabitSession session;
+	private final WabitWorkspace workspace;
+	private final JDBCDataSource dataSource;
+
+	/**
+	 * The graphics the benchmarks lay out and render into when they do not
+	 * export a PDF.
+	 */
+	private final Graphics2D graphics;
+
+	private final List<Benchmark.Result> results = new ArrayList<Benchmark.Result>();
+
+	public RenderBenchmarks() throws IOException {
+		context = new RegressionSessionContext();
+		workspace = new WabitWorkspace();
+		session = context.createSession(workspace);
+		dataSource = context.getRegressionDataSource();
+
+		BufferedImage image = new BufferedImage(BOX_WIDTH, BOX_HEIGHT, BufferedImage.TYPE_INT_ARGB);
+		graphics = image.createGraphics();
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (System.getProperty("ca.sqlpower.wabit.rs.ResultSetHandle.forceSync") == null) {
+			System.setProperty("ca.sqlpower.wabit.rs.ResultSetHandle.forceSync", "true");
+		}
+		String[] rowCounts = System.getProperty("benchmark.rows", "1000,100000,1000000").split(",");
+		int warmupRuns = Integer.getInteger("benchmark.warmup", 2);
+		int measuredRuns = Integer.getInteger("benchmark.iterations", 5);
+
+		RenderBenchmarks benchmarks = new RenderBenchmarks();
+		for (String rowCount : rowCounts) {
+			benchmarks.runResultSetBenchmarks(Integer.parseInt(rowCount.trim()), warmupRuns, measuredRuns);
+		}
+		benchmarks.runCellSetBenchmarks(warmupRuns, measuredRuns);
+
+		Benchmark.report(benchmarks.results, System.out);
+		System.exit(0);
+	}
+
+	private void measure(Benchmark benchmark, int warmupRuns, int measuredRuns) throws Exception {
+		Benchmark.Result result = benchmark.measure(warmupRuns, measuredRuns);
+		result.print(System.out);
+		results.add(result);
+	}
+
+	/**
+	 * Fills the benchmark table with the given number of rows and measures
+	 * every benchmark that renders a relational query over it.
+	 */
+	private void runResultSetBenchmarks(int rowCount, int warmupRuns, int measuredRuns) throws Exception {
+		createTable(rowCount);
+
+		final CachedRowSet rows = new CachedRowSet();
+		Connection con = context.createConnection(dataSource);
+		try {
+			Statement stmt = con.createStatement();
+			rows.populate(stmt.executeQuery("select * from " + TABLE_NAME + " order by category, id"));
+			stmt.close();
+		} finally {
+			con.close();
+		}
+
+		for (Font font : FONTS) {
+			String fontName = font.getFamily() + " " + font.getSize();
+			measure(createLayoutBenchmark("Result set layout, " + rowCount + " rows, " + fontName,
+					rows, font, false), warmupRuns, measuredRuns);
+			measure(createLayoutBenchmark("Grouped result set layout, " + rowCount + " rows, " + fontName,
+					rows, font, true), warmupRuns, measuredRuns);
+		}
+		measure(createChartBenchmark(rowCount), warmupRuns, measuredRuns);
+		measure(createPDFBenchmark(rowCount), warmupRuns, measuredRuns);
+	}
+
+	private void createTable(int rowCount) throws Exception {
+		Connection con = context.createConnection(dataSource);
+		try {
+			Statement stmt = con.createStatement();
+			try {
+				stmt.execute("drop table " + TABLE_NAME);
+			} catch (SQLException e) {
+				// the table does not exist yet
+			}
+			stmt.execute("create table " + TABLE_NAME + " (id integer, category varchar(20), " +
+					"label varchar(50), amount decimal(12, 2))");
+			stmt.close();
+
+			PreparedStatement insert = con.prepareStatement(
+					"insert into " + TABLE_NAME + " (id, category, label, amount) values (?, ?, ?, ?)");
+			for (int i = 0; i < rowCount; i++) {
+				insert.setInt(1, i);
+				insert.setString(2, "Category " + (i % CATEGORY_COUNT));
+				insert.setString(3, "Row number " + i + " of the benchmark");
+				insert.setBigDecimal(4, BigDecimal.valueOf((i * 7919L) % 100000, 2));
+				insert.addBatch();
+				if (i % 1000 == 999) {
+					insert.executeBatch();
+				}
+			}
+			insert.executeBatch();
+			insert.close();
+		} finally {
+			con.close();
+		}
+	}
+
+	/**
+	 * Lays out every row of the given result set the way a result set
+	 * renderer does before it paints or prints, optionally grouping the rows
+	 * by category with a subtotal of the amounts.
+	 */
+	private Benchmark createLayoutBenchmark(String name, final CachedRowSet rows,
+			final Font font, boolean grouped) {
+		final List<ColumnInfo> columns = new ArrayList<ColumnInfo>();
+		columns.add(createColumn("ID", DataType.NUMERIC));
+		ColumnInfo category = createColumn("CATEGORY", DataType.TEXT);
+		columns.add(category);
+		columns.add(createColumn("LABEL", DataType.TEXT));
+		ColumnInfo amount = createColumn("AMOUNT", DataType.NUMERIC);
+		columns.add(amount);
+		if (grouped) {
+			category.setWillGroupOrBreak(GroupAndBreak.GROUP);
+			amount.setWillSubtotal(true);
+		}
+
+		return new Benchmark(name) {
+			@Override
+			public void run() throws Exception {
+				ReportPositionRenderer renderer = new ReportPositionRenderer(font, font,
+						Color.BLACK, Color.BLACK, BorderStyles.FULL, BOX_WIDTH, "null");
+				rows.beforeFirst();
+				renderer.createResultSetLayout(graphics, rows, columns, BOX_HEIGHT, true);
+			}
+		};
+	}
+
+	private static ColumnInfo createColumn(String name, DataType type) {
+		ColumnInfo column = new ColumnInfo(name);
+		column.setDataType(type);
+		column.setWidth(BOX_WIDTH / 4);
+		return column;
+	}
+
+	private QueryCache createQuery(String name, String sql) {
+		QueryCache query = new QueryCache(context);
+		query.setName(name);
+		workspace.addQuery(query, session);
+		query.setDataSource(dataSource);
+		query.setUserModifiedQuery(sql);
+		return query;
+	}
+
+	/**
+	 * Prints a bar chart of the amounts of each category. Printing executes
+	 * the chart's query again, so this includes summarizing the table.
+	 */
+	private Benchmark createChartBenchmark(int rowCount) {
+		return new Benchmark("Chart of " + rowCount + " rows") {
+
+			private QueryCache query;
+			private Chart chart;
+			private ChartRenderer renderer;
+			private Report report;
+
+			@Override
+			public void setUp() throws Exception {
+				query = createQuery("Chart benchmark", "select category, sum(amount) as total from " +
+						TABLE_NAME + " group by category order by category");
+				chart = new Chart();
+				chart.setName("Chart benchmark");
+				workspace.addChart(chart);
+				chart.setType(ChartType.BAR);
+				chart.setQuery(query);
+				chart.refresh(false);
+				for (ChartColumn column : chart.getColumns()) {
+					if (column.getName().equalsIgnoreCase("category")) {
+						column.setRoleInChart(ColumnRole.CATEGORY);
+					} else {
+						column.setRoleInChart(ColumnRole.SERIES);
+					}
+				}
+
+				renderer = new ChartRenderer(chart);
+				ContentBox contentBox = new ContentBox();
+				contentBox.setContentRenderer(renderer);
+				report = new Report("Chart benchmark");
+				report.getPage().addContentBox(contentBox);
+				workspace.addReport(report);
+			}
+
+			@Override
+			public void run() throws Exception {
+				Graphics2D g = (Graphics2D) graphics.create();
+				renderer.renderReportContent(g, BOX_WIDTH, BOX_HEIGHT, 1, 0, true,
+						new SPVariableHelper(renderer));
+				g.dispose();
+			}
+
+			@Override
+			public void tearDown() throws Exception {
+				workspace.removeChild(report);
+				workspace.removeChild(chart);
+				workspace.removeChild(query);
+			}
+		};
+	}
+
+	/**
+	 * Exports a report holding every row of the table to a PDF, which
+	 * executes the query, lays the rows out and prints every page.
+	 */
+	private Benchmark createPDFBenchmark(int rowCount) {
+		return new Benchmark("PDF export of " + rowCount + " rows") {
+
+			private QueryCache query;
+			private Report report;
+
+			@Override
+			public void setUp() throws Exception {
+				query = createQuery("PDF benchmark", "select * from " + TABLE_NAME + " order by category, id");
+				report = new Report("PDF benchmark");
+				ContentBox contentBox = new ContentBox();
+				contentBox.setWidth(BOX_WIDTH);
+				contentBox.setHeight(BOX_HEIGHT);
+				contentBox.setContentRenderer(new ResultSetRenderer(query));
+				report.getPage().addContentBox(contentBox);
+				workspace.addReport(report);
+			}
+
+			@Override
+			public void run() throws Exception {
+				new LayoutToPDF(new OutputStream() {
+					@Override
+					public void write(int b) {
+						// discards the document
+					}
+					@Override
+					public void write(byte[] b, int off, int len) {
+						// discards the document
+					}
+				}, report, null).writePDF();
+			}
+
+			@Override
+			public void tearDown() throws Exception {
+				workspace.removeChild(report);
+				workspace.removeChild(query);
+			}
+		};
+	}
+
+	/**
+	 * Measures laying out and painting the life expectancy of every country
+	 * in the World Facts cube. A new renderer is used for each run so the
+	 * layout is measured every time.
+	 */
+	private void runCellSetBenchmarks(int warmupRuns, int measuredRuns) throws Exception {
+		final Olap4jDataSource olapDS = context.getOlapDataSource();
+		final OlapQuery query = new OlapQuery(null, context, "Cell set benchmark", "GUI Query",
+				"LOCALDB", "World", "World Countries", null);
+		query.setOlapDataSource(olapDS);
+		Cube cube = context.createConnection(olapDS).getCatalogs().get(query.getCatalogName())
+				.getSchemas().get(query.getSchemaName()).getCubes().get(query.getCubeName());
+		query.setCurrentCube(cube, false);
+		workspace.addOlapQuery(query);
+
+		WabitOlapAxis rowsAxis = new WabitOlapAxis(Axis.ROWS);
+		WabitOlapDimension rowsDimension = new WabitOlapDimension("Geography");
+		rowsAxis.addDimension(rowsDimension);
+		rowsDimension.addInclusion(new WabitOlapInclusion(Operator.DESCENDANTS, "[Geography].[World]"));
+		WabitOlapAxis columnsAxis = new WabitOlapAxis(Axis.COLUMNS);
+		WabitOlapDimension columnsDimension = new WabitOlapDimension("Measures");
+		columnsAxis.addDimension(columnsDimension);
+		columnsDimension.addInclusion(new WabitOlapInclusion(Operator.MEMBER, "[Measures].[Life Expectancy]"));
+		columnsDimension.addInclusion(new WabitOlapInclusion(Operator.MEMBER, "[Measures].[Population]"));
+		query.addAxis(columnsAxis);
+		query.addAxis(rowsAxis);
+
+		final OlapQuery modifiedQuery = OlapQuery.copyOlapQuery(query);
+		final ResultSetHandle handle = modifiedQuery.execute(new SPVariableHelper(query), null, false);
+
+		for (final Font font : FONTS) {
+			String fontName = font.getFamily() + " " + font.getSize();
+			measure(new Benchmark("Cell set layout, World Facts, " + fontName) {
+				@Override
+				public void run() throws Exception {
+					CellSetRenderer renderer = new CellSetRenderer(query);
+					renderer.setModifiedOlapQuery(modifiedQuery);
+					renderer.setPrewarmedResults(handle);
+					renderer.setHeaderFont(font);
+					renderer.setBodyFont(font);
+					Graphics2D g = (Graphics2D) graphics.create();
+					renderer.renderReportContent(g, BOX_WIDTH, BOX_HEIGHT, 1, 0, true,
+							new SPVariableHelper(renderer));
+					g.dispose();
+					renderer.cleanup();
+				}
+			}, warmupRuns, measuredRuns);
+		}
+	}
+}
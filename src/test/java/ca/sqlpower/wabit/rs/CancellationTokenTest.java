@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2009, SQL Power Group Inc.
+ *
+ * This file is part of Wabit.
+ *
+ * Wabit is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wabit is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. 
+ */
+
+package ca.sqlpower.wabit.rs;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.sql.SQLTimeoutException;
+
+import junit.framework.TestCase;
+
+public class CancellationTokenTest extends TestCase {
+
+	private CancellationToken token;
+
+	/**
+	 * The number of rows read from {@link #endlessResultSet}.
+	 */
+	private int rowsRead;
+
+	/**
+	 * A result set that always has a next row.
+	 */
+	private ResultSet endlessResultSet;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		token = new CancellationToken();
+		rowsRead = 0;
+		endlessResultSet = (ResultSet) Proxy.newProxyInstance(
+				getClass().getClassLoader(), new Class<?>[] { ResultSet.class }, 
+				new InvocationHandler() {
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						if (method.getName().equals("next")) {
+							rowsRead++;
+							return true;
+						} else if (method.getName().equals("getInt")) {
+							return rowsRead;
+						}
+						throw new UnsupportedOperationException(method.getName());
+					}
+				});
+	}
+
+	public void testWrappedResultSetPassesCallsThrough() throws Exception {
+		ResultSet rs = token.wrap(endlessResultSet);
+		assertTrue(rs.next());
+		assertTrue(rs.next());
+		assertEquals(2, rs.getInt(1));
+		try {
+			rs.getString(1);
+			fail("The exception of the wrapped result set should be rethrown");
+		} catch (UnsupportedOperationException e) {
+			// expected
+		}
+	}
+
+	public void testCancelStopsReadingRows() throws Exception {
+		ResultSet rs = token.wrap(endlessResultSet);
+		assertTrue(rs.next());
+		token.cancel();
+		assertTrue(token.isCancelled());
+		try {
+			rs.next();
+			fail("Reading rows after the token was cancelled should fail");
+		} catch (QueryCancelledException e) {
+			// expected
+		}
+		assertEquals(1, rowsRead);
+	}
+
+	public void testTimeout() throws Exception {
+		token.startTimeout(0);
+		assertFalse(token.isTimedOut());
+		token.checkCancelled();
+
+		token.startTimeout(1);
+		assertFalse(token.isTimedOut());
+		Thread.sleep(1100);
+		assertTrue(token.isTimedOut());
+		try {
+			token.wrap(endlessResultSet).next();
+			fail("Reading rows after the time limit should fail");
+		} catch (SQLTimeoutException e) {
+			assertTrue(e.getMessage().contains("1 seconds"));
+		}
+		assertEquals(0, rowsRead);
+
+		Exception cause = new Exception("driver timeout");
+		SQLTimeoutException timeout = token.createTimeoutException(cause);
+		assertTrue(timeout.getMessage().contains("1 seconds"));
+		assertSame(cause, timeout.getCause());
+
+		token.startTimeout(0);
+		token.checkCancelled();
+	}
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2010, SQL Power Group Inc.
+ *
+ * This file is part of Wabit.
+ *
+ * Wabit is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wabit is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ca.sqlpower.wabit.rs;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import junit.framework.TestCase;
+
+public class DistinctValueIndexTest extends TestCase {
+
+	private DistinctValueIndex index;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		index = new DistinctValueIndex.Builder()
+			.add("Ottawa").add("toronto").add("Ottawa").add(null)
+			.add("Oshawa").add("Toronto").add("ottawa")
+			.build();
+	}
+
+	public void testValuesKeepFirstAppearanceOrder() throws Exception {
+		assertEquals(Arrays.<Object>asList("Ottawa", "toronto", null, "Oshawa", "Toronto", "ottawa"),
+				index.getValues());
+		assertEquals(6, index.size());
+		assertTrue(index.contains(null));
+		assertFalse(index.contains("Montreal"));
+	}
+
+	public void testSortedValues() throws Exception {
+		assertEquals(Arrays.<Object>asList(null, "Oshawa", "Ottawa", "Toronto", "ottawa", "toronto"),
+				index.getSortedValues());
+	}
+
+	public void testNumbersSortByValue() throws Exception {
+		DistinctValueIndex numbers = new DistinctValueIndex.Builder()
+			.add(10).add(2L).add(3.5).build();
+		assertEquals(Arrays.<Object>asList(2L, 3.5, 10), numbers.getSortedValues());
+	}
+
+	public void testFindByPrefixIgnoresCase() throws Exception {
+		assertEquals(Arrays.<Object>asList("Ottawa", "ottawa"), index.findByPrefix("OTT", 10));
+		assertEquals(Arrays.<Object>asList("Toronto", "toronto"), index.findByPrefix("t", 10));
+		assertEquals(Collections.emptyList(), index.findByPrefix("m", 10));
+	}
+
+	public void testFindByPrefixLimit() throws Exception {
+		assertEquals(Arrays.<Object>asList("Oshawa", "Ottawa"), index.findByPrefix("o", 2));
+		assertEquals(5, index.findByPrefix("", 100).size());
+	}
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2009, SQL Power Group Inc.
+ *
+ * This file is part of Wabit.
+ *
+ * Wabit is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wabit is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. 
+ */
+
+package ca.sqlpower.wabit.rs;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Clob;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.Types;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+import ca.sqlpower.wabit.rs.ExecutionProfile.LobStrategy;
+
+public class ExecutionProfileTest extends TestCase {
+
+	/**
+	 * The values set on the statements and result sets created by
+	 * {@link #create(Class, int...)}, by the name of their setter.
+	 */
+	private Map<String, Object> settings;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		settings = new HashMap<String, Object>();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		System.clearProperty(ExecutionProfile.FETCH_SIZE_KEY);
+		System.clearProperty(ExecutionProfile.LOB_STRATEGY_KEY);
+		System.clearProperty(ExecutionProfile.STREAMING_AUTO_COMMIT_KEY);
+		super.tearDown();
+	}
+
+	/**
+	 * Returns an object of the given JDBC interface that records the values
+	 * given to its setters, describes columns of the given types and returns
+	 * a CLOB from getObject.
+	 */
+	private <T> T create(Class<T> type, final int... columnTypes) {
+		return type.cast(Proxy.newProxyInstance(getClass().getClassLoader(), 
+				new Class<?>[] { type }, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				String name = method.getName();
+				if (name.startsWith("set")) {
+					settings.put(name, args[0]);
+					return null;
+				} else if (name.equals("getMetaData")) {
+					return create(ResultSetMetaData.class, columnTypes);
+				} else if (name.equals("getColumnCount")) {
+					return columnTypes.length;
+				} else if (name.equals("getColumnType")) {
+					return columnTypes[(Integer) args[0] - 1];
+				} else if (name.equals("getColumnDisplaySize")) {
+					return 50;
+				} else if (name.equals("getObject")) {
+					return create(Clob.class);
+				} else if (name.equals("length")) {
+					return 5L;
+				} else if (name.equals("getSubString")) {
+					return "clob!";
+				}
+				throw new UnsupportedOperationException(name);
+			}
+		}));
+	}
+
+	public void testRowWidth() throws Exception {
+		ResultSetMetaData metaData = create(ResultSetMetaData.class, 
+				Types.INTEGER, Types.VARCHAR, Types.TIMESTAMP, Types.CLOB);
+		assertEquals(4 + 50 + 8 + ExecutionProfile.MAX_COLUMN_WIDTH, 
+				ExecutionProfile.estimateRowWidth(metaData));
+		
+		assertEquals(ExecutionProfile.MAX_AUTO_FETCH_SIZE, ExecutionProfile.fetchSizeForRowWidth(4));
+		assertEquals(ExecutionProfile.MIN_AUTO_FETCH_SIZE, ExecutionProfile.fetchSizeForRowWidth(1000000));
+		assertEquals(ExecutionProfile.TARGET_FETCH_BYTES / 1024, ExecutionProfile.fetchSizeForRowWidth(1024));
+	}
+
+	/**
+	 * An automatic fetch size is picked from the columns of the first
+	 * execution and used from the start of the next one on the same data
+	 * source.
+	 */
+	public void testAutoFetchSize() throws Exception {
+		ExecutionProfile profile = ExecutionProfile.DEFAULT;
+		String sql = "select auto_fetch_size_test";
+		
+		profile.applyTo(create(PreparedStatement.class), "test", sql, 0);
+		assertEquals(ExecutionProfile.INITIAL_AUTO_FETCH_SIZE, settings.get("setFetchSize"));
+		assertEquals(ResultSet.FETCH_FORWARD, settings.get("setFetchDirection"));
+		
+		ResultSet rs = create(ResultSet.class, Types.VARCHAR, Types.INTEGER);
+		assertSame(rs, profile.prepare(rs, "test", sql, 0));
+		int expected = ExecutionProfile.fetchSizeForRowWidth(54);
+		assertEquals(expected, settings.get("setFetchSize"));
+		
+		settings.clear();
+		profile.applyTo(create(PreparedStatement.class), "test", sql, 0);
+		assertEquals(expected, settings.get("setFetchSize"));
+		
+		profile.applyTo(create(PreparedStatement.class), "test", sql, 20);
+		assertEquals(20, settings.get("setFetchSize"));
+		
+		profile.applyTo(create(PreparedStatement.class), "other", sql, 0);
+		assertEquals(ExecutionProfile.INITIAL_AUTO_FETCH_SIZE, settings.get("setFetchSize"));
+	}
+
+	public void testFixedFetchSize() throws Exception {
+		ExecutionProfile profile = new ExecutionProfile(0, false, true, LobStrategy.LOCATOR);
+		profile.applyTo(create(PreparedStatement.class), "test", "select 1", 0);
+		assertTrue(settings.isEmpty());
+		
+		profile = new ExecutionProfile(250, false, true, LobStrategy.LOCATOR);
+		profile.applyTo(create(PreparedStatement.class), "test", "select 1", 0);
+		ResultSet rs = create(ResultSet.class, Types.INTEGER);
+		profile.prepare(rs, "test", "select 1", 0);
+		assertEquals(250, settings.get("setFetchSize"));
+	}
+
+	public void testMaterializeLobs() throws Exception {
+		ExecutionProfile profile = new ExecutionProfile(0, true, true, LobStrategy.MATERIALIZE);
+		ResultSet rs = profile.prepare(create(ResultSet.class, Types.CLOB), 
+				"test", "select 1", 0);
+		assertEquals("clob!", rs.getObject(1));
+	}
+
+	public void testSystemPropertyDefaults() throws Exception {
+		System.setProperty(ExecutionProfile.FETCH_SIZE_KEY, "500");
+		System.setProperty(ExecutionProfile.LOB_STRATEGY_KEY, "materialize");
+		System.setProperty(ExecutionProfile.STREAMING_AUTO_COMMIT_KEY, "false");
+		ExecutionProfile profile = ExecutionProfile.forDataSource(null);
+		assertEquals(500, profile.getFetchSize());
+		assertEquals(LobStrategy.MATERIALIZE, profile.getLobStrategy());
+		assertFalse(profile.isStreamingAutoCommit());
+		assertTrue(profile.isForwardOnly());
+		
+		System.setProperty(ExecutionProfile.FETCH_SIZE_KEY, "lots");
+		assertEquals(ExecutionProfile.AUTO_FETCH_SIZE, ExecutionProfile.forDataSource(null).getFetchSize());
+	}
+}
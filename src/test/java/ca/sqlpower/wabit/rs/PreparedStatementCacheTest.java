@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2009, SQL Power Group Inc.
+ *
+ * This file is part of Wabit.
+ *
+ * Wabit is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wabit is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. 
+ */
+
+package ca.sqlpower.wabit.rs;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class PreparedStatementCacheTest extends TestCase {
+
+	/**
+	 * A statement of {@link #connection} that records the calls made to it.
+	 */
+	private class FakeStatement implements InvocationHandler {
+		private final String sql;
+		private boolean closed = false;
+		private int parametersCleared = 0;
+		
+		FakeStatement(String sql) {
+			this.sql = sql;
+		}
+		
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			if (name.equals("close")) {
+				closed = true;
+			} else if (name.equals("isClosed")) {
+				return closed;
+			} else if (name.equals("clearParameters")) {
+				parametersCleared++;
+			} else if (name.equals("execute")) {
+				return true;
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * The statements prepared on {@link #connection}.
+	 */
+	private List<FakeStatement> prepared;
+
+	private Connection connection;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		prepared = new ArrayList<FakeStatement>();
+		connection = (Connection) Proxy.newProxyInstance(
+				getClass().getClassLoader(), new Class<?>[] { Connection.class }, 
+				new InvocationHandler() {
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						if (method.getName().equals("prepareStatement")) {
+							FakeStatement statement = new FakeStatement((String) args[0]);
+							prepared.add(statement);
+							return Proxy.newProxyInstance(getClass().getClassLoader(), 
+									new Class<?>[] { PreparedStatement.class }, statement);
+						} else if (method.getName().equals("close")) {
+							return null;
+						}
+						throw new UnsupportedOperationException(method.getName());
+					}
+				});
+	}
+
+	public void testClosedStatementIsReused() throws Exception {
+		PreparedStatementCache cache = new PreparedStatementCache(connection, 4);
+		Connection con = cache.getConnection();
+		
+		PreparedStatement first = con.prepareStatement("select * from t where id = ?");
+		first.setInt(1, 1);
+		first.execute();
+		first.close();
+		assertTrue(first.isClosed());
+		assertEquals(1, cache.size());
+		assertFalse(prepared.get(0).closed);
+		assertEquals(1, prepared.get(0).parametersCleared);
+		
+		PreparedStatement second = con.prepareStatement("select * from t where id = ?");
+		second.setInt(1, 2);
+		second.execute();
+		second.close();
+		assertEquals(1, prepared.size());
+		assertEquals(1, cache.getHitCount());
+		assertEquals(1, cache.getMissCount());
+	}
+
+	public void testStatementsInUseAreNotShared() throws Exception {
+		PreparedStatementCache cache = new PreparedStatementCache(connection, 4);
+		Connection con = cache.getConnection();
+		
+		PreparedStatement first = con.prepareStatement("select 1");
+		PreparedStatement second = con.prepareStatement("select 1");
+		assertEquals(2, prepared.size());
+		first.close();
+		second.close();
+		assertEquals(1, cache.size());
+		assertEquals(1, countClosed());
+	}
+
+	public void testLeastRecentlyUsedIsEvicted() throws Exception {
+		PreparedStatementCache cache = new PreparedStatementCache(connection, 2);
+		Connection con = cache.getConnection();
+		
+		con.prepareStatement("select 1").close();
+		con.prepareStatement("select 2").close();
+		con.prepareStatement("select 1").close();
+		con.prepareStatement("select 3").close();
+		assertEquals(2, cache.size());
+		assertEquals(3, prepared.size());
+		assertTrue(prepared.get(1).closed);
+		assertEquals("select 2", prepared.get(1).sql);
+		
+		con.close();
+		assertEquals(0, cache.size());
+		assertEquals(3, countClosed());
+	}
+
+	public void testCacheOff() throws Exception {
+		PreparedStatementCache cache = new PreparedStatementCache(connection, 0);
+		cache.getConnection().prepareStatement("select 1").close();
+		assertEquals(0, cache.size());
+		assertTrue(prepared.get(0).closed);
+	}
+
+	private int countClosed() {
+		int closed = 0;
+		for (FakeStatement statement : prepared) {
+			if (statement.closed) closed++;
+		}
+		return closed;
+	}
+}
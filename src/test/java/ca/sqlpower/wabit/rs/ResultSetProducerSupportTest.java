@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2009, SQL Power Group Inc.
+ *
+ * This file is part of Wabit.
+ *
+ * Wabit is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wabit is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. 
+ */
+
+package ca.sqlpower.wabit.rs;
+
+import javax.swing.SwingUtilities;
+
+import junit.framework.TestCase;
+import ca.sqlpower.object.SPVariableHelper;
+
+public class ResultSetProducerSupportTest extends TestCase {
+
+	/**
+	 * Counts the structure changes it is told about.
+	 */
+	private static class CountingListener implements ResultSetProducerListener {
+		private int structureChanges = 0;
+		
+		public void structureChanged(ResultSetProducerEvent evt) {
+			structureChanges++;
+		}
+		public void executionStarted(ResultSetProducerEvent evt) {
+			// not interested
+		}
+		public void executionStopped(ResultSetProducerEvent evt) {
+			// not interested
+		}
+	}
+
+	private final ResultSetProducer producer = new ResultSetProducer() {
+		public ResultSetHandle execute(SPVariableHelper variablesContext,
+				ResultSetListener listener) throws ResultSetProducerException {
+			throw new UnsupportedOperationException();
+		}
+		public ResultSetHandle execute(SPVariableHelper variablesContext,
+				ResultSetListener listener, boolean async) throws ResultSetProducerException {
+			throw new UnsupportedOperationException();
+		}
+		public void addResultSetProducerListener(ResultSetProducerListener listener) {
+			// not used
+		}
+		public void removeResultSetProducerListener(ResultSetProducerListener listener) {
+			// not used
+		}
+		public boolean isRunning() {
+			return false;
+		}
+		public boolean isStreaming() {
+			return false;
+		}
+		public void cancel() {
+			// not used
+		}
+	};
+
+	private ResultSetProducerSupport support;
+
+	private CountingListener listener;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		System.setProperty(ResultSetProducerSupport.STRUCTURE_CHANGE_QUIET_PERIOD_PROPERTY, "20");
+		support = new ResultSetProducerSupport(producer);
+		listener = new CountingListener();
+		support.addResultSetListener(listener);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		System.clearProperty(ResultSetProducerSupport.STRUCTURE_CHANGE_QUIET_PERIOD_PROPERTY);
+		super.tearDown();
+	}
+
+	/**
+	 * Waits for the quiet period to pass and the event thread to deliver the
+	 * pending structure change.
+	 */
+	private void waitForDelivery() throws Exception {
+		Thread.sleep(200);
+		SwingUtilities.invokeAndWait(new Runnable() {
+			public void run() {
+				// flushes the event queue
+			}
+		});
+	}
+
+	public void testBurstIsToldOnce() throws Exception {
+		for (int i = 0; i < 5; i++) {
+			support.fireStructureChanged();
+		}
+		waitForDelivery();
+		assertEquals(1, listener.structureChanges);
+		assertEquals(4, support.getCoalescedStructureChangeCount());
+		
+		support.fireStructureChanged();
+		waitForDelivery();
+		assertEquals(2, listener.structureChanges);
+	}
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2010, SQL Power Group Inc.
+ *
+ * This file is part of Wabit.
+ *
+ * Wabit is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wabit is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ca.sqlpower.wabit.rs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.swing.SwingUtilities;
+
+import junit.framework.TestCase;
+import ca.sqlpower.wabit.StubWabitObject;
+import ca.sqlpower.wabit.WabitObject;
+import ca.sqlpower.wabit.WabitWorkspace;
+import ca.sqlpower.wabit.rs.ResultSetVariableResolver.LoadListener;
+
+public class ResultSetVariableResolverTest extends TestCase {
+
+	/**
+	 * Counts its executions, which can be held until they are released. The
+	 * query cannot provide variables so every execution returns no handle.
+	 */
+	private static class CountingResolver extends ResultSetVariableResolver {
+		private final AtomicInteger executions = new AtomicInteger();
+		private volatile CountDownLatch release = new CountDownLatch(0);
+		private final CountDownLatch started = new CountDownLatch(1);
+
+		CountingResolver(WabitObject owner) {
+			super(owner, "namespace", "Counting");
+		}
+
+		@Override
+		protected ResultSetHandle executeForVariables() throws ResultSetProducerException {
+			executions.incrementAndGet();
+			started.countDown();
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				throw new ResultSetProducerException(e);
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Counts the loads the workspace is told about.
+	 */
+	private static class CountingLoadListener implements LoadListener {
+		private final AtomicInteger loads = new AtomicInteger();
+		private volatile CountDownLatch loaded = new CountDownLatch(1);
+
+		public void variablesLoaded(ResultSetVariableResolver source) {
+			loads.incrementAndGet();
+			loaded.countDown();
+		}
+	}
+
+	private WabitWorkspace workspace;
+
+	private CountingResolver resolver;
+
+	private CountingLoadListener listener;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		workspace = new WabitWorkspace();
+		WabitObject owner = new StubWabitObject() {
+			@Override
+			public WabitObject getParent() {
+				return workspace;
+			}
+		};
+		resolver = new CountingResolver(owner);
+		listener = new CountingLoadListener();
+		workspace.addVariableLoadListener(listener);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		resolver.cancelPendingLoad();
+		workspace.removeVariableLoadListener(listener);
+		super.tearDown();
+	}
+
+	/**
+	 * A burst of changes to the query must only load the variables once, after
+	 * the query stopped changing.
+	 */
+	public void testChangesAreDebounced() throws Exception {
+		resolver.getIndex("namespace::column");
+		assertEquals(1, resolver.executions.get());
+		assertEquals(1, listener.loads.get());
+
+		listener.loaded = new CountDownLatch(1);
+		for (int i = 0; i < 5; i++) {
+			resolver.invalidate();
+			Thread.sleep(ResultSetVariableResolver.DEBOUNCE_DELAY / 5);
+		}
+		assertEquals(1, resolver.executions.get());
+		assertTrue(listener.loaded.await(5, TimeUnit.SECONDS));
+		Thread.sleep(ResultSetVariableResolver.DEBOUNCE_DELAY * 2);
+		assertEquals(2, resolver.executions.get());
+		assertEquals(2, listener.loads.get());
+	}
+
+	/**
+	 * Changes to a query whose variables were never looked up must not
+	 * execute it.
+	 */
+	public void testUnusedVariablesAreNotLoaded() throws Exception {
+		resolver.invalidate();
+		Thread.sleep(ResultSetVariableResolver.DEBOUNCE_DELAY * 2);
+		assertEquals(0, resolver.executions.get());
+		assertEquals(0, listener.loads.get());
+	}
+
+	/**
+	 * Threads looking up the same stale values at once must wait for one
+	 * execution instead of each executing the query.
+	 */
+	public void testConcurrentLookupsShareOneExecution() throws Exception {
+		resolver.release = new CountDownLatch(1);
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < 8; i++) {
+			Thread thread = new Thread(new Runnable() {
+				public void run() {
+					resolver.getIndex("namespace::column");
+				}
+			});
+			threads.add(thread);
+			thread.start();
+		}
+		assertTrue(resolver.started.await(5, TimeUnit.SECONDS));
+		Thread.sleep(200);
+		resolver.release.countDown();
+		for (Thread thread : threads) {
+			thread.join(5000);
+			assertFalse(thread.isAlive());
+		}
+		assertEquals(1, resolver.executions.get());
+		assertEquals(1, listener.loads.get());
+	}
+
+	/**
+	 * Lookups on the event dispatch thread must not wait for the query. The
+	 * workspace is told once the values are loaded in the background.
+	 */
+	public void testEventThreadLookupLoadsInBackground() throws Exception {
+		resolver.release = new CountDownLatch(1);
+		SwingUtilities.invokeAndWait(new Runnable() {
+			public void run() {
+				assertNull(resolver.getIndex("namespace::column"));
+			}
+		});
+		assertTrue(resolver.started.await(5, TimeUnit.SECONDS));
+		assertEquals(0, listener.loads.get());
+
+		resolver.release.countDown();
+		assertTrue(listener.loaded.await(5, TimeUnit.SECONDS));
+		assertEquals(1, resolver.executions.get());
+	}
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2010, SQL Power Group Inc.
+ *
+ * This file is part of Wabit.
+ *
+ * Wabit is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wabit is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ca.sqlpower.wabit.rs.metrics;
+
+import java.sql.SQLException;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+
+import junit.framework.TestCase;
+import ca.sqlpower.wabit.rs.ResultSetHandle.ResultSetType;
+import ca.sqlpower.wabit.rs.metrics.QueryTrace.Outcome;
+import ca.sqlpower.wabit.rs.metrics.QueryTrace.Phase;
+
+public class QueryMetricsRegistryTest extends TestCase {
+
+	private QueryMetricsRegistry registry;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		registry = new QueryMetricsRegistry();
+	}
+
+	public void testHistogramPercentiles() throws Exception {
+		Histogram histogram = new Histogram();
+		for (int i = 0; i < 95; i++) {
+			histogram.record(3 * 1000000L);
+		}
+		for (int i = 0; i < 5; i++) {
+			histogram.record(900 * 1000000L);
+		}
+		assertEquals(100, histogram.getCount());
+		assertEquals(4.0, histogram.getPercentileMillis(0.95));
+		assertEquals(900.0, histogram.getPercentileMillis(0.99));
+		assertEquals(900.0, histogram.getMaxMillis());
+		assertEquals((95 * 3 + 5 * 900) / 100.0, histogram.getMeanMillis(), 0.0001);
+
+		histogram.reset();
+		assertEquals(0, histogram.getCount());
+		assertEquals(0.0, histogram.getPercentileMillis(0.95));
+	}
+
+	public void testTraceOutcome() throws Exception {
+		QueryTrace trace = new QueryTrace("db", "query", "select 1", ResultSetType.RELATIONAL);
+		trace.mark(Phase.QUEUE);
+		trace.finish(1, null);
+		assertEquals(Outcome.SUCCESS, trace.getOutcome());
+
+		trace = new QueryTrace("db", "query", "select 1", ResultSetType.RELATIONAL);
+		trace.finish(0, new SQLException());
+		assertEquals(Outcome.ERROR, trace.getOutcome());
+
+		trace = new QueryTrace("db", "query", "select 1", ResultSetType.RELATIONAL);
+		trace.cancelled();
+		trace.finish(0, new SQLException());
+		assertEquals(Outcome.CANCELLED, trace.getOutcome());
+	}
+
+	public void testRecordsByDataSourceAndProducer() throws Exception {
+		registry.executionFinished(finished("db", "Sales", 10, null));
+		registry.executionFinished(finished("db", "Costs", 5, null));
+		registry.executionFinished(finished("db", "Costs", 0, new SQLException()));
+		registry.executionFinished(finished(null, null, 0, null));
+
+		QueryStatistics db = registry.getDataSourceStatistics("db");
+		assertEquals(3, db.getExecutionCount());
+		assertEquals(1, db.getErrorCount());
+		assertEquals(15, db.getRowCount());
+
+		QueryStatistics costs = registry.getProducerStatistics("Costs");
+		assertEquals(2, costs.getExecutionCount());
+		assertEquals(5, costs.getRowCount());
+		assertEquals(1, registry.getProducerStatistics("Sales").getExecutionCount());
+
+		assertEquals(1, registry.getDataSourceStatistics(QueryMetricsRegistry.UNKNOWN).getExecutionCount());
+		assertEquals(3, registry.getProducerStatistics().size());
+		assertNull(registry.getProducerStatistics("Other"));
+	}
+
+	public void testProducersKeyedByUUID() throws Exception {
+		registry.executionFinished(finished("db", "uuid-1", "Sales", 10, null));
+		registry.executionFinished(finished("db", "uuid-2", "Sales", 5, null));
+
+		assertEquals(10, registry.getProducerStatistics("uuid-1").getRowCount());
+		assertEquals(5, registry.getProducerStatistics("uuid-2").getRowCount());
+		assertEquals("Sales", registry.getProducerStatistics("uuid-2").getName());
+
+		registry.removeProducer("uuid-1");
+		assertNull(registry.getProducerStatistics("uuid-1"));
+		assertEquals(1, registry.getProducerStatistics().size());
+	}
+
+	public void testRemovedProducerUnregistered() throws Exception {
+		MBeanServer server = MBeanServerFactory.newMBeanServer();
+		registry = new QueryMetricsRegistry(server);
+		registry.executionFinished(finished("db", "uuid-1", "Sales", 10, null));
+		registry.executionFinished(finished("db", "uuid-2", "Sales", 5, null));
+		ObjectName producers = new ObjectName("ca.sqlpower.wabit:type=ProducerQueries,*");
+		assertEquals(2, server.queryNames(producers, null).size());
+
+		registry.removeProducer("uuid-1");
+		assertEquals(1, server.queryNames(producers, null).size());
+	}
+
+	public void testReset() throws Exception {
+		registry.executionFinished(finished("db", "Sales", 10, new SQLException()));
+		QueryStatistics statistics = registry.getDataSourceStatistics("db");
+		assertNotNull(statistics.getSlowestExecution());
+
+		statistics.reset();
+		assertEquals(0, statistics.getExecutionCount());
+		assertEquals(0, statistics.getErrorCount());
+		assertEquals(0, statistics.getRowCount());
+		assertNull(statistics.getSlowestExecution());
+	}
+
+	private QueryTrace finished(String dataSource, String producer, int rows, Exception e) {
+		return finished(dataSource, null, producer, rows, e);
+	}
+
+	private QueryTrace finished(String dataSource, String producerUUID, String producer, 
+			int rows, Exception e) {
+		QueryTrace trace = new QueryTrace(dataSource, producerUUID, producer, "select 1", 
+				ResultSetType.RELATIONAL);
+		for (Phase phase : Phase.values()) {
+			trace.mark(phase);
+		}
+		trace.finish(rows, e);
+		return trace;
+	}
+}
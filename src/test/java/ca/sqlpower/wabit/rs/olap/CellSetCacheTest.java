@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2010, SQL Power Group Inc.
+ *
+ * This file is part of Wabit.
+ *
+ * Wabit is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wabit is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ca.sqlpower.wabit.rs.olap;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.olap4j.CellSet;
+import org.olap4j.CellSetAxis;
+
+public class CellSetCacheTest extends TestCase {
+
+	/**
+	 * Creates a cell set whose axes have the given position counts. Only the
+	 * methods used by the cache are implemented.
+	 */
+	private static CellSet createCellSet(int ... positionCounts) {
+		final List<CellSetAxis> axes = new ArrayList<CellSetAxis>();
+		for (final int count : positionCounts) {
+			axes.add((CellSetAxis) Proxy.newProxyInstance(
+					CellSetAxis.class.getClassLoader(),
+					new Class<?>[] { CellSetAxis.class },
+					new InvocationHandler() {
+						public Object invoke(Object proxy, Method method, Object[] args) {
+							if (method.getName().equals("getPositionCount")) {
+								return count;
+							}
+							throw new UnsupportedOperationException(method.getName());
+						}
+					}));
+		}
+		return (CellSet) Proxy.newProxyInstance(
+				CellSet.class.getClassLoader(),
+				new Class<?>[] { CellSet.class },
+				new InvocationHandler() {
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						if (method.getName().equals("getAxes")) {
+							return axes;
+						} else if (method.getName().equals("getMetaData")) {
+							return null;
+						}
+						throw new UnsupportedOperationException(method.getName());
+					}
+				});
+	}
+
+	/**
+	 * Creates a statement that records if it was closed in the given array.
+	 */
+	private static Statement createStatement(final boolean[] closed) {
+		return (Statement) Proxy.newProxyInstance(
+				Statement.class.getClassLoader(),
+				new Class<?>[] { Statement.class },
+				new InvocationHandler() {
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						if (method.getName().equals("close")) {
+							closed[0] = true;
+							return null;
+						} else if (method.getName().equals("isClosed")) {
+							return closed[0];
+						} else if (method.getName().equals("getConnection")) {
+							return null;
+						}
+						throw new UnsupportedOperationException(method.getName());
+					}
+				});
+	}
+
+	public void testNormalizeCollapsesWhitespace() throws Exception {
+		assertEquals("SELECT {[Measures].[Unit Sales]} ON COLUMNS FROM [Sales]",
+				CellSetCache.normalize("  SELECT\n\t{[Measures].[Unit Sales]}\n ON   COLUMNS\nFROM [Sales] \n"));
+	}
+
+	public void testNormalizeKeepsQuotedWhitespace() throws Exception {
+		assertEquals("SELECT [A  B] ON COLUMNS WHERE \"x  y\"",
+				CellSetCache.normalize("SELECT [A  B]  ON COLUMNS WHERE \"x  y\""));
+	}
+
+	public void testGetReturnsCachedCellSet() throws Exception {
+		CellSetCache cache = new CellSetCache(100);
+		CellSet cellSet = createCellSet(2, 3);
+		cache.put("key", cellSet, null);
+		assertSame(cellSet, cache.get("key"));
+		assertEquals(6, cache.getCellCount());
+	}
+
+	public void testLeastRecentlyUsedIsEvicted() throws Exception {
+		CellSetCache cache = new CellSetCache(10);
+		CellSet first = createCellSet(2, 2);
+		CellSet second = createCellSet(2, 2);
+		cache.put("first", first, null);
+		cache.put("second", second, null);
+
+		// touch the first entry so the second one is the eldest
+		assertSame(first, cache.get("first"));
+
+		cache.put("third", createCellSet(4), null);
+		assertEquals(2, cache.size());
+		assertNull(cache.get("second"));
+		assertSame(first, cache.get("first"));
+		assertEquals(8, cache.getCellCount());
+	}
+
+	public void testCellSetLargerThanCacheIsNotStored() throws Exception {
+		CellSetCache cache = new CellSetCache(10);
+		cache.put("big", createCellSet(5, 5), null);
+		assertEquals(0, cache.size());
+		assertEquals(0, cache.getCellCount());
+	}
+
+	public void testClear() throws Exception {
+		CellSetCache cache = new CellSetCache(100);
+		cache.put("key", createCellSet(3), null);
+		cache.clear();
+		assertNull(cache.get("key"));
+		assertEquals(0, cache.getCellCount());
+	}
+
+	/**
+	 * The statement of a cached cell set must stay open while the entry is
+	 * cached and be closed once it is evicted.
+	 */
+	public void testStatementClosedOnEviction() throws Exception {
+		CellSetCache cache = new CellSetCache(10);
+		boolean[] firstClosed = new boolean[1];
+		assertTrue(cache.put("first", createCellSet(2, 4), createStatement(firstClosed)));
+		assertFalse(firstClosed[0]);
+		
+		boolean[] bigClosed = new boolean[1];
+		assertFalse(cache.put("big", createCellSet(5, 5), createStatement(bigClosed)));
+		assertFalse(bigClosed[0]);
+		
+		cache.put("second", createCellSet(4), null);
+		assertTrue(firstClosed[0]);
+		assertNull(cache.get("first"));
+	}
+
+	/**
+	 * The statement of an evicted cell set that was given to a holder must
+	 * stay open until the holder is garbage collected.
+	 */
+	public void testHeldStatementClosedOnceReleased() throws Exception {
+		CellSetCache cache = new CellSetCache(10);
+		boolean[] closed = new boolean[1];
+		Object holder = new Object();
+		assertTrue(cache.put("first", createCellSet(2, 4), createStatement(closed), holder));
+		cache.put("second", createCellSet(4), null);
+		assertNull(cache.get("first"));
+		assertFalse(closed[0]);
+		
+		holder = null;
+		for (int i = 0; i < 50 && !closed[0]; i++) {
+			System.gc();
+			Thread.sleep(10);
+			cache.get("second");
+		}
+		assertTrue(closed[0]);
+	}
+
+	public void testClosedStatementIsStale() throws Exception {
+		CellSetCache cache = new CellSetCache(100);
+		boolean[] closed = new boolean[1];
+		cache.put("key", createCellSet(3), createStatement(closed));
+		closed[0] = true;
+		assertNull(cache.get("key"));
+		assertEquals(0, cache.size());
+	}
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2009, SQL Power Group Inc.
+ *
+ * This file is part of Wabit.
+ *
+ * Wabit is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wabit is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. 
+ */
+
+package ca.sqlpower.wabit.rs.olap;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class OlapMetadataCacheTest extends TestCase {
+
+	public void testChildrenKeyedByIdentity() throws Exception {
+		OlapMetadataCache cache = new OlapMetadataCache();
+		String parent = new String("parent");
+		cache.putChildren(parent, Arrays.asList("a", "b"));
+		assertEquals(Arrays.asList("a", "b"), cache.getChildren(parent));
+		assertNull(cache.getChildren(new String("parent")));
+	}
+
+	public void testLeastRecentlyUsedChildrenAreEvicted() throws Exception {
+		OlapMetadataCache cache = new OlapMetadataCache(4);
+		Object first = new Object();
+		Object second = new Object();
+		Object third = new Object();
+		cache.putChildren(first, Arrays.asList("a", "b"));
+		cache.putChildren(second, Arrays.asList("c", "d"));
+		
+		// touch the first list so the second one is the eldest
+		assertNotNull(cache.getChildren(first));
+		
+		cache.putChildren(third, Arrays.asList("e"));
+		assertNull(cache.getChildren(second));
+		assertNotNull(cache.getChildren(first));
+		assertNotNull(cache.getChildren(third));
+	}
+
+	/**
+	 * A list too large for the cache is returned without pushing out the
+	 * lists that were cached before it.
+	 */
+	public void testLargeListIsNotCached() throws Exception {
+		OlapMetadataCache cache = new OlapMetadataCache(4);
+		Object small = new Object();
+		Object large = new Object();
+		cache.putChildren(small, Arrays.asList("a", "b"));
+		assertEquals(Arrays.asList("c", "d", "e"), cache.putChildren(large, Arrays.asList("c", "d", "e")));
+		assertNull(cache.getChildren(large));
+		assertNotNull(cache.getChildren(small));
+	}
+}
@@ -25,6 +25,9 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.naming.NamingException;
 
@@ -220,6 +223,60 @@ public class OlapQueryTest extends AbstractWabitObjectTest {
     	assertNotNull(colInclusion.getSelection());
 	}
 
+	/**
+	 * A query executed on another thread while members are included under
+	 * the lock of the query must not see only some of them.
+	 */
+    public void testExecuteWaitsForCompoundEdit() throws Exception {
+    	WabitOlapAxis rowsAxis = new WabitOlapAxis(Axis.ROWS);
+    	WabitOlapDimension rowsDimension = new WabitOlapDimension("Geography");
+    	rowsAxis.addDimension(rowsDimension);
+    	rowsDimension.addInclusion(new WabitOlapInclusion(Operator.MEMBER, "[Geography].[World]"));
+    	
+    	WabitOlapAxis columnsAxis = new WabitOlapAxis(Axis.COLUMNS);
+    	WabitOlapDimension colDimension = new WabitOlapDimension("Measures");
+    	columnsAxis.addDimension(colDimension);
+    	colDimension.addInclusion(new WabitOlapInclusion(Operator.MEMBER, "[Measures].[Life Expectancy]"));
+    	
+    	query.addAxis(columnsAxis);
+    	query.addAxis(rowsAxis);
+    	query.execute(new SPVariableHelper(query), null);
+    	
+    	Cube cube = connectionMapping.createConnection(ds).getSchema().getCubes().get("World Countries");
+    	Member worldMember = cube.getDimensions().get("Geography").getHierarchies().get("Geography").getLevels().get(0).getMembers().get(0);
+    	List<Member> continents = new ArrayList<Member>(worldMember.getChildMembers());
+    	assertTrue(continents.size() >= 2);
+    	
+    	final CountDownLatch firstIncluded = new CountDownLatch(1);
+    	final AtomicReference<String> executedMdx = new AtomicReference<String>();
+    	Thread executor = new Thread() {
+    		@Override
+    		public void run() {
+    			try {
+    				firstIncluded.await();
+    				executedMdx.set(query.execute(new SPVariableHelper(query), null).getTrace().getQuery());
+    			} catch (Exception e) {
+    				throw new RuntimeException(e);
+    			}
+    		}
+    	};
+    	executor.start();
+    	
+    	synchronized (query) {
+    		query.includeMember(continents.get(0));
+    		firstIncluded.countDown();
+    		Thread.sleep(200);
+    		assertNull(executedMdx.get());
+    		query.includeMember(continents.get(1));
+    	}
+    	
+    	executor.join(TimeUnit.SECONDS.toMillis(10));
+    	String mdx = executedMdx.get();
+    	assertNotNull(mdx);
+    	assertTrue(mdx, mdx.contains(continents.get(0).getUniqueName()));
+    	assertTrue(mdx, mdx.contains(continents.get(1).getUniqueName()));
+    }
+
 	/**
 	 * Tests the initialization of a query as though it was loaded from a file
 	 * and then tries to expand a member.
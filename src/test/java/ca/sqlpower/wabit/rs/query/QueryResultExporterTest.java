@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2009, SQL Power Group Inc.
+ *
+ * This file is part of Wabit.
+ *
+ * Wabit is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wabit is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. 
+ */
+
+package ca.sqlpower.wabit.rs.query;
+
+import java.io.ByteArrayOutputStream;
+import java.sql.Connection;
+import java.sql.Statement;
+
+import junit.framework.TestCase;
+import ca.sqlpower.sql.JDBCDataSource;
+import ca.sqlpower.wabit.WabitSession;
+import ca.sqlpower.wabit.WabitWorkspace;
+import ca.sqlpower.wabit.benchmark.RegressionSessionContext;
+import ca.sqlpower.wabit.rs.QueryCancelledException;
+import ca.sqlpower.wabit.rs.query.QueryResultExporter.Format;
+
+public class QueryResultExporterTest extends TestCase {
+
+	private RegressionSessionContext context;
+	
+	private JDBCDataSource dataSource;
+	
+	private QueryCache query;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		context = new RegressionSessionContext();
+		WabitWorkspace workspace = new WabitWorkspace();
+		WabitSession session = context.createSession(workspace);
+		dataSource = context.getRegressionDataSource();
+		
+		Connection con = context.createConnection(dataSource);
+		Statement stmt = con.createStatement();
+		stmt.execute("create table export_test (id integer, name varchar(50), amount decimal(10, 2))");
+		stmt.execute("insert into export_test values (1, 'plain', 1.50)");
+		stmt.execute("insert into export_test values (2, 'with, comma', null)");
+		stmt.execute("insert into export_test values (3, '<tag> & \"quote\"', 3)");
+		stmt.close();
+		con.close();
+		
+		query = new QueryCache(context);
+		query.setName("Export");
+		workspace.addQuery(query, session);
+		query.setDataSource(dataSource);
+		query.setUserModifiedQuery("select id, name, amount from export_test order by id");
+	}
+	
+	@Override
+	protected void tearDown() throws Exception {
+		Connection con = context.createConnection(dataSource);
+		Statement stmt = con.createStatement();
+		stmt.execute("drop table export_test");
+		stmt.close();
+		con.close();
+		super.tearDown();
+	}
+
+	public void testExportCSV() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		QueryResultExporter exporter = new QueryResultExporter(query, Format.CSV, out);
+		assertEquals(3, exporter.export());
+		assertTrue(exporter.isFinished());
+		assertEquals(3, exporter.getProgress());
+		
+		String[] lines = out.toString("UTF-8").split("\n");
+		assertEquals(4, lines.length);
+		assertEquals("\"ID\",\"NAME\",\"AMOUNT\"", lines[0].toUpperCase());
+		assertEquals("\"2\",\"with, comma\",\"\"", lines[2]);
+	}
+
+	public void testExportTSV() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		assertEquals(3, new QueryResultExporter(query, Format.TSV, out).export());
+		String[] lines = out.toString("UTF-8").split("\n");
+		assertEquals("\"1\"\t\"plain\"\t\"1.50\"", lines[1]);
+	}
+
+	public void testExportSpreadsheet() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		assertEquals(3, new QueryResultExporter(query, Format.EXCEL_XML, out).export());
+		String xml = out.toString("UTF-8");
+		assertTrue(xml.contains("<Worksheet ss:Name=\"Export\">"));
+		assertTrue(xml.contains("<Data ss:Type=\"Number\">1.50</Data>"));
+		assertTrue(xml.contains("&lt;tag&gt; &amp; "));
+		assertTrue(xml.trim().endsWith("</Workbook>"));
+	}
+
+	public void testCancelledExportWritesNoRows() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		QueryResultExporter exporter = new QueryResultExporter(query, Format.CSV, out);
+		exporter.setCancelled(true);
+		try {
+			exporter.export();
+			fail("A cancelled export should not complete");
+		} catch (QueryCancelledException e) {
+			// expected
+		}
+		assertEquals(0, out.size());
+		assertTrue(exporter.isFinished());
+	}
+
+	public void testStreamingQueryNotExported() throws Exception {
+		query.setStreaming(true);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try {
+			new QueryResultExporter(query, Format.CSV, out).export();
+			fail("The results of a streaming query never end");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		assertEquals(0, out.size());
+	}
+}
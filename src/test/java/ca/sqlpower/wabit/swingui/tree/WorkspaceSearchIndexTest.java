@@ -0,0 +1,267 @@
+/*
+ * Copyright (c) 2010, SQL Power Group Inc.
+ *
+ * This file is part of Wabit.
+ *
+ * Wabit is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wabit is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ca.sqlpower.wabit.swingui.tree;
+
+import java.io.File;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.regex.Pattern;
+
+import javax.swing.SwingUtilities;
+
+import junit.framework.TestCase;
+
+import org.olap4j.Axis;
+import org.olap4j.metadata.Cube;
+
+import ca.sqlpower.sql.Olap4jDataSource;
+import ca.sqlpower.sql.PlDotIni;
+import ca.sqlpower.wabit.StubWabitSession;
+import ca.sqlpower.wabit.StubWabitSessionContext;
+import ca.sqlpower.wabit.WabitWorkspace;
+import ca.sqlpower.wabit.report.ContentBox;
+import ca.sqlpower.wabit.report.Report;
+import ca.sqlpower.wabit.report.WabitLabel;
+import ca.sqlpower.wabit.rs.olap.OlapQuery;
+import ca.sqlpower.wabit.rs.query.QueryCache;
+import ca.sqlpower.wabit.swingui.tree.WorkspaceSearchIndex.Match;
+import ca.sqlpower.wabit.swingui.tree.WorkspaceSearchIndex.Snapshot;
+
+public class WorkspaceSearchIndexTest extends TestCase {
+
+	private StubWabitSessionContext context;
+
+	private StubWabitSession session;
+
+	private WabitWorkspace workspace;
+
+	private WorkspaceSearchIndex index;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		context = new StubWabitSessionContext();
+		session = new StubWabitSession(context);
+		workspace = session.getWorkspace();
+		workspace.setName("workspace");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		if (index != null) {
+			onEventThread(new Callable<Void>() {
+				public Void call() {
+					index.cleanup();
+					return null;
+				}
+			});
+		}
+		session.close();
+		super.tearDown();
+	}
+
+	/**
+	 * Runs the given code on the event dispatch thread, where the index and
+	 * the tree model are used, and returns its result.
+	 */
+	private static <T> T onEventThread(final Callable<T> code) throws Exception {
+		final List<T> result = new ArrayList<T>();
+		try {
+			SwingUtilities.invokeAndWait(new Runnable() {
+				public void run() {
+					try {
+						result.add(code.call());
+					} catch (Exception e) {
+						throw new RuntimeException(e);
+					}
+				}
+			});
+		} catch (InvocationTargetException e) {
+			throw (Exception) e.getCause();
+		}
+		return result.get(0);
+	}
+
+	private void createIndex() throws Exception {
+		index = onEventThread(new Callable<WorkspaceSearchIndex>() {
+			public WorkspaceSearchIndex call() {
+				return new WorkspaceSearchIndex(new WorkspaceTreeModel(workspace));
+			}
+		});
+	}
+
+	/**
+	 * Applies the changes made so far and returns the updated index, the way
+	 * the search tab does.
+	 */
+	private Snapshot updatedSnapshot() throws Exception {
+		onEventThread(new Callable<Void>() {
+			public Void call() {
+				index.update();
+				return null;
+			}
+		});
+		return index.getSnapshot();
+	}
+
+	/**
+	 * Returns the rank of each object found by the given text, the objects
+	 * found through the words of the index first.
+	 */
+	private static Map<Object, Integer> search(Snapshot snapshot, String text) {
+		Pattern p = Pattern.compile(Pattern.quote(text), Pattern.CASE_INSENSITIVE);
+		BitSet found = new BitSet();
+		List<Match> matches = new ArrayList<Match>(snapshot.searchWords(text, p, false, found));
+		matches.addAll(snapshot.searchRemaining(text, p, false, found));
+		Map<Object, Integer> ranks = new IdentityHashMap<Object, Integer>();
+		for (Match match : matches) {
+			ranks.put(match.getPath().get(match.getPath().size() - 1), match.getRank());
+		}
+		return ranks;
+	}
+
+	private Report addReport(final String name) throws Exception {
+		return onEventThread(new Callable<Report>() {
+			public Report call() {
+				Report report = new Report(name);
+				workspace.addReport(report);
+				return report;
+			}
+		});
+	}
+
+	/**
+	 * An exact name ranks before a name with a word starting with the search
+	 * text, which ranks before a name containing it, which ranks before an
+	 * object found by its content.
+	 */
+	public void testMatchesAreRanked() throws Exception {
+		Report exact = addReport("Sales");
+		Report word = addReport("Quarterly Sales");
+		Report contains = addReport("Wholesale");
+		addReport("Inventory");
+		QueryCache query = new QueryCache(context);
+		query.setName("Totals");
+		query.setUserModifiedQuery("select * from sales_totals");
+		workspace.addQuery(query, session);
+		createIndex();
+
+		Snapshot snapshot = updatedSnapshot();
+		Map<Object, Integer> ranks = search(snapshot, "sales");
+
+		assertEquals(4, ranks.size());
+		assertEquals(WorkspaceSearchIndex.RANK_EXACT_NAME, ranks.get(exact).intValue());
+		assertEquals(WorkspaceSearchIndex.RANK_NAME_WORD, ranks.get(word).intValue());
+		assertEquals(WorkspaceSearchIndex.RANK_NAME, ranks.get(contains).intValue());
+		assertEquals(WorkspaceSearchIndex.RANK_CONTENT, ranks.get(query).intValue());
+
+		Pattern p = Pattern.compile("sales", Pattern.CASE_INSENSITIVE);
+		List<Match> wordMatches = snapshot.searchWords("sales", p, false, new BitSet());
+		assertEquals(3, wordMatches.size());
+		for (int i = 1; i < wordMatches.size(); i++) {
+			assertTrue(wordMatches.get(i - 1).getRank() <= wordMatches.get(i).getRank());
+		}
+	}
+
+	/**
+	 * A renamed object must be found by its new name and not its old one.
+	 */
+	public void testRenamedObjectIsIndexedAgain() throws Exception {
+		final Report report = addReport("Budget");
+		createIndex();
+		assertTrue(search(updatedSnapshot(), "budget").containsKey(report));
+
+		onEventThread(new Callable<Void>() {
+			public Void call() {
+				report.setName("Forecast");
+				return null;
+			}
+		});
+
+		Snapshot snapshot = updatedSnapshot();
+		assertTrue(search(snapshot, "budget").isEmpty());
+		assertEquals(WorkspaceSearchIndex.RANK_EXACT_NAME, 
+				search(snapshot, "forecast").get(report).intValue());
+	}
+
+	/**
+	 * Objects added after the index was built must be found, and removed
+	 * objects and their descendants must not.
+	 */
+	public void testAddedAndRemovedObjectsAreIndexed() throws Exception {
+		createIndex();
+		int emptySize = updatedSnapshot().size();
+
+		final Report report = addReport("Expenses");
+		final ContentBox box = onEventThread(new Callable<ContentBox>() {
+			public ContentBox call() {
+				ContentBox cb = new ContentBox();
+				report.getPage().addContentBox(cb);
+				cb.setContentRenderer(new WabitLabel("Travel expenses"));
+				return cb;
+			}
+		});
+
+		Snapshot snapshot = updatedSnapshot();
+		Map<Object, Integer> ranks = search(snapshot, "expenses");
+		assertEquals(WorkspaceSearchIndex.RANK_EXACT_NAME, ranks.get(report).intValue());
+		assertEquals(WorkspaceSearchIndex.RANK_NAME_WORD, ranks.get(box).intValue());
+		assertTrue(snapshot.size() > emptySize);
+
+		onEventThread(new Callable<Void>() {
+			public Void call() throws Exception {
+				workspace.removeChild(report);
+				return null;
+			}
+		});
+
+		snapshot = updatedSnapshot();
+		assertTrue(search(snapshot, "expenses").isEmpty());
+		assertEquals(emptySize, snapshot.size());
+	}
+
+	/**
+	 * An OLAP query must be found by the captions of the members it includes.
+	 */
+	public void testOlapQueryIsFoundByMemberCaptions() throws Exception {
+		PlDotIni plIni = new PlDotIni();
+		plIni.read(new File("src/test/resources/pl.regression.ini"));
+		Olap4jDataSource ds = plIni.getDataSource("World Facts OLAP Connection", Olap4jDataSource.class);
+		OlapQuery query = new OlapQuery(null, context, "Regional facts", 
+				"GUI Query", "LOCALDB", "World", "World Countries", null);
+		query.setOlapDataSource(ds);
+		Cube cube = context.createConnection(ds).getCatalogs().get(query.getCatalogName())
+			.getSchemas().get(query.getSchemaName()).getCubes().get(query.getCubeName());
+		query.setCurrentCube(cube, false);
+		query.addToAxis(0, cube.lookupMember("Geography", "World"), Axis.ROWS);
+		query.addToAxis(0, cube.lookupMember("Measures", "Life Expectancy"), Axis.COLUMNS);
+		workspace.addOlapQuery(query);
+		createIndex();
+
+		Map<Object, Integer> ranks = search(updatedSnapshot(), "expectancy");
+
+		assertEquals(WorkspaceSearchIndex.RANK_CONTENT, ranks.get(query).intValue());
+	}
+}